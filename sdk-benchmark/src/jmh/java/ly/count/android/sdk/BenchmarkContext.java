@@ -0,0 +1,231 @@
+/*
+Copyright (c) 2012, 2013, 2014 Countly
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package ly.count.android.sdk;
+
+import android.app.ActivityManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+import android.media.AudioManager;
+import android.net.ConnectivityManager;
+import android.os.BatteryManager;
+import android.telephony.TelephonyManager;
+import android.view.Display;
+import android.view.WindowManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Context for running the SDK on a plain JVM: preferences are kept in memory, files and
+ * databases go to a temporary directory and system services return fixed, plausible
+ * device values.
+ */
+class BenchmarkContext extends Context {
+    private final File filesDir_;
+    private final Map<String, SharedPreferences> preferences_ = new HashMap<>();
+    private final PackageManager packageManager_ = new PackageManager();
+    private final Resources resources_ = new Resources();
+    private final Map<String, Object> services_ = new HashMap<>();
+
+    BenchmarkContext() throws IOException {
+        filesDir_ = File.createTempFile("countly-benchmark", "");
+        if (!filesDir_.delete() || !filesDir_.mkdirs()) {
+            throw new IOException("could not create " + filesDir_);
+        }
+        services_.put(ACTIVITY_SERVICE, new ActivityManager());
+        services_.put(AUDIO_SERVICE, new AudioManager());
+        services_.put(CONNECTIVITY_SERVICE, new ConnectivityManager());
+        services_.put(TELEPHONY_SERVICE, new TelephonyManager());
+        services_.put(WINDOW_SERVICE, new WindowManager() {
+            private final Display display_ = new Display();
+
+            @Override
+            public Display getDefaultDisplay() {
+                return display_;
+            }
+        });
+    }
+
+    /**
+     * Deletes everything the SDK wrote to the files directory.
+     */
+    void delete() {
+        delete(filesDir_);
+    }
+
+    private static void delete(final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    @Override
+    public synchronized SharedPreferences getSharedPreferences(final String name, final int mode) {
+        SharedPreferences preferences = preferences_.get(name);
+        if (preferences == null) {
+            preferences = new MemorySharedPreferences();
+            preferences_.put(name, preferences);
+        }
+        return preferences;
+    }
+
+    @Override
+    public Object getSystemService(final String name) {
+        return services_.get(name);
+    }
+
+    @Override
+    public PackageManager getPackageManager() {
+        return packageManager_;
+    }
+
+    @Override
+    public String getPackageName() {
+        return "ly.count.android.benchmark";
+    }
+
+    @Override
+    public Resources getResources() {
+        return resources_;
+    }
+
+    @Override
+    public Intent registerReceiver(final BroadcastReceiver receiver, final IntentFilter filter) {
+        // only used for the sticky battery broadcast
+        return new Intent(Intent.ACTION_BATTERY_CHANGED)
+                .putExtra(BatteryManager.EXTRA_LEVEL, 80)
+                .putExtra(BatteryManager.EXTRA_SCALE, 100);
+    }
+
+    @Override
+    public File getFilesDir() {
+        return filesDir_;
+    }
+
+    @Override
+    public File getDatabasePath(final String name) {
+        return new File(new File(filesDir_, "databases"), name);
+    }
+
+    private static class MemorySharedPreferences implements SharedPreferences {
+        private final Map<String, Object> values_ = new HashMap<>();
+
+        @Override
+        public synchronized String getString(final String key, final String defValue) {
+            final Object value = values_.get(key);
+            return value != null ? (String) value : defValue;
+        }
+
+        @Override
+        public synchronized int getInt(final String key, final int defValue) {
+            final Object value = values_.get(key);
+            return value != null ? (Integer) value : defValue;
+        }
+
+        @Override
+        public synchronized long getLong(final String key, final long defValue) {
+            final Object value = values_.get(key);
+            return value != null ? (Long) value : defValue;
+        }
+
+        @Override
+        public synchronized boolean contains(final String key) {
+            return values_.containsKey(key);
+        }
+
+        @Override
+        public synchronized Map<String, ?> getAll() {
+            return new HashMap<>(values_);
+        }
+
+        @Override
+        public Editor edit() {
+            return new Editor() {
+                private final Map<String, Object> changes_ = new HashMap<>();
+                private boolean clear_;
+
+                @Override
+                public Editor putString(final String key, final String value) {
+                    changes_.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putInt(final String key, final int value) {
+                    changes_.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putLong(final String key, final long value) {
+                    changes_.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor remove(final String key) {
+                    changes_.put(key, null);
+                    return this;
+                }
+
+                @Override
+                public Editor clear() {
+                    clear_ = true;
+                    return this;
+                }
+
+                @Override
+                public boolean commit() {
+                    synchronized (MemorySharedPreferences.this) {
+                        if (clear_) {
+                            values_.clear();
+                        }
+                        for (Map.Entry<String, Object> change : changes_.entrySet()) {
+                            if (change.getValue() == null) {
+                                values_.remove(change.getKey());
+                            } else {
+                                values_.put(change.getKey(), change.getValue());
+                            }
+                        }
+                    }
+                    return true;
+                }
+
+                @Override
+                public void apply() {
+                    commit();
+                }
+            };
+        }
+    }
+}
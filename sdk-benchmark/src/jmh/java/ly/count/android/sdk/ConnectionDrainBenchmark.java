@@ -0,0 +1,121 @@
+/*
+Copyright (c) 2012, 2013, 2014 Countly
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package ly.count.android.sdk;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Draining a full connection queue through ConnectionProcessor against a server that accepts
+ * everything instantly, so only the cost of reading and removing queued requests is measured.
+ * Every invocation starts from a freshly seeded store of queueSize requests.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ConnectionDrainBenchmark {
+    // CountlyStore's legacy SharedPreferences layout, migrated into the journals on first access
+    private static final String PREFERENCES = "COUNTLY_STORE";
+    private static final String CONNECTIONS_PREFERENCE = "CONNECTIONS";
+
+    private static final Transport.Response SUCCESS = new Transport.Response(200, "{\"result\":\"Success\"}");
+
+    @Param({"5000"})
+    public int queueSize;
+
+    @Param({"JOURNAL", "MAPPED_RING", "SQLITE"})
+    public Countly.QueueBackend backend;
+
+    private BenchmarkContext context_;
+    private CountlyStore store_;
+    private ConnectionProcessor processor_;
+    private int sent_;
+
+    @Setup(Level.Invocation)
+    public void setUp() throws Exception {
+        context_ = new BenchmarkContext();
+        final List<String> connections = new ArrayList<>(queueSize);
+        for (int i = 0; i < queueSize; i++) {
+            connections.add("app_key=0123456789abcdef0123456789abcdef&timestamp=" + (Countly.currentTimestamp() - i) + "&session_duration=30");
+        }
+        context_.getSharedPreferences(PREFERENCES, 0).edit()
+                .putString(CONNECTIONS_PREFERENCE, CountlyStore.join(connections, ":::"))
+                .commit();
+        store_ = new CountlyStore(context_);
+        store_.setConnectionBackend(backend);
+        store_.connections();
+
+        sent_ = 0;
+        processor_ = new ConnectionProcessor(store_, new DeviceId("benchmark"), new Transport() {
+            @Override
+            public Response send(final String requestData) {
+                sent_++;
+                return SUCCESS;
+            }
+
+            @Override
+            public Response sendBatch(final List<String> requestsData) {
+                sent_ += requestsData.size();
+                return SUCCESS;
+            }
+        });
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() {
+        if (sent_ != queueSize || !store_.isEmptyConnections()) {
+            throw new IllegalStateException("drained " + sent_ + " of " + queueSize + " requests");
+        }
+        context_.delete();
+    }
+
+    @Benchmark
+    public void drainOneByOne() {
+        processor_.setBulkRequests(new AtomicBoolean(false));
+        processor_.run();
+    }
+
+    @Benchmark
+    public void drainBulk() {
+        processor_.setBulkRequests(new AtomicBoolean(true));
+        processor_.run();
+    }
+}
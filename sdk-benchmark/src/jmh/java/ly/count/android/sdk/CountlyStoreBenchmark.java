@@ -0,0 +1,132 @@
+/*
+Copyright (c) 2012, 2013, 2014 Countly
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package ly.count.android.sdk;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adding events and connections to a CountlyStore that already holds queueSize of each.
+ * The store is rebuilt for every iteration, so the queue only grows by the operations of
+ * a single iteration.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CountlyStoreBenchmark {
+    // CountlyStore's legacy SharedPreferences layout, migrated into the journals on first access
+    private static final String PREFERENCES = "COUNTLY_STORE";
+    private static final String CONNECTIONS_PREFERENCE = "CONNECTIONS";
+
+    @Param({"10", "1000", "10000"})
+    public int queueSize;
+
+    @Param({"SYNC", "GROUP_COMMIT"})
+    public Countly.DurabilityMode durability;
+
+    private BenchmarkContext context_;
+    private CountlyStore store_;
+    private Event event_;
+    private String connection_;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws Exception {
+        context_ = new BenchmarkContext();
+
+        // seed the connection queue through the legacy preference, which is migrated in one
+        // batch, rather than paying for queueSize separate synced appends
+        final List<String> connections = new ArrayList<>(queueSize);
+        for (int i = 0; i < queueSize; i++) {
+            connections.add(connection(i));
+        }
+        context_.getSharedPreferences(PREFERENCES, 0).edit()
+                .putString(CONNECTIONS_PREFERENCE, CountlyStore.join(connections, ":::"))
+                .commit();
+
+        store_ = new CountlyStore(context_);
+        store_.setConnectionDurability(durability, SyncPolicy.DEFAULT_GROUP_COMMIT_WINDOW_MILLIS);
+        store_.setEventDurability(durability, SyncPolicy.DEFAULT_GROUP_COMMIT_WINDOW_MILLIS);
+        final List<Event> events = new ArrayList<>(queueSize);
+        for (int i = 0; i < queueSize; i++) {
+            events.add(event(i));
+        }
+        store_.addEvents(events);
+        store_.connections();
+
+        event_ = event(queueSize);
+        connection_ = connection(queueSize);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        context_.delete();
+    }
+
+    @Benchmark
+    public void addEvent() {
+        store_.addEvent(event_);
+    }
+
+    @Benchmark
+    public void addConnection() {
+        store_.addConnection(connection_);
+    }
+
+    static Event event(final int i) {
+        final Map<String, String> segmentation = new HashMap<>();
+        segmentation.put("screen", "main");
+        segmentation.put("button", "button" + (i % 10));
+        final Event event = new Event();
+        event.key = "tap";
+        event.segmentation = segmentation;
+        event.timestamp = Countly.currentTimestamp() - i;
+        event.hour = Countly.currentHour();
+        event.dow = Countly.currentDayOfWeek();
+        event.count = 1;
+        event.sum = i;
+        return event;
+    }
+
+    private static String connection(final int i) {
+        return "app_key=0123456789abcdef0123456789abcdef&timestamp=" + (Countly.currentTimestamp() - i) + "&session_duration=30";
+    }
+}
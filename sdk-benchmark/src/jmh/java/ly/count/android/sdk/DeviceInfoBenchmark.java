@@ -0,0 +1,89 @@
+/*
+Copyright (c) 2012, 2013, 2014 Countly
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package ly.count.android.sdk;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the device metrics sent with every session start, with and without the cache, and
+ * the crash report payload, with and without its static fields prepared ahead of time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeviceInfoBenchmark {
+    private BenchmarkContext context_;
+    private String stackTrace_;
+
+    @Setup
+    public void setUp() throws Exception {
+        context_ = new BenchmarkContext();
+        final Throwable crash = new IllegalStateException("benchmark");
+        final StringBuilder sb = new StringBuilder(crash.toString());
+        for (StackTraceElement element : crash.getStackTrace()) {
+            sb.append("\n\tat ").append(element);
+        }
+        stackTrace_ = sb.toString();
+        CrashDetails.prepareStaticData(context_);
+    }
+
+    @TearDown
+    public void tearDown() {
+        context_.delete();
+    }
+
+    @Benchmark
+    public String getMetrics() {
+        return DeviceInfo.getMetrics(context_);
+    }
+
+    @Benchmark
+    public String getCachedMetrics() {
+        return DeviceInfo.getCachedMetrics(context_);
+    }
+
+    @Benchmark
+    public String getCrashData() {
+        return CrashDetails.getCrashData(context_, stackTrace_, true);
+    }
+
+    @Benchmark
+    public String getCrashDataWithoutStaticData() {
+        CrashDetails.invalidateStaticData();
+        return CrashDetails.getCrashData(context_, stackTrace_, true);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+Copyright (c) 2012, 2013, 2014 Countly
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package ly.count.android.sdk;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Draining eventCount recorded events from an EventQueue into a request string.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventQueueBenchmark {
+    @Param({"10", "100", "1000"})
+    public int eventCount;
+
+    private BenchmarkContext context_;
+    private EventQueue eventQueue_;
+    private final Map<String, String> segmentation_ = new HashMap<>();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        context_ = new BenchmarkContext();
+        eventQueue_ = new EventQueue(new CountlyStore(context_), EventQueue.DEFAULT_CAPACITY);
+        // keep the write-behind flusher out of the measurement
+        eventQueue_.setMaxLossWindowMillis(TimeUnit.HOURS.toMillis(1));
+        segmentation_.put("screen", "main");
+        segmentation_.put("button", "ok");
+    }
+
+    @Setup(Level.Invocation)
+    public void record() {
+        for (int i = 0; i < eventCount; i++) {
+            eventQueue_.recordEvent("tap", segmentation_, 1, i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context_.delete();
+    }
+
+    @Benchmark
+    public String events() {
+        return eventQueue_.events();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+Copyright (c) 2012, 2013, 2014 Countly
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package ly.count.android.sdk;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Eight threads recording events through the Countly facade at once. Each iteration records
+ * a fixed batch per thread and then waits for the command queue to drain, so the queued
+ * backlog never grows past one batch. recordEventSynchronized is the old facade, recording
+ * on the caller's thread under the Countly monitor, for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, batchSize = RecordEventBenchmark.BATCH_SIZE)
+@Measurement(iterations = 10, batchSize = RecordEventBenchmark.BATCH_SIZE)
+@Threads(8)
+@Fork(1)
+public class RecordEventBenchmark {
+    static final int BATCH_SIZE = 20000;
+
+    private BenchmarkContext context_;
+    private Countly countly_;
+    private final Map<String, String> segmentation_ = new HashMap<>();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        context_ = new BenchmarkContext();
+        countly_ = new Countly();
+        countly_.init(context_, "http://localhost", "appkey", "benchmark");
+        // requests are dropped rather than sent
+        countly_.setTransport(new Transport() {
+            @Override
+            public Response send(final String requestData) throws IOException {
+                return new Response(200, "{\"result\":\"Success\"}");
+            }
+
+            @Override
+            public Response sendBatch(final List<String> requestsData) throws IOException {
+                return null;
+            }
+        });
+        segmentation_.put("screen", "main");
+        segmentation_.put("button", "ok");
+    }
+
+    @TearDown(Level.Iteration)
+    public void drain() {
+        countly_.getCommandQueue().awaitIdle(TimeUnit.MINUTES.toMillis(1));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        countly_.halt();
+        context_.delete();
+    }
+
+    @Benchmark
+    public void recordEvent() {
+        countly_.recordEvent("tap", segmentation_, 1, 1.0d);
+    }
+
+    @Benchmark
+    public void recordEventSynchronized() {
+        synchronized (countly_) {
+            countly_.recordEventHelper("tap", new HashMap<>(segmentation_), 1, 1.0d);
+        }
+    }
+}
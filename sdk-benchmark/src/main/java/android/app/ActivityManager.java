@@ -0,0 +1,11 @@
+package android.app;
+
+public class ActivityManager {
+    public static class MemoryInfo {
+        public long availMem;
+    }
+
+    public void getMemoryInfo(final MemoryInfo outInfo) {
+        outInfo.availMem = Runtime.getRuntime().freeMemory();
+    }
+}
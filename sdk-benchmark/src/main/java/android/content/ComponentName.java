@@ -0,0 +1,19 @@
+package android.content;
+
+public class ComponentName {
+    private final String packageName_;
+    private final String className_;
+
+    public ComponentName(final String packageName, final String className) {
+        packageName_ = packageName;
+        className_ = className;
+    }
+
+    public String getPackageName() {
+        return packageName_;
+    }
+
+    public String getClassName() {
+        return className_;
+    }
+}
@@ -0,0 +1,58 @@
+package android.content;
+
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+
+import java.io.File;
+
+/**
+ * Every accessor returns null, like an unprepared Android context; benchmarks subclass
+ * it to provide the preferences, files and system services they exercise.
+ */
+public abstract class Context {
+    public static final int MODE_PRIVATE = 0;
+    public static final String ACTIVITY_SERVICE = "activity";
+    public static final String AUDIO_SERVICE = "audio";
+    public static final String CONNECTIVITY_SERVICE = "connectivity";
+    public static final String TELEPHONY_SERVICE = "phone";
+    public static final String WINDOW_SERVICE = "window";
+
+    public SharedPreferences getSharedPreferences(final String name, final int mode) {
+        return null;
+    }
+
+    public Object getSystemService(final String name) {
+        return null;
+    }
+
+    public PackageManager getPackageManager() {
+        return null;
+    }
+
+    public String getPackageName() {
+        return null;
+    }
+
+    public Resources getResources() {
+        return null;
+    }
+
+    public Intent registerReceiver(final BroadcastReceiver receiver, final IntentFilter filter) {
+        return null;
+    }
+
+    public void registerComponentCallbacks(final ComponentCallbacks callback) {
+    }
+
+    public File getFilesDir() {
+        return null;
+    }
+
+    public File getDatabasePath(final String name) {
+        return null;
+    }
+
+    public Context getApplicationContext() {
+        return this;
+    }
+}
@@ -0,0 +1,59 @@
+package android.content;
+
+import android.net.Uri;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class Intent {
+    public static final String ACTION_BATTERY_CHANGED = "android.intent.action.BATTERY_CHANGED";
+    public static final String ACTION_LOCALE_CHANGED = "android.intent.action.LOCALE_CHANGED";
+
+    private final Map<String, Object> extras_ = new HashMap<>();
+    private String action_;
+    private ComponentName component_;
+
+    public Intent() {
+    }
+
+    public Intent(final String action) {
+        action_ = action;
+    }
+
+    public String getAction() {
+        return action_;
+    }
+
+    public ComponentName getComponent() {
+        return component_;
+    }
+
+    public Intent setComponent(final ComponentName component) {
+        component_ = component;
+        return this;
+    }
+
+    public Intent putExtra(final String name, final int value) {
+        extras_.put(name, value);
+        return this;
+    }
+
+    public Intent putExtra(final String name, final String value) {
+        extras_.put(name, value);
+        return this;
+    }
+
+    public int getIntExtra(final String name, final int defaultValue) {
+        final Object value = extras_.get(name);
+        return value instanceof Integer ? (Integer) value : defaultValue;
+    }
+
+    public String getStringExtra(final String name) {
+        final Object value = extras_.get(name);
+        return value instanceof String ? (String) value : null;
+    }
+
+    public Uri getData() {
+        return null;
+    }
+}
@@ -0,0 +1,8 @@
+package android.content.pm;
+
+public class FeatureInfo {
+    public static final int GL_ES_VERSION_UNDEFINED = 0;
+
+    public String name;
+    public int reqGlEsVersion;
+}
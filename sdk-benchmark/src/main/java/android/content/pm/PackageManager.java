@@ -0,0 +1,30 @@
+package android.content.pm;
+
+import android.content.ComponentName;
+import android.content.Intent;
+
+public class PackageManager {
+    public static class NameNotFoundException extends Exception {
+    }
+
+    public PackageInfo getPackageInfo(final String packageName, final int flags) throws NameNotFoundException {
+        final PackageInfo info = new PackageInfo();
+        info.versionName = "1.0";
+        info.versionCode = 1;
+        return info;
+    }
+
+    public String getInstallerPackageName(final String packageName) {
+        return "com.android.vending";
+    }
+
+    public Intent getLaunchIntentForPackage(final String packageName) {
+        return new Intent().setComponent(new ComponentName(packageName, packageName + ".MainActivity"));
+    }
+
+    public FeatureInfo[] getSystemAvailableFeatures() {
+        final FeatureInfo gl = new FeatureInfo();
+        gl.reqGlEsVersion = 0x30000;
+        return new FeatureInfo[] { gl };
+    }
+}
@@ -0,0 +1,13 @@
+package android.content.res;
+
+import java.util.Locale;
+
+public class Configuration {
+    public static final int ORIENTATION_UNDEFINED = 0;
+    public static final int ORIENTATION_PORTRAIT = 1;
+    public static final int ORIENTATION_LANDSCAPE = 2;
+    public static final int ORIENTATION_SQUARE = 3;
+
+    public int orientation = ORIENTATION_PORTRAIT;
+    public Locale locale = Locale.getDefault();
+}
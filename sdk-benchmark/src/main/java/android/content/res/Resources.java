@@ -0,0 +1,22 @@
+package android.content.res;
+
+import android.util.DisplayMetrics;
+
+public class Resources {
+    private final Configuration configuration_ = new Configuration();
+    private final DisplayMetrics displayMetrics_ = new DisplayMetrics();
+
+    public Resources() {
+        displayMetrics_.widthPixels = 1080;
+        displayMetrics_.heightPixels = 1920;
+        displayMetrics_.densityDpi = DisplayMetrics.DENSITY_XXHIGH;
+    }
+
+    public Configuration getConfiguration() {
+        return configuration_;
+    }
+
+    public DisplayMetrics getDisplayMetrics() {
+        return displayMetrics_;
+    }
+}
@@ -0,0 +1,19 @@
+package android.database;
+
+import java.io.Closeable;
+
+public interface Cursor extends Closeable {
+    int getCount();
+
+    boolean moveToFirst();
+
+    boolean moveToNext();
+
+    int getInt(int columnIndex);
+
+    long getLong(int columnIndex);
+
+    String getString(int columnIndex);
+
+    void close();
+}
@@ -0,0 +1,197 @@
+package android.database.sqlite;
+
+import android.database.Cursor;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs on the embedded SQLite JDBC driver, so the SDK's SQLite storage behaves on the JVM
+ * as it does on a device. Cursors are read into memory when the query runs.
+ */
+public class SQLiteDatabase {
+    public interface CursorFactory {
+    }
+
+    private final Connection connection_;
+    // one entry per nested transaction, true once it has been marked successful
+    private final List<Boolean> transactions_ = new ArrayList<>();
+    private boolean transactionFailed_;
+
+    SQLiteDatabase(final File file) {
+        try {
+            connection_ = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        }
+    }
+
+    public void execSQL(final String sql) {
+        execSQL(sql, new Object[0]);
+    }
+
+    public void execSQL(final String sql, final Object[] bindArgs) {
+        try {
+            final PreparedStatement statement = connection_.prepareStatement(sql);
+            try {
+                for (int i = 0; i < bindArgs.length; i++) {
+                    statement.setObject(i + 1, bindArgs[i]);
+                }
+                statement.execute();
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        }
+    }
+
+    public Cursor rawQuery(final String sql, final String[] selectionArgs) {
+        try {
+            final PreparedStatement statement = connection_.prepareStatement(sql);
+            try {
+                if (selectionArgs != null) {
+                    for (int i = 0; i < selectionArgs.length; i++) {
+                        statement.setString(i + 1, selectionArgs[i]);
+                    }
+                }
+                final ResultSet result = statement.executeQuery();
+                final int columns = result.getMetaData().getColumnCount();
+                final List<Object[]> rows = new ArrayList<>();
+                while (result.next()) {
+                    final Object[] row = new Object[columns];
+                    for (int i = 0; i < columns; i++) {
+                        row[i] = result.getObject(i + 1);
+                    }
+                    rows.add(row);
+                }
+                return new RowsCursor(rows);
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        }
+    }
+
+    public int delete(final String table, final String whereClause, final String[] whereArgs) {
+        try {
+            final PreparedStatement statement = connection_.prepareStatement("DELETE FROM " + table + (whereClause == null ? "" : " WHERE " + whereClause));
+            try {
+                if (whereArgs != null) {
+                    for (int i = 0; i < whereArgs.length; i++) {
+                        statement.setString(i + 1, whereArgs[i]);
+                    }
+                }
+                return statement.executeUpdate();
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        }
+    }
+
+    public SQLiteStatement compileStatement(final String sql) {
+        try {
+            return new SQLiteStatement(connection_.prepareStatement(sql));
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        }
+    }
+
+    public void beginTransaction() {
+        try {
+            if (transactions_.isEmpty()) {
+                connection_.setAutoCommit(false);
+                transactionFailed_ = false;
+            }
+            transactions_.add(false);
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        }
+    }
+
+    public void setTransactionSuccessful() {
+        transactions_.set(transactions_.size() - 1, true);
+    }
+
+    public void endTransaction() {
+        if (!transactions_.remove(transactions_.size() - 1)) {
+            transactionFailed_ = true;
+        }
+        if (!transactions_.isEmpty()) {
+            return;
+        }
+        try {
+            if (transactionFailed_) {
+                connection_.rollback();
+            } else {
+                connection_.commit();
+            }
+            connection_.setAutoCommit(true);
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        }
+    }
+
+    public void close() {
+        try {
+            connection_.close();
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        }
+    }
+
+    private static class RowsCursor implements Cursor {
+        private final List<Object[]> rows_;
+        private int position_ = -1;
+
+        RowsCursor(final List<Object[]> rows) {
+            rows_ = rows;
+        }
+
+        @Override
+        public int getCount() {
+            return rows_.size();
+        }
+
+        @Override
+        public boolean moveToFirst() {
+            position_ = 0;
+            return !rows_.isEmpty();
+        }
+
+        @Override
+        public boolean moveToNext() {
+            return ++position_ < rows_.size();
+        }
+
+        @Override
+        public int getInt(final int columnIndex) {
+            return (int) getLong(columnIndex);
+        }
+
+        @Override
+        public long getLong(final int columnIndex) {
+            final Object value = rows_.get(position_)[columnIndex];
+            return value == null ? 0 : ((Number) value).longValue();
+        }
+
+        @Override
+        public String getString(final int columnIndex) {
+            final Object value = rows_.get(position_)[columnIndex];
+            return value == null ? null : value.toString();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
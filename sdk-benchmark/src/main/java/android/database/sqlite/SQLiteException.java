@@ -0,0 +1,11 @@
+package android.database.sqlite;
+
+public class SQLiteException extends RuntimeException {
+    public SQLiteException(final String error) {
+        super(error);
+    }
+
+    public SQLiteException(final String error, final Throwable cause) {
+        super(error, cause);
+    }
+}
@@ -0,0 +1,57 @@
+package android.database.sqlite;
+
+import android.content.Context;
+
+import java.io.File;
+
+public abstract class SQLiteOpenHelper {
+    private final Context context_;
+    private final String name_;
+    private final int version_;
+    private SQLiteDatabase database_;
+
+    public SQLiteOpenHelper(final Context context, final String name, final SQLiteDatabase.CursorFactory factory, final int version) {
+        context_ = context;
+        name_ = name;
+        version_ = version;
+    }
+
+    public synchronized SQLiteDatabase getWritableDatabase() {
+        if (database_ == null) {
+            final File file = context_.getDatabasePath(name_);
+            file.getParentFile().mkdirs();
+            final SQLiteDatabase database = new SQLiteDatabase(file);
+            final android.database.Cursor cursor = database.rawQuery("PRAGMA user_version", null);
+            cursor.moveToFirst();
+            final int version = cursor.getInt(0);
+            cursor.close();
+            if (version != version_) {
+                database.beginTransaction();
+                try {
+                    if (version == 0) {
+                        onCreate(database);
+                    } else {
+                        onUpgrade(database, version, version_);
+                    }
+                    database.execSQL("PRAGMA user_version = " + version_);
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
+            }
+            database_ = database;
+        }
+        return database_;
+    }
+
+    public synchronized void close() {
+        if (database_ != null) {
+            database_.close();
+            database_ = null;
+        }
+    }
+
+    public abstract void onCreate(SQLiteDatabase db);
+
+    public abstract void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion);
+}
@@ -0,0 +1,69 @@
+package android.database.sqlite;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+public class SQLiteStatement {
+    private final PreparedStatement statement_;
+
+    SQLiteStatement(final PreparedStatement statement) {
+        statement_ = statement;
+    }
+
+    public void bindLong(final int index, final long value) {
+        try {
+            statement_.setLong(index, value);
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        }
+    }
+
+    public void bindString(final int index, final String value) {
+        try {
+            statement_.setString(index, value);
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        }
+    }
+
+    public void clearBindings() {
+        try {
+            statement_.clearParameters();
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        }
+    }
+
+    public void execute() {
+        try {
+            statement_.execute();
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        }
+    }
+
+    public long executeInsert() {
+        try {
+            statement_.executeUpdate();
+            final Statement rowid = statement_.getConnection().createStatement();
+            try {
+                final ResultSet result = rowid.executeQuery("SELECT last_insert_rowid()");
+                return result.next() ? result.getLong(1) : -1;
+            } finally {
+                rowid.close();
+            }
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        }
+    }
+
+    public void close() {
+        try {
+            statement_.close();
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package android.net;
+
+public class ConnectivityManager {
+    private final NetworkInfo activeNetwork_ = new NetworkInfo();
+
+    public NetworkInfo getActiveNetworkInfo() {
+        return activeNetwork_;
+    }
+}
@@ -0,0 +1,11 @@
+package android.net;
+
+public class NetworkInfo {
+    public boolean isAvailable() {
+        return true;
+    }
+
+    public boolean isConnected() {
+        return true;
+    }
+}
@@ -0,0 +1,42 @@
+package android.net;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+public class Uri {
+    private final Map<String, String> query_ = new LinkedHashMap<>();
+
+    public static Uri parse(final String uriString) {
+        final Uri uri = new Uri();
+        final int start = uriString.indexOf('?');
+        if (start >= 0) {
+            for (String pair : uriString.substring(start + 1).split("&")) {
+                if (pair.length() == 0) {
+                    continue;
+                }
+                final int eq = pair.indexOf('=');
+                uri.query_.put(decode(eq < 0 ? pair : pair.substring(0, eq)), eq < 0 ? "" : decode(pair.substring(eq + 1)));
+            }
+        }
+        return uri;
+    }
+
+    public Set<String> getQueryParameterNames() {
+        return query_.keySet();
+    }
+
+    public String getQueryParameter(final String key) {
+        return query_.get(key);
+    }
+
+    private static String decode(final String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package android.os;
+
+public class Build {
+    public static final String CPU_ABI = "arm64-v8a";
+    public static final String[] SUPPORTED_ABIS = { CPU_ABI };
+    public static final String MANUFACTURER = "Benchmark";
+    public static final String MODEL = "JVM";
+
+    public static class VERSION {
+        public static final String RELEASE = "6.0.1";
+        public static final int SDK_INT = 23;
+    }
+
+    public static class VERSION_CODES {
+        public static final int FROYO = 8;
+        public static final int GINGERBREAD = 9;
+        public static final int HONEYCOMB = 11;
+        public static final int ICE_CREAM_SANDWICH = 14;
+        public static final int JELLY_BEAN_MR2 = 18;
+        public static final int KITKAT = 19;
+        public static final int LOLLIPOP = 21;
+    }
+}
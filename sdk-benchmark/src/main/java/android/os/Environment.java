@@ -0,0 +1,13 @@
+package android.os;
+
+import java.io.File;
+
+public class Environment {
+    public static File getRootDirectory() {
+        return new File("/");
+    }
+
+    public static File getDataDirectory() {
+        return new File(System.getProperty("java.io.tmpdir"));
+    }
+}
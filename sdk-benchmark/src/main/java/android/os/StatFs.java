@@ -0,0 +1,37 @@
+package android.os;
+
+import java.io.File;
+
+public class StatFs {
+    private static final int BLOCK_SIZE = 4096;
+
+    private final File path_;
+
+    public StatFs(final String path) {
+        path_ = new File(path);
+    }
+
+    public int getBlockSize() {
+        return BLOCK_SIZE;
+    }
+
+    public int getBlockCount() {
+        return (int) getBlockCountLong();
+    }
+
+    public int getAvailableBlocks() {
+        return (int) getAvailableBlocksLong();
+    }
+
+    public long getBlockSizeLong() {
+        return BLOCK_SIZE;
+    }
+
+    public long getBlockCountLong() {
+        return path_.getTotalSpace() / BLOCK_SIZE;
+    }
+
+    public long getAvailableBlocksLong() {
+        return path_.getUsableSpace() / BLOCK_SIZE;
+    }
+}
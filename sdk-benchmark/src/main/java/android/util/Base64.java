@@ -0,0 +1,35 @@
+package android.util;
+
+import java.io.ByteArrayOutputStream;
+
+public class Base64 {
+    public static final int DEFAULT = 0;
+
+    private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+    public static byte[] decode(final String str, final int flags) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(str.length() * 3 / 4);
+        int buffer = 0;
+        int bits = 0;
+        for (int i = 0; i < str.length(); i++) {
+            final char c = str.charAt(i);
+            if (c == '=') {
+                break;
+            }
+            final int value = ALPHABET.indexOf(c);
+            if (value < 0) {
+                if (Character.isWhitespace(c)) {
+                    continue;
+                }
+                throw new IllegalArgumentException("bad base-64");
+            }
+            buffer = (buffer << 6) | value;
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                out.write(buffer >> bits);
+            }
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,16 @@
+package android.util;
+
+public class DisplayMetrics {
+    public static final int DENSITY_LOW = 120;
+    public static final int DENSITY_MEDIUM = 160;
+    public static final int DENSITY_TV = 213;
+    public static final int DENSITY_HIGH = 240;
+    public static final int DENSITY_XHIGH = 320;
+    public static final int DENSITY_400 = 400;
+    public static final int DENSITY_XXHIGH = 480;
+    public static final int DENSITY_XXXHIGH = 640;
+
+    public int widthPixels;
+    public int heightPixels;
+    public int densityDpi;
+}
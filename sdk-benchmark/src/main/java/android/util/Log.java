@@ -0,0 +1,35 @@
+package android.util;
+
+public class Log {
+    public static int d(final String tag, final String msg) {
+        return 0;
+    }
+
+    public static int d(final String tag, final String msg, final Throwable tr) {
+        return 0;
+    }
+
+    public static int i(final String tag, final String msg) {
+        return 0;
+    }
+
+    public static int i(final String tag, final String msg, final Throwable tr) {
+        return 0;
+    }
+
+    public static int w(final String tag, final String msg) {
+        return 0;
+    }
+
+    public static int w(final String tag, final String msg, final Throwable tr) {
+        return 0;
+    }
+
+    public static int e(final String tag, final String msg) {
+        return 0;
+    }
+
+    public static int e(final String tag, final String msg, final Throwable tr) {
+        return 0;
+    }
+}
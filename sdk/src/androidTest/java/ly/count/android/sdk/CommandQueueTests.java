@@ -0,0 +1,215 @@
+/*
+Copyright (c) 2012, 2013, 2014 Countly
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package ly.count.android.sdk;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+public class CommandQueueTests extends AndroidTestCase {
+    CommandQueue mCommandQueue;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCommandQueue = new CommandQueue();
+    }
+
+    public void testSubmit_runsInOrder() {
+        final List<Integer> ran = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            final int n = i;
+            mCommandQueue.submit(new Runnable() {
+                @Override
+                public void run() {
+                    ran.add(n);
+                }
+            });
+        }
+        assertTrue(mCommandQueue.awaitIdle(5000));
+        assertEquals(1000, ran.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, (int) ran.get(i));
+        }
+    }
+
+    public void testSubmit_multipleProducers() throws InterruptedException {
+        final int producers = 8;
+        final int commandsPerProducer = 1000;
+        // only touched by commands, so a plain counter must not lose updates
+        final int[] counter = new int[1];
+        final List<Integer> outOfOrder = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] threads = new Thread[producers];
+        for (int t = 0; t < producers; t++) {
+            final int producer = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    final int[] last = { -1 };
+                    for (int i = 0; i < commandsPerProducer; i++) {
+                        final int n = i;
+                        mCommandQueue.submit(new Runnable() {
+                            @Override
+                            public void run() {
+                                counter[0]++;
+                                // commands of one producer run in the order it submitted them
+                                if (n != last[0] + 1) {
+                                    outOfOrder.add(producer);
+                                }
+                                last[0] = n;
+                            }
+                        });
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(mCommandQueue.awaitIdle(5000));
+        assertEquals(producers * commandsPerProducer, counter[0]);
+        assertTrue(outOfOrder.isEmpty());
+    }
+
+    public void testSubmit_failingCommandDoesNotStopQueue() {
+        final boolean[] ran = new boolean[1];
+        mCommandQueue.submit(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("failing command");
+            }
+        });
+        mCommandQueue.submit(new Runnable() {
+            @Override
+            public void run() {
+                ran[0] = true;
+            }
+        });
+        assertTrue(mCommandQueue.awaitIdle(5000));
+        assertTrue(ran[0]);
+    }
+
+    public void testSubmit_startsConsumerOnlyWhenIdle() {
+        final List<Runnable> started = new ArrayList<>();
+        final CommandQueue commandQueue = new CommandQueue(new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                started.add(command);
+            }
+        });
+        final int[] ran = new int[1];
+        final Runnable command = new Runnable() {
+            @Override
+            public void run() {
+                ran[0]++;
+            }
+        };
+
+        commandQueue.submit(command);
+        commandQueue.submit(command);
+        commandQueue.submit(command);
+        assertEquals(1, started.size());
+        assertEquals(0, ran[0]);
+
+        started.get(0).run();
+        assertEquals(3, ran[0]);
+
+        commandQueue.submit(command);
+        assertEquals(2, started.size());
+    }
+
+    public void testSubmit_errorDoesNotWedgeQueue() {
+        final List<Runnable> started = new ArrayList<>();
+        final CommandQueue commandQueue = new CommandQueue(new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                started.add(command);
+            }
+        });
+        final boolean[] ran = new boolean[1];
+        commandQueue.submit(new Runnable() {
+            @Override
+            public void run() {
+                throw new CommandError();
+            }
+        });
+        commandQueue.submit(new Runnable() {
+            @Override
+            public void run() {
+                ran[0] = true;
+            }
+        });
+        try {
+            started.get(0).run();
+            fail("expected the error to reach the consumer thread");
+        } catch (CommandError ignored) {
+            // success!
+        }
+        assertFalse(ran[0]);
+
+        commandQueue.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        assertEquals(2, started.size());
+        started.get(1).run();
+        assertTrue(ran[0]);
+    }
+
+    public void testAwaitIdle_fromCommand() {
+        final boolean[] result = { true };
+        mCommandQueue.submit(new Runnable() {
+            @Override
+            public void run() {
+                result[0] = mCommandQueue.awaitIdle(5000);
+            }
+        });
+        assertTrue(mCommandQueue.awaitIdle(5000));
+        assertFalse(result[0]);
+    }
+
+    public void testAwaitIdle_timesOut() {
+        final CommandQueue commandQueue = new CommandQueue(new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                // never runs the consumer
+            }
+        });
+        assertFalse(commandQueue.awaitIdle(10));
+    }
+
+    private static class CommandError extends Error {
+    }
+}
@@ -23,19 +23,19 @@ package ly.count.android.sdk;
 
 import android.test.AndroidTestCase;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLConnection;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.*;
-import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -44,15 +44,43 @@ public class ConnectionProcessorTests extends AndroidTestCase {
     ConnectionProcessor connectionProcessor;
     CountlyStore mockStore;
     DeviceId mockDeviceId;
+    Transport mockTransport;
     String testDeviceId;
+    Map<String, Long> ids;
 
     @Override
     protected void setUp() throws Exception {
         super.setUp();
         mockStore = mock(CountlyStore.class);
         mockDeviceId = mock(DeviceId.class);
-        connectionProcessor = new ConnectionProcessor("http://server", mockStore, mockDeviceId, null);
+        mockTransport = mock(Transport.class);
+        connectionProcessor = new ConnectionProcessor(mockStore, mockDeviceId, mockTransport);
         testDeviceId = "123";
+        ids = new HashMap<>();
+    }
+
+    /**
+     * Wraps request strings like the store does, giving every distinct request a stable id.
+     */
+    private PersistentQueue.Entry[] entries(final String... values) {
+        final PersistentQueue.Entry[] entries = new PersistentQueue.Entry[values.length];
+        for (int i = 0; i < values.length; i++) {
+            entries[i] = new PersistentQueue.Entry(id(values[i]), values[i], QueueJournal.entrySize(values[i]));
+        }
+        return entries;
+    }
+
+    private long id(final String value) {
+        Long id = ids.get(value);
+        if (id == null) {
+            id = (long) ids.size() + 1;
+            ids.put(value, id);
+        }
+        return id;
+    }
+
+    private static Transport.Response response(final int code, final String result) {
+        return new Transport.Response(code, "{\"result\":\"" + result + "\"}");
     }
 
     public void testConstructorAndGetters() {
@@ -63,240 +91,476 @@ public class ConnectionProcessorTests extends AndroidTestCase {
         assertEquals(serverURL, connectionProcessor1.getServerURL());
         assertSame(mockStore, connectionProcessor1.getCountlyStore());
         assertSame(mockDeviceId, connectionProcessor1.getDeviceId());
+        assertTrue(connectionProcessor1.getTransport() instanceof HttpTransport);
     }
 
-    public void testUrlConnectionForEventData() throws IOException {
-        final String eventData = "blahblahblah";
-        final URLConnection urlConnection = connectionProcessor.urlConnectionForEventData(eventData);
-        assertEquals(30000, urlConnection.getConnectTimeout());
-        assertEquals(30000, urlConnection.getReadTimeout());
-        assertFalse(urlConnection.getUseCaches());
-        assertTrue(urlConnection.getDoInput());
-        assertFalse(urlConnection.getDoOutput());
-        assertEquals(new URL(connectionProcessor.getServerURL() + "/i?" + eventData), urlConnection.getURL());
+    public void testConstructorWithTransport() {
+        assertSame(mockTransport, connectionProcessor.getTransport());
+        assertSame(mockStore, connectionProcessor.getCountlyStore());
+        assertNull(connectionProcessor.getServerURL());
     }
 
     public void testRun_storeReturnsNullConnections() throws IOException {
-        connectionProcessor = spy(connectionProcessor);
-        when(mockStore.connections()).thenReturn(null);
+        when(mockStore.peekConnections(anyInt())).thenReturn(null);
         connectionProcessor.run();
-        verify(mockStore).connections();
-        verify(connectionProcessor, times(0)).urlConnectionForEventData(anyString());
+        verify(mockStore).peekConnections(anyInt());
+        verifyZeroInteractions(mockTransport);
     }
 
     public void testRun_storeReturnsEmptyConnections() throws IOException {
-        connectionProcessor = spy(connectionProcessor);
-        when(mockStore.connections()).thenReturn(new String[0]);
+        when(mockStore.peekConnections(anyInt())).thenReturn(entries());
         connectionProcessor.run();
-        verify(mockStore).connections();
-        verify(connectionProcessor, times(0)).urlConnectionForEventData(anyString());
-    }
-
-    private static class TestInputStream extends InputStream {
-        int readCount = 0;
-        boolean fullyRead() { return readCount >= 2; }
-        boolean closed = false;
-
-        @Override
-        public int read() throws IOException {
-            return readCount++ < 1 ? 1 : -1;
-        }
-
-        @Override
-        public void close() throws IOException {
-            super.close();
-            closed = true;
-        }
+        verify(mockStore).peekConnections(anyInt());
+        verifyZeroInteractions(mockTransport);
     }
 
-    private static class CountlyResponseStream extends ByteArrayInputStream {
-        boolean closed = false;
-
-        CountlyResponseStream(final String result) throws UnsupportedEncodingException {
-            super(("{\"result\":\"" + result + "\"}").getBytes("UTF-8"));
-        }
-
-        boolean fullyRead() { return pos == buf.length; }
-
-        @Override
-        public void close() throws IOException {
-            super.close();
-            closed = true;
-        }
+    public void testRun_noDeviceIdYet() throws IOException {
+        when(mockStore.peekConnections(anyInt())).thenReturn(entries("blahblahblah"));
+        when(mockDeviceId.getId()).thenReturn(null);
+        connectionProcessor.run();
+        verifyZeroInteractions(mockTransport);
+        verify(mockStore, times(0)).removeConnectionsThrough(any(RequestLane.class), anyLong());
     }
 
     public void testRun_storeHasSingleConnection() throws IOException {
         final String eventData = "blahblahblah";
-        connectionProcessor = spy(connectionProcessor);
-        when(mockStore.connections()).thenReturn(new String[]{eventData}, new String[0]);
+        when(mockStore.peekConnections(anyInt())).thenReturn(entries(eventData), entries());
         when(mockDeviceId.getId()).thenReturn(testDeviceId);
-        final HttpURLConnection mockURLConnection = mock(HttpURLConnection.class);
-        final CountlyResponseStream testInputStream = new CountlyResponseStream("Success");
-        when(mockURLConnection.getInputStream()).thenReturn(testInputStream);
-        when(mockURLConnection.getResponseCode()).thenReturn(200);
-        doReturn(mockURLConnection).when(connectionProcessor).urlConnectionForEventData(eventData + "&device_id=" + testDeviceId);
+        when(mockTransport.send(eventData + "&device_id=" + testDeviceId)).thenReturn(response(200, "Success"));
         connectionProcessor.run();
-        verify(mockStore, times(2)).connections();
-        verify(connectionProcessor).urlConnectionForEventData(eventData + "&device_id=" + testDeviceId);
-        verify(mockURLConnection).connect();
-        verify(mockURLConnection).getInputStream();
-        verify(mockURLConnection).getResponseCode();
-        assertTrue(testInputStream.fullyRead());
-        verify(mockStore).removeConnection(eventData);
-        assertTrue(testInputStream.closed);
-        verify(mockURLConnection).disconnect();
+        verify(mockStore, times(2)).peekConnections(anyInt());
+        verify(mockTransport).send(eventData + "&device_id=" + testDeviceId);
+        verify(mockStore).removeConnectionsThrough(RequestLane.of(eventData), id(eventData));
     }
 
     public void testRun_storeHasSingleConnection_butHTTPResponseCodeWasNot2xx() throws IOException {
         final String eventData = "blahblahblah";
-        connectionProcessor = spy(connectionProcessor);
-        when(mockStore.connections()).thenReturn(new String[]{eventData}, new String[0]);
+        when(mockStore.peekConnections(anyInt())).thenReturn(entries(eventData), entries());
         when(mockDeviceId.getId()).thenReturn(testDeviceId);
-        final HttpURLConnection mockURLConnection = mock(HttpURLConnection.class);
-        final CountlyResponseStream testInputStream = new CountlyResponseStream("Success");
-        when(mockURLConnection.getInputStream()).thenReturn(testInputStream);
-        when(mockURLConnection.getResponseCode()).thenReturn(300);
-        doReturn(mockURLConnection).when(connectionProcessor).urlConnectionForEventData(eventData + "&device_id=" + testDeviceId);
+        when(mockTransport.send(eventData + "&device_id=" + testDeviceId)).thenReturn(response(300, "Success"));
         connectionProcessor.run();
-        verify(mockStore).connections();
-        verify(connectionProcessor).urlConnectionForEventData(eventData + "&device_id=" + testDeviceId);
-        verify(mockURLConnection).connect();
-        verify(mockURLConnection).getInputStream();
-        verify(mockURLConnection).getResponseCode();
-        assertTrue(testInputStream.fullyRead());
-        verify(mockStore, times(0)).removeConnection(eventData);
-        assertTrue(testInputStream.closed);
-        verify(mockURLConnection).disconnect();
+        verify(mockStore).peekConnections(anyInt());
+        verify(mockTransport).send(eventData + "&device_id=" + testDeviceId);
+        verify(mockStore, times(0)).removeConnectionsThrough(RequestLane.of(eventData), id(eventData));
     }
 
     public void testRun_storeHasSingleConnection_butResponseWasNotJSON() throws IOException {
         final String eventData = "blahblahblah";
-        connectionProcessor = spy(connectionProcessor);
-        when(mockStore.connections()).thenReturn(new String[]{eventData}, new String[0]);
+        when(mockStore.peekConnections(anyInt())).thenReturn(entries(eventData), entries());
         when(mockDeviceId.getId()).thenReturn(testDeviceId);
-        final HttpURLConnection mockURLConnection = mock(HttpURLConnection.class);
-        final TestInputStream testInputStream = new TestInputStream();
-        when(mockURLConnection.getInputStream()).thenReturn(testInputStream);
-        when(mockURLConnection.getResponseCode()).thenReturn(200);
-        doReturn(mockURLConnection).when(connectionProcessor).urlConnectionForEventData(eventData + "&device_id=" + testDeviceId);
+        when(mockTransport.send(eventData + "&device_id=" + testDeviceId)).thenReturn(new Transport.Response(200, "not json"));
         connectionProcessor.run();
-        verify(mockStore).connections();
-        verify(connectionProcessor).urlConnectionForEventData(eventData + "&device_id=" + testDeviceId);
-        verify(mockURLConnection).connect();
-        verify(mockURLConnection).getInputStream();
-        verify(mockURLConnection).getResponseCode();
-        assertTrue(testInputStream.fullyRead());
-        verify(mockStore, times(0)).removeConnection(eventData);
-        assertTrue(testInputStream.closed);
-        verify(mockURLConnection).disconnect();
+        verify(mockStore).peekConnections(anyInt());
+        verify(mockStore, times(0)).removeConnectionsThrough(RequestLane.of(eventData), id(eventData));
     }
 
     public void testRun_storeHasSingleConnection_butResponseJSONWasNotSuccess() throws IOException {
         final String eventData = "blahblahblah";
-        connectionProcessor = spy(connectionProcessor);
-        when(mockStore.connections()).thenReturn(new String[]{eventData}, new String[0]);
+        when(mockStore.peekConnections(anyInt())).thenReturn(entries(eventData), entries());
         when(mockDeviceId.getId()).thenReturn(testDeviceId);
-        final HttpURLConnection mockURLConnection = mock(HttpURLConnection.class);
-        final CountlyResponseStream testInputStream = new CountlyResponseStream("Failed");
-        when(mockURLConnection.getInputStream()).thenReturn(testInputStream);
-        when(mockURLConnection.getResponseCode()).thenReturn(200);
-        doReturn(mockURLConnection).when(connectionProcessor).urlConnectionForEventData(eventData + "&device_id=" + testDeviceId);
+        when(mockTransport.send(eventData + "&device_id=" + testDeviceId)).thenReturn(response(200, "Failed"));
         connectionProcessor.run();
-        verify(mockStore).connections();
-        verify(connectionProcessor).urlConnectionForEventData(eventData + "&device_id=" + testDeviceId);
-        verify(mockURLConnection).connect();
-        verify(mockURLConnection).getInputStream();
-        assertTrue(testInputStream.fullyRead());
-        verify(mockURLConnection).getResponseCode();
-        verify(mockStore, times(0)).removeConnection(eventData);
-        assertTrue(testInputStream.closed);
-        verify(mockURLConnection).disconnect();
+        verify(mockStore).peekConnections(anyInt());
+        verify(mockStore, times(0)).removeConnectionsThrough(RequestLane.of(eventData), id(eventData));
     }
 
     public void testRun_storeHasSingleConnection_successCheckIsCaseInsensitive() throws IOException {
         final String eventData = "blahblahblah";
-        connectionProcessor = spy(connectionProcessor);
-        when(mockStore.connections()).thenReturn(new String[]{eventData}, new String[0]);
+        when(mockStore.peekConnections(anyInt())).thenReturn(entries(eventData), entries());
         when(mockDeviceId.getId()).thenReturn(testDeviceId);
-        final HttpURLConnection mockURLConnection = mock(HttpURLConnection.class);
-        final CountlyResponseStream testInputStream = new CountlyResponseStream("SuCcEsS");
-        when(mockURLConnection.getInputStream()).thenReturn(testInputStream);
-        when(mockURLConnection.getResponseCode()).thenReturn(200);
-        doReturn(mockURLConnection).when(connectionProcessor).urlConnectionForEventData(eventData + "&device_id=" + testDeviceId);
+        when(mockTransport.send(eventData + "&device_id=" + testDeviceId)).thenReturn(response(200, "SuCcEsS"));
         connectionProcessor.run();
-        verify(mockStore, times(2)).connections();
-        verify(connectionProcessor).urlConnectionForEventData(eventData + "&device_id=" + testDeviceId);
-        verify(mockURLConnection).connect();
-        verify(mockURLConnection).getInputStream();
-        verify(mockURLConnection).getResponseCode();
-        assertTrue(testInputStream.fullyRead());
-        verify(mockStore).removeConnection(eventData);
-        assertTrue(testInputStream.closed);
-        verify(mockURLConnection).disconnect();
+        verify(mockStore, times(2)).peekConnections(anyInt());
+        verify(mockStore).removeConnectionsThrough(RequestLane.of(eventData), id(eventData));
     }
 
     public void testRun_storeHasTwoConnections() throws IOException {
         final String eventData1 = "blahblahblah";
         final String eventData2 = "123523523432";
-        connectionProcessor = spy(connectionProcessor);
-        when(mockStore.connections()).thenReturn(new String[]{eventData1, eventData2}, new String[]{eventData2}, new String[0]);
+        when(mockStore.peekConnections(anyInt())).thenReturn(entries(eventData1, eventData2), entries(eventData2), entries());
         when(mockDeviceId.getId()).thenReturn(testDeviceId);
-        final HttpURLConnection mockURLConnection = mock(HttpURLConnection.class);
-        final CountlyResponseStream testInputStream1 = new CountlyResponseStream("Success");
-        final CountlyResponseStream testInputStream2 = new CountlyResponseStream("Success");
-        when(mockURLConnection.getInputStream()).thenReturn(testInputStream1, testInputStream2);
-        doReturn(mockURLConnection).when(connectionProcessor).urlConnectionForEventData(eventData1 + "&device_id=" + testDeviceId);
-        doReturn(mockURLConnection).when(connectionProcessor).urlConnectionForEventData(eventData2 + "&device_id=" + testDeviceId);
-        when(mockURLConnection.getResponseCode()).thenReturn(200, 200);
+        when(mockTransport.send(anyString())).thenReturn(response(200, "Success"));
         connectionProcessor.run();
-        verify(mockStore, times(3)).connections();
-        verify(connectionProcessor).urlConnectionForEventData(eventData1 + "&device_id=" + testDeviceId);
-        verify(connectionProcessor).urlConnectionForEventData(eventData2 + "&device_id=" + testDeviceId);
-        verify(mockURLConnection, times(2)).connect();
-        verify(mockURLConnection, times(2)).getInputStream();
-        verify(mockURLConnection, times(2)).getResponseCode();
-        assertTrue(testInputStream1.fullyRead());
-        assertTrue(testInputStream2.fullyRead());
-        verify(mockStore).removeConnection(eventData1);
-        verify(mockStore).removeConnection(eventData2);
-        assertTrue(testInputStream1.closed);
-        assertTrue(testInputStream2.closed);
-        verify(mockURLConnection, times(2)).disconnect();
-    }
-
-    private static class TestInputStream2 extends InputStream {
-        boolean closed = false;
-
-        @Override
-        public int read() throws IOException {
-            throw new IOException();
-        }
+        verify(mockStore, times(3)).peekConnections(anyInt());
+        verify(mockTransport).send(eventData1 + "&device_id=" + testDeviceId);
+        verify(mockTransport).send(eventData2 + "&device_id=" + testDeviceId);
+        verify(mockStore).removeConnectionsThrough(RequestLane.of(eventData1), id(eventData1));
+        verify(mockStore).removeConnectionsThrough(RequestLane.of(eventData2), id(eventData2));
+    }
+
+    public void testRun_storeHasTwoConnections_butFirstOneThrows() throws IOException {
+        final String eventData1 = "blahblahblah";
+        final String eventData2 = "123523523432";
+        when(mockStore.peekConnections(anyInt())).thenReturn(entries(eventData1, eventData2), entries(eventData2), entries());
+        when(mockDeviceId.getId()).thenReturn(testDeviceId);
+        when(mockTransport.send(anyString())).thenThrow(new IOException());
+        connectionProcessor.run();
+        verify(mockStore).peekConnections(anyInt());
+        verify(mockTransport).send(eventData1 + "&device_id=" + testDeviceId);
+        verify(mockTransport, times(0)).send(eventData2 + "&device_id=" + testDeviceId);
+        verify(mockStore, times(0)).removeConnectionsThrough(any(RequestLane.class), anyLong());
+    }
+
+    public void testBulkBatchSize() {
+        assertEquals(0, ConnectionProcessor.bulkBatchSize(entries()));
+        assertEquals(3, ConnectionProcessor.bulkBatchSize(entries("a=1", "b=2", "c=3")));
+        assertEquals(1, ConnectionProcessor.bulkBatchSize(entries("a=1", "user_details=&picturePath=%2Fpic", "c=3")));
 
-        @Override
-        public void close() throws IOException {
-            super.close();
-            closed = true;
+        final String[] many = new String[ConnectionProcessor.BULK_MAX_REQUESTS + 10];
+        for (int i = 0; i < many.length; i++) {
+            many[i] = "a=" + i;
         }
+        assertEquals(ConnectionProcessor.BULK_MAX_REQUESTS, ConnectionProcessor.bulkBatchSize(entries(many)));
+
+        final char[] chars = new char[ConnectionProcessor.BULK_MAX_BYTES / 2 + 1];
+        java.util.Arrays.fill(chars, 'x');
+        final String big = "a=" + new String(chars);
+        assertEquals(1, ConnectionProcessor.bulkBatchSize(entries(big, big, big)));
+    }
+
+    public void testBulkBatchSize_stopsAtLaneChange() {
+        final PersistentQueue.Entry[] requests = entries("a=1&crash=x", "b=2&crash=y", "c=3&events=z", "d=4&events=w", "e=5");
+        assertEquals(2, ConnectionProcessor.bulkBatchSize(requests));
+        assertEquals(1, ConnectionProcessor.bulkBatchSize(requests, 1));
+        assertEquals(2, ConnectionProcessor.bulkBatchSize(requests, 2));
+        assertEquals(1, ConnectionProcessor.bulkBatchSize(requests, 4));
+        assertEquals(0, ConnectionProcessor.bulkBatchSize(requests, 5));
+    }
+
+    public void testRun_failingLaneDoesNotBlockLowerLanes() throws IOException {
+        final String session = "app_key=a&begin_session=1";
+        final String user = "app_key=a&user_details=%7B%7D";
+        final RetryScheduler retryScheduler = new RetryScheduler(mock(Runnable.class));
+        connectionProcessor.setRetryScheduler(retryScheduler);
+        when(mockStore.peekConnections(anyInt())).thenReturn(entries(session, user), entries(session, user), entries(session));
+        when(mockDeviceId.getId()).thenReturn(testDeviceId);
+        when(mockTransport.send(session + "&device_id=" + testDeviceId)).thenReturn(response(500, "Failed"));
+        when(mockTransport.send(user + "&device_id=" + testDeviceId)).thenReturn(response(200, "Success"));
+        connectionProcessor.run();
+        verify(mockStore, times(3)).peekConnections(anyInt());
+        verify(mockTransport).send(session + "&device_id=" + testDeviceId);
+        verify(mockTransport).send(user + "&device_id=" + testDeviceId);
+        verify(mockStore).removeConnectionsThrough(RequestLane.of(user), id(user));
+        verify(mockStore, times(0)).removeConnectionsThrough(RequestLane.of(session), id(session));
+        assertEquals(1, retryScheduler.state(RequestLane.SESSION).getFailures());
+        assertEquals(0, retryScheduler.state(RequestLane.USER).getFailures());
+        assertFalse(retryScheduler.canAttempt(RequestLane.SESSION));
+        assertTrue(retryScheduler.getScheduledAt() > 0);
+    }
+
+    public void testRun_skipsLaneThatIsBackingOff() throws IOException {
+        final String crash = "app_key=a&crash=%7B%7D";
+        final String user = "app_key=a&user_details=%7B%7D";
+        final RetryScheduler retryScheduler = new RetryScheduler(mock(Runnable.class));
+        retryScheduler.state(RequestLane.CRASH).deferUntil(System.currentTimeMillis() + 60000);
+        connectionProcessor.setRetryScheduler(retryScheduler);
+        when(mockStore.peekConnections(anyInt())).thenReturn(entries(crash, user), entries(crash));
+        when(mockDeviceId.getId()).thenReturn(testDeviceId);
+        when(mockTransport.send(anyString())).thenReturn(response(200, "Success"));
+        connectionProcessor.run();
+        verify(mockStore, times(2)).peekConnections(anyInt());
+        verify(mockTransport).send(user + "&device_id=" + testDeviceId);
+        verify(mockTransport, times(0)).send(crash + "&device_id=" + testDeviceId);
+        verify(mockStore).removeConnectionsThrough(RequestLane.of(user), id(user));
+    }
+
+    public void testRun_throttledResponseHoldsBackAllLanes() throws IOException {
+        final String session = "app_key=a&begin_session=1";
+        final String user = "app_key=a&user_details=%7B%7D";
+        final RetryScheduler retryScheduler = new RetryScheduler(mock(Runnable.class));
+        connectionProcessor.setRetryScheduler(retryScheduler);
+        when(mockStore.peekConnections(anyInt())).thenReturn(entries(session, user));
+        when(mockDeviceId.getId()).thenReturn(testDeviceId);
+        when(mockTransport.send(anyString())).thenReturn(new Transport.Response(429, "", 120000));
+        connectionProcessor.run();
+        verify(mockStore).peekConnections(anyInt());
+        verify(mockTransport).send(session + "&device_id=" + testDeviceId);
+        verify(mockTransport, times(0)).send(user + "&device_id=" + testDeviceId);
+        verify(mockStore, times(0)).recordConnectionAttempt(any(RequestLane.class), anyLong());
+        assertFalse(retryScheduler.canAttempt(RequestLane.USER));
+        assertEquals(0, retryScheduler.state(RequestLane.USER).getFailures());
+        assertTrue(retryScheduler.state(RequestLane.SESSION).getNextAttemptAt() >= System.currentTimeMillis() + 110000);
+    }
+
+    public void testRun_reportsDroppedItems() throws IOException {
+        final String eventData = "blahblahblah";
+        when(mockStore.peekConnections(anyInt())).thenReturn(entries(eventData), entries());
+        when(mockStore.droppedConnections()).thenReturn(3);
+        when(mockStore.droppedEvents()).thenReturn(5);
+        when(mockDeviceId.getId()).thenReturn(testDeviceId);
+        when(mockTransport.send(anyString())).thenReturn(response(200, "Success"));
+        connectionProcessor.run();
+        verify(mockTransport).send(eventData + "&device_id=" + testDeviceId + "&dropped_requests=3&dropped_events=5");
+        verify(mockStore).clearDropped(3, 5);
+    }
+
+    public void testRun_droppedItemsStayCountedIfReportFails() throws IOException {
+        final String eventData = "blahblahblah";
+        when(mockStore.peekConnections(anyInt())).thenReturn(entries(eventData), entries());
+        when(mockStore.droppedEvents()).thenReturn(5);
+        when(mockDeviceId.getId()).thenReturn(testDeviceId);
+        when(mockTransport.send(anyString())).thenReturn(response(500, "Failed"));
+        connectionProcessor.run();
+        verify(mockTransport).send(eventData + "&device_id=" + testDeviceId + "&dropped_requests=0&dropped_events=5");
+        verify(mockStore, never()).clearDropped(anyInt(), anyInt());
+    }
+
+    public void testIsPermanentFailure() {
+        assertTrue(ConnectionProcessor.isPermanentFailure(response(400, "Failed")));
+        assertTrue(ConnectionProcessor.isPermanentFailure(response(413, "Failed")));
+        assertFalse(ConnectionProcessor.isPermanentFailure(response(404, "Failed")));
+        assertFalse(ConnectionProcessor.isPermanentFailure(response(429, "Failed")));
+        assertFalse(ConnectionProcessor.isPermanentFailure(response(500, "Failed")));
+        assertFalse(ConnectionProcessor.isPermanentFailure(response(200, "Failed")));
+    }
+
+    public void testRun_permanentFailureIsQuarantined() throws IOException {
+        final String bad = "app_key=a&user_details=%ZZ";
+        final String good = "app_key=a&user_details=%7B%7D";
+        when(mockStore.peekConnections(anyInt())).thenReturn(entries(bad, good), entries(good), entries());
+        when(mockDeviceId.getId()).thenReturn(testDeviceId);
+        when(mockTransport.send(bad + "&device_id=" + testDeviceId)).thenReturn(response(400, "Failed"));
+        when(mockTransport.send(good + "&device_id=" + testDeviceId)).thenReturn(response(200, "Success"));
+        connectionProcessor.run();
+        verify(mockStore).quarantineConnection(RequestLane.of(bad), id(bad));
+        verify(mockStore, times(0)).removeConnectionsThrough(RequestLane.of(bad), id(bad));
+        verify(mockStore).removeConnectionsThrough(RequestLane.of(good), id(good));
+        verify(mockStore, times(0)).recordConnectionAttempt(any(RequestLane.class), anyLong());
+    }
+
+    public void testRun_rejectedRequestCountsAttempt() throws IOException {
+        final String eventData = "blahblahblah";
+        when(mockStore.peekConnections(anyInt())).thenReturn(entries(eventData), entries());
+        when(mockStore.recordConnectionAttempt(RequestLane.of(eventData), id(eventData))).thenReturn(ConnectionProcessor.MAX_ATTEMPTS - 1);
+        when(mockDeviceId.getId()).thenReturn(testDeviceId);
+        when(mockTransport.send(anyString())).thenReturn(response(404, "Failed"));
+        connectionProcessor.run();
+        verify(mockStore).peekConnections(anyInt());
+        verify(mockStore).recordConnectionAttempt(RequestLane.of(eventData), id(eventData));
+        verify(mockStore, times(0)).quarantineConnection(any(RequestLane.class), anyLong());
     }
 
-    public void testRun_storeHasTwoConnections_butFirstOneThrowsWhenInputStreamIsRead() throws IOException {
+    public void testRun_quarantinedAfterMaxAttempts() throws IOException {
         final String eventData1 = "blahblahblah";
         final String eventData2 = "123523523432";
-        connectionProcessor = spy(connectionProcessor);
-        when(mockStore.connections()).thenReturn(new String[]{eventData1, eventData2}, new String[]{eventData2}, new String[0]);
+        when(mockStore.peekConnections(anyInt())).thenReturn(entries(eventData1, eventData2), entries(eventData2), entries());
+        when(mockStore.recordConnectionAttempt(RequestLane.of(eventData1), id(eventData1))).thenReturn(ConnectionProcessor.MAX_ATTEMPTS);
+        when(mockDeviceId.getId()).thenReturn(testDeviceId);
+        when(mockTransport.send(eventData1 + "&device_id=" + testDeviceId)).thenReturn(response(401, "Failed"));
+        when(mockTransport.send(eventData2 + "&device_id=" + testDeviceId)).thenReturn(response(200, "Success"));
+        connectionProcessor.run();
+        verify(mockStore).quarantineConnection(RequestLane.of(eventData1), id(eventData1));
+        verify(mockStore).removeConnectionsThrough(RequestLane.of(eventData2), id(eventData2));
+    }
+
+    public void testRun_serverErrorsNeverQuarantine() throws IOException {
+        final String eventData = "blahblahblah";
+        when(mockStore.peekConnections(anyInt())).thenReturn(entries(eventData));
+        when(mockStore.recordConnectionAttempt(any(RequestLane.class), anyLong())).thenReturn(ConnectionProcessor.MAX_ATTEMPTS);
+        when(mockDeviceId.getId()).thenReturn(testDeviceId);
+        when(mockTransport.send(anyString())).thenReturn(response(500, "Failed"), response(502, "Failed"), response(504, "Failed"), response(200, "Failed"));
+        for (int i = 0; i < ConnectionProcessor.MAX_ATTEMPTS * 2; i++) {
+            connectionProcessor.run();
+        }
+        verify(mockTransport, times(ConnectionProcessor.MAX_ATTEMPTS * 2)).send(eventData + "&device_id=" + testDeviceId);
+        verify(mockStore, never()).recordConnectionAttempt(any(RequestLane.class), anyLong());
+        verify(mockStore, never()).quarantineConnection(any(RequestLane.class), anyLong());
+    }
+
+    public void testRun_exceptionDoesNotCountAttempt() throws IOException {
+        final String eventData = "blahblahblah";
+        when(mockStore.peekConnections(anyInt())).thenReturn(entries(eventData), entries());
+        when(mockDeviceId.getId()).thenReturn(testDeviceId);
+        when(mockTransport.send(anyString())).thenThrow(new IOException());
+        connectionProcessor.run();
+        verify(mockStore, times(0)).recordConnectionAttempt(any(RequestLane.class), anyLong());
+        verify(mockStore, times(0)).quarantineConnection(any(RequestLane.class), anyLong());
+    }
+
+    public void testRun_circuitBreakerProbeIsSentOnItsOwn() throws IOException {
+        final String events1 = "a=1&events=x";
+        final String events2 = "b=2&events=y";
+        final RetryScheduler retryScheduler = new RetryScheduler(mock(Runnable.class));
+        final RetryState state = retryScheduler.state(RequestLane.EVENTS);
+        for (int i = 0; i < RetryState.CIRCUIT_THRESHOLD; i++) {
+            state.onFailure(0, -1, new java.util.Random(1));
+        }
+        assertTrue(retryScheduler.isProbing(RequestLane.EVENTS));
+        connectionProcessor.setRetryScheduler(retryScheduler);
+        connectionProcessor.setBulkRequests(new AtomicBoolean(true));
+        when(mockStore.peekConnections(anyInt())).thenReturn(entries(events1, events2), entries(events2), entries());
+        when(mockDeviceId.getId()).thenReturn(testDeviceId);
+        when(mockTransport.send(anyString())).thenReturn(response(200, "Success"));
+        connectionProcessor.run();
+        verify(mockTransport, times(0)).sendBatch(anyListOf(String.class));
+        verify(mockTransport).send(events1 + "&device_id=" + testDeviceId);
+        verify(mockTransport).send(events2 + "&device_id=" + testDeviceId);
+        assertFalse(retryScheduler.isProbing(RequestLane.EVENTS));
+    }
+
+    public void testRun_bulk_neverSpansLanes() throws IOException {
+        final String crash1 = "a=1&crash=x";
+        final String crash2 = "b=2&crash=y";
+        final String user = "c=3";
+        connectionProcessor.setBulkRequests(new AtomicBoolean(true));
+        when(mockStore.peekConnections(anyInt())).thenReturn(entries(crash1, crash2, user), entries(user), entries());
+        when(mockDeviceId.getId()).thenReturn(testDeviceId);
+        when(mockTransport.sendBatch(anyListOf(String.class))).thenReturn(response(200, "Success"));
+        when(mockTransport.send(anyString())).thenReturn(response(200, "Success"));
+        connectionProcessor.run();
+        verify(mockTransport).sendBatch(Arrays.asList(crash1 + "&device_id=" + testDeviceId, crash2 + "&device_id=" + testDeviceId));
+        verify(mockTransport).send(user + "&device_id=" + testDeviceId);
+        verify(mockStore).removeConnectionsThrough(RequestLane.CRASH, id(crash2));
+        verify(mockStore).removeConnectionsThrough(RequestLane.of(user), id(user));
+    }
+
+    public void testRun_bulk() throws IOException {
+        final String eventData1 = "a=1";
+        final String eventData2 = "b=2";
+        final String eventData3 = "c=3";
+        final AtomicBoolean bulkRequests = new AtomicBoolean(true);
+        connectionProcessor.setBulkRequests(bulkRequests);
+        when(mockStore.peekConnections(anyInt())).thenReturn(entries(eventData1, eventData2, eventData3), entries());
         when(mockDeviceId.getId()).thenReturn(testDeviceId);
-        final HttpURLConnection mockURLConnection = mock(HttpURLConnection.class);
-        final TestInputStream2 testInputStream = new TestInputStream2();
-        when(mockURLConnection.getInputStream()).thenReturn(testInputStream);
-        doReturn(mockURLConnection).when(connectionProcessor).urlConnectionForEventData(eventData1 + "&device_id=" + testDeviceId);
+        when(mockTransport.sendBatch(anyListOf(String.class))).thenReturn(response(200, "Success"));
         connectionProcessor.run();
-        verify(mockStore).connections();
-        verify(connectionProcessor).urlConnectionForEventData(eventData1 + "&device_id=" + testDeviceId);
-        verify(connectionProcessor, times(0)).urlConnectionForEventData(eventData2 + "&device_id=" + testDeviceId);
-        verify(mockURLConnection).connect();
-        verify(mockURLConnection).getInputStream();
-        verify(mockStore, times(0)).removeConnection(anyString());
-        assertTrue(testInputStream.closed);
-        verify(mockURLConnection).disconnect();
+        verify(mockStore, times(2)).peekConnections(anyInt());
+        verify(mockTransport).sendBatch(Arrays.asList(eventData1 + "&device_id=" + testDeviceId, eventData2 + "&device_id=" + testDeviceId, eventData3 + "&device_id=" + testDeviceId));
+        verify(mockTransport, times(0)).send(anyString());
+        // a single head advance removes the whole bulk
+        verify(mockStore).removeConnectionsThrough(RequestLane.USER, id(eventData3));
+        verify(mockStore, times(1)).removeConnectionsThrough(any(RequestLane.class), anyLong());
+        assertTrue(bulkRequests.get());
+    }
+
+    public void testRun_bulk_serverError() throws IOException {
+        final AtomicBoolean bulkRequests = new AtomicBoolean(true);
+        connectionProcessor.setBulkRequests(bulkRequests);
+        when(mockStore.peekConnections(anyInt())).thenReturn(entries("a=1", "b=2"), entries());
+        when(mockDeviceId.getId()).thenReturn(testDeviceId);
+        when(mockTransport.sendBatch(anyListOf(String.class))).thenReturn(response(500, "Failed"));
+        connectionProcessor.run();
+        verify(mockStore).peekConnections(anyInt());
+        verify(mockTransport, times(0)).send(anyString());
+        verify(mockStore, times(0)).removeConnectionsThrough(any(RequestLane.class), anyLong());
+        assertTrue(bulkRequests.get());
+    }
+
+    public void testRun_bulk_rejectedFallsBackToSingleRequests() throws IOException {
+        final String eventData1 = "a=1";
+        final String eventData2 = "b=2";
+        final AtomicBoolean bulkRequests = new AtomicBoolean(true);
+        connectionProcessor.setBulkRequests(bulkRequests);
+        when(mockStore.peekConnections(anyInt())).thenReturn(entries(eventData1, eventData2), entries(eventData2), entries());
+        when(mockDeviceId.getId()).thenReturn(testDeviceId);
+        when(mockTransport.sendBatch(anyListOf(String.class))).thenReturn(response(404, "Failed"));
+        when(mockTransport.send(anyString())).thenReturn(response(200, "Success"));
+        connectionProcessor.run();
+        assertTrue(bulkRequests.get());
+        verify(mockTransport).sendBatch(anyListOf(String.class));
+        verify(mockTransport).send(eventData1 + "&device_id=" + testDeviceId);
+        verify(mockTransport).send(eventData2 + "&device_id=" + testDeviceId);
+        verify(mockStore).removeConnectionsThrough(RequestLane.of(eventData1), id(eventData1));
+        verify(mockStore).removeConnectionsThrough(RequestLane.of(eventData2), id(eventData2));
+    }
+
+    public void testRun_bulk_rejectedBatchQuarantinesBadRequest() throws IOException {
+        final String good1 = "a=1";
+        final String bad = "b=%zz";
+        final String good2 = "c=3";
+        final String later1 = "d=4";
+        final String later2 = "e=5";
+        final AtomicBoolean bulkRequests = new AtomicBoolean(true);
+        connectionProcessor.setBulkRequests(bulkRequests);
+        when(mockStore.peekConnections(anyInt())).thenReturn(entries(good1, bad, good2), entries(bad, good2), entries(good2),
+                entries(later1, later2), entries());
+        when(mockDeviceId.getId()).thenReturn(testDeviceId);
+        when(mockTransport.sendBatch(Arrays.asList(good1 + "&device_id=" + testDeviceId, bad + "&device_id=" + testDeviceId, good2 + "&device_id=" + testDeviceId)))
+                .thenReturn(response(400, "Failed"));
+        when(mockTransport.sendBatch(Arrays.asList(later1 + "&device_id=" + testDeviceId, later2 + "&device_id=" + testDeviceId)))
+                .thenReturn(response(200, "Success"));
+        when(mockTransport.send(bad + "&device_id=" + testDeviceId)).thenReturn(response(400, "Failed"));
+        when(mockTransport.send(good1 + "&device_id=" + testDeviceId)).thenReturn(response(200, "Success"));
+        when(mockTransport.send(good2 + "&device_id=" + testDeviceId)).thenReturn(response(200, "Success"));
+        connectionProcessor.run();
+        assertTrue(bulkRequests.get());
+        verify(mockStore).quarantineConnection(RequestLane.of(bad), id(bad));
+        verify(mockStore).removeConnectionsThrough(RequestLane.of(good1), id(good1));
+        verify(mockStore).removeConnectionsThrough(RequestLane.of(good2), id(good2));
+        // bulk requests resume once the rejected batch has been sent one by one
+        verify(mockTransport, times(2)).sendBatch(anyListOf(String.class));
+        verify(mockTransport, times(3)).send(anyString());
+        verify(mockStore).removeConnectionsThrough(RequestLane.of(later2), id(later2));
+    }
+
+    public void testRun_bulk_tooLargeSplitsBatch() throws IOException {
+        final String eventData1 = "a=1";
+        final String eventData2 = "b=2";
+        final String eventData3 = "c=3";
+        final String eventData4 = "d=4";
+        final AtomicBoolean bulkRequests = new AtomicBoolean(true);
+        connectionProcessor.setBulkRequests(bulkRequests);
+        when(mockStore.peekConnections(anyInt())).thenReturn(entries(eventData1, eventData2, eventData3, eventData4),
+                entries(eventData1, eventData2, eventData3, eventData4), entries(eventData3, eventData4), entries());
+        when(mockDeviceId.getId()).thenReturn(testDeviceId);
+        when(mockTransport.sendBatch(anyListOf(String.class))).thenReturn(response(413, "Failed"), response(200, "Success"));
+        connectionProcessor.run();
+        assertTrue(bulkRequests.get());
+        verify(mockTransport).sendBatch(Arrays.asList(eventData1 + "&device_id=" + testDeviceId, eventData2 + "&device_id=" + testDeviceId,
+                eventData3 + "&device_id=" + testDeviceId, eventData4 + "&device_id=" + testDeviceId));
+        verify(mockTransport).sendBatch(Arrays.asList(eventData1 + "&device_id=" + testDeviceId, eventData2 + "&device_id=" + testDeviceId));
+        verify(mockTransport).sendBatch(Arrays.asList(eventData3 + "&device_id=" + testDeviceId, eventData4 + "&device_id=" + testDeviceId));
+        verify(mockTransport, times(0)).send(anyString());
+        verify(mockStore, times(0)).quarantineConnection(any(RequestLane.class), anyLong());
+        verify(mockStore).removeConnectionsThrough(RequestLane.USER, id(eventData4));
+    }
+
+    public void testRun_bulk_notBatchableSendsHeadRequestOnItsOwn() throws IOException {
+        final String eventData1 = "a=%zz";
+        final String eventData2 = "b=2";
+        final AtomicBoolean bulkRequests = new AtomicBoolean(true);
+        connectionProcessor.setBulkRequests(bulkRequests);
+        when(mockStore.peekConnections(anyInt())).thenReturn(entries(eventData1, eventData2), entries());
+        when(mockDeviceId.getId()).thenReturn(testDeviceId);
+        when(mockTransport.sendBatch(anyListOf(String.class))).thenReturn(null);
+        when(mockTransport.send(anyString())).thenReturn(response(200, "Success"));
+        connectionProcessor.run();
+        assertTrue(bulkRequests.get());
+        verify(mockTransport).send(eventData1 + "&device_id=" + testDeviceId);
+        verify(mockStore).removeConnectionsThrough(RequestLane.of(eventData1), id(eventData1));
+    }
+
+    private int drainThroughStubServer(final HttpTransportTests.StubHttpServer server, final int queued) {
+        final CountlyStore store = new CountlyStore(getContext());
+        store.clear();
+        for (int i = 0; i < queued; i++) {
+            store.addConnection("app_key=abc&timestamp=" + i + "&events=%5B%5D");
+        }
+        new ConnectionProcessor(server.url(), store, new DeviceId(testDeviceId), null).run();
+        final int left = store.connections().length;
+        store.clear();
+        return left;
+    }
+
+    public void testRun_reusesConnectionAcrossDrain() throws IOException {
+        final HttpTransportTests.StubHttpServer server = new HttpTransportTests.StubHttpServer(true);
+        try {
+            assertEquals(0, drainThroughStubServer(server, 5));
+            assertEquals(5, server.requests.get());
+            assertEquals(1, server.connections.get());
+        } finally {
+            server.close();
+        }
+    }
+
+    public void testRun_serverClosingConnectionsStillDrains() throws IOException {
+        final HttpTransportTests.StubHttpServer server = new HttpTransportTests.StubHttpServer(false);
+        try {
+            assertEquals(0, drainThroughStubServer(server, 5));
+            assertEquals(5, server.requests.get());
+            assertEquals(5, server.connections.get());
+        } finally {
+            server.close();
+        }
     }
 }
@@ -32,11 +32,16 @@ import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.*;
@@ -371,6 +376,23 @@ public class ConnectionQueueTests extends AndroidTestCase {
         verifyZeroInteractions(connQ.getExecutor());
     }
 
+    public void testTick_allLanesBackingOff() {
+        for (RequestLane lane : RequestLane.values()) {
+            connQ.getRetryScheduler().state(lane).deferUntil(System.currentTimeMillis() + 60000);
+        }
+        connQ.tick();
+        verifyZeroInteractions(connQ.getExecutor());
+    }
+
+    public void testTick_backingOffLaneIsEmpty() {
+        connQ.getRetryScheduler().state(RequestLane.CRASH).deferUntil(System.currentTimeMillis() + 60000);
+        when(connQ.getCountlyStore().isEmptyConnections(RequestLane.CRASH)).thenReturn(true);
+        when(connQ.getCountlyStore().isEmptyConnections(RequestLane.SESSION)).thenReturn(true);
+        when(connQ.getCountlyStore().isEmptyConnections(RequestLane.EVENTS)).thenReturn(true);
+        connQ.tick();
+        verify(connQ.getExecutor()).submit(any(ConnectionProcessor.class));
+    }
+
     public void testTick_storeHasConnectionsAndFutureIsNull() {
         final Future mockFuture = mock(Future.class);
         when(connQ.getExecutor().submit(any(ConnectionProcessor.class))).thenReturn(mockFuture);
@@ -387,6 +409,27 @@ public class ConnectionQueueTests extends AndroidTestCase {
         assertSame(((ConnectionProcessor)arg.getValue()).getCountlyStore(), connQ.getCountlyStore());
     }
 
+    public void testTick_compressRequests() {
+        final ArgumentCaptor<Runnable> arg = ArgumentCaptor.forClass(Runnable.class);
+        when(connQ.getExecutor().submit(arg.capture())).thenReturn(null);
+        connQ.tick();
+        assertTrue(((HttpTransport) ((ConnectionProcessor) arg.getValue()).getTransport()).getCompressionThreshold() < 0);
+
+        connQ.setCompressRequests(true);
+        connQ.tick();
+        assertEquals(HttpTransport.DEFAULT_COMPRESSION_THRESHOLD, ((HttpTransport) ((ConnectionProcessor) arg.getValue()).getTransport()).getCompressionThreshold());
+    }
+
+    public void testTick_customTransport() {
+        final Transport mockTransport = mock(Transport.class);
+        connQ.setTransport(mockTransport);
+        final ArgumentCaptor<Runnable> arg = ArgumentCaptor.forClass(Runnable.class);
+        when(connQ.getExecutor().submit(arg.capture())).thenReturn(null);
+        connQ.tick();
+        assertSame(mockTransport, ((ConnectionProcessor)arg.getValue()).getTransport());
+        assertSame(((ConnectionProcessor)arg.getValue()).getCountlyStore(), connQ.getCountlyStore());
+    }
+
     public void testTick_storeHasConnectionsAndFutureIsDone() {
         final Future<?> mockFuture = mock(Future.class);
         when(mockFuture.isDone()).thenReturn(true);
@@ -404,4 +447,89 @@ public class ConnectionQueueTests extends AndroidTestCase {
         connQ.tick();
         verifyZeroInteractions(connQ.getExecutor());
     }
+
+    public void testTick_halted() {
+        connQ.setCountlyStore(null);
+        connQ.tick();
+        verifyZeroInteractions(connQ.getExecutor());
+    }
+
+    public void testTick_concurrentCallersSubmitOneProcessor() throws InterruptedException {
+        final Future mockFuture = mock(Future.class);
+        when(connQ.getExecutor().submit(any(ConnectionProcessor.class))).thenReturn(mockFuture);
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ignored) {
+                        return;
+                    }
+                    connQ.tick();
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        verify(connQ.getExecutor(), times(1)).submit(any(ConnectionProcessor.class));
+    }
+
+    public void testRetry_ticksOnCommandThread() throws InterruptedException {
+        final AtomicReference<String> submittedOn = new AtomicReference<>();
+        connQ.setExecutor(new AbstractExecutorService() {
+            @Override
+            public Future<?> submit(final Runnable task) {
+                submittedOn.set(Thread.currentThread().getName());
+                return mock(Future.class);
+            }
+
+            @Override
+            public void execute(final Runnable command) {
+            }
+
+            @Override
+            public void shutdown() {
+            }
+
+            @Override
+            public List<Runnable> shutdownNow() {
+                return null;
+            }
+
+            @Override
+            public boolean isShutdown() {
+                return false;
+            }
+
+            @Override
+            public boolean isTerminated() {
+                return false;
+            }
+
+            @Override
+            public boolean awaitTermination(final long timeout, final TimeUnit unit) {
+                return true;
+            }
+        });
+        connQ.getRetryScheduler().state(RequestLane.SESSION).deferUntil(System.currentTimeMillis() + 50);
+        connQ.getRetryScheduler().scheduleRetry();
+        Thread.sleep(300);
+        assertTrue(Countly.sharedInstance().getCommandQueue().awaitIdle(5000));
+        assertEquals("Countly-Commands", submittedOn.get());
+    }
+
+    public void testRetry_haltedQueue() throws InterruptedException {
+        connQ.getRetryScheduler().state(RequestLane.SESSION).deferUntil(System.currentTimeMillis() + 50);
+        connQ.getRetryScheduler().scheduleRetry();
+        connQ.setCountlyStore(null);
+        Thread.sleep(300);
+        assertTrue(Countly.sharedInstance().getCommandQueue().awaitIdle(5000));
+        verifyZeroInteractions(connQ.getExecutor());
+    }
 }
@@ -28,6 +28,7 @@ import android.test.AndroidTestCase;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -186,6 +187,7 @@ public class CountlyStoreTests extends AndroidTestCase {
         final String joinedEventsWithBadJSON = event1.toJSON().toString() + ":::blah:::" + event2.toJSON().toString();
         final SharedPreferences prefs = getContext().getSharedPreferences("COUNTLY_STORE", Context.MODE_PRIVATE);
         prefs.edit().putString("EVENTS", joinedEventsWithBadJSON).commit();
+        store = new CountlyStore(getContext());
 
         final List<Event> expected = new ArrayList<Event>(2);
         expected.add(event1);
@@ -211,6 +213,7 @@ public class CountlyStoreTests extends AndroidTestCase {
         final String joinedEventsWithBadJSON = event1.toJSON().toString() + ":::{\"key\":null}:::" + event2.toJSON().toString();
         final SharedPreferences prefs = getContext().getSharedPreferences("COUNTLY_STORE", Context.MODE_PRIVATE);
         prefs.edit().putString("EVENTS", joinedEventsWithBadJSON).commit();
+        store = new CountlyStore(getContext());
 
         final List<Event> expected = new ArrayList<Event>(2);
         expected.add(event1);
@@ -332,16 +335,448 @@ public class CountlyStoreTests extends AndroidTestCase {
         assertEquals(event3, events.get(0));
     }
 
+    public void testEventsList_indexKeepsOrderOnInsert() {
+        assertEquals(0, store.eventsList().size());
+        final int now = Countly.currentTimestamp();
+        store.addEvent("eventKey1", null, now, 0, 0, 1, 0.0d);
+        store.addEvent("eventKey2", null, now - 60, 0, 0, 1, 0.0d);
+        store.addEvent("eventKey3", null, now - 30, 0, 0, 1, 0.0d);
+        store.addEvent("eventKey4", null, now - 30, 0, 0, 1, 0.0d);
+        final List<Event> events = store.eventsList();
+        assertEquals(4, events.size());
+        assertEquals("eventKey2", events.get(0).key);
+        assertEquals("eventKey3", events.get(1).key);
+        assertEquals("eventKey4", events.get(2).key);
+        assertEquals("eventKey1", events.get(3).key);
+        assertEquals(events, new CountlyStore(getContext()).eventsList());
+    }
+
+    public void testAddEvents() {
+        final Event event1 = new Event();
+        event1.key = "eventKey1";
+        event1.timestamp = Countly.currentTimestamp();
+        event1.count = 1;
+        final Event event2 = new Event();
+        event2.key = "eventKey2";
+        event2.timestamp = Countly.currentTimestamp() - 60;
+        event2.count = 1;
+        assertEquals(0, store.eventsList().size());
+        store.addEvents(Arrays.asList(event1, event2));
+        assertEquals(2, store.events().length);
+        assertEquals(Arrays.asList(event2, event1), store.eventsList());
+        assertEquals(Arrays.asList(event2, event1), new CountlyStore(getContext()).eventsList());
+    }
+
+    public void testRemoveEvents_updatesIndex() {
+        final int now = Countly.currentTimestamp();
+        store.addEvent("eventKey1", null, now - 60, 0, 0, 1, 0.0d);
+        store.addEvent("eventKey2", null, now - 30, 0, 0, 1, 0.0d);
+        final List<Event> events = store.eventsList();
+        store.removeEvents(events.subList(0, 1));
+        assertEquals(1, store.eventsList().size());
+        assertEquals("eventKey2", store.eventsList().get(0).key);
+        assertEquals(1, store.events().length);
+        assertEquals(store.eventsList(), new CountlyStore(getContext()).eventsList());
+    }
+
+    public void testRemoveEventsById_keepsEqualEvents() {
+        final int now = Countly.currentTimestamp();
+        final Event event1 = new Event();
+        event1.key = "eventKey";
+        event1.timestamp = now;
+        event1.count = 1;
+        final Event event2 = new Event();
+        event2.key = "eventKey";
+        event2.timestamp = now;
+        event2.count = 1;
+        assertEquals(event1, event2);
+        final long[] ids = store.addEvents(Arrays.asList(event1, event2));
+        assertEquals(2, ids.length);
+        assertTrue(Arrays.equals(ids, store.eventIds()));
+        store.removeEvents(new long[]{ids[0]});
+        assertEquals(1, store.eventsList().size());
+        assertTrue(Arrays.equals(new long[]{ids[1]}, store.eventIds()));
+        assertTrue(Arrays.equals(new long[]{ids[1]}, new CountlyStore(getContext()).eventIds()));
+    }
+
     public void testClear() {
-        final SharedPreferences prefs = getContext().getSharedPreferences("COUNTLY_STORE", Context.MODE_PRIVATE);
-        assertFalse(prefs.contains("EVENTS"));
-        assertFalse(prefs.contains("CONNECTIONS"));
+        assertEquals(0, store.events().length);
+        assertEquals(0, store.connections().length);
         store.addConnection("blah");
         store.addEvent("eventKey", null, Countly.currentTimestamp(), Countly.currentHour(), Countly.currentDayOfWeek(), 1, 0.0d);
-        assertTrue(prefs.contains("EVENTS"));
-        assertTrue(prefs.contains("CONNECTIONS"));
+        assertEquals(1, store.events().length);
+        assertEquals(1, store.connections().length);
         store.clear();
-        assertFalse(prefs.contains("EVENTS"));
+        assertEquals(0, store.events().length);
+        assertEquals(0, store.connections().length);
+        assertEquals(0, new CountlyStore(getContext()).connections().length);
+    }
+
+    public void testPersistence() {
+        store.addConnection("blah1");
+        store.addConnection("blah2");
+        store.addConnection("blah3");
+        store.removeConnection("blah2");
+        store.addEvent("eventKey", null, Countly.currentTimestamp(), Countly.currentHour(), Countly.currentDayOfWeek(), 1, 0.0d);
+
+        final CountlyStore reopened = new CountlyStore(getContext());
+        assertTrue(Arrays.equals(new String[]{"blah1", "blah3"}, reopened.connections()));
+        assertEquals(1, reopened.eventsList().size());
+        assertEquals("eventKey", reopened.eventsList().get(0).key);
+    }
+
+    public void testMigrationFromPreferences() {
+        final SharedPreferences prefs = getContext().getSharedPreferences("COUNTLY_STORE", Context.MODE_PRIVATE);
+        prefs.edit().putString("CONNECTIONS", "blah1:::blah2").commit();
+
+        store = new CountlyStore(getContext());
+        assertTrue(Arrays.equals(new String[]{"blah1", "blah2"}, store.connections()));
         assertFalse(prefs.contains("CONNECTIONS"));
     }
+
+    public void testMigrationFromPreferences_journalAlreadyPopulated() {
+        store.addConnection("blah1");
+        final SharedPreferences prefs = getContext().getSharedPreferences("COUNTLY_STORE", Context.MODE_PRIVATE);
+        prefs.edit().putString("CONNECTIONS", "blah1").commit();
+
+        store = new CountlyStore(getContext());
+        assertTrue(Arrays.equals(new String[]{"blah1"}, store.connections()));
+        assertFalse(prefs.contains("CONNECTIONS"));
+    }
+
+    public void testConnections_highestPriorityLaneFirst() {
+        final String events = "app_key=a&events=%5B%5D";
+        final String user = "app_key=a&user_details=%7B%7D";
+        final String crash = "app_key=a&crash=%7B%7D";
+        final String session = "app_key=a&begin_session=1";
+        store.addConnection(events);
+        store.addConnection(user);
+        store.addConnection(crash);
+        store.addConnection(session);
+        assertTrue(Arrays.equals(new String[]{crash, session, events, user}, store.connections()));
+        assertTrue(Arrays.equals(new String[]{crash}, store.connections(RequestLane.CRASH)));
+        assertTrue(Arrays.equals(new String[]{user}, store.connections(RequestLane.USER)));
+
+        store.removeConnection(crash);
+        assertTrue(Arrays.equals(new String[]{session, events, user}, new CountlyStore(getContext()).connections()));
+    }
+
+    public void testMigrationFromPreferences_splitsIntoLanes() {
+        final SharedPreferences prefs = getContext().getSharedPreferences("COUNTLY_STORE", Context.MODE_PRIVATE);
+        prefs.edit().putString("CONNECTIONS", "blah1:::app_key=a&crash=%7B%7D:::blah2").commit();
+
+        store = new CountlyStore(getContext());
+        assertTrue(Arrays.equals(new String[]{"app_key=a&crash=%7B%7D", "blah1", "blah2"}, store.connections()));
+    }
+
+    public void testMigrationFromSingleJournal() {
+        final File directory = new File(getContext().getFilesDir(), "countly");
+        final QueueJournal legacy = new QueueJournal(directory, "connections");
+        legacy.appendAll(Arrays.asList("blah1", "app_key=a&end_session=1", "blah2"));
+        legacy.close();
+
+        store = new CountlyStore(getContext());
+        assertTrue(Arrays.equals(new String[]{"app_key=a&end_session=1", "blah1", "blah2"}, store.connections()));
+        assertTrue(new QueueJournal(directory, "connections").isEmpty());
+        assertEquals(3, new CountlyStore(getContext()).connections().length);
+    }
+
+    public void testPeekConnections() {
+        store.addConnection("blah1");
+        store.addConnection("app_key=a&crash=1");
+        store.addConnection("blah2");
+        store.addConnection("blah3");
+        final PersistentQueue.Entry[] head = store.peekConnections(2);
+        assertEquals(3, head.length);
+        assertEquals("app_key=a&crash=1", head[0].value);
+        assertEquals("blah1", head[1].value);
+        assertEquals("blah2", head[2].value);
+        assertTrue(head[1].id < head[2].id);
+        assertEquals(0, store.peekConnections(0).length);
+        assertEquals(4, store.connections().length);
+    }
+
+    public void testRemoveConnectionsThrough() {
+        store.addConnection("blah1");
+        store.addConnection("blah2");
+        store.addConnection("app_key=a&crash=1");
+        store.addConnection("blah3");
+        final PersistentQueue.Entry[] head = store.peekConnections(2);
+        assertEquals(2, store.removeConnectionsThrough(RequestLane.USER, head[2].id));
+        assertTrue(Arrays.equals(new String[]{"app_key=a&crash=1", "blah3"}, store.connections()));
+        assertEquals(0, store.removeConnectionsThrough(RequestLane.USER, head[2].id));
+        assertTrue(Arrays.equals(new String[]{"app_key=a&crash=1", "blah3"}, new CountlyStore(getContext()).connections()));
+    }
+
+    public void testRemoveConnectionsThrough_keepsConnectionsAddedSincePeek() {
+        store.addConnection("blah1");
+        final long id = store.peekConnections(1)[0].id;
+        store.addConnection("blah1");
+        assertEquals(1, store.removeConnectionsThrough(RequestLane.USER, id));
+        assertTrue(Arrays.equals(new String[]{"blah1"}, store.connections()));
+    }
+
+    public void testConnectionBackend_mappedRing() {
+        final CountlyStore ring = new CountlyStore(getContext());
+        ring.setConnectionBackend(Countly.QueueBackend.MAPPED_RING);
+        ring.addConnection("blah1");
+        ring.addConnection("app_key=a&crash=1");
+        ring.addConnection("blah2");
+        final PersistentQueue.Entry[] head = ring.peekConnections(10);
+        ring.removeConnectionsThrough(RequestLane.CRASH, head[0].id);
+
+        final CountlyStore reopened = new CountlyStore(getContext());
+        reopened.setConnectionBackend(Countly.QueueBackend.MAPPED_RING);
+        assertTrue(Arrays.equals(new String[]{"blah1", "blah2"}, reopened.connections()));
+        reopened.clear();
+    }
+
+    public void testConnectionBackend_switchingMovesConnections() {
+        store.addConnection("blah1");
+        store.addConnection("app_key=a&crash=1");
+        final CountlyStore ring = new CountlyStore(getContext());
+        ring.setConnectionBackend(Countly.QueueBackend.MAPPED_RING);
+        assertTrue(Arrays.equals(new String[]{"app_key=a&crash=1", "blah1"}, ring.connections()));
+        ring.addConnection("blah2");
+
+        // a store opened with the old backend picks the connections up again
+        final CountlyStore reopened = new CountlyStore(getContext());
+        assertTrue(Arrays.equals(new String[]{"app_key=a&crash=1", "blah1", "blah2"}, reopened.connections()));
+        assertFalse(MappedRingQueue.exists(new File(getContext().getFilesDir(), "countly"), RequestLane.USER.journalName));
+        reopened.clear();
+    }
+
+    public void testConnectionBackend_sqlite() {
+        store.addConnection("blah1");
+        final CountlyStore sqlite = new CountlyStore(getContext());
+        sqlite.setConnectionBackend(Countly.QueueBackend.SQLITE);
+        sqlite.addConnection("app_key=a&crash=1");
+        sqlite.addConnection("blah2");
+        final PersistentQueue.Entry[] head = sqlite.peekConnections(10);
+        assertEquals("app_key=a&crash=1", head[0].value);
+        sqlite.removeConnectionsThrough(RequestLane.CRASH, head[0].id);
+        assertEquals(1, sqlite.recordConnectionAttempt(RequestLane.USER, head[1].id));
+
+        final CountlyStore reopened = new CountlyStore(getContext());
+        reopened.setConnectionBackend(Countly.QueueBackend.SQLITE);
+        assertTrue(Arrays.equals(new String[]{"blah1", "blah2"}, reopened.connections()));
+        assertEquals(1, reopened.peekConnections(1)[0].attempts);
+        reopened.clear();
+    }
+
+    public void testEventBackend_sqlite() {
+        final int now = Countly.currentTimestamp();
+        store.addEvent("eventKey1", null, now - 60, 0, 0, 1, 0.0d);
+        final CountlyStore sqlite = new CountlyStore(getContext());
+        sqlite.setEventBackend(Countly.QueueBackend.SQLITE);
+        sqlite.addEvent("eventKey2", null, now - 30, 0, 0, 1, 0.0d);
+        assertEquals(2, sqlite.events().length);
+        sqlite.removeEvents(sqlite.eventsList().subList(0, 1));
+
+        final CountlyStore reopened = new CountlyStore(getContext());
+        reopened.setEventBackend(Countly.QueueBackend.SQLITE);
+        assertEquals(1, reopened.eventsList().size());
+        assertEquals("eventKey2", reopened.eventsList().get(0).key);
+
+        // switching back moves the events to the journal again
+        final CountlyStore journal = new CountlyStore(getContext());
+        assertEquals("eventKey2", journal.eventsList().get(0).key);
+        journal.clear();
+    }
+
+    public void testSetEventBackend_null() {
+        try {
+            store.setEventBackend(null);
+            fail("expected null backend to throw IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success!
+        }
+    }
+
+    public void testDurability_groupCommit() {
+        store.setConnectionDurability(Countly.DurabilityMode.GROUP_COMMIT, 60000);
+        store.setEventDurability(Countly.DurabilityMode.GROUP_COMMIT, 60000);
+        store.addConnection("blah1");
+        store.addConnection("app_key=a&crash=1");
+        store.addEvent("eventKey", null, Countly.currentTimestamp(), 0, 0, 1, 0.0d);
+
+        final CountlyStore reopened = new CountlyStore(getContext());
+        assertTrue(Arrays.equals(new String[]{"app_key=a&crash=1", "blah1"}, reopened.connections()));
+        assertEquals(1, reopened.eventsList().size());
+    }
+
+    public void testSetDurability_null() {
+        try {
+            store.setConnectionDurability(null, 0);
+            fail("expected null mode to throw IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success!
+        }
+        try {
+            store.setEventDurability(null, 0);
+            fail("expected null mode to throw IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success!
+        }
+    }
+
+    public void testSetConnectionBackend_null() {
+        try {
+            store.setConnectionBackend(null);
+            fail("expected null backend to throw IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success!
+        }
+    }
+
+    public void testRecordConnectionAttempt() {
+        store.addConnection("blah1");
+        final long id = store.peekConnections(1)[0].id;
+        assertEquals(1, store.recordConnectionAttempt(RequestLane.USER, id));
+        assertEquals(2, store.recordConnectionAttempt(RequestLane.USER, id));
+        assertEquals(-1, store.recordConnectionAttempt(RequestLane.USER, id + 1));
+        assertEquals(-1, store.recordConnectionAttempt(RequestLane.CRASH, id));
+        assertEquals(3, new CountlyStore(getContext()).recordConnectionAttempt(RequestLane.USER, id));
+    }
+
+    public void testQuarantineConnection() {
+        store.addConnection("blah1");
+        store.addConnection("blah2");
+        final long id = store.peekConnections(1)[0].id;
+        store.quarantineConnection(RequestLane.USER, id);
+        store.quarantineConnection(RequestLane.USER, id + 10);
+        assertTrue(Arrays.equals(new String[]{"blah2"}, store.connections()));
+        assertTrue(Arrays.equals(new String[]{"blah1"}, store.deadLetters()));
+        assertTrue(Arrays.equals(new String[]{"blah1"}, new CountlyStore(getContext()).deadLetters()));
+        store.clear();
+        assertEquals(0, store.deadLetters().length);
+    }
+
+    public void testQuarantineConnection_deadLettersAreBounded() {
+        for (int i = 0; i < CountlyStore.MAX_DEAD_LETTERS + 5; i++) {
+            store.addConnection("blah" + i);
+            store.quarantineConnection(RequestLane.USER, store.peekConnections(1)[0].id);
+        }
+        final String[] deadLetters = store.deadLetters();
+        assertEquals(CountlyStore.MAX_DEAD_LETTERS, deadLetters.length);
+        assertEquals("blah5", deadLetters[0]);
+        assertEquals(0, store.connections().length);
+    }
+
+    public void testAddConnection_countLimitDropsOldest() {
+        store.setConnectionLimits(2, CountlyStore.DEFAULT_MAX_CONNECTION_BYTES, Countly.QueueOverflowPolicy.DROP_OLDEST);
+        store.addConnection("blah1");
+        store.addConnection("blah2");
+        store.addConnection("blah3");
+        assertTrue(Arrays.equals(new String[]{"blah2", "blah3"}, store.connections()));
+        assertEquals(1, store.droppedConnections());
+    }
+
+    public void testAddConnection_byteLimit() {
+        store.setConnectionLimits(100, QueueJournal.entrySize("blah1") * 2, Countly.QueueOverflowPolicy.DROP_OLDEST);
+        store.addConnection("blah1");
+        store.addConnection("blah2");
+        store.addConnection("blah3");
+        assertTrue(Arrays.equals(new String[]{"blah2", "blah3"}, store.connections()));
+    }
+
+    public void testAddConnection_byteLimitUsesBackendSize() {
+        final CountlyStore sqlite = new CountlyStore(getContext());
+        sqlite.setConnectionBackend(Countly.QueueBackend.SQLITE);
+        sqlite.setConnectionLimits(100, (SQLiteQueue.ROW_OVERHEAD + 5) * 2, Countly.QueueOverflowPolicy.DROP_OLDEST);
+        sqlite.addConnection("blah1");
+        sqlite.addConnection("blah2");
+        sqlite.addConnection("blah3");
+        assertTrue(Arrays.equals(new String[]{"blah2", "blah3"}, sqlite.connections()));
+        sqlite.clear();
+    }
+
+    public void testSetConnectionBackend_openStoreIsRejected() {
+        store.addConnection("blah1");
+        store.addConnection("blah2");
+        // a drain in progress holds the ids it peeked
+        final PersistentQueue.Entry[] head = store.peekConnections(1);
+        store.setConnectionBackend(Countly.QueueBackend.JOURNAL);
+        try {
+            store.setConnectionBackend(Countly.QueueBackend.SQLITE);
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException ignored) {
+            // success
+        }
+        assertEquals(1, store.removeConnectionsThrough(RequestLane.USER, head[0].id));
+        assertTrue(Arrays.equals(new String[]{"blah2"}, store.connections()));
+    }
+
+    public void testSetEventBackend_openStoreIsRejected() {
+        final Event event = new Event();
+        event.key = "eventKey";
+        event.count = 1;
+        final long[] ids = store.addEvents(Arrays.asList(event, event));
+        try {
+            store.setEventBackend(Countly.QueueBackend.MAPPED_RING);
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException ignored) {
+            // success
+        }
+        // the ids the EventQueue holds still point at the stored events
+        store.removeEvents(new long[]{ids[0]});
+        assertTrue(Arrays.equals(new long[]{ids[1]}, store.eventIds()));
+    }
+
+    public void testAddConnection_largerThanLimitIsDropped() {
+        store.setConnectionLimits(100, 10, Countly.QueueOverflowPolicy.DROP_OLDEST);
+        store.addConnection("blah1");
+        assertEquals(0, store.connections().length);
+        assertEquals(1, store.droppedConnections());
+    }
+
+    public void testAddConnection_dropNewest() {
+        store.setConnectionLimits(2, CountlyStore.DEFAULT_MAX_CONNECTION_BYTES, Countly.QueueOverflowPolicy.DROP_NEWEST);
+        store.addConnection("blah1");
+        store.addConnection("blah2");
+        store.addConnection("blah3");
+        assertTrue(Arrays.equals(new String[]{"blah1", "blah2"}, store.connections()));
+        assertEquals(1, store.droppedConnections());
+    }
+
+    public void testAddConnection_sampleKeepsLimit() {
+        store.setConnectionLimits(10, CountlyStore.DEFAULT_MAX_CONNECTION_BYTES, Countly.QueueOverflowPolicy.SAMPLE);
+        for (int i = 0; i < 100; i++) {
+            store.addConnection("blah" + i);
+        }
+        assertEquals(10, store.connections().length);
+        assertEquals(90, store.droppedConnections());
+    }
+
+    public void testAddConnection_lowerPriorityLaneIsDroppedFirst() {
+        final String crash = "app_key=a&crash=%7B%7D";
+        store.setConnectionLimits(2, CountlyStore.DEFAULT_MAX_CONNECTION_BYTES, Countly.QueueOverflowPolicy.DROP_NEWEST);
+        store.addConnection("blah1");
+        store.addConnection("blah2");
+        store.addConnection(crash);
+        assertTrue(Arrays.equals(new String[]{crash, "blah1"}, store.connections()));
+    }
+
+    public void testAddConnection_newConnectionDroppedIfEverythingIsMoreImportant() {
+        final String crash1 = "app_key=a&crash=1";
+        final String crash2 = "app_key=a&crash=2";
+        store.setConnectionLimits(2, CountlyStore.DEFAULT_MAX_CONNECTION_BYTES, Countly.QueueOverflowPolicy.DROP_OLDEST);
+        store.addConnection(crash1);
+        store.addConnection(crash2);
+        store.addConnection("blah1");
+        assertTrue(Arrays.equals(new String[]{crash1, crash2}, store.connections()));
+        assertEquals(1, store.droppedConnections());
+    }
+
+    public void testDroppedCounters() {
+        store.addDroppedEvents(3);
+        store.addDroppedEvents(2);
+        assertEquals(5, store.droppedEvents());
+        assertEquals(5, new CountlyStore(getContext()).droppedEvents());
+        store.clearDropped(0, 4);
+        assertEquals(1, store.droppedEvents());
+        assertEquals(0, store.droppedConnections());
+        store.clear();
+        assertEquals(0, store.droppedEvents());
+    }
 }
@@ -24,7 +24,14 @@ package ly.count.android.sdk;
 import android.content.Context;
 import android.test.AndroidTestCase;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.mockito.InOrder;
 
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
@@ -38,6 +45,14 @@ import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
 public class CountlyTests extends AndroidTestCase {
+    // runs queued commands on the calling thread, so effects can be checked right away
+    private static final Executor SAME_THREAD = new Executor() {
+        @Override
+        public void execute(final Runnable command) {
+            command.run();
+        }
+    };
+
     Countly mUninitedCountly;
     Countly mCountly;
 
@@ -49,8 +64,10 @@ public class CountlyTests extends AndroidTestCase {
         countlyStore.clear();
 
         mUninitedCountly = new Countly();
+        mUninitedCountly.setCommandQueue(new CommandQueue(SAME_THREAD));
 
         mCountly = new Countly();
+        mCountly.setCommandQueue(new CommandQueue(SAME_THREAD));
         mCountly.init(getContext(), "http://test.count.ly", "appkey", "1234");
     }
 
@@ -293,6 +310,31 @@ public class CountlyTests extends AndroidTestCase {
         verify(mockConnectionQueue).beginSession();
     }
 
+    public void testOnStart_noDiskAccessOnCallingThread() {
+        final List<Runnable> queued = new ArrayList<>();
+        mCountly.setCommandQueue(new CommandQueue(new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                queued.add(command);
+            }
+        }));
+        final ConnectionQueue mockConnectionQueue = mock(ConnectionQueue.class);
+        mCountly.setConnectionQueue(mockConnectionQueue);
+        getContext().getSharedPreferences("referrer", Context.MODE_PRIVATE).edit().putString("referrer", "&campaign_id=cid").commit();
+
+        mCountly.onStart(null);
+        mCountly.onStop();
+        verifyZeroInteractions(mockConnectionQueue);
+        assertEquals("&campaign_id=cid", ReferrerReceiver.getReferrer(getContext()));
+
+        queued.get(0).run();
+        final InOrder inOrder = inOrder(mockConnectionQueue);
+        inOrder.verify(mockConnectionQueue).beginSession();
+        inOrder.verify(mockConnectionQueue).sendReferrerData("&campaign_id=cid");
+        inOrder.verify(mockConnectionQueue).endSession(anyInt());
+        assertNull(ReferrerReceiver.getReferrer(getContext()));
+    }
+
     public void testOnStart_subsequentCall() {
         final ConnectionQueue mockConnectionQueue = mock(ConnectionQueue.class);
         mCountly.setConnectionQueue(mockConnectionQueue);
@@ -557,11 +599,42 @@ public class CountlyTests extends AndroidTestCase {
         mCountly.setEventQueue(mockEventQueue);
 
         final Countly countly = spy(mCountly);
-        doNothing().when(countly).sendEventsIfNeeded();
+        doNothing().when(countly).sendEventsIfNeeded(mockEventQueue);
         countly.recordEvent(eventKey, segmentation, count, sum);
 
         verify(mockEventQueue).recordEvent(eventKey, segmentation, count, sum);
-        verify(countly).sendEventsIfNeeded();
+        verify(countly).sendEventsIfNeeded(mockEventQueue);
+    }
+
+    public void testRecordEvent_copiesSegmentation() {
+        final List<Runnable> queued = new ArrayList<>();
+        mCountly.setCommandQueue(new CommandQueue(new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                queued.add(command);
+            }
+        }));
+        final EventQueue mockEventQueue = mock(EventQueue.class);
+        mCountly.setEventQueue(mockEventQueue);
+
+        final HashMap<String, String> segmentation = new HashMap<String, String>();
+        segmentation.put("segkey1", "segvalue1");
+        mCountly.recordEvent("eventKey", segmentation, 1, 0.0d);
+        final HashMap<String, String> recorded = new HashMap<String, String>(segmentation);
+        segmentation.put("segkey1", "changed");
+        verifyZeroInteractions(mockEventQueue);
+
+        queued.get(0).run();
+        verify(mockEventQueue).recordEvent("eventKey", recorded, 1, 0.0d);
+    }
+
+    public void testRecordView_initNotCalled() {
+        try {
+            mUninitedCountly.recordView("view");
+            fail("expected calling recordView before init to throw IllegalStateException");
+        } catch (IllegalStateException ignored) {
+            // success!
+        }
     }
 
     public void testSendEventsIfNeeded_emptyQueue() {
@@ -572,7 +645,7 @@ public class CountlyTests extends AndroidTestCase {
         when(mockEventQueue.size()).thenReturn(0);
         mCountly.setEventQueue(mockEventQueue);
 
-        mCountly.sendEventsIfNeeded();
+        mCountly.sendEventsIfNeeded(mockEventQueue);
 
         verify(mockEventQueue, times(0)).events();
         verifyZeroInteractions(mockConnectionQueue);
@@ -586,7 +659,7 @@ public class CountlyTests extends AndroidTestCase {
         when(mockEventQueue.size()).thenReturn(9);
         mCountly.setEventQueue(mockEventQueue);
 
-        mCountly.sendEventsIfNeeded();
+        mCountly.sendEventsIfNeeded(mockEventQueue);
 
         verify(mockEventQueue, times(0)).events();
         verifyZeroInteractions(mockConnectionQueue);
@@ -602,7 +675,7 @@ public class CountlyTests extends AndroidTestCase {
         when(mockEventQueue.events()).thenReturn(eventData);
         mCountly.setEventQueue(mockEventQueue);
 
-        mCountly.sendEventsIfNeeded();
+        mCountly.sendEventsIfNeeded(mockEventQueue);
 
         verify(mockEventQueue, times(1)).events();
         verify(mockConnectionQueue, times(1)).recordEvents(eventData);
@@ -618,7 +691,7 @@ public class CountlyTests extends AndroidTestCase {
         when(mockEventQueue.events()).thenReturn(eventData);
         mCountly.setEventQueue(mockEventQueue);
 
-        mCountly.sendEventsIfNeeded();
+        mCountly.sendEventsIfNeeded(mockEventQueue);
 
         verify(mockEventQueue, times(1)).events();
         verify(mockConnectionQueue, times(1)).recordEvents(eventData);
@@ -668,6 +741,40 @@ public class CountlyTests extends AndroidTestCase {
         verify(mockConnectionQueue).recordEvents(eventData);
     }
 
+    public void testOnTimer_activeSession_haltedEventQueue() {
+        final ConnectionQueue mockConnectionQueue = mock(ConnectionQueue.class);
+        mCountly.setConnectionQueue(mockConnectionQueue);
+        mCountly.setEventQueue(mock(EventQueue.class));
+
+        mCountly.onStart(null);
+        mCountly.setEventQueue(null);
+        mCountly.onTimer();
+
+        verify(mockConnectionQueue).updateSession(0);
+        verify(mockConnectionQueue, times(0)).recordEvents(anyString());
+    }
+
+    public void testOnStopHelper_haltedEventQueue() {
+        final ConnectionQueue mockConnectionQueue = mock(ConnectionQueue.class);
+        mCountly.setConnectionQueue(mockConnectionQueue);
+        mCountly.setEventQueue(null);
+
+        mCountly.onStopHelper();
+
+        verify(mockConnectionQueue).endSession(0);
+        verify(mockConnectionQueue, times(0)).recordEvents(anyString());
+    }
+
+    public void testRecordEventHelper_haltedEventQueue() {
+        final ConnectionQueue mockConnectionQueue = mock(ConnectionQueue.class);
+        mCountly.setConnectionQueue(mockConnectionQueue);
+        mCountly.setEventQueue(null);
+
+        mCountly.recordEventHelper("eventKey", null, 1, 0.0d);
+
+        verifyZeroInteractions(mockConnectionQueue);
+    }
+
     public void testOnTimer_activeSession_emptyEventQueue_sessionTimeUpdatesDisabled() {
         final ConnectionQueue mockConnectionQueue = mock(ConnectionQueue.class);
         mCountly.setConnectionQueue(mockConnectionQueue);
@@ -702,6 +809,26 @@ public class CountlyTests extends AndroidTestCase {
         verify(mockConnectionQueue).recordEvents(eventData);
     }
 
+    public void testOnTimer_sessionStartStillQueued() {
+        final List<Runnable> queued = new ArrayList<>();
+        mCountly.setCommandQueue(new CommandQueue(new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                queued.add(command);
+            }
+        }));
+        final ConnectionQueue mockConnectionQueue = mock(ConnectionQueue.class);
+        mCountly.setConnectionQueue(mockConnectionQueue);
+
+        mCountly.onStart(null);
+        assertEquals(1, mCountly.getActivityCount());
+        mCountly.onTimer();
+        verifyZeroInteractions(mockConnectionQueue);
+
+        queued.get(0).run();
+        verify(mockConnectionQueue).beginSession();
+    }
+
     public void testRoundedSecondsSinceLastSessionDurationUpdate() {
         long prevSessionDurationStartTime = System.nanoTime() - 1000000000;
         mCountly.setPrevSessionDurationStartTime(prevSessionDurationStartTime);
@@ -745,6 +872,144 @@ public class CountlyTests extends AndroidTestCase {
         assertFalse(mCountly.getDisableUpdateSessionRequests());
     }
 
+    public void testSetRequestQueueLimits_invalid() {
+        try {
+            mUninitedCountly.setRequestQueueLimits(0, 1, Countly.QueueOverflowPolicy.DROP_OLDEST);
+            fail("expected zero count to throw IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success!
+        }
+        try {
+            mUninitedCountly.setRequestQueueLimits(1, 1, null);
+            fail("expected null policy to throw IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success!
+        }
+    }
+
+    public void testSetRequestQueueBackend() {
+        try {
+            mUninitedCountly.setRequestQueueBackend(null);
+            fail("expected null backend to throw IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success!
+        }
+        assertSame(mUninitedCountly, mUninitedCountly.setRequestQueueBackend(Countly.QueueBackend.MAPPED_RING));
+        mUninitedCountly.init(getContext(), "http://test.count.ly", "appkey", "1234");
+        final CountlyStore store = mUninitedCountly.getConnectionQueue().getCountlyStore();
+        store.addConnection("blah1");
+        assertTrue(MappedRingQueue.exists(new File(getContext().getFilesDir(), "countly"), RequestLane.USER.journalName));
+        store.clear();
+    }
+
+    public void testSetEventQueueBackend() {
+        try {
+            mUninitedCountly.setEventQueueBackend(null);
+            fail("expected null backend to throw IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success!
+        }
+        assertSame(mUninitedCountly, mUninitedCountly.setEventQueueBackend(Countly.QueueBackend.SQLITE));
+    }
+
+    public void testSetQueueBackend_afterInitIsRejected() {
+        mCountly.recordEvent("eventKey", 1);
+        mCountly.getEventQueue().flush();
+        final CountlyStore store = mCountly.getConnectionQueue().getCountlyStore();
+        final long[] ids = store.eventIds();
+        try {
+            mCountly.setEventQueueBackend(Countly.QueueBackend.SQLITE);
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException ignored) {
+            // success!
+        }
+        try {
+            mCountly.setRequestQueueBackend(Countly.QueueBackend.SQLITE);
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException ignored) {
+            // success!
+        }
+        // the queued event keeps its id, so sending it removes it from the store
+        assertEquals(1, ids.length);
+        assertTrue(Arrays.equals(ids, store.eventIds()));
+        assertEquals(1, mCountly.getEventQueue().size());
+        mCountly.getEventQueue().events();
+        assertEquals(0, store.eventIds().length);
+    }
+
+    public void testSetQueueDurability() {
+        try {
+            mUninitedCountly.setRequestQueueDurability(null);
+            fail("expected null mode to throw IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success!
+        }
+        try {
+            mUninitedCountly.setEventQueueDurability(null);
+            fail("expected null mode to throw IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success!
+        }
+        try {
+            mUninitedCountly.setGroupCommitWindow(-1);
+            fail("expected negative window to throw IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success!
+        }
+        assertSame(mUninitedCountly, mUninitedCountly.setRequestQueueDurability(Countly.DurabilityMode.ASYNC));
+        assertSame(mUninitedCountly, mUninitedCountly.setEventQueueDurability(Countly.DurabilityMode.GROUP_COMMIT));
+        assertSame(mUninitedCountly, mUninitedCountly.setGroupCommitWindow(500));
+        mUninitedCountly.init(getContext(), "http://test.count.ly", "appkey", "1234");
+        mUninitedCountly.getConnectionQueue().getCountlyStore().clear();
+    }
+
+    public void testSetNonFatalCrashRateLimit() {
+        try {
+            mUninitedCountly.setNonFatalCrashRateLimit(0, 1000);
+            fail("expected zero reports to throw IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success!
+        }
+        try {
+            mUninitedCountly.setNonFatalCrashRateLimit(1, 0);
+            fail("expected zero window to throw IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success!
+        }
+        assertSame(mUninitedCountly, mUninitedCountly.setNonFatalCrashRateLimit(5, 1000));
+    }
+
+    public void testSetCrashLogLimits() {
+        try {
+            mUninitedCountly.setCrashLogLimits(0, 100);
+            fail("expected zero count to throw IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success!
+        }
+        try {
+            mUninitedCountly.setCrashLogLimits(10, 0);
+            fail("expected zero bytes to throw IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success!
+        }
+        CrashDetails.getLogs();
+        mUninitedCountly.addCrashLog("log1");
+        mUninitedCountly.addCrashLog("log2");
+        mUninitedCountly.addCrashLog("log3");
+        assertSame(mUninitedCountly, mUninitedCountly.setCrashLogLimits(2, 100));
+        assertEquals(2, CrashDetails.getLogBuffer().maxCount());
+        assertEquals("log2\nlog3\n", CrashDetails.getLogs());
+        mUninitedCountly.setCrashLogLimits(CrashLogBuffer.DEFAULT_MAX_COUNT, CrashLogBuffer.DEFAULT_MAX_BYTES);
+    }
+
+    public void testSetEventQueueLimits_appliedOnInit() {
+        mUninitedCountly.setEventQueueLimits(1, EventQueue.DEFAULT_MAX_BYTES, Countly.QueueOverflowPolicy.DROP_NEWEST);
+        mUninitedCountly.init(getContext(), "http://test.count.ly", "appkey", "1234");
+        mUninitedCountly.recordEvent("event1Key");
+        mUninitedCountly.recordEvent("event2Key");
+        assertEquals(1, mUninitedCountly.getEventQueue().size());
+    }
+
     public void testLoggingFlag() {
         assertFalse(mUninitedCountly.isLoggingEnabled());
         mUninitedCountly.setLoggingEnabled(true);
@@ -0,0 +1,107 @@
+/*
+Copyright (c) 2012, 2013, 2014 Countly
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package ly.count.android.sdk;
+
+import android.test.AndroidTestCase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Iterator;
+
+public class CrashDetailsTests extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        CrashDetails.invalidateStaticData();
+    }
+
+    private static JSONObject decode(final String encoded) throws UnsupportedEncodingException, JSONException {
+        return new JSONObject(URLDecoder.decode(encoded, "UTF-8"));
+    }
+
+    public void testPrepareStaticData() {
+        assertFalse(CrashDetails.hasStaticData());
+        CrashDetails.prepareStaticData(getContext());
+        assertTrue(CrashDetails.hasStaticData());
+        CrashDetails.invalidateStaticData();
+        assertFalse(CrashDetails.hasStaticData());
+    }
+
+    public void testBuildStaticData() throws UnsupportedEncodingException, JSONException {
+        final JSONObject json = decode("%7B" + CrashDetails.buildStaticData(getContext()) + "%7D");
+        assertEquals(DeviceInfo.getDevice(), json.getString("_device"));
+        assertEquals(DeviceInfo.getOS(), json.getString("_os"));
+        assertEquals(CrashDetails.getCpu(), json.getString("_cpu"));
+        assertEquals(CrashDetails.isRooted(), json.getString("_root"));
+        assertFalse(json.has("_run"));
+        assertFalse(json.has("_ram_current"));
+    }
+
+    public void testGetCrashData_splicesStaticData() throws UnsupportedEncodingException, JSONException {
+        CrashDetails.prepareStaticData(getContext());
+        final JSONObject json = decode(CrashDetails.getCrashData(getContext(), "error \"1\"\n\tat x", true));
+        assertEquals("error \"1\"\n\tat x", json.getString("_error"));
+        assertEquals("true", json.getString("_nonfatal"));
+        assertTrue(json.has("_run"));
+
+        final JSONObject staticData = decode("%7B" + CrashDetails.buildStaticData(getContext()) + "%7D");
+        final Iterator keys = staticData.keys();
+        while (keys.hasNext()) {
+            final String key = (String) keys.next();
+            assertEquals(staticData.get(key), json.get(key));
+        }
+    }
+
+    public void testGetCrashData_withoutStaticData() throws UnsupportedEncodingException, JSONException {
+        final JSONObject json = decode(CrashDetails.getCrashData(getContext(), "error", false));
+        assertEquals("false", json.getString("_nonfatal"));
+        assertEquals(DeviceInfo.getDevice(), json.getString("_device"));
+        assertFalse(CrashDetails.hasStaticData());
+    }
+
+    public void testGetSpooledCrashData() throws UnsupportedEncodingException, JSONException {
+        final CrashSpool.Report report = new CrashSpool.Report(1400000000, 42, true, "log\n", "error");
+        final JSONObject json = decode(CrashDetails.getSpooledCrashData(getContext(), report));
+        assertEquals("error", json.getString("_error"));
+        assertEquals("false", json.getString("_nonfatal"));
+        assertEquals("log\n", json.getString("_logs"));
+        assertEquals("42", json.getString("_run"));
+        assertEquals("true", json.getString("_background"));
+        assertEquals(DeviceInfo.getDevice(), json.getString("_device"));
+        assertFalse(json.has("_ram_current"));
+        assertFalse(json.has("_bat"));
+    }
+
+    public void testGetCrashData_occurrences() throws UnsupportedEncodingException, JSONException {
+        JSONObject json = decode(CrashDetails.getCrashData(getContext(), "error", true, "0123456789abcdef", 3));
+        assertEquals("0123456789abcdef", json.getString("_fingerprint"));
+        assertEquals("3", json.getString("_occurrences"));
+
+        json = decode(CrashDetails.getCrashData(getContext(), "error", true));
+        assertFalse(json.has("_fingerprint"));
+        assertFalse(json.has("_occurrences"));
+    }
+}
@@ -0,0 +1,176 @@
+/*
+Copyright (c) 2012, 2013, 2014 Countly
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package ly.count.android.sdk;
+
+import android.test.AndroidTestCase;
+
+import java.util.concurrent.CountDownLatch;
+
+public class CrashLogBufferTests extends AndroidTestCase {
+
+    public void testConstructor_invalidLimits() {
+        try {
+            new CrashLogBuffer(0, 100);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
+        try {
+            new CrashLogBuffer(10, 0);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
+    }
+
+    public void testSnapshot_empty() {
+        assertEquals("", new CrashLogBuffer().snapshot());
+    }
+
+    public void testAdd_ignoresNull() {
+        final CrashLogBuffer logs = new CrashLogBuffer();
+        logs.add(null);
+        assertEquals("", logs.snapshot());
+    }
+
+    public void testAdd_dropsOldestBeyondCount() {
+        final CrashLogBuffer logs = new CrashLogBuffer(3, 1000);
+        for (int i = 1; i <= 5; i++) {
+            logs.add("log" + i);
+        }
+        assertEquals("log3\nlog4\nlog5\n", logs.snapshot());
+    }
+
+    public void testAdd_dropsOldestBeyondBytes() {
+        final CrashLogBuffer logs = new CrashLogBuffer(10, 10);
+        logs.add("aaaa");
+        logs.add("bbbb");
+        logs.add("cccc");
+        assertEquals("bbbb\ncccc\n", logs.snapshot());
+    }
+
+    public void testAdd_truncatesLongRecord() {
+        final CrashLogBuffer logs = new CrashLogBuffer(10, 5);
+        logs.add("first");
+        logs.add("abcdefgh");
+        assertEquals("abcde\n", logs.snapshot());
+    }
+
+    public void testTruncate_keepsSurrogatePairs() {
+        assertEquals("a", CrashLogBuffer.truncate("a😀", 4));
+        assertEquals("a😀", CrashLogBuffer.truncate("a😀b", 5));
+        assertEquals("é", CrashLogBuffer.truncate("éé", 3));
+    }
+
+    public void testUtf8Length() {
+        assertEquals(0, CrashLogBuffer.utf8Length(""));
+        assertEquals(3, CrashLogBuffer.utf8Length("abc"));
+        assertEquals(2, CrashLogBuffer.utf8Length("é"));
+        assertEquals(3, CrashLogBuffer.utf8Length("中"));
+        assertEquals(4, CrashLogBuffer.utf8Length("😀"));
+    }
+
+    public void testSnapshot_onlyReturnsNewRecords() {
+        final CrashLogBuffer logs = new CrashLogBuffer();
+        logs.add("log1");
+        assertEquals("log1\n", logs.snapshot());
+        assertEquals("", logs.snapshot());
+        logs.add("log2");
+        assertEquals("log2\n", logs.snapshot());
+    }
+
+    public void testGet_afterOverwrite() {
+        final CrashLogBuffer logs = new CrashLogBuffer(2, 1000);
+        logs.add("log1");
+        logs.add("log2");
+        logs.add("log3");
+        assertNull(logs.get(0));
+        assertEquals("log2", logs.get(1));
+        assertEquals(1, logs.first(logs.head()));
+    }
+
+    public void testAdd_concurrentWritersStayWithinLimits() throws InterruptedException {
+        final CrashLogBuffer logs = new CrashLogBuffer(50, 2000);
+        final int threads = 4;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int writer = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < 10000; i++) {
+                            logs.add("writer" + writer + " record" + i);
+                        }
+                    } catch (InterruptedException ignored) {
+                        // test fails on the count below
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+
+        final String snapshot = logs.snapshot();
+        final String[] records = snapshot.split("\n");
+        assertTrue(records.length > 0);
+        assertTrue(records.length <= 50);
+        assertTrue(snapshot.length() <= 2000 + records.length);
+        for (String record : records) {
+            assertTrue(record, record.startsWith("writer"));
+        }
+        assertEquals("", logs.snapshot());
+    }
+
+    public void testSnapshot_doesNotLoseRecordsAddedMeanwhile() throws InterruptedException {
+        final CrashLogBuffer logs = new CrashLogBuffer(100000, 10 * 1024 * 1024);
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 20000; i++) {
+                    logs.add("record" + i);
+                }
+            }
+        });
+        writer.start();
+        int records = 0;
+        while (writer.isAlive()) {
+            records += count(logs.snapshot());
+        }
+        writer.join();
+        records += count(logs.snapshot());
+        assertEquals(20000, records);
+    }
+
+    private static int count(final String snapshot) {
+        int lines = 0;
+        for (int i = 0; i < snapshot.length(); i++) {
+            if (snapshot.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+}
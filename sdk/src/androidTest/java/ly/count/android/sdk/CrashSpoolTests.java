@@ -0,0 +1,159 @@
+/*
+Copyright (c) 2012, 2013, 2014 Countly
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package ly.count.android.sdk;
+
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class CrashSpoolTests extends AndroidTestCase {
+    File file;
+    CrashSpool spool;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = new File(getContext().getCacheDir(), "test.spool");
+        file.delete();
+        spool = new CrashSpool(file, 4096);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+        super.tearDown();
+    }
+
+    public void testConstructor_preallocatesFile() {
+        assertTrue(file.length() >= 4096);
+        assertNull(spool.read());
+    }
+
+    public void testWrite_readsBackAfterReopen() throws IOException {
+        final Throwable crash = new IllegalStateException("broken é😀", new NullPointerException());
+        final CrashLogBuffer logs = new CrashLogBuffer();
+        logs.add("first");
+        logs.add("second");
+        assertTrue(spool.write(crash, 1400000000, 42, true, logs));
+
+        final CrashSpool.Report report = new CrashSpool(file, 4096).read();
+        assertNotNull(report);
+        assertEquals(1400000000, report.timestamp);
+        assertEquals(42, report.runSeconds);
+        assertTrue(report.background);
+        assertEquals("first\nsecond\n", report.logs);
+        assertEquals("first\nsecond\n", logs.snapshot());
+        assertTrue(report.error.startsWith("java.lang.IllegalStateException: broken é😀\n\tat "));
+        assertTrue(report.error.contains("\tat " + CrashSpoolTests.class.getName() + ".testWrite_readsBackAfterReopen(CrashSpoolTests.java:"));
+        assertTrue(report.error.contains("\nCaused by: java.lang.NullPointerException\n"));
+    }
+
+    public void testWrite_replacesPreviousCrash() {
+        assertTrue(spool.write(new RuntimeException("one"), 1, 1, false, new CrashLogBuffer()));
+        assertTrue(spool.write(new RuntimeException("two"), 2, 2, false, new CrashLogBuffer()));
+        final CrashSpool.Report report = spool.read();
+        assertEquals(2, report.timestamp);
+        assertFalse(report.background);
+        assertEquals("", report.logs);
+        assertTrue(report.error.startsWith("java.lang.RuntimeException: two\n"));
+    }
+
+    public void testWrite_truncatesLongTrace() {
+        final StringBuilder message = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            message.append('x');
+        }
+        final CrashLogBuffer logs = new CrashLogBuffer();
+        logs.add("log");
+        assertTrue(spool.write(new RuntimeException(message.toString()), 1, 1, false, logs));
+        final CrashSpool.Report report = spool.read();
+        assertEquals("log\n", report.logs);
+        assertTrue(report.error.startsWith("java.lang.RuntimeException: xxx"));
+        assertTrue(report.error.length() < 4096);
+    }
+
+    public void testWrite_largeLogsDoNotCrowdOutTrace() {
+        final StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 96; i++) {
+            padding.append('x');
+        }
+        final CrashLogBuffer logs = new CrashLogBuffer();
+        for (int i = 0; i < CrashLogBuffer.DEFAULT_MAX_COUNT; i++) {
+            logs.add(String.format("log%03d", i) + padding);
+        }
+        assertTrue(spool.write(new RuntimeException("crash"), 1, 1, false, logs));
+        final CrashSpool.Report report = spool.read();
+        assertTrue(report.error.startsWith("java.lang.RuntimeException: crash\n"));
+        assertTrue(report.error.contains("\tat " + CrashSpoolTests.class.getName() + ".testWrite_largeLogsDoNotCrowdOutTrace(CrashSpoolTests.java:"));
+        assertTrue(report.error.endsWith(")\n"));
+        // the newest breadcrumbs are kept, in whole lines
+        assertTrue(report.logs.startsWith("log"));
+        assertTrue(report.logs.endsWith(String.format("log%03d", CrashLogBuffer.DEFAULT_MAX_COUNT - 1) + padding + "\n"));
+        assertFalse(report.logs.contains("log000"));
+    }
+
+    public void testWrite_longTraceLeavesRoomForLogs() {
+        final StringBuilder message = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            message.append('x');
+        }
+        final CrashLogBuffer logs = new CrashLogBuffer();
+        for (int i = 0; i < CrashLogBuffer.DEFAULT_MAX_COUNT; i++) {
+            logs.add(String.format("log%03d", i) + message.substring(0, 96));
+        }
+        assertTrue(spool.write(new RuntimeException(message.toString()), 1, 1, false, logs));
+        final CrashSpool.Report report = spool.read();
+        assertTrue(report.error.startsWith("java.lang.RuntimeException: xxx"));
+        assertTrue(report.error.length() >= 4096 * 3 / 4 - 16);
+        assertTrue(report.logs.length() > 4096 / 4 - 100);
+        assertTrue(report.logs.endsWith(String.format("log%03d", CrashLogBuffer.DEFAULT_MAX_COUNT - 1) + message.substring(0, 96) + "\n"));
+    }
+
+    public void testWrite_stopsAtCauseLoop() {
+        final RuntimeException first = new RuntimeException("first");
+        final RuntimeException second = new RuntimeException("second", first);
+        first.initCause(second);
+        assertTrue(spool.write(first, 1, 1, false, new CrashLogBuffer()));
+        final String error = spool.read().error;
+        assertEquals(error.indexOf("Caused by:"), error.lastIndexOf("Caused by:"));
+    }
+
+    public void testRead_rejectsCorruptRecord() throws IOException {
+        assertTrue(spool.write(new RuntimeException("crash"), 1, 1, false, new CrashLogBuffer()));
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(20);
+            raf.write(0xff);
+        } finally {
+            raf.close();
+        }
+        assertNull(spool.read());
+    }
+
+    public void testClear() {
+        assertTrue(spool.write(new RuntimeException("crash"), 1, 1, false, new CrashLogBuffer()));
+        spool.clear();
+        assertNull(spool.read());
+    }
+}
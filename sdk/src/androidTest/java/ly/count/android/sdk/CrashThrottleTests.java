@@ -0,0 +1,159 @@
+/*
+Copyright (c) 2012, 2013, 2014 Countly
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package ly.count.android.sdk;
+
+import android.test.AndroidTestCase;
+
+import java.util.List;
+
+public class CrashThrottleTests extends AndroidTestCase {
+    CrashThrottle throttle;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        throttle = new CrashThrottle(2, 1000);
+    }
+
+    private static Exception exceptionAt(final int site, final String message) {
+        // the two sites differ only in the line the exception is created on
+        switch (site) {
+            case 0:
+                return new IllegalStateException(message);
+            default:
+                return new IllegalStateException(message);
+        }
+    }
+
+    public void testConstructor_invalidLimits() {
+        try {
+            new CrashThrottle(0, 1000);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
+        try {
+            new CrashThrottle(1, 0);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
+    }
+
+    public void testFingerprint_ignoresMessage() {
+        assertEquals(CrashThrottle.fingerprint(exceptionAt(0, "id 1")), CrashThrottle.fingerprint(exceptionAt(0, "id 2")));
+    }
+
+    public void testFingerprint_differsBySite() {
+        assertFalse(CrashThrottle.fingerprint(exceptionAt(0, "x")).equals(CrashThrottle.fingerprint(exceptionAt(1, "x"))));
+    }
+
+    public void testFingerprint_differsByType() {
+        final Exception first = new IllegalStateException("x");
+        final Exception second = new IllegalArgumentException("x");
+        assertFalse(CrashThrottle.fingerprint(first).equals(CrashThrottle.fingerprint(second)));
+    }
+
+    public void testFingerprint_includesCause() {
+        final Exception plain = new RuntimeException("x");
+        final Exception caused = new RuntimeException("x", new NullPointerException());
+        assertFalse(CrashThrottle.fingerprint(plain).equals(CrashThrottle.fingerprint(caused)));
+    }
+
+    public void testFingerprint_causeLoop() {
+        final RuntimeException first = new RuntimeException("first");
+        final RuntimeException second = new RuntimeException("second", first);
+        first.initCause(second);
+        assertEquals(16, CrashThrottle.fingerprint(first).length());
+    }
+
+    public void testRecord_limitsReportsPerWindow() {
+        assertEquals(1, throttle.record("a", 0));
+        assertEquals(1, throttle.record("a", 10));
+        assertEquals(0, throttle.record("a", 20));
+        assertEquals(0, throttle.record("a", 30));
+        assertEquals(1, throttle.record("b", 40));
+    }
+
+    public void testRecord_carriesSuppressedIntoNextWindow() {
+        throttle.record("a", 0);
+        throttle.record("a", 0);
+        throttle.record("a", 0);
+        throttle.record("a", 0);
+        assertEquals(3, throttle.record("a", 1000));
+        assertEquals(1, throttle.record("a", 1001));
+    }
+
+    public void testRecord_clockSetBack() {
+        throttle.record("a", 5000);
+        throttle.record("a", 5000);
+        assertEquals(0, throttle.record("a", 5000));
+        assertEquals(2, throttle.record("a", 100));
+    }
+
+    public void testRecord_keepsMostRecentFingerprints() {
+        for (int i = 0; i < CrashThrottle.MAX_FINGERPRINTS * 2; i++) {
+            throttle.record("fingerprint" + i, 0);
+        }
+        assertEquals(CrashThrottle.MAX_FINGERPRINTS, throttle.size());
+    }
+
+    public void testDrain() {
+        throttle.record("a", 0);
+        throttle.setError("a", "trace");
+        throttle.record("a", 0);
+        throttle.record("a", 0);
+        throttle.record("a", 0);
+        throttle.record("b", 0);
+        throttle.record("b", 0);
+        throttle.record("b", 0);
+
+        final List<CrashThrottle.Aggregate> aggregates = throttle.drain();
+        assertEquals(1, aggregates.size());
+        assertEquals("a", aggregates.get(0).fingerprint);
+        assertEquals("trace", aggregates.get(0).error);
+        assertEquals(2, aggregates.get(0).occurrences);
+        assertTrue(throttle.drain().isEmpty());
+        assertEquals(1, throttle.record("a", 1000));
+    }
+
+    public void testSerializeRestore() {
+        throttle.record("a", 100);
+        throttle.record("a", 100);
+        throttle.record("a", 100);
+        throttle.record("b", 200);
+
+        final CrashThrottle restored = new CrashThrottle(2, 1000);
+        restored.restore(throttle.serialize());
+        assertEquals(2, restored.size());
+        assertEquals(0, restored.record("a", 500));
+        assertEquals(3, restored.record("a", 1100));
+        assertEquals(1, restored.record("b", 300));
+    }
+
+    public void testRestore_skipsMalformedEntries() {
+        throttle.restore("a,1,2;b,x,1,0;c,1,1,0");
+        assertEquals(1, throttle.size());
+        throttle.restore(null);
+        assertEquals(0, throttle.size());
+    }
+}
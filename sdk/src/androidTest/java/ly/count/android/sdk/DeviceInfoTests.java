@@ -34,6 +34,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.util.Locale;
 
@@ -187,6 +188,30 @@ public class DeviceInfoTests extends AndroidTestCase {
         assertEquals(expected, DeviceInfo.getMetrics(getContext()));
     }
 
+    public void testGetCachedMetrics() {
+        DeviceInfo.invalidateMetrics();
+        final String metrics = DeviceInfo.getCachedMetrics(getContext());
+        assertEquals(DeviceInfo.getMetrics(getContext()), metrics);
+        assertSame(metrics, DeviceInfo.getCachedMetrics(getContext()));
+
+        DeviceInfo.invalidateMetrics();
+        final String rebuilt = DeviceInfo.getCachedMetrics(getContext());
+        assertNotSame(metrics, rebuilt);
+        assertEquals(metrics, rebuilt);
+    }
+
+    public void testSetDeepLink_invalidatesCachedMetrics() throws UnsupportedEncodingException {
+        final String metrics = DeviceInfo.getCachedMetrics(getContext());
+        DeviceInfo.setDeepLink("countly://test");
+        try {
+            final String withDeepLink = URLDecoder.decode(DeviceInfo.getCachedMetrics(getContext()), "UTF-8");
+            assertTrue(withDeepLink.contains("\"_deep_link\":\"countly:\\/\\/test\""));
+        } finally {
+            DeviceInfo.setDeepLink(null);
+        }
+        assertEquals(metrics, DeviceInfo.getCachedMetrics(getContext()));
+    }
+
     public void testFillJSONIfValuesNotEmpty_noValues() {
         final JSONObject mockJSON = mock(JSONObject.class);
         DeviceInfo.fillJSONIfValuesNotEmpty(mockJSON);
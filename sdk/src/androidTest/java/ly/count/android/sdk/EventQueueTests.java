@@ -23,16 +23,22 @@ package ly.count.android.sdk;
 
 import android.test.AndroidTestCase;
 
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.anyCollectionOf;
 import static org.mockito.Mockito.*;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
@@ -47,6 +53,19 @@ public class EventQueueTests extends AndroidTestCase {
         super.setUp();
 
         mMockCountlyStore = mock(CountlyStore.class);
+        // hand out ids like the store does, 1, 2, 3... in the order events are added
+        when(mMockCountlyStore.addEvents(anyCollectionOf(Event.class))).thenAnswer(new Answer<long[]>() {
+            private long nextId = 1;
+
+            @Override
+            public long[] answer(final InvocationOnMock invocation) {
+                final long[] ids = new long[((Collection<?>) invocation.getArguments()[0]).size()];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = nextId++;
+                }
+                return ids;
+            }
+        });
         mEventQueue = new EventQueue(mMockCountlyStore);
     }
 
@@ -54,6 +73,45 @@ public class EventQueueTests extends AndroidTestCase {
         assertSame(mMockCountlyStore, mEventQueue.getCountlyStore());
     }
 
+    public void testConstructor_loadsStoredEvents() {
+        final List<Event> stored = new ArrayList<Event>();
+        stored.add(makeEvent("event1Key"));
+        stored.add(makeEvent("event2Key"));
+        when(mMockCountlyStore.eventsList()).thenReturn(stored);
+        when(mMockCountlyStore.eventIds()).thenReturn(new long[]{1, 2});
+        final EventQueue eventQueue = new EventQueue(mMockCountlyStore);
+        assertEquals(2, eventQueue.size());
+        assertEquals(2, eventQueue.persistedCount());
+    }
+
+    public void testConstructor_storedEventsOverCapacity() {
+        final List<Event> stored = new ArrayList<Event>();
+        stored.add(makeEvent("event1Key"));
+        stored.add(makeEvent("event2Key"));
+        stored.add(makeEvent("event3Key"));
+        when(mMockCountlyStore.eventsList()).thenReturn(stored);
+        when(mMockCountlyStore.eventIds()).thenReturn(new long[]{1, 2, 3});
+        final EventQueue eventQueue = new EventQueue(mMockCountlyStore, 2);
+        assertEquals(2, eventQueue.size());
+        verify(mMockCountlyStore).removeEvents(aryEq(new long[]{1}));
+    }
+
+    public void testConstructor_invalidCapacity() {
+        try {
+            new EventQueue(mMockCountlyStore, 0);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
+    }
+
+    public void testDefaultMaxLossWindow() {
+        assertEquals(EventQueue.DEFAULT_MAX_LOSS_WINDOW_MILLIS, mEventQueue.getMaxLossWindowMillis());
+        mEventQueue.setMaxLossWindowMillis(-5);
+        assertEquals(0, mEventQueue.getMaxLossWindowMillis());
+    }
+
+    @SuppressWarnings("unchecked")
     public void testRecordEvent() {
         final String eventKey = "eventKey";
         final int count = 42;
@@ -62,47 +120,284 @@ public class EventQueueTests extends AndroidTestCase {
         final int timestamp = Countly.currentTimestamp();
         final int hour = Countly.currentHour();
         final int dow = Countly.currentDayOfWeek();
-        final ArgumentCaptor<Integer> arg = ArgumentCaptor.forClass(Integer.class);
+        final ArgumentCaptor<Collection> arg = ArgumentCaptor.forClass(Collection.class);
 
         mEventQueue.recordEvent(eventKey, segmentation, count, sum);
-        verify(mMockCountlyStore).addEvent(eq(eventKey), eq(segmentation), arg.capture(), eq(hour), eq(dow), eq(count), eq(sum));
-        assertTrue(((timestamp - 1) <= arg.getValue()) && ((timestamp + 1) >= arg.getValue()));
+        assertEquals(1, mEventQueue.size());
+        verify(mMockCountlyStore, never()).addEvents(anyCollectionOf(Event.class));
+
+        mEventQueue.flush();
+        verify(mMockCountlyStore).addEvents(arg.capture());
+        assertEquals(1, arg.getValue().size());
+        final Event event = (Event) arg.getValue().iterator().next();
+        assertEquals(eventKey, event.key);
+        assertSame(segmentation, event.segmentation);
+        assertEquals(count, event.count);
+        assertEquals(sum, event.sum);
+        assertEquals(hour, event.hour);
+        assertEquals(dow, event.dow);
+        assertTrue(((timestamp - 1) <= event.timestamp) && ((timestamp + 1) >= event.timestamp));
+        assertEquals(1, mEventQueue.persistedCount());
+
+        mEventQueue.flush();
+        verify(mMockCountlyStore).addEvents(anyCollectionOf(Event.class));
     }
 
-    public void testSize_zeroLenArray() {
-        when(mMockCountlyStore.events()).thenReturn(new String[0]);
-        assertEquals(0, mEventQueue.size());
+    public void testRecordEvent_writeThrough() {
+        mEventQueue.setMaxLossWindowMillis(0);
+        mEventQueue.recordEvent("eventKey", null, 1, 0.0d);
+        verify(mMockCountlyStore).addEvents(anyCollectionOf(Event.class));
+        assertEquals(1, mEventQueue.persistedCount());
+    }
+
+    public void testRecordEvent_writeBehind() {
+        mEventQueue.setMaxLossWindowMillis(50);
+        mEventQueue.recordEvent("event1Key", null, 1, 0.0d);
+        mEventQueue.recordEvent("event2Key", null, 1, 0.0d);
+        verify(mMockCountlyStore, timeout(5000)).addEvents(anyCollectionOf(Event.class));
+        assertEquals(2, mEventQueue.persistedCount());
+    }
+
+    public void testRecordEvent_fullRingDropsOldest() throws UnsupportedEncodingException {
+        final EventQueue eventQueue = new EventQueue(mMockCountlyStore, 2);
+        eventQueue.recordEvent("event1Key", null, 1, 0.0d);
+        eventQueue.recordEvent("event2Key", null, 1, 0.0d);
+        eventQueue.recordEvent("event3Key", null, 1, 0.0d);
+        assertEquals(2, eventQueue.size());
+        final String events = URLDecoder.decode(eventQueue.events(), "UTF-8");
+        assertFalse(events.contains("event1Key"));
+        assertTrue(events.indexOf("event2Key") < events.indexOf("event3Key"));
+        verify(mMockCountlyStore, never()).removeEvents(any(long[].class));
+    }
+
+    public void testRecordEvent_fullRingRemovesPersistedOldest() {
+        final EventQueue eventQueue = new EventQueue(mMockCountlyStore, 2);
+        eventQueue.recordEvent("event1Key", null, 1, 0.0d);
+        eventQueue.recordEvent("event2Key", null, 1, 0.0d);
+        eventQueue.flush();
+        eventQueue.recordEvent("event3Key", null, 1, 0.0d);
+        verify(mMockCountlyStore).removeEvents(aryEq(new long[]{1}));
+        assertEquals(1, eventQueue.persistedCount());
+    }
+
+    public void testRecordEvent_evictionKeepsEqualPersistedEvents() {
+        final EventQueue eventQueue = new EventQueue(mMockCountlyStore, 3);
+        final Map<String, String> segmentation = new HashMap<String, String>();
+        segmentation.put("button", "ok");
+        eventQueue.recordEvent("tap", segmentation, 1, 0.0d);
+        eventQueue.recordEvent("tap", segmentation, 1, 0.0d);
+        eventQueue.recordEvent("tap", segmentation, 1, 0.0d);
+        eventQueue.flush();
+        eventQueue.recordEvent("view", null, 1, 0.0d);
+        // only the evicted copy is removed from the store, its duplicates stay queued
+        verify(mMockCountlyStore).removeEvents(aryEq(new long[]{1}));
+        assertEquals(2, eventQueue.persistedCount());
+        eventQueue.events();
+        verify(mMockCountlyStore).removeEvents(aryEq(new long[]{2, 3}));
+    }
+
+    public void testRecordEvent_fullRingCountsDroppedEvent() {
+        final EventQueue eventQueue = new EventQueue(mMockCountlyStore, 1);
+        eventQueue.recordEvent("event1Key", null, 1, 0.0d);
+        eventQueue.recordEvent("event2Key", null, 1, 0.0d);
+        verify(mMockCountlyStore).addDroppedEvents(1);
+    }
+
+    public void testRecordEvent_byteLimitDropsOldest() throws UnsupportedEncodingException {
+        final Event event = makeEvent("event1Key");
+        final EventQueue eventQueue = new EventQueue(mMockCountlyStore, 100);
+        eventQueue.setLimits(EventQueue.estimateSize(event) * 2, Countly.QueueOverflowPolicy.DROP_OLDEST);
+        eventQueue.recordEvent("event1Key", null, 1, 0.0d);
+        eventQueue.recordEvent("event2Key", null, 1, 0.0d);
+        eventQueue.recordEvent("event3Key", null, 1, 0.0d);
+        assertEquals(2, eventQueue.size());
+        final String events = URLDecoder.decode(eventQueue.events(), "UTF-8");
+        assertFalse(events.contains("event1Key"));
+        assertTrue(events.contains("event3Key"));
+        verify(mMockCountlyStore).addDroppedEvents(1);
+    }
+
+    public void testRecordEvent_dropNewest() throws UnsupportedEncodingException {
+        final EventQueue eventQueue = new EventQueue(mMockCountlyStore, 2);
+        eventQueue.setLimits(EventQueue.DEFAULT_MAX_BYTES, Countly.QueueOverflowPolicy.DROP_NEWEST);
+        eventQueue.recordEvent("event1Key", null, 1, 0.0d);
+        eventQueue.recordEvent("event2Key", null, 1, 0.0d);
+        eventQueue.recordEvent("event3Key", null, 1, 0.0d);
+        final String events = URLDecoder.decode(eventQueue.events(), "UTF-8");
+        assertTrue(events.contains("event1Key"));
+        assertFalse(events.contains("event3Key"));
+        verify(mMockCountlyStore).addDroppedEvents(1);
+    }
+
+    public void testRecordEvent_sampleMergesIntoQueuedEvent() throws UnsupportedEncodingException, JSONException {
+        final EventQueue eventQueue = new EventQueue(mMockCountlyStore, 2);
+        eventQueue.setLimits(EventQueue.DEFAULT_MAX_BYTES, Countly.QueueOverflowPolicy.SAMPLE);
+        eventQueue.recordEvent("event1Key", null, 1, 1.0d);
+        eventQueue.recordEvent("event2Key", null, 1, 0.0d);
+        eventQueue.recordEvent("event1Key", null, 2, 2.0d);
+        assertEquals(2, eventQueue.size());
+        final JSONArray events = new JSONArray(URLDecoder.decode(eventQueue.events(), "UTF-8"));
+        assertEquals("event1Key", events.getJSONObject(0).getString("key"));
+        assertEquals(3, events.getJSONObject(0).getInt("count"));
+        assertEquals(3.0d, events.getJSONObject(0).getDouble("sum"));
+        verify(mMockCountlyStore, never()).addDroppedEvents(anyInt());
+    }
+
+    public void testRecordEvent_sampleDoesNotMergeIntoPersistedEvent() throws UnsupportedEncodingException {
+        final EventQueue eventQueue = new EventQueue(mMockCountlyStore, 1);
+        eventQueue.setLimits(EventQueue.DEFAULT_MAX_BYTES, Countly.QueueOverflowPolicy.SAMPLE);
+        eventQueue.recordEvent("event1Key", null, 1, 0.0d);
+        eventQueue.flush();
+        eventQueue.recordEvent("event1Key", null, 1, 0.0d);
+        assertEquals(1, eventQueue.size());
+        assertEquals(0, eventQueue.persistedCount());
+        verify(mMockCountlyStore).addDroppedEvents(1);
+    }
+
+    public void testSetLimits_invalid() {
+        try {
+            mEventQueue.setLimits(0, Countly.QueueOverflowPolicy.DROP_OLDEST);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
+        try {
+            mEventQueue.setLimits(1, null);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignored) {
+            // success
+        }
     }
 
     public void testSize() {
-        when(mMockCountlyStore.events()).thenReturn(new String[2]);
+        assertEquals(0, mEventQueue.size());
+        mEventQueue.recordEvent("event1Key", null, 1, 0.0d);
+        mEventQueue.recordEvent("event2Key", null, 1, 0.0d);
         assertEquals(2, mEventQueue.size());
     }
 
     public void testEvents_emptyList() throws UnsupportedEncodingException {
-        final List<Event> eventsList = new ArrayList<Event>();
-        when(mMockCountlyStore.eventsList()).thenReturn(eventsList);
-
         final String expected = URLEncoder.encode("[]", "UTF-8");
         assertEquals(expected, mEventQueue.events());
-        verify(mMockCountlyStore).eventsList();
-        verify(mMockCountlyStore).removeEvents(eventsList);
+        verify(mMockCountlyStore, never()).removeEvents(any(long[].class));
     }
 
     public void testEvents_nonEmptyList() throws UnsupportedEncodingException {
         final List<Event> eventsList = new ArrayList<Event>();
-        final Event event1 = new Event();
-        event1.key = "event1Key";
+        final Event event1 = makeEvent("event1Key");
         eventsList.add(event1);
-        final Event event2 = new Event();
-        event2.key = "event2Key";
+        final Event event2 = makeEvent("event2Key");
         eventsList.add(event2);
         when(mMockCountlyStore.eventsList()).thenReturn(eventsList);
+        when(mMockCountlyStore.eventIds()).thenReturn(new long[]{1, 2});
+        final EventQueue eventQueue = new EventQueue(mMockCountlyStore);
 
         final String jsonToEncode = "[" + event1.toJSON().toString() + "," + event2.toJSON().toString() + "]";
         final String expected = URLEncoder.encode(jsonToEncode, "UTF-8");
-        assertEquals(expected, mEventQueue.events());
-        verify(mMockCountlyStore).eventsList();
-        verify(mMockCountlyStore).removeEvents(eventsList);
+        assertEquals(expected, eventQueue.events());
+        verify(mMockCountlyStore).removeEvents(aryEq(new long[]{1, 2}));
+        assertEquals(0, eventQueue.size());
+    }
+
+    public void testEvents_onlyRemovesPersistedEventsFromStore() throws UnsupportedEncodingException {
+        mEventQueue.recordEvent("event1Key", null, 1, 0.0d);
+        mEventQueue.flush();
+        mEventQueue.recordEvent("event2Key", null, 1, 0.0d);
+        final String events = URLDecoder.decode(mEventQueue.events(), "UTF-8");
+        assertTrue(events.indexOf("event1Key") < events.indexOf("event2Key"));
+        verify(mMockCountlyStore).removeEvents(aryEq(new long[]{1}));
+        assertEquals(0, mEventQueue.size());
+        mEventQueue.flush();
+        verify(mMockCountlyStore).addEvents(anyCollectionOf(Event.class));
+    }
+
+    public void testClear() {
+        mEventQueue.recordEvent("event1Key", null, 1, 0.0d);
+        mEventQueue.clear();
+        assertEquals(0, mEventQueue.size());
+        mEventQueue.flush();
+        verify(mMockCountlyStore, never()).addEvents(anyCollectionOf(Event.class));
+    }
+
+    public void testDefaultAggregationWindow() {
+        assertEquals(0, mEventQueue.getAggregationWindowMillis());
+        mEventQueue.setAggregationWindowMillis(-5);
+        assertEquals(0, mEventQueue.getAggregationWindowMillis());
+    }
+
+    public void testRecordEvent_aggregatesSameKeyAndSegmentation() throws UnsupportedEncodingException, JSONException {
+        mEventQueue.setAggregationWindowMillis(60000);
+        final Map<String, String> segmentation = new HashMap<String, String>();
+        segmentation.put("button", "ok");
+        mEventQueue.recordEvent("tap", segmentation, 1, 2.0d);
+        mEventQueue.recordEvent("tap", new HashMap<String, String>(segmentation), 2, 3.0d);
+        segmentation.put("button", "cancel");
+        mEventQueue.recordEvent("tap", segmentation, 1, 0.0d);
+        mEventQueue.recordEvent("view", null, 1, 0.0d);
+        mEventQueue.recordEvent("view", null, 4, 0.0d);
+        assertEquals(3, mEventQueue.size());
+
+        final JSONArray events = new JSONArray(URLDecoder.decode(mEventQueue.events(), "UTF-8"));
+        assertEquals(3, events.length());
+        assertEquals("tap", events.getJSONObject(0).getString("key"));
+        assertEquals("ok", events.getJSONObject(0).getJSONObject("segmentation").getString("button"));
+        assertEquals(3, events.getJSONObject(0).getInt("count"));
+        assertEquals(5.0d, events.getJSONObject(0).getDouble("sum"));
+        assertEquals("cancel", events.getJSONObject(1).getJSONObject("segmentation").getString("button"));
+        assertEquals(1, events.getJSONObject(1).getInt("count"));
+        assertEquals("view", events.getJSONObject(2).getString("key"));
+        assertEquals(5, events.getJSONObject(2).getInt("count"));
+        assertEquals(0, mEventQueue.size());
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testRecordEvent_aggregatesAreNotPersistedBeforeFlush() {
+        mEventQueue.setMaxLossWindowMillis(0);
+        mEventQueue.setAggregationWindowMillis(60000);
+        mEventQueue.recordEvent("view", null, 1, 0.0d);
+        mEventQueue.recordEvent("view", null, 1, 0.0d);
+        verify(mMockCountlyStore, never()).addEvents(anyCollectionOf(Event.class));
+
+        mEventQueue.flush();
+        final ArgumentCaptor<Collection> arg = ArgumentCaptor.forClass(Collection.class);
+        verify(mMockCountlyStore).addEvents(arg.capture());
+        assertEquals(1, arg.getValue().size());
+        assertEquals(2, ((Event) arg.getValue().iterator().next()).count);
+        assertEquals(1, mEventQueue.persistedCount());
+    }
+
+    public void testRecordEvent_aggregationWindowElapses() {
+        mEventQueue.setMaxLossWindowMillis(0);
+        mEventQueue.setAggregationWindowMillis(50);
+        mEventQueue.recordEvent("view", null, 1, 0.0d);
+        mEventQueue.recordEvent("view", null, 1, 0.0d);
+        verify(mMockCountlyStore, timeout(5000)).addEvents(anyCollectionOf(Event.class));
+        assertEquals(1, mEventQueue.persistedCount());
+        assertEquals(1, mEventQueue.size());
+    }
+
+    public void testSetAggregationWindow_disablingQueuesAggregates() {
+        mEventQueue.setAggregationWindowMillis(60000);
+        mEventQueue.recordEvent("view", null, 1, 0.0d);
+        mEventQueue.recordEvent("view", null, 1, 0.0d);
+        mEventQueue.setAggregationWindowMillis(0);
+        mEventQueue.recordEvent("view", null, 1, 0.0d);
+        assertEquals(2, mEventQueue.size());
+    }
+
+    public void testClear_discardsAggregates() {
+        mEventQueue.setAggregationWindowMillis(60000);
+        mEventQueue.recordEvent("view", null, 1, 0.0d);
+        mEventQueue.clear();
+        assertEquals(0, mEventQueue.size());
+        mEventQueue.flush();
+        verify(mMockCountlyStore, never()).addEvents(anyCollectionOf(Event.class));
+    }
+
+    private static Event makeEvent(final String key) {
+        final Event event = new Event();
+        event.key = key;
+        event.count = 1;
+        return event;
     }
 }
@@ -0,0 +1,133 @@
+/*
+Copyright (c) 2012, 2013, 2014 Countly
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package ly.count.android.sdk;
+
+import android.test.AndroidTestCase;
+
+import org.json.JSONArray;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class EventWriterTests extends AndroidTestCase {
+    EventWriter writer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        writer = new EventWriter();
+    }
+
+    private static Event makeEvent(final String key, final Map<String, String> segmentation, final double sum) {
+        final Event event = new Event();
+        event.key = key;
+        event.segmentation = segmentation;
+        event.count = 42;
+        event.sum = sum;
+        event.timestamp = 1449158404;
+        event.hour = 17;
+        event.dow = 4;
+        return event;
+    }
+
+    private static List<Event> parityEvents() {
+        final Map<String, String> segmentation = new LinkedHashMap<String, String>();
+        segmentation.put("plain", "value");
+        segmentation.put("quote\"back\\slash/slash", "tab\tnew\nline\rcr\bbs\fff\u0001ctl\u001fus");
+        segmentation.put("unicode", "héllo 世界 😀 end");
+        segmentation.put("reserved", "a b&c=d+e%f?g#h~i!j'k(l)m*n.o-p_q");
+        segmentation.put("unpaired", "x\ud83dy\ude00z");
+
+        final List<Event> events = new ArrayList<Event>();
+        events.add(makeEvent("simple", null, 0.0d));
+        events.add(makeEvent("segmented", segmentation, 3.5d));
+        events.add(makeEvent("emptySegmentation", new HashMap<String, String>(), 100.0d));
+        events.add(makeEvent("negativeZero", null, -0.0d));
+        events.add(makeEvent("negative", null, -12.25d));
+        events.add(makeEvent("large", null, 1e20d));
+        events.add(makeEvent("huge", null, 1.5e300d));
+        events.add(makeEvent("tiny", null, 1e-7d));
+        events.add(makeEvent("nan", null, Double.NaN));
+        events.add(makeEvent("infinity", null, Double.NEGATIVE_INFINITY));
+        events.add(makeEvent(null, null, 1.0d));
+        events.add(makeEvent("kéy/\"", Collections.singletonMap("s", "v"), 2.0d));
+        return events;
+    }
+
+    public void testToJSON_matchesEventToJSON() {
+        for (Event event : parityEvents()) {
+            assertEquals(event.toJSON().toString(), writer.toJSON(event));
+        }
+    }
+
+    public void testToJSON_array_matchesJSONArray() {
+        final List<Event> events = parityEvents();
+        final JSONArray array = new JSONArray();
+        for (Event event : events) {
+            array.put(event.toJSON());
+        }
+        assertEquals(array.toString(), writer.toJSON(events));
+        assertEquals("[]", writer.toJSON(new ArrayList<Event>()));
+    }
+
+    public void testToURLEncodedJSON_matchesURLEncoder() throws UnsupportedEncodingException {
+        final List<Event> events = parityEvents();
+        final JSONArray array = new JSONArray();
+        for (Event event : events) {
+            array.put(event.toJSON());
+        }
+        assertEquals(URLEncoder.encode(array.toString(), "UTF-8"), writer.toURLEncodedJSON(events));
+        assertEquals(URLEncoder.encode("[]", "UTF-8"), writer.toURLEncodedJSON(new ArrayList<Event>()));
+    }
+
+    public void testWriterIsReusable() throws UnsupportedEncodingException {
+        final Event event = makeEvent("eventKey", null, 1.0d);
+        final String json = event.toJSON().toString();
+        assertEquals(json, writer.toJSON(event));
+        assertEquals(URLEncoder.encode("[" + json + "]", "UTF-8"), writer.toURLEncodedJSON(Arrays.asList(event)));
+        assertEquals(json, writer.toJSON(event));
+    }
+
+    public void testWriterDropsLargeBuffer() {
+        final char[] chars = new char[100 * 1024];
+        Arrays.fill(chars, 'x');
+        final Event large = makeEvent(new String(chars), null, 0.0d);
+        assertEquals(large.toJSON().toString(), writer.toJSON(large));
+        final Event small = makeEvent("small", null, 0.0d);
+        assertEquals(small.toJSON().toString(), writer.toJSON(small));
+    }
+
+    public void testNumberToString() {
+        assertEquals("0", EventWriter.numberToString(0.0d));
+        assertEquals("-0", EventWriter.numberToString(-0.0d));
+        assertEquals("3", EventWriter.numberToString(3.0d));
+        assertEquals("3.5", EventWriter.numberToString(3.5d));
+        assertEquals("1.0E20", EventWriter.numberToString(1e20d));
+    }
+}
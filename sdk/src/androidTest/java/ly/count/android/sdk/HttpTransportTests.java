@@ -0,0 +1,538 @@
+/*
+Copyright (c) 2012, 2013, 2014 Countly
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package ly.count.android.sdk;
+
+import android.test.AndroidTestCase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.mockito.Mockito.*;
+
+public class HttpTransportTests extends AndroidTestCase {
+    HttpTransport transport;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        transport = new HttpTransport("http://server", null);
+    }
+
+    public void testConstructorAndGetters() {
+        final HttpTransport transport1 = new HttpTransport("https://secureserver", null);
+        assertEquals("https://secureserver", transport1.getServerURL());
+        assertNull(transport1.getSSLContext());
+    }
+
+    public void testUrlConnectionForEventData() throws IOException {
+        final String eventData = "blahblahblah";
+        final URLConnection urlConnection = transport.urlConnectionForEventData(eventData);
+        assertEquals(30000, urlConnection.getConnectTimeout());
+        assertEquals(30000, urlConnection.getReadTimeout());
+        assertFalse(urlConnection.getUseCaches());
+        assertTrue(urlConnection.getDoInput());
+        assertFalse(urlConnection.getDoOutput());
+        assertEquals(new URL(transport.getServerURL() + "/i?" + eventData), urlConnection.getURL());
+    }
+
+    private static class TestInputStream extends InputStream {
+        int readCount = 0;
+        boolean fullyRead() { return readCount >= 2; }
+        boolean closed = false;
+
+        @Override
+        public int read() throws IOException {
+            return readCount++ < 1 ? 1 : -1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            closed = true;
+        }
+    }
+
+    private static class CountlyResponseStream extends ByteArrayInputStream {
+        boolean closed = false;
+
+        CountlyResponseStream(final String result) throws UnsupportedEncodingException {
+            super(("{\"result\":\"" + result + "\"}").getBytes("UTF-8"));
+        }
+
+        boolean fullyRead() { return pos == buf.length; }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            closed = true;
+        }
+    }
+
+    public void testSend_success() throws IOException {
+        final String eventData = "blahblahblah";
+        transport = spy(transport);
+        final HttpURLConnection mockURLConnection = mock(HttpURLConnection.class);
+        final CountlyResponseStream testInputStream = new CountlyResponseStream("Success");
+        when(mockURLConnection.getInputStream()).thenReturn(testInputStream);
+        when(mockURLConnection.getResponseCode()).thenReturn(200);
+        doReturn(mockURLConnection).when(transport).urlConnectionForEventData(eventData);
+        final Transport.Response response = transport.send(eventData);
+        verify(mockURLConnection).connect();
+        verify(mockURLConnection).getInputStream();
+        verify(mockURLConnection).getResponseCode();
+        assertEquals(200, response.code);
+        assertTrue(response.isSuccess());
+        assertTrue(testInputStream.fullyRead());
+        assertTrue(testInputStream.closed);
+        verify(mockURLConnection, never()).disconnect();
+    }
+
+    public void testSend_HTTPResponseCodeWasNot2xx() throws IOException {
+        final String eventData = "blahblahblah";
+        transport = spy(transport);
+        final HttpURLConnection mockURLConnection = mock(HttpURLConnection.class);
+        final CountlyResponseStream testInputStream = new CountlyResponseStream("Success");
+        when(mockURLConnection.getInputStream()).thenReturn(testInputStream);
+        when(mockURLConnection.getResponseCode()).thenReturn(300);
+        doReturn(mockURLConnection).when(transport).urlConnectionForEventData(eventData);
+        final Transport.Response response = transport.send(eventData);
+        assertEquals(300, response.code);
+        assertFalse(response.isSuccess());
+        assertFalse(response.isRejected());
+        assertTrue(testInputStream.fullyRead());
+        assertTrue(testInputStream.closed);
+        verify(mockURLConnection, never()).disconnect();
+    }
+
+    public void testSend_errorResponseIsReadFromErrorStream() throws IOException {
+        final String eventData = "blahblahblah";
+        transport = spy(transport);
+        final HttpURLConnection mockURLConnection = mock(HttpURLConnection.class);
+        final CountlyResponseStream testErrorStream = new CountlyResponseStream("Failed");
+        when(mockURLConnection.getErrorStream()).thenReturn(testErrorStream);
+        when(mockURLConnection.getResponseCode()).thenReturn(404);
+        doReturn(mockURLConnection).when(transport).urlConnectionForEventData(eventData);
+        final Transport.Response response = transport.send(eventData);
+        verify(mockURLConnection, never()).getInputStream();
+        assertEquals(404, response.code);
+        assertTrue(response.isRejected());
+        assertFalse(response.isSuccess());
+        assertTrue(testErrorStream.fullyRead());
+        assertTrue(testErrorStream.closed);
+    }
+
+    public void testSend_responseWasNotJSON() throws IOException {
+        final String eventData = "blahblahblah";
+        transport = spy(transport);
+        final HttpURLConnection mockURLConnection = mock(HttpURLConnection.class);
+        final TestInputStream testInputStream = new TestInputStream();
+        when(mockURLConnection.getInputStream()).thenReturn(testInputStream);
+        when(mockURLConnection.getResponseCode()).thenReturn(200);
+        doReturn(mockURLConnection).when(transport).urlConnectionForEventData(eventData);
+        final Transport.Response response = transport.send(eventData);
+        assertFalse(response.isSuccess());
+        assertTrue(testInputStream.fullyRead());
+        assertTrue(testInputStream.closed);
+        verify(mockURLConnection, never()).disconnect();
+    }
+
+    public void testSend_responseJSONWasNotSuccess() throws IOException {
+        final String eventData = "blahblahblah";
+        transport = spy(transport);
+        final HttpURLConnection mockURLConnection = mock(HttpURLConnection.class);
+        final CountlyResponseStream testInputStream = new CountlyResponseStream("Failed");
+        when(mockURLConnection.getInputStream()).thenReturn(testInputStream);
+        when(mockURLConnection.getResponseCode()).thenReturn(200);
+        doReturn(mockURLConnection).when(transport).urlConnectionForEventData(eventData);
+        assertFalse(transport.send(eventData).isSuccess());
+        assertTrue(testInputStream.fullyRead());
+        assertTrue(testInputStream.closed);
+    }
+
+    public void testSend_successCheckIsCaseInsensitive() throws IOException {
+        final String eventData = "blahblahblah";
+        transport = spy(transport);
+        final HttpURLConnection mockURLConnection = mock(HttpURLConnection.class);
+        final CountlyResponseStream testInputStream = new CountlyResponseStream("SuCcEsS");
+        when(mockURLConnection.getInputStream()).thenReturn(testInputStream);
+        when(mockURLConnection.getResponseCode()).thenReturn(200);
+        doReturn(mockURLConnection).when(transport).urlConnectionForEventData(eventData);
+        assertTrue(transport.send(eventData).isSuccess());
+    }
+
+    private static class TestInputStream2 extends InputStream {
+        boolean closed = false;
+
+        @Override
+        public int read() throws IOException {
+            throw new IOException();
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            closed = true;
+        }
+    }
+
+    public void testSend_throwsWhenInputStreamIsRead() throws IOException {
+        final String eventData = "blahblahblah";
+        transport = spy(transport);
+        final HttpURLConnection mockURLConnection = mock(HttpURLConnection.class);
+        final TestInputStream2 testInputStream = new TestInputStream2();
+        when(mockURLConnection.getInputStream()).thenReturn(testInputStream);
+        when(mockURLConnection.getResponseCode()).thenReturn(200);
+        doReturn(mockURLConnection).when(transport).urlConnectionForEventData(eventData);
+        try {
+            transport.send(eventData);
+            fail("expected IOException");
+        } catch (IOException ignored) {
+            // success
+        }
+        assertTrue(testInputStream.closed);
+        verify(mockURLConnection).disconnect();
+    }
+
+    public void testSendBatch() throws IOException {
+        transport = spy(transport);
+        final HttpURLConnection mockURLConnection = mock(HttpURLConnection.class);
+        when(mockURLConnection.getInputStream()).thenReturn(new CountlyResponseStream("Success"));
+        when(mockURLConnection.getResponseCode()).thenReturn(200);
+        doReturn(mockURLConnection).when(transport).urlConnectionForBulkData(anyString());
+        assertTrue(transport.sendBatch(Arrays.asList("a=1&device_id=123", "b=2&device_id=123")).isSuccess());
+        verify(transport).urlConnectionForBulkData(HttpTransport.bulkDataForRequests(Arrays.asList("a=1&device_id=123", "b=2&device_id=123")));
+    }
+
+    public void testSendBatch_malformedRequestIsNotBatched() throws IOException {
+        transport = spy(transport);
+        assertNull(transport.sendBatch(Collections.singletonList("a=%zz&device_id=123")));
+        verify(transport, never()).urlConnectionForBulkData(anyString());
+    }
+
+    public void testBulkDataForRequests() throws JSONException, UnsupportedEncodingException {
+        final String bulkData = HttpTransport.bulkDataForRequests(Arrays.asList(
+                "app_key=abc&events=%5B%7B%22key%22%3A%22a%22%7D%5D&device_id=123",
+                "app_key=abc&end_session=1&device_id=123"));
+        assertTrue(bulkData.startsWith("requests="));
+        final JSONArray requests = new JSONArray(URLDecoder.decode(bulkData.substring("requests=".length()), "UTF-8"));
+        assertEquals(2, requests.length());
+        final JSONObject first = requests.getJSONObject(0);
+        assertEquals("abc", first.getString("app_key"));
+        assertEquals("[{\"key\":\"a\"}]", first.getString("events"));
+        assertEquals("123", first.getString("device_id"));
+        assertEquals("1", requests.getJSONObject(1).getString("end_session"));
+    }
+
+    public void testBulkDataForRequests_malformedEncoding() {
+        assertNull(HttpTransport.bulkDataForRequests(Collections.singletonList("a=%zz")));
+    }
+
+    /**
+     * Minimal HTTP/1.1 server on localhost answering every request with a Countly success
+     * response, counting accepted connections and served requests.
+     */
+    static class StubHttpServer implements Runnable {
+        final ServerSocket serverSocket;
+        final boolean keepAlive;
+        final AtomicInteger connections = new AtomicInteger();
+        final AtomicInteger requests = new AtomicInteger();
+        // request line, headers (lower case names) and decoded body of the last request
+        volatile String lastRequestLine;
+        volatile Map<String, String> lastHeaders;
+        volatile byte[] lastBody;
+        volatile int lastWireBodyLength;
+
+        StubHttpServer(final boolean keepAlive) throws IOException {
+            this.keepAlive = keepAlive;
+            serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            final Thread thread = new Thread(this);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String url() {
+            return "http://127.0.0.1:" + serverSocket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Socket socket = serverSocket.accept();
+                    connections.incrementAndGet();
+                    final Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    });
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            } catch (IOException ignored) {
+                // closed
+            }
+        }
+
+        private void serve(final Socket socket) {
+            try {
+                final InputStream in = socket.getInputStream();
+                final OutputStream out = socket.getOutputStream();
+                while (true) {
+                    final String requestLine = readLine(in);
+                    if (requestLine == null) {
+                        break;
+                    }
+                    final Map<String, String> headers = new HashMap<String, String>();
+                    String line;
+                    while ((line = readLine(in)) != null && line.length() > 0) {
+                        final int idx = line.indexOf(':');
+                        headers.put(line.substring(0, idx).trim().toLowerCase(), line.substring(idx + 1).trim());
+                    }
+                    final ByteArrayOutputStream wireBody = new ByteArrayOutputStream();
+                    if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+                        int chunkSize;
+                        while ((chunkSize = Integer.parseInt(readLine(in).trim(), 16)) > 0) {
+                            for (int i = 0; i < chunkSize; i++) {
+                                wireBody.write(in.read());
+                            }
+                            readLine(in);
+                        }
+                        readLine(in);
+                    } else if (headers.containsKey("content-length")) {
+                        final int contentLength = Integer.parseInt(headers.get("content-length"));
+                        for (int i = 0; i < contentLength; i++) {
+                            wireBody.write(in.read());
+                        }
+                    }
+                    byte[] body = wireBody.toByteArray();
+                    if ("gzip".equalsIgnoreCase(headers.get("content-encoding"))) {
+                        final InputStream gzip = new GZIPInputStream(new ByteArrayInputStream(body));
+                        final ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+                        int c;
+                        while ((c = gzip.read()) != -1) {
+                            decoded.write(c);
+                        }
+                        body = decoded.toByteArray();
+                    }
+                    lastRequestLine = requestLine;
+                    lastHeaders = headers;
+                    lastBody = body;
+                    lastWireBodyLength = wireBody.size();
+                    requests.incrementAndGet();
+                    final byte[] response = "{\"result\":\"Success\"}".getBytes("UTF-8");
+                    out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: " + response.length
+                            + (keepAlive ? "" : "\r\nConnection: close") + "\r\n\r\n").getBytes("UTF-8"));
+                    out.write(response);
+                    out.flush();
+                    if (!keepAlive) {
+                        break;
+                    }
+                }
+            } catch (IOException ignored) {
+                // client went away
+            } finally {
+                try { socket.close(); } catch (IOException ignored) {}
+            }
+        }
+
+        private static String readLine(final InputStream in) throws IOException {
+            final StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1 && c != '\n') {
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return c == -1 && line.length() == 0 ? null : line.toString();
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+
+    public void testSend_reusesConnection() throws IOException {
+        final StubHttpServer server = new StubHttpServer(true);
+        try {
+            transport = new HttpTransport(server.url(), null);
+            for (int i = 0; i < 5; i++) {
+                assertTrue(transport.send("app_key=abc&timestamp=" + i + "&device_id=123").isSuccess());
+            }
+            assertEquals(5, server.requests.get());
+            assertEquals(1, server.connections.get());
+        } finally {
+            server.close();
+        }
+    }
+
+    public void testSendBatch_postsToBulkEndpoint() throws IOException {
+        final StubHttpServer server = new StubHttpServer(true);
+        try {
+            transport = new HttpTransport(server.url(), null);
+            final String bulkData = HttpTransport.bulkDataForRequests(Arrays.asList("a=1&device_id=123", "b=2&device_id=123"));
+            final URLConnection urlConnection = transport.urlConnectionForBulkData(bulkData);
+            assertTrue(urlConnection.getDoOutput());
+            assertEquals("POST", ((HttpURLConnection) urlConnection).getRequestMethod());
+            assertEquals(new URL(server.url() + "/i/bulk"), urlConnection.getURL());
+            assertTrue(transport.execute(urlConnection).isSuccess());
+            assertEquals(1, server.requests.get());
+        } finally {
+            server.close();
+        }
+    }
+
+    private static String longEventData() {
+        final StringBuilder events = new StringBuilder("app_key=abc&timestamp=1&events=");
+        for (int i = 0; i < 100; i++) {
+            events.append("%5B%7B%22key%22%3A%22event").append(i).append("%22%2C%22count%22%3A1%7D%5D");
+        }
+        return events.append("&device_id=123").toString();
+    }
+
+    public void testSend_compressionDisabledByDefault() throws IOException {
+        final StubHttpServer server = new StubHttpServer(true);
+        try {
+            transport = new HttpTransport(server.url(), null);
+            assertTrue(transport.getCompressionThreshold() < 0);
+            final String eventData = longEventData();
+            assertTrue(transport.send(eventData).isSuccess());
+            assertEquals("GET /i?" + eventData + " HTTP/1.1", server.lastRequestLine);
+            assertEquals(0, server.lastBody.length);
+        } finally {
+            server.close();
+        }
+    }
+
+    public void testSend_compressesLargeRequests() throws IOException {
+        final StubHttpServer server = new StubHttpServer(true);
+        try {
+            transport = new HttpTransport(server.url(), null);
+            transport.setCompressionThreshold(HttpTransport.DEFAULT_COMPRESSION_THRESHOLD);
+            final String eventData = longEventData();
+            assertTrue(transport.send(eventData).isSuccess());
+            assertEquals("POST /i? HTTP/1.1", server.lastRequestLine);
+            assertEquals("gzip", server.lastHeaders.get("content-encoding"));
+            assertEquals("application/x-www-form-urlencoded", server.lastHeaders.get("content-type"));
+            assertEquals(eventData, new String(server.lastBody, "UTF-8"));
+            assertTrue(server.lastWireBodyLength < eventData.length() / 2);
+        } finally {
+            server.close();
+        }
+    }
+
+    public void testSend_doesNotCompressSmallRequests() throws IOException {
+        final StubHttpServer server = new StubHttpServer(true);
+        try {
+            transport = new HttpTransport(server.url(), null);
+            transport.setCompressionThreshold(HttpTransport.DEFAULT_COMPRESSION_THRESHOLD);
+            assertTrue(transport.send("app_key=abc&begin_session=1&device_id=123").isSuccess());
+            assertEquals("GET /i?app_key=abc&begin_session=1&device_id=123 HTTP/1.1", server.lastRequestLine);
+
+            final String crashData = "app_key=abc&device_id=123&crash=%7B%7D";
+            assertTrue(transport.send(crashData).isSuccess());
+            assertEquals("POST /i? HTTP/1.1", server.lastRequestLine);
+            assertNull(server.lastHeaders.get("content-encoding"));
+            assertEquals(String.valueOf(crashData.length()), server.lastHeaders.get("content-length"));
+            assertEquals(crashData, new String(server.lastBody, "UTF-8"));
+        } finally {
+            server.close();
+        }
+    }
+
+    public void testSendBatch_compressed() throws IOException {
+        final StubHttpServer server = new StubHttpServer(true);
+        try {
+            transport = new HttpTransport(server.url(), null);
+            transport.setCompressionThreshold(0);
+            final java.util.List<String> requests = Arrays.asList("a=1&device_id=123", "b=2&device_id=123");
+            assertTrue(transport.sendBatch(requests).isSuccess());
+            assertEquals("POST /i/bulk HTTP/1.1", server.lastRequestLine);
+            assertEquals("gzip", server.lastHeaders.get("content-encoding"));
+            assertEquals(HttpTransport.bulkDataForRequests(requests), new String(server.lastBody, "UTF-8"));
+        } finally {
+            server.close();
+        }
+    }
+
+    public void testSend_serverClosingConnections() throws IOException {
+        final StubHttpServer server = new StubHttpServer(false);
+        try {
+            transport = new HttpTransport(server.url(), null);
+            for (int i = 0; i < 5; i++) {
+                assertTrue(transport.send("app_key=abc&timestamp=" + i + "&device_id=123").isSuccess());
+            }
+            assertEquals(5, server.requests.get());
+            assertEquals(5, server.connections.get());
+        } finally {
+            server.close();
+        }
+    }
+
+    public void testParseRetryAfter() {
+        final long now = 1445000000000L;
+        assertEquals(-1, HttpTransport.parseRetryAfter(null, now));
+        assertEquals(-1, HttpTransport.parseRetryAfter(" ", now));
+        assertEquals(-1, HttpTransport.parseRetryAfter("soon", now));
+        assertEquals(-1, HttpTransport.parseRetryAfter("-5", now));
+        assertEquals(120000, HttpTransport.parseRetryAfter("120", now));
+        // Fri, 16 Oct 2015 12:53:20 GMT is 1445000000000
+        assertEquals(30000, HttpTransport.parseRetryAfter("Fri, 16 Oct 2015 12:53:50 GMT", now));
+        assertEquals(0, HttpTransport.parseRetryAfter("Fri, 16 Oct 2015 12:00:00 GMT", now));
+    }
+
+    public void testSend_retryAfterHeader() throws IOException {
+        final String eventData = "blahblahblah";
+        transport = spy(transport);
+        final HttpURLConnection mockURLConnection = mock(HttpURLConnection.class);
+        final CountlyResponseStream testErrorStream = new CountlyResponseStream("Failed");
+        when(mockURLConnection.getErrorStream()).thenReturn(testErrorStream);
+        when(mockURLConnection.getResponseCode()).thenReturn(429);
+        when(mockURLConnection.getHeaderField("Retry-After")).thenReturn("30");
+        doReturn(mockURLConnection).when(transport).urlConnectionForEventData(eventData);
+        final Transport.Response response = transport.send(eventData);
+        assertEquals(30000, response.retryAfterMillis);
+        assertTrue(response.isThrottled());
+        assertFalse(response.isRejected());
+    }
+}
@@ -0,0 +1,262 @@
+/*
+Copyright (c) 2012, 2013, 2014 Countly
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package ly.count.android.sdk;
+
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class MappedRingQueueTests extends AndroidTestCase {
+    File directory;
+    MappedRingQueue ring;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = new File(getContext().getCacheDir(), "ring-test");
+        deleteDirectory();
+        ring = new MappedRingQueue(directory, "test");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        ring.clear();
+        deleteDirectory();
+        super.tearDown();
+    }
+
+    private void deleteDirectory() {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private MappedRingQueue reopen() {
+        ring.close();
+        ring = new MappedRingQueue(directory, "test");
+        return ring;
+    }
+
+    private static String value(final int i, final int length) {
+        final char[] chars = new char[length];
+        Arrays.fill(chars, (char) ('a' + i % 26));
+        return i + "=" + new String(chars);
+    }
+
+    public void testEmpty() {
+        assertTrue(ring.isEmpty());
+        assertEquals(0, ring.size());
+        assertTrue(Arrays.equals(new String[0], ring.values()));
+        assertNull(ring.head());
+        assertFalse(MappedRingQueue.exists(directory, "test"));
+    }
+
+    public void testAppend() {
+        final long id1 = ring.append("blah1");
+        final long id2 = ring.append("blah2");
+        assertTrue(id2 > id1);
+        assertTrue(MappedRingQueue.exists(directory, "test"));
+        assertEquals(MappedRingQueue.INITIAL_CAPACITY, ring.capacity());
+        assertTrue(Arrays.equals(new String[]{"blah1", "blah2"}, ring.values()));
+        assertTrue(Arrays.equals(new String[]{"blah1", "blah2"}, reopen().values()));
+        assertEquals(id2, ring.peek(2).get(1).id);
+        assertTrue(ring.append("blah3") > id2);
+    }
+
+    public void testAppendAll_unicode() {
+        final long[] ids = ring.appendAll(Arrays.asList("blah1", "bläh2 中文", ""));
+        assertEquals(3, ids.length);
+        assertTrue(Arrays.equals(new String[]{"blah1", "bläh2 中文", ""}, reopen().values()));
+        assertEquals("bläh2 中文", ring.get(ids[1]).value);
+    }
+
+    public void testAppend_oversizedItemIsDropped() {
+        final char[] chars = new char[MappedRingQueue.MAX_PAYLOAD_BYTES + 1];
+        Arrays.fill(chars, 'a');
+        final long[] ids = ring.appendAll(Arrays.asList("blah1", new String(chars), "blah2"));
+        assertEquals(-1, ids[1]);
+        assertEquals(-1, ring.append(new String(chars)));
+        assertTrue(Arrays.equals(new String[]{"blah1", "blah2"}, reopen().values()));
+    }
+
+    public void testRemove_middle() {
+        ring.append("blah1");
+        final long id = ring.append("blah2");
+        ring.append("blah3");
+        assertTrue(ring.remove(id));
+        assertFalse(ring.remove(id));
+        assertTrue(Arrays.equals(new String[]{"blah1", "blah3"}, ring.values()));
+        assertTrue(Arrays.equals(new String[]{"blah1", "blah3"}, reopen().values()));
+    }
+
+    public void testRemoveHeadAndThrough() {
+        final long[] ids = ring.appendAll(Arrays.asList("blah1", "blah2", "blah3", "blah4"));
+        assertEquals(1, ring.removeHead(1));
+        assertTrue(ring.remove(ids[2]));
+        assertEquals(1, ring.removeThrough(ids[2]));
+        assertEquals(0, ring.removeThrough(ids[2]));
+        assertTrue(Arrays.equals(new String[]{"blah4"}, reopen().values()));
+        assertEquals(ids[3], ring.head().id);
+        assertEquals(MappedRingQueue.RECORD_OVERHEAD + 5, ring.liveBytes());
+    }
+
+    public void testTailAndAt() {
+        assertNull(ring.tail());
+        final long[] ids = ring.appendAll(Arrays.asList("blah1", "blah2", "blah3", "blah4"));
+        assertEquals(ids[3], ring.tail().id);
+        assertTrue(ring.remove(ids[3]));
+        assertTrue(ring.remove(ids[2]));
+        assertEquals("blah2", ring.tail().value);
+        assertEquals(ids[1], reopen().tail().id);
+        assertEquals("blah1", ring.at(0).value);
+        assertEquals("blah2", ring.at(1).value);
+        assertNull(ring.at(2));
+        assertEquals(ring.append("blah5"), ring.tail().id);
+    }
+
+    public void testSizeOf() {
+        ring.append("blah1");
+        assertEquals(ring.sizeOf("blah1"), ring.liveBytes());
+    }
+
+    public void testRemoveFirst_onlyRemovesFirstMatchingOne() {
+        ring.appendAll(Arrays.asList("blah1", "blah2", "blah1"));
+        assertTrue(ring.removeFirst("blah1"));
+        assertFalse(ring.removeFirst("blah3"));
+        assertTrue(Arrays.equals(new String[]{"blah2", "blah1"}, reopen().values()));
+    }
+
+    public void testWrapsAround() {
+        // draining as fast as appending keeps the ring at its initial size while the offsets
+        // go round it several times, including records that do not fit before the end
+        final List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            final String value = value(i, 100 + i % 700);
+            ring.append(value);
+            expected.add(value);
+            if (expected.size() > 20) {
+                assertEquals(1, ring.removeHead(1));
+                expected.remove(0);
+            }
+        }
+        assertEquals(MappedRingQueue.INITIAL_CAPACITY, ring.capacity());
+        assertEquals(expected, Arrays.asList(ring.values()));
+        assertEquals(expected, Arrays.asList(reopen().values()));
+    }
+
+    public void testGrows() {
+        final List<String> expected = new ArrayList<>();
+        ring.append("blah0");
+        ring.removeHead(1);
+        for (int i = 0; i < 300; i++) {
+            final String value = value(i, 1000);
+            final long id = ring.append(value);
+            if (i % 3 == 0) {
+                ring.remove(id);
+            } else {
+                expected.add(value);
+            }
+        }
+        assertTrue(ring.capacity() > MappedRingQueue.INITIAL_CAPACITY);
+        assertEquals(expected, Arrays.asList(ring.values()));
+        assertEquals(expected, Arrays.asList(reopen().values()));
+        assertFalse(new File(directory, "test.ring.tmp").exists());
+    }
+
+    public void testRecordAttempt() {
+        final long id = ring.append("blah1");
+        assertEquals(1, ring.recordAttempt(id));
+        assertEquals(2, ring.recordAttempt(id));
+        assertEquals(-1, ring.recordAttempt(id + 1));
+        assertEquals(2, reopen().get(id).attempts);
+        assertEquals(3, ring.recordAttempt(id));
+    }
+
+    public void testIdsKeepGrowingAcrossReopen() {
+        final long id = ring.append("blah1");
+        ring.removeHead(1);
+        assertTrue(reopen().append("blah2") > id);
+    }
+
+    public void testCorruptRecordEndsTheQueue() throws IOException {
+        ring.append("blah1");
+        ring.append("blah2");
+        ring.append("blah3");
+        ring.close();
+
+        // flip a payload byte of the second record
+        final RandomAccessFile file = new RandomAccessFile(new File(directory, "test.ring"), "rw");
+        final long position = MappedRingQueue.HEADER_SIZE + (MappedRingQueue.RECORD_OVERHEAD + 5) + MappedRingQueue.RECORD_OVERHEAD;
+        file.seek(position);
+        file.write('x');
+        file.close();
+
+        assertTrue(Arrays.equals(new String[]{"blah1"}, reopen().values()));
+        ring.append("blah4");
+        assertTrue(Arrays.equals(new String[]{"blah1", "blah4"}, reopen().values()));
+    }
+
+    public void testUnreadableFileIsDiscarded() throws IOException {
+        ring.close();
+        directory.mkdirs();
+        final RandomAccessFile file = new RandomAccessFile(new File(directory, "test.ring"), "rw");
+        file.write(new byte[100]);
+        file.close();
+
+        assertTrue(reopen().isEmpty());
+        ring.append("blah1");
+        assertTrue(Arrays.equals(new String[]{"blah1"}, reopen().values()));
+    }
+
+    public void testClear() {
+        ring.appendAll(Arrays.asList("blah1", "blah2"));
+        ring.clear();
+        assertTrue(ring.isEmpty());
+        assertFalse(MappedRingQueue.exists(directory, "test"));
+        assertTrue(reopen().isEmpty());
+        ring.append("blah3");
+        assertTrue(Arrays.equals(new String[]{"blah3"}, reopen().values()));
+    }
+
+    public void testGroupCommit_writesReachTheFileRightAway() {
+        ring.setDurability(Countly.DurabilityMode.GROUP_COMMIT, 60000);
+        ring.append("blah1");
+        ring.appendAll(Arrays.asList("blah2", "blah3"));
+        ring.removeHead(1);
+
+        // the writes are visible before the group commit window has elapsed
+        assertTrue(Arrays.equals(new String[]{"blah2", "blah3"}, new MappedRingQueue(directory, "test").values()));
+        ring.sync();
+        ring.setDurability(Countly.DurabilityMode.SYNC, 0);
+        ring.append("blah4");
+        assertTrue(Arrays.equals(new String[]{"blah2", "blah3", "blah4"}, reopen().values()));
+    }
+}
@@ -0,0 +1,371 @@
+/*
+Copyright (c) 2012, 2013, 2014 Countly
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package ly.count.android.sdk;
+
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class QueueJournalTests extends AndroidTestCase {
+    File directory;
+    QueueJournal journal;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = new File(getContext().getCacheDir(), "journal-test");
+        deleteDirectory();
+        journal = new QueueJournal(directory, "test");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        journal.close();
+        deleteDirectory();
+        super.tearDown();
+    }
+
+    private void deleteDirectory() {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private QueueJournal reopen() {
+        journal.close();
+        journal = new QueueJournal(directory, "test");
+        return journal;
+    }
+
+    public void testEmpty() {
+        assertTrue(journal.isEmpty());
+        assertEquals(0, journal.size());
+        assertTrue(Arrays.equals(new String[0], journal.values()));
+        assertEquals(0, journal.segmentCount());
+    }
+
+    public void testAppend() {
+        final long id1 = journal.append("blah1");
+        final long id2 = journal.append("blah2");
+        assertTrue(id2 > id1);
+        assertEquals(2, journal.size());
+        assertTrue(Arrays.equals(new String[]{"blah1", "blah2"}, journal.values()));
+        assertTrue(Arrays.equals(new String[]{"blah1", "blah2"}, reopen().values()));
+    }
+
+    public void testAppendAll() {
+        final long[] ids = journal.appendAll(Arrays.asList("blah1", "blah2", "blah3"));
+        assertEquals(3, ids.length);
+        assertTrue(Arrays.equals(new String[]{"blah1", "blah2", "blah3"}, reopen().values()));
+        assertEquals(ids[1], journal.entries().get(1).id);
+    }
+
+    private static String oversized() {
+        final char[] chars = new char[QueueJournal.MAX_PAYLOAD_BYTES + 1];
+        Arrays.fill(chars, 'a');
+        return new String(chars);
+    }
+
+    public void testAppend_oversizedItemIsDropped() {
+        journal.append("blah1");
+        assertEquals(-1, journal.append(oversized()));
+        journal.append("blah2");
+        assertEquals(2, journal.size());
+        assertTrue(Arrays.equals(new String[]{"blah1", "blah2"}, reopen().values()));
+    }
+
+    public void testAppendAll_oversizedItemIsDropped() {
+        final long[] ids = journal.appendAll(Arrays.asList("blah1", oversized(), "blah2"));
+        assertEquals(-1, ids[1]);
+        assertTrue(Arrays.equals(new String[]{"blah1", "blah2"}, reopen().values()));
+        assertEquals(ids[2], journal.tail().id);
+
+        assertTrue(Arrays.equals(new long[]{-1}, journal.appendAll(Arrays.asList(oversized()))));
+        assertTrue(Arrays.equals(new String[]{"blah1", "blah2"}, reopen().values()));
+    }
+
+    public void testRemove_tombstone() {
+        journal.append("blah1");
+        final long id = journal.append("blah2");
+        journal.append("blah3");
+        assertTrue(journal.remove(id));
+        assertFalse(journal.remove(id));
+        assertTrue(Arrays.equals(new String[]{"blah1", "blah3"}, journal.values()));
+        assertTrue(Arrays.equals(new String[]{"blah1", "blah3"}, reopen().values()));
+    }
+
+    public void testRemoveHead() {
+        journal.appendAll(Arrays.asList("blah1", "blah2", "blah3"));
+        assertEquals(2, journal.removeHead(2));
+        assertTrue(Arrays.equals(new String[]{"blah3"}, journal.values()));
+        assertTrue(Arrays.equals(new String[]{"blah3"}, reopen().values()));
+    }
+
+    public void testRemoveThrough() {
+        final long[] ids = journal.appendAll(Arrays.asList("blah1", "blah2", "blah3", "blah4"));
+        assertTrue(journal.remove(ids[1]));
+        assertEquals(2, journal.removeThrough(ids[2]));
+        assertEquals(0, journal.removeThrough(ids[2]));
+        assertTrue(Arrays.equals(new String[]{"blah4"}, journal.values()));
+        assertTrue(Arrays.equals(new String[]{"blah4"}, reopen().values()));
+        assertEquals(ids[3], journal.head().id);
+    }
+
+    public void testTailAndAt() {
+        assertNull(journal.tail());
+        assertNull(journal.at(0));
+        final long[] ids = journal.appendAll(Arrays.asList("blah1", "blah2", "blah3", "blah4"));
+        assertEquals(ids[3], journal.tail().id);
+        assertTrue(journal.remove(ids[3]));
+        assertTrue(journal.remove(ids[2]));
+        assertEquals(ids[1], journal.tail().id);
+        assertEquals(ids[1], reopen().tail().id);
+        assertEquals("blah1", journal.at(0).value);
+        assertEquals("blah2", journal.at(1).value);
+        assertNull(journal.at(2));
+        final long id = journal.append("blah5");
+        assertEquals(id, journal.tail().id);
+        assertEquals("blah5", journal.at(2).value);
+    }
+
+    public void testSizeOf() {
+        final long before = journal.liveBytes();
+        journal.append("blah1");
+        assertEquals(journal.sizeOf("blah1"), journal.liveBytes() - before);
+        assertEquals(QueueJournal.entrySize("blah1"), journal.sizeOf("blah1"));
+    }
+
+    public void testPeek() {
+        final long[] ids = journal.appendAll(Arrays.asList("blah1", "blah2", "blah3"));
+        assertEquals(0, journal.peek(0).size());
+        assertEquals(2, journal.peek(2).size());
+        assertEquals(ids[1], journal.peek(2).get(1).id);
+        assertEquals(3, journal.peek(10).size());
+        assertEquals("blah3", journal.get(ids[2]).value);
+        assertNull(journal.get(ids[2] + 1));
+    }
+
+    public void testRemoveFirst_onlyRemovesFirstMatchingOne() {
+        journal.appendAll(Arrays.asList("blah1", "blah2", "blah1"));
+        assertTrue(journal.removeFirst("blah1"));
+        assertTrue(Arrays.equals(new String[]{"blah2", "blah1"}, reopen().values()));
+    }
+
+    public void testRemovingEverythingDeletesSegments() {
+        journal.appendAll(Arrays.asList("blah1", "blah2"));
+        journal.removeHead(2);
+        assertEquals(0, journal.segmentCount());
+        assertEquals(0, directory.list().length);
+        journal.append("blah3");
+        assertTrue(Arrays.equals(new String[]{"blah3"}, reopen().values()));
+    }
+
+    public void testTornRecordIsTruncated() throws IOException {
+        journal.append("blah1");
+        journal.append("blah2");
+        journal.close();
+
+        final File segment = directory.listFiles()[0];
+        final RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        assertTrue(Arrays.equals(new String[]{"blah1"}, reopen().values()));
+        journal.append("blah3");
+        assertTrue(Arrays.equals(new String[]{"blah1", "blah3"}, reopen().values()));
+    }
+
+    /**
+     * Journal whose next segment write can be made to fail after writing part of the records.
+     */
+    static class FailingJournal extends QueueJournal {
+        int failAfterBytes = -1;
+        boolean failCompactions;
+
+        FailingJournal(final File directory, final String name) {
+            super(directory, name);
+        }
+
+        @Override
+        FileOutputStream openStream(final File file, final boolean append) throws IOException {
+            if (failCompactions && file.getName().endsWith(".tmp")) {
+                throw new IOException("injected compaction failure");
+            }
+            return new FileOutputStream(file, append) {
+                @Override
+                public void write(final byte[] b, final int off, final int len) throws IOException {
+                    if (failAfterBytes >= 0) {
+                        super.write(b, off, Math.min(len, failAfterBytes));
+                        failAfterBytes = -1;
+                        throw new IOException("injected short write");
+                    }
+                    super.write(b, off, len);
+                }
+            };
+        }
+    }
+
+    private FailingJournal failingJournal() {
+        journal.close();
+        final FailingJournal failing = new FailingJournal(directory, "test");
+        journal = failing;
+        return failing;
+    }
+
+    private long segmentBytes() {
+        long bytes = 0;
+        for (File file : directory.listFiles()) {
+            bytes += file.length();
+        }
+        return bytes;
+    }
+
+    public void testFailedWrite_itemsAreWrittenByCompaction() {
+        final FailingJournal failing = failingJournal();
+        failing.append("blah1");
+        failing.failAfterBytes = 5;
+        failing.append("blah2");
+        failing.append("blah3");
+        assertTrue(Arrays.equals(new String[]{"blah1", "blah2", "blah3"}, failing.values()));
+        assertTrue(Arrays.equals(new String[]{"blah1", "blah2", "blah3"}, reopen().values()));
+    }
+
+    public void testFailedWrite_tornRecordIsCutOff() {
+        final FailingJournal failing = failingJournal();
+        failing.failCompactions = true;
+        failing.append("blah1");
+        final long bytes = segmentBytes();
+        failing.failAfterBytes = 5;
+        failing.append("blah2");
+        assertEquals(bytes, segmentBytes());
+
+        // written after the failed record rather than behind a torn one
+        failing.append("blah3");
+        final QueueJournal replayed = new QueueJournal(directory, "test");
+        assertTrue(Arrays.equals(new String[]{"blah1", "blah3"}, replayed.values()));
+        replayed.close();
+
+        // the compaction is retried with every write until it succeeds
+        failing.failCompactions = false;
+        failing.append("blah4");
+        assertTrue(Arrays.equals(new String[]{"blah1", "blah2", "blah3", "blah4"}, reopen().values()));
+    }
+
+    public void testSegmentsRollOverAndArePruned() {
+        final char[] chars = new char[1024];
+        Arrays.fill(chars, 'x');
+        final String payload = new String(chars);
+        final List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < (QueueJournal.SEGMENT_SIZE_BYTES / 1024) * 3; i++) {
+            ids.add(journal.append(payload + i));
+        }
+        assertTrue(journal.segmentCount() > 2);
+
+        journal.removeHead(ids.size() - 1);
+        assertEquals(1, journal.segmentCount());
+        assertTrue(Arrays.equals(new String[]{payload + (ids.size() - 1)}, reopen().values()));
+    }
+
+    public void testCompaction() {
+        final char[] chars = new char[1024];
+        Arrays.fill(chars, 'x');
+        final String payload = new String(chars);
+        journal.append("pinned");
+        final List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < (QueueJournal.COMPACTION_MIN_BYTES / 1024) * 2; i++) {
+            ids.add(journal.append(payload + i));
+        }
+        for (Long id : ids) {
+            journal.remove(id);
+        }
+        assertTrue(journal.totalBytes() < QueueJournal.COMPACTION_MIN_BYTES);
+        assertTrue(Arrays.equals(new String[]{"pinned"}, reopen().values()));
+    }
+
+    public void testClear() {
+        journal.appendAll(Arrays.asList("blah1", "blah2"));
+        journal.clear();
+        assertTrue(journal.isEmpty());
+        assertTrue(reopen().isEmpty());
+    }
+
+    public void testRecordAttempt() {
+        final long id = journal.append("blah1");
+        journal.append("blah2");
+        assertEquals(1, journal.recordAttempt(id));
+        assertEquals(2, journal.recordAttempt(id));
+        assertEquals(-1, journal.recordAttempt(12345));
+        final List<PersistentQueue.Entry> entries = reopen().entries();
+        assertEquals(2, entries.get(0).attempts);
+        assertEquals(0, entries.get(1).attempts);
+        assertEquals(3, journal.recordAttempt(id));
+    }
+
+    public void testRecordAttempt_survivesCompaction() {
+        final char[] chars = new char[1024];
+        Arrays.fill(chars, 'x');
+        final String payload = new String(chars);
+        final long pinned = journal.append("pinned");
+        journal.recordAttempt(pinned);
+        final List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < (QueueJournal.COMPACTION_MIN_BYTES / 1024) * 2; i++) {
+            ids.add(journal.append(payload + i));
+        }
+        for (Long id : ids) {
+            journal.remove(id);
+        }
+        assertTrue(journal.totalBytes() < QueueJournal.COMPACTION_MIN_BYTES);
+        assertEquals(1, reopen().entries().get(0).attempts);
+    }
+
+    public void testIdOf() {
+        final long id1 = journal.append("blah1");
+        journal.append("blah2");
+        journal.append("blah1");
+        assertEquals(id1, journal.idOf("blah1"));
+        assertEquals(-1, journal.idOf("blah3"));
+    }
+
+    public void testGroupCommit_writesReachTheFileRightAway() {
+        journal.setDurability(Countly.DurabilityMode.GROUP_COMMIT, 60000);
+        journal.append("blah1");
+        journal.appendAll(Arrays.asList("blah2", "blah3"));
+        journal.removeHead(1);
+
+        // the writes are visible before the group commit window has elapsed
+        assertTrue(Arrays.equals(new String[]{"blah2", "blah3"}, new QueueJournal(directory, "test").values()));
+        journal.sync();
+        journal.setDurability(Countly.DurabilityMode.SYNC, 0);
+        journal.append("blah4");
+        assertTrue(Arrays.equals(new String[]{"blah2", "blah3", "blah4"}, reopen().values()));
+    }
+}
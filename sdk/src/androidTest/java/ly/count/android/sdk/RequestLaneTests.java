@@ -0,0 +1,57 @@
+/*
+Copyright (c) 2012, 2013, 2014 Countly
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package ly.count.android.sdk;
+
+import android.test.AndroidTestCase;
+
+public class RequestLaneTests extends AndroidTestCase {
+
+    public void testOf_crash() {
+        assertEquals(RequestLane.CRASH, RequestLane.of("app_key=a&timestamp=1&crash=%7B%7D"));
+    }
+
+    public void testOf_session() {
+        assertEquals(RequestLane.SESSION, RequestLane.of("app_key=a&timestamp=1&begin_session=1&metrics=%7B%7D"));
+        assertEquals(RequestLane.SESSION, RequestLane.of("app_key=a&timestamp=1&session_duration=60"));
+        assertEquals(RequestLane.SESSION, RequestLane.of("app_key=a&timestamp=1&end_session=1&session_duration=5"));
+        assertEquals(RequestLane.SESSION, RequestLane.of("app_key=a&timestamp=1&token_session=1&android_token=x"));
+    }
+
+    public void testOf_events() {
+        assertEquals(RequestLane.EVENTS, RequestLane.of("app_key=a&timestamp=1&events=%5B%5D"));
+    }
+
+    public void testOf_user() {
+        assertEquals(RequestLane.USER, RequestLane.of("app_key=a&timestamp=1&user_details=%7B%7D"));
+        assertEquals(RequestLane.USER, RequestLane.of("blah"));
+    }
+
+    public void testOf_encodedValueIsNotAParameter() {
+        assertEquals(RequestLane.USER, RequestLane.of("app_key=a&user_details=%7B%22name%22%3A%22%26crash%3D%22%7D"));
+    }
+
+    public void testJournalNames_doNotCollideWithLegacyJournal() {
+        for (RequestLane lane : RequestLane.values()) {
+            assertFalse(lane.journalName.startsWith("connections-"));
+        }
+    }
+}
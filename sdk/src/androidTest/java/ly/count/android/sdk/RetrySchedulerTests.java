@@ -0,0 +1,89 @@
+/*
+Copyright (c) 2012, 2013, 2014 Countly
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package ly.count.android.sdk;
+
+import android.test.AndroidTestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class RetrySchedulerTests extends AndroidTestCase {
+    private static final Runnable NO_OP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    public void testOnFailure_backsOffOnlyThatLane() {
+        final RetryScheduler scheduler = new RetryScheduler(NO_OP);
+        scheduler.onFailure(RequestLane.EVENTS, new Transport.Response(500, ""));
+        assertFalse(scheduler.canAttempt(RequestLane.EVENTS));
+        assertTrue(scheduler.canAttempt(RequestLane.CRASH));
+        assertTrue(scheduler.canAttempt(RequestLane.USER));
+        scheduler.onSuccess(RequestLane.EVENTS);
+        assertTrue(scheduler.canAttempt(RequestLane.EVENTS));
+    }
+
+    public void testOnFailure_throttledHoldsBackAllLanes() {
+        final RetryScheduler scheduler = new RetryScheduler(NO_OP);
+        scheduler.onFailure(RequestLane.USER, new Transport.Response(503, "", 60000));
+        for (RequestLane lane : RequestLane.values()) {
+            assertFalse(scheduler.canAttempt(lane));
+        }
+        assertEquals(1, scheduler.state(RequestLane.USER).getFailures());
+        assertEquals(0, scheduler.state(RequestLane.CRASH).getFailures());
+    }
+
+    public void testScheduleRetry_nothingToRetry() {
+        final RetryScheduler scheduler = new RetryScheduler(NO_OP);
+        scheduler.scheduleRetry();
+        assertEquals(0, scheduler.getScheduledAt());
+    }
+
+    public void testScheduleRetry_keepsEarliest() {
+        final RetryScheduler scheduler = new RetryScheduler(NO_OP);
+        final long now = System.currentTimeMillis();
+        scheduler.state(RequestLane.USER).deferUntil(now + 60000);
+        scheduler.scheduleRetry();
+        assertEquals(now + 60000, scheduler.getScheduledAt());
+        scheduler.state(RequestLane.CRASH).deferUntil(now + 30000);
+        scheduler.scheduleRetry();
+        assertEquals(now + 30000, scheduler.getScheduledAt());
+        scheduler.state(RequestLane.EVENTS).deferUntil(now + 45000);
+        scheduler.scheduleRetry();
+        assertEquals(now + 30000, scheduler.getScheduledAt());
+    }
+
+    public void testScheduleRetry_runsRetryWhenBackoffRunsOut() throws InterruptedException {
+        final CountDownLatch retried = new CountDownLatch(1);
+        final RetryScheduler scheduler = new RetryScheduler(new Runnable() {
+            @Override
+            public void run() {
+                retried.countDown();
+            }
+        });
+        scheduler.state(RequestLane.SESSION).deferUntil(System.currentTimeMillis() + 50);
+        scheduler.scheduleRetry();
+        assertTrue(retried.await(5, TimeUnit.SECONDS));
+        assertTrue(scheduler.canAttempt(RequestLane.SESSION));
+    }
+}
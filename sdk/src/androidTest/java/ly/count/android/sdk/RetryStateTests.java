@@ -0,0 +1,108 @@
+/*
+Copyright (c) 2012, 2013, 2014 Countly
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package ly.count.android.sdk;
+
+import android.test.AndroidTestCase;
+
+import java.util.Random;
+
+public class RetryStateTests extends AndroidTestCase {
+    RetryState state;
+    Random random;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        state = new RetryState();
+        random = new Random(42);
+    }
+
+    public void testInitialState() {
+        assertEquals(0, state.getFailures());
+        assertEquals(0, state.getNextAttemptAt());
+        assertTrue(state.canAttempt(0));
+        assertFalse(state.isCircuitOpen());
+    }
+
+    public void testOnFailure_exponentialBackoffWithJitter() {
+        final long now = 1000000;
+        long expected = RetryState.BASE_DELAY_MILLIS;
+        for (int i = 1; i < RetryState.CIRCUIT_THRESHOLD; i++) {
+            assertEquals(i, state.onFailure(now, -1, random));
+            final long wait = state.getNextAttemptAt() - now;
+            final long delay = Math.min(expected, RetryState.MAX_DELAY_MILLIS);
+            assertTrue(wait >= delay / 2);
+            assertTrue(wait <= delay);
+            assertFalse(state.canAttempt(now));
+            assertTrue(state.canAttempt(now + delay));
+            expected *= 2;
+        }
+        assertFalse(state.isCircuitOpen());
+    }
+
+    public void testOnFailure_opensCircuit() {
+        final long now = 1000000;
+        for (int i = 0; i < RetryState.CIRCUIT_THRESHOLD; i++) {
+            state.onFailure(now, -1, random);
+        }
+        assertTrue(state.isCircuitOpen());
+        assertTrue(state.getNextAttemptAt() - now >= RetryState.CIRCUIT_OPEN_MILLIS / 2);
+        assertTrue(state.getNextAttemptAt() - now <= RetryState.CIRCUIT_OPEN_MILLIS);
+    }
+
+    public void testOnFailure_honoursRetryAfter() {
+        final long now = 1000000;
+        state.onFailure(now, 90000, random);
+        assertEquals(now + 90000, state.getNextAttemptAt());
+    }
+
+    public void testOnFailure_retryAfterShorterThanBackoffIsIgnored() {
+        final long now = 1000000;
+        state.onFailure(now, 1, random);
+        assertTrue(state.getNextAttemptAt() - now >= RetryState.BASE_DELAY_MILLIS / 2);
+    }
+
+    public void testOnFailure_retryAfterIsCapped() {
+        final long now = 1000000;
+        state.onFailure(now, Long.MAX_VALUE / 2, random);
+        assertEquals(now + RetryState.MAX_RETRY_AFTER_MILLIS, state.getNextAttemptAt());
+    }
+
+    public void testOnSuccess_resets() {
+        for (int i = 0; i < RetryState.CIRCUIT_THRESHOLD; i++) {
+            state.onFailure(1000000, -1, random);
+        }
+        state.onSuccess();
+        assertEquals(0, state.getFailures());
+        assertFalse(state.isCircuitOpen());
+        assertTrue(state.canAttempt(1000000));
+    }
+
+    public void testDeferUntil() {
+        state.deferUntil(5000);
+        assertFalse(state.canAttempt(4999));
+        assertTrue(state.canAttempt(5000));
+        state.deferUntil(3000);
+        assertEquals(5000, state.getNextAttemptAt());
+        assertEquals(0, state.getFailures());
+    }
+}
@@ -0,0 +1,186 @@
+/*
+Copyright (c) 2012, 2013, 2014 Countly
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package ly.count.android.sdk;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class SQLiteQueueTests extends AndroidTestCase {
+    CountlyDatabase database;
+    SQLiteDatabase db;
+    SQLiteQueue queue;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(CountlyDatabase.NAME);
+        database = new CountlyDatabase(getContext());
+        db = database.getWritableDatabase();
+        queue = new SQLiteQueue(db, CountlyDatabase.REQUESTS_TABLE, 0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        database.close();
+        getContext().deleteDatabase(CountlyDatabase.NAME);
+        super.tearDown();
+    }
+
+    private SQLiteQueue reopen() {
+        database.close();
+        database = new CountlyDatabase(getContext());
+        db = database.getWritableDatabase();
+        queue = new SQLiteQueue(db, CountlyDatabase.REQUESTS_TABLE, 0);
+        return queue;
+    }
+
+    public void testEmpty() {
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.liveBytes());
+        assertTrue(Arrays.equals(new String[0], queue.values()));
+        assertNull(queue.head());
+    }
+
+    public void testAppend() {
+        final long id1 = queue.append("blah1");
+        final long id2 = queue.append("blah2");
+        assertTrue(id2 > id1);
+        assertTrue(Arrays.equals(new String[]{"blah1", "blah2"}, queue.values()));
+        assertTrue(Arrays.equals(new String[]{"blah1", "blah2"}, reopen().values()));
+        assertEquals(2, queue.size());
+        assertEquals(2 * (SQLiteQueue.ROW_OVERHEAD + 5), queue.liveBytes());
+        assertEquals(id2, queue.peek(2).get(1).id);
+        assertEquals(id1, queue.head().id);
+    }
+
+    public void testAppendAll_unicode() {
+        final long[] ids = queue.appendAll(Arrays.asList("blah1", "bläh2 中文", ""));
+        assertEquals(3, ids.length);
+        assertTrue(Arrays.equals(new String[]{"blah1", "bläh2 中文", ""}, reopen().values()));
+        assertEquals("bläh2 中文", queue.get(ids[1]).value);
+        assertEquals(3 * SQLiteQueue.ROW_OVERHEAD + 5 + 13, queue.liveBytes());
+    }
+
+    public void testLanesAreSeparate() {
+        final SQLiteQueue other = new SQLiteQueue(db, CountlyDatabase.REQUESTS_TABLE, 1);
+        final SQLiteQueue events = new SQLiteQueue(db, CountlyDatabase.EVENTS_TABLE, 0);
+        queue.append("blah1");
+        other.append("blah2");
+        events.append("blah3");
+        assertTrue(Arrays.equals(new String[]{"blah1"}, queue.values()));
+        assertTrue(Arrays.equals(new String[]{"blah2"}, other.values()));
+        other.clear();
+        assertEquals(0, other.size());
+        assertTrue(Arrays.equals(new String[]{"blah3"}, events.values()));
+        assertTrue(Arrays.equals(new String[]{"blah1"}, reopen().values()));
+    }
+
+    public void testRemove_middle() {
+        queue.append("blah1");
+        final long id = queue.append("blah2");
+        queue.append("blah3");
+        assertTrue(queue.remove(id));
+        assertFalse(queue.remove(id));
+        assertEquals(2, queue.size());
+        assertTrue(Arrays.equals(new String[]{"blah1", "blah3"}, reopen().values()));
+    }
+
+    public void testRemoveAll() {
+        final List<String> values = new ArrayList<>();
+        for (int i = 0; i < 1200; i++) {
+            values.add("blah" + i);
+        }
+        final long[] ids = queue.appendAll(values);
+        assertEquals(1199, queue.removeAll(Arrays.copyOf(ids, ids.length - 1)));
+        assertEquals(1, queue.size());
+        assertEquals(SQLiteQueue.ROW_OVERHEAD + 8, queue.liveBytes());
+        assertTrue(Arrays.equals(new String[]{"blah1199"}, reopen().values()));
+    }
+
+    public void testRemoveHeadAndThrough() {
+        final long[] ids = queue.appendAll(Arrays.asList("blah1", "blah2", "blah3", "blah4"));
+        assertEquals(1, queue.removeHead(1));
+        assertTrue(queue.remove(ids[2]));
+        assertEquals(1, queue.removeThrough(ids[2]));
+        assertEquals(0, queue.removeThrough(ids[2]));
+        assertTrue(Arrays.equals(new String[]{"blah4"}, reopen().values()));
+        assertEquals(ids[3], queue.head().id);
+        assertEquals(SQLiteQueue.ROW_OVERHEAD + 5, queue.liveBytes());
+    }
+
+    public void testTailAndAt() {
+        assertNull(queue.tail());
+        final long[] ids = queue.appendAll(Arrays.asList("blah1", "blah2", "blah3", "blah4"));
+        assertEquals(ids[3], queue.tail().id);
+        assertTrue(queue.remove(ids[3]));
+        assertTrue(queue.remove(ids[2]));
+        assertEquals("blah2", queue.tail().value);
+        assertEquals(ids[1], reopen().tail().id);
+        assertEquals("blah1", queue.at(0).value);
+        assertEquals("blah2", queue.at(1).value);
+        assertNull(queue.at(2));
+    }
+
+    public void testSizeOf() {
+        queue.append("blah1");
+        assertEquals(queue.sizeOf("blah1"), queue.liveBytes());
+    }
+
+    public void testRemoveFirst_onlyRemovesFirstMatchingOne() {
+        final long[] ids = queue.appendAll(Arrays.asList("blah1", "blah2", "blah1"));
+        assertEquals(ids[0], queue.idOf("blah1"));
+        assertTrue(queue.removeFirst("blah1"));
+        assertFalse(queue.removeFirst("blah3"));
+        assertEquals(-1, queue.idOf("blah3"));
+        assertTrue(Arrays.equals(new String[]{"blah2", "blah1"}, reopen().values()));
+    }
+
+    public void testRecordAttempt() {
+        final long id = queue.append("blah1");
+        assertEquals(1, queue.recordAttempt(id));
+        assertEquals(2, queue.recordAttempt(id));
+        assertEquals(-1, queue.recordAttempt(id + 1));
+        assertEquals(2, reopen().get(id).attempts);
+        assertEquals(3, queue.recordAttempt(id));
+    }
+
+    public void testIdsKeepGrowingAcrossReopen() {
+        final long id = queue.append("blah1");
+        queue.removeHead(1);
+        assertTrue(reopen().append("blah2") > id);
+    }
+
+    public void testClear() {
+        queue.appendAll(Arrays.asList("blah1", "blah2"));
+        queue.clear();
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.liveBytes());
+        assertTrue(reopen().isEmpty());
+        queue.append("blah3");
+        assertTrue(Arrays.equals(new String[]{"blah3"}, reopen().values()));
+    }
+}
@@ -0,0 +1,98 @@
+/*
+Copyright (c) 2012, 2013, 2014 Countly
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package ly.count.android.sdk;
+
+import android.test.AndroidTestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SyncPolicyTests extends AndroidTestCase {
+    CountDownLatch synced;
+    AtomicInteger syncs;
+    SyncPolicy policy;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        synced = new CountDownLatch(1);
+        syncs = new AtomicInteger();
+        policy = new SyncPolicy(new Runnable() {
+            @Override
+            public void run() {
+                syncs.incrementAndGet();
+                synchronized (SyncPolicyTests.this) {
+                    policy.takePending();
+                }
+                synced.countDown();
+            }
+        });
+    }
+
+    public void testSync_flushesEveryWrite() {
+        assertTrue(policy.written());
+        assertTrue(policy.written());
+        assertFalse(policy.takePending());
+    }
+
+    public void testAsync_flushesInTheBackground() throws InterruptedException {
+        synchronized (this) {
+            policy.setMode(Countly.DurabilityMode.ASYNC, 60000);
+            assertFalse(policy.written());
+        }
+        assertTrue(synced.await(5, TimeUnit.SECONDS));
+        assertEquals(1, syncs.get());
+    }
+
+    public void testGroupCommit_coalescesWritesWithinTheWindow() throws InterruptedException {
+        synchronized (this) {
+            policy.setMode(Countly.DurabilityMode.GROUP_COMMIT, 200);
+            assertFalse(policy.written());
+            assertFalse(policy.written());
+            assertFalse(policy.written());
+        }
+        assertFalse(synced.await(50, TimeUnit.MILLISECONDS));
+        assertTrue(synced.await(5, TimeUnit.SECONDS));
+        Thread.sleep(300);
+        assertEquals(1, syncs.get());
+    }
+
+    public void testTakePending_cancelsScheduledFlush() throws InterruptedException {
+        synchronized (this) {
+            policy.setMode(Countly.DurabilityMode.GROUP_COMMIT, 100);
+            assertFalse(policy.written());
+            assertTrue(policy.takePending());
+            assertFalse(policy.takePending());
+        }
+        assertFalse(synced.await(300, TimeUnit.MILLISECONDS));
+        assertEquals(0, syncs.get());
+    }
+
+    public void testNegativeWindowFlushesRightAway() throws InterruptedException {
+        synchronized (this) {
+            policy.setMode(Countly.DurabilityMode.GROUP_COMMIT, -1);
+            assertFalse(policy.written());
+        }
+        assertTrue(synced.await(5, TimeUnit.SECONDS));
+    }
+}
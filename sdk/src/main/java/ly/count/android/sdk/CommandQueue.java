@@ -0,0 +1,168 @@
+/*
+Copyright (c) 2012, 2013, 2014 Countly
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package ly.count.android.sdk;
+
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Multi-producer, single-consumer queue of commands that touch the event and connection
+ * queues. Producers append to a lock-free queue and return immediately; the commands are
+ * run one at a time, in submission order, by a single consumer. State that is only touched
+ * by commands is therefore confined to the consumer and needs no further locking.
+ *
+ * The consumer is started on the executor when the first command arrives and keeps running
+ * until the queue is empty, so an idle queue holds no thread busy and producers only touch
+ * the executor on the idle to busy transition.
+ */
+class CommandQueue {
+    private static Executor defaultExecutor_;
+
+    private final ConcurrentLinkedQueue<Runnable> commands_ = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining_ = new AtomicBoolean();
+    private final Executor executor_;
+    private volatile Thread consumer_;
+
+    private final Runnable drainTask_ = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * Constructs a CommandQueue consumed by the shared Countly command thread.
+     */
+    CommandQueue() {
+        this(defaultExecutor());
+    }
+
+    /**
+     * Constructs a CommandQueue consumed on the given executor. The executor may run the
+     * consumer on any thread, but never runs two of them at once for this queue.
+     * @param executor executor the consumer is started on
+     */
+    CommandQueue(final Executor executor) {
+        executor_ = executor;
+    }
+
+    /**
+     * Queues a command to be run by the consumer after all previously submitted ones.
+     * @param command command to run, must not be null
+     */
+    void submit(final Runnable command) {
+        commands_.offer(command);
+        if (draining_.compareAndSet(false, true)) {
+            executor_.execute(drainTask_);
+        }
+    }
+
+    /**
+     * Waits until all commands submitted before this call have been run. Returns right away
+     * when called by the consumer itself, e.g. from a command, as it would wait for itself.
+     * @param timeoutMillis maximum time to wait
+     * @return true if the commands have been run, false if the wait timed out, was interrupted
+     *         or was attempted by the consumer
+     */
+    boolean awaitIdle(final long timeoutMillis) {
+        if (Thread.currentThread() == consumer_) {
+            return false;
+        }
+        final CountDownLatch latch = new CountDownLatch(1);
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        try {
+            return latch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Returns the number of commands waiting to be run.
+     */
+    int size() {
+        return commands_.size();
+    }
+
+    private void drain() {
+        final Thread consumer = Thread.currentThread();
+        consumer_ = consumer;
+        boolean done = false;
+        try {
+            while (true) {
+                Runnable command;
+                while ((command = commands_.poll()) != null) {
+                    try {
+                        command.run();
+                    } catch (RuntimeException e) {
+                        // a failing command must not take the following ones down with it
+                        if (Countly.sharedInstance().isLoggingEnabled()) {
+                            Log.w(Countly.TAG, "Got exception while running a queued command", e);
+                        }
+                    }
+                }
+                draining_.set(false);
+                // a producer may have queued a command after the last poll but before the flag was
+                // cleared, seeing the flag still set; pick it up unless another consumer already did
+                if (commands_.isEmpty() || !draining_.compareAndSet(false, true)) {
+                    done = true;
+                    return;
+                }
+            }
+        } finally {
+            if (consumer_ == consumer) {
+                consumer_ = null;
+            }
+            if (!done) {
+                // an Error escaped a command; let the next submit start a new consumer
+                draining_.set(false);
+            }
+        }
+    }
+
+    private static synchronized Executor defaultExecutor() {
+        if (defaultExecutor_ == null) {
+            defaultExecutor_ = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(r, "Countly-Commands");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return defaultExecutor_;
+    }
+}
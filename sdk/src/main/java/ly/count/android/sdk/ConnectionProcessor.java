@@ -21,25 +21,14 @@ THE SOFTWARE.
 */
 package ly.count.android.sdk;
 
-import android.os.Build;
 import android.util.Log;
 
-import org.json.JSONObject;
-
-import java.io.BufferedInputStream;
-import java.io.BufferedWriter;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLConnection;
-
-import javax.net.ssl.HttpsURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import javax.net.ssl.SSLContext;
 
 /**
@@ -47,6 +36,8 @@ import javax.net.ssl.SSLContext;
  *
  * ConnectionProcessor is a Runnable that is executed on a background
  * thread to submit session &amp; event data to a Count.ly server.
+ * It only decides what to send and what to remove from the queue; the actual
+ * submission is done by a {@link Transport}.
  *
  * NOTE: This class is only public to facilitate unit testing, because
  *       of this bug in dexmaker: https://code.google.com/p/dexmaker/issues/detail?id=34
@@ -54,158 +45,234 @@ import javax.net.ssl.SSLContext;
 public class ConnectionProcessor implements Runnable {
 
     /**
-     * 连接超时：30s
-     * 读取超时：30s
-     *
-     * 引用：CountlyStore、DeviceId、SSLContext
-     *
+     * Upper bounds for a single bulk request, by number of queued requests and by
+     * size of the encoded POST body.
+     */
+    static final int BULK_MAX_REQUESTS = 50;
+    static final int BULK_MAX_BYTES = 64 * 1024;
+
+    /**
+     * Number of requests looked at per lane on every pass, enough to fill a bulk request.
+     */
+    static final int PEEK_PER_LANE = BULK_MAX_REQUESTS;
+
+    /**
+     * Number of failed submissions after which a request that keeps getting rejected (4xx) is
+     * quarantined. Server errors, network errors and throttled responses are not counted, so an
+     * outage never pushes good requests into quarantine.
      */
-    private static final int CONNECT_TIMEOUT_IN_MILLISECONDS = 30000;
-    private static final int READ_TIMEOUT_IN_MILLISECONDS = 30000;
+    static final int MAX_ATTEMPTS = 10;
+
+    /**
+     * Results of {@link #submitBulk} when the batch was not submitted in one request.
+     */
+    static final int BULK_NOT_BATCHABLE = -1;
+    static final int BULK_REJECTED = -2;
+    static final int BULK_TOO_LARGE = -3;
 
     private final CountlyStore store_;
     private final DeviceId deviceId_;
-    private final String serverURL_;
-    private final SSLContext sslContext_;
+    private final Transport transport_;
+    private AtomicBoolean bulkRequests_;
+    private RetryScheduler retryScheduler_;
 
     ConnectionProcessor(final String serverURL, final CountlyStore store, final DeviceId deviceId, final SSLContext sslContext) {
-        serverURL_ = serverURL;
+        this(store, deviceId, new HttpTransport(serverURL, sslContext));
+    }
+
+    ConnectionProcessor(final CountlyStore store, final DeviceId deviceId, final Transport transport) {
         store_ = store;
         deviceId_ = deviceId;
-        sslContext_ = sslContext;
+        transport_ = transport;
+    }
 
-        // HTTP connection reuse which was buggy pre-froyo
-        /**
-         * 在Android 2.2.x以前，需要配置系统属性
-         */
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO) {
-            System.setProperty("http.keepAlive", "false");
+    /**
+     * Enables draining the queue through the /i/bulk API. The flag is shared with the
+     * ConnectionQueue and only changed through the configuration; a rejected bulk request
+     * makes this run send that batch one request at a time, it does not disable bulk requests.
+     * @param bulkRequests shared flag, null disables bulk requests
+     */
+    void setBulkRequests(final AtomicBoolean bulkRequests) {
+        bulkRequests_ = bulkRequests;
+    }
+
+    /**
+     * Sets the retry scheduler kept by the ConnectionQueue. Lanes it is backing off are
+     * skipped, every submission updates it, and when the run ends it schedules the next
+     * retry of the lanes that failed.
+     * @param retryScheduler shared scheduler, null retries on the next tick without backoff
+     */
+    void setRetryScheduler(final RetryScheduler retryScheduler) {
+        retryScheduler_ = retryScheduler;
+    }
+
+    /**
+     * Returns how many requests from the head of the queue go into the next bulk request:
+     * as many consecutive requests as fit into BULK_MAX_REQUESTS and BULK_MAX_BYTES, stopping
+     * at the first one that has to be sent on its own (picture uploads).
+     */
+    static int bulkBatchSize(final PersistentQueue.Entry[] storedEvents) {
+        return bulkBatchSize(storedEvents, 0);
+    }
+
+    /**
+     * Same as {@link #bulkBatchSize(PersistentQueue.Entry[])}, for the requests starting at index
+     * start. A bulk request never spans lanes, so the batch also stops where the next lane begins.
+     */
+    static int bulkBatchSize(final PersistentQueue.Entry[] storedEvents, final int start) {
+        return bulkBatchSize(storedEvents, start, BULK_MAX_REQUESTS);
+    }
+
+    /**
+     * Same as {@link #bulkBatchSize(PersistentQueue.Entry[], int)}, with the batch further
+     * limited to maxRequests requests.
+     */
+    static int bulkBatchSize(final PersistentQueue.Entry[] storedEvents, final int start, final int maxRequests) {
+        if (start >= storedEvents.length) {
+            return 0;
         }
+        final RequestLane lane = RequestLane.of(storedEvents[start].value);
+        int count = 0;
+        int bytes = 0;
+        while (start + count < storedEvents.length && count < Math.min(maxRequests, BULK_MAX_REQUESTS)) {
+            final String request = storedEvents[start + count].value;
+            if (request.contains(UserData.PICTURE_PATH_KEY + "=") || RequestLane.of(request) != lane) {
+                break;
+            }
+            bytes += request.length();
+            if (count > 0 && bytes > BULK_MAX_BYTES) {
+                break;
+            }
+            count++;
+        }
+        return count;
     }
 
     /**
-     * 将string形式的参数串，转换为 URLConnection
-     *
-     * 1.构造完整URL串（参数中没有“&crash=”时，加上参数串）
-     * 2.String --> URL
-     * 3.构造HttpURLConnection
-     * 4.如果公钥数字证书为null，直接打开连接，开始发送请求；证书不为null，还可以在connection对象上加上安全套接字协议
-     * 5.设置HttpURLConnection的配置（setDoInput(true)等）
-     * 6.有用户图片提交，就得将图片文件内容写入URLConnection内部
-     * 7.否则，如果有“crash”属性，那么，需要Post方式请求，同样写在内容中
-     * 8.返回URLConnection对象
-     *
-     * @param eventData
-     * @return
-     * @throws IOException
+     * Returns true if the response says the request itself is malformed or too large, so
+     * sending it again can never succeed. Other 4xx codes (authentication, unknown endpoint)
+     * are more likely a server or configuration problem and are retried.
      */
-    URLConnection urlConnectionForEventData(final String eventData) throws IOException {
-        String urlStr = serverURL_ + "/i?";
-        if(!eventData.contains("&crash="))
-            urlStr += eventData;
-        final URL url = new URL(urlStr);
-        final HttpURLConnection conn;
-        if (Countly.publicKeyPinCertificates == null) {
-            conn = (HttpURLConnection)url.openConnection();
-        } else {
-            HttpsURLConnection c = (HttpsURLConnection)url.openConnection();
-            c.setSSLSocketFactory(sslContext_.getSocketFactory());
-            conn = c;
+    static boolean isPermanentFailure(final Transport.Response response) {
+        switch (response.code) {
+            case 400: // Bad Request
+            case 413: // Payload Too Large
+            case 414: // URI Too Long
+            case 415: // Unsupported Media Type
+            case 422: // Unprocessable Entity
+                return true;
+            default:
+                return false;
         }
-        conn.setConnectTimeout(CONNECT_TIMEOUT_IN_MILLISECONDS);
-        conn.setReadTimeout(READ_TIMEOUT_IN_MILLISECONDS);
-        conn.setUseCaches(false);
-        conn.setDoInput(true);/*可以在里面读取数据出来*/
+    }
 
-        /*获取图片路径(根据picturePath参数)*/
-        String picturePath = UserData.getPicturePathFromQuery(url);
+    /**
+     * Returns the parameters that report queue items dropped on overflow, to be appended to
+     * the next request, or an empty string if nothing was dropped.
+     */
+    static String droppedParams(final int droppedConnections, final int droppedEvents) {
+        if (droppedConnections == 0 && droppedEvents == 0) {
+            return "";
+        }
+        return "&dropped_requests=" + droppedConnections + "&dropped_events=" + droppedEvents;
+    }
 
-        if (Countly.sharedInstance().isLoggingEnabled()) {
-            Log.d(Countly.TAG, "Got picturePath: " + picturePath);
+    /**
+     * Submits the first count stored requests, which all belong to the same lane, in a single
+     * bulk request and removes them from the store if the server accepted them.
+     * @return count if the requests were submitted, 0 if submission failed and the lane has
+     *         been backed off, {@link #BULK_NOT_BATCHABLE} if the transport cannot send them in
+     *         one request, {@link #BULK_REJECTED} if the server refused the batch and its requests
+     *         should be submitted one by one, {@link #BULK_TOO_LARGE} if the batch should be split
+     */
+    int submitBulk(final PersistentQueue.Entry[] storedEvents, final int count) {
+        final int droppedConnections = store_.droppedConnections();
+        final int droppedEvents = store_.droppedEvents();
+        final RequestLane lane = RequestLane.of(storedEvents[0].value);
+        final List<String> requestsData = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            requestsData.add(storedEvents[i].value + "&device_id=" + deviceId_.getId()
+                    + (i == 0 ? droppedParams(droppedConnections, droppedEvents) : ""));
         }
 
-        /*如果图片路径存在*/
-        if(!picturePath.equals("")){
-        	//Uploading files:
-        	//http://stackoverflow.com/questions/2793150/how-to-use-java-net-urlconnection-to-fire-and-handle-http-requests
-        	
-        	File binaryFile = new File(picturePath);
-        	conn.setDoOutput(true);/*可以添加数据到conn中*/
-        	// Just generate some unique random value.
-        	String boundary = Long.toHexString(System.currentTimeMillis());
-
-            /**
-             * 设置了可以向conn对象写入数据后，
-             * 行分隔符分隔开各个数据:
-             * 以当前时刻（long转 HexString）作为内容的上下边界，然后，内容区逐行添加数据（包括获取图片文件内容并转化为二进制串形式写入）
-             *
-             */
-
-            // Line separator required by multipart/form-data.
-        	String CRLF = "\r\n";
-        	String charset = "UTF-8";
-        	conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
-        	OutputStream output = conn.getOutputStream();
-        	PrintWriter writer = new PrintWriter(new OutputStreamWriter(output, charset), true);
-        	// Send binary file.
-            writer.append("--" + boundary).append(CRLF);
-            writer.append("Content-Disposition: form-data; name=\"binaryFile\"; filename=\"" + binaryFile.getName() + "\"").append(CRLF);
-            writer.append("Content-Type: " + URLConnection.guessContentTypeFromName(binaryFile.getName())).append(CRLF);
-            writer.append("Content-Transfer-Encoding: binary").append(CRLF);
-            writer.append(CRLF).flush();
-            FileInputStream fileInputStream = new FileInputStream(binaryFile);
-            byte[] buffer = new byte[1024];
-            int len;
-            try {
-                while ((len = fileInputStream.read(buffer)) != -1) {
-                    output.write(buffer, 0, len);
+        try {
+            final Transport.Response response = transport_.sendBatch(requestsData);
+            if (response == null) {
+                return BULK_NOT_BATCHABLE;
+            }
+            if (response.code == 413 && count > 1) {
+                if (Countly.sharedInstance().isLoggingEnabled()) {
+                    Log.w(Countly.TAG, "Bulk request of " + count + " requests is too large, splitting it");
+                }
+                return BULK_TOO_LARGE;
+            }
+            if (response.isRejected()) {
+                // one of the requests may be broken, sending them one by one lets the per-request
+                // attempt counting and quarantine deal with it
+                if (Countly.sharedInstance().isLoggingEnabled()) {
+                    Log.w(Countly.TAG, "Server rejected bulk request with HTTP " + response.code + ", sending its " + count + " requests one by one");
                 }
-            }catch(IOException ex){
-                ex.printStackTrace();
+                return BULK_REJECTED;
+            }
+            if (!response.isSuccess()) {
+                if (Countly.sharedInstance().isLoggingEnabled()) {
+                    Log.w(Countly.TAG, "Bulk request failed, response was " + response);
+                }
+                onFailure(lane, response);
+                return 0;
             }
-            output.flush(); // Important before continuing with writer!
-            writer.append(CRLF).flush(); // CRLF is important! It indicates end of boundary.
-            fileInputStream.close();
 
-            // End of multipart/form-data.
-            writer.append("--" + boundary + "--").append(CRLF).flush();
-        }
-        else if(eventData.contains("&crash=")){/*如果存在crash这个参数项，就需要用到post的方式，而不是get方式（直接在URL后面补上参数串）*/
             if (Countly.sharedInstance().isLoggingEnabled()) {
-                Log.d(Countly.TAG, "Using post because of crash");
+                Log.d(Countly.TAG, "ok -> bulk of " + count + " requests");
+            }
+            store_.removeConnectionsThrough(lane, storedEvents[count - 1].id);
+            if (droppedConnections > 0 || droppedEvents > 0) {
+                store_.clearDropped(droppedConnections, droppedEvents);
             }
-            conn.setDoOutput(true);
-            conn.setRequestMethod("POST");
-            OutputStream os = conn.getOutputStream();
-            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
-            writer.write(eventData);
-            writer.flush();
-            writer.close();
-            os.close();
+            onSuccess(lane);
+            return count;
         }
-        else{
-        	conn.setDoOutput(false);
+        catch (Exception e) {
+            if (Countly.sharedInstance().isLoggingEnabled()) {
+                Log.w(Countly.TAG, "Got exception while trying to submit bulk request", e);
+            }
+            onFailure(lane, null);
+            return 0;
         }
-        return conn;
     }
 
     @Override
     public void run() {
+        try {
+            drain();
+        } finally {
+            if (retryScheduler_ != null) {
+                retryScheduler_.scheduleRetry();
+            }
+        }
+    }
 
+    private void drain() {
 
         /**
          * 死循环：
          * 1：获得所有的请求url String串【如果当前没有请求可发，直接结束循环，退出】
          * 2：【如果deviceId的id不存在，同样直接退出】
          * 3：取首个请求事件集串，加上device_id参数,构成较为完整的eventData串
-         * 4：根据这个eventData串，获取URLConnection对象
-         * 5：启动连接
-         * 6：用 BufferIntputStream 读取响应数据
-         * 7：用 ByteArrayOutputStream 将读取的数据以二进制形式写入缓存
-         * 8：
+         * 4：通过 Transport 发送请求，获取响应
+         * 5：成功则从持久层删除该请求；请求本身有问题（永久失败或重试次数过多）则移入死信队列；
+         *    否则该请求所在的 lane 进入退避，继续处理其他 lane
          */
+        // lanes whose head request failed during this run, left for the retry scheduler
+        final EnumSet<RequestLane> failedLanes = EnumSet.noneOf(RequestLane.class);
+        // largest bulk request the server accepted in this run, halved on every 413
+        int bulkLimit = BULK_MAX_REQUESTS;
+        // number of requests of a rejected bulk request still to be sent on their own
+        int singleRequests = 0;
         while (true) {
-            final String[] storedEvents = store_.connections();
+            // only the head of each lane is looked at, so a long queue does not make every
+            // submission more expensive
+            final PersistentQueue.Entry[] storedEvents = store_.peekConnections(PEEK_PER_LANE);
             if (storedEvents == null || storedEvents.length == 0) {
                 // currently no data to send, we are done for now
                 break;
@@ -216,94 +283,154 @@ public class ConnectionProcessor implements Runnable {
                 // When device ID is supplied by OpenUDID or by Google Advertising ID.
                 // In some cases it might take time for them to initialize. So, just wait for it.
                 if (Countly.sharedInstance().isLoggingEnabled()) {
-                    Log.i(Countly.TAG, "No Device ID available yet, skipping request " + storedEvents[0]);
+                    Log.i(Countly.TAG, "No Device ID available yet, skipping request " + storedEvents[0].value);
                 }
                 break;
             }
-            final String eventData = storedEvents[0] + "&device_id=" + deviceId_.getId();
 
-            URLConnection conn = null;
-            BufferedInputStream responseStream = null;
-            try {
-                // initialize and open connection
-                conn = urlConnectionForEventData(eventData);
-                conn.connect();
-
-                // consume response stream
-                responseStream = new BufferedInputStream(conn.getInputStream());
-                final ByteArrayOutputStream responseData = new ByteArrayOutputStream(256); // big enough to handle success response without reallocating
-                int c;
-                while ((c = responseStream.read()) != -1) {
-                    responseData.write(c);
-                }
+            // peekConnections() lists the lanes by priority, so the first request of a lane that
+            // has not failed yet and is not backing off is the most important one left to send
+            int head = 0;
+            while (head < storedEvents.length && isHeldBack(RequestLane.of(storedEvents[head].value), failedLanes)) {
+                head++;
+            }
+            if (head == storedEvents.length) {
+                break;
+            }
+            final PersistentQueue.Entry request = storedEvents[head];
+            final RequestLane lane = RequestLane.of(request.value);
 
-                /**
-                 * 检查响应码是否为success：区间[200,300)
-                 */
-                // response code has to be 2xx to be considered a success
-                boolean success = true;
-                if (conn instanceof HttpURLConnection) {
-                    final HttpURLConnection httpConn = (HttpURLConnection) conn;
-                    final int responseCode = httpConn.getResponseCode();
-                    success = responseCode >= 200 && responseCode < 300;
-                    if (!success && Countly.sharedInstance().isLoggingEnabled()) {
-                        Log.w(Countly.TAG, "HTTP error response code was " + responseCode + " from submitting event data: " + eventData);
+            // drain several requests at once if the server supports it
+            // a circuit breaker probe is a single request
+            if (singleRequests == 0 && bulkRequests_ != null && bulkRequests_.get() && (retryScheduler_ == null || !retryScheduler_.isProbing(lane))) {
+                final int count = bulkBatchSize(storedEvents, head, bulkLimit);
+                if (count > 1) {
+                    final int submitted = submitBulk(Arrays.copyOfRange(storedEvents, head, head + count), count);
+                    if (submitted > 0) {
+                        continue;
+                    } else if (submitted == 0) {
+                        failedLanes.add(lane);
+                        if (!hasPendingLane(storedEvents, failedLanes)) {
+                            break;
+                        }
+                        continue;
+                    } else if (submitted == BULK_TOO_LARGE) {
+                        bulkLimit = count / 2;
+                        continue;
+                    } else if (submitted == BULK_REJECTED) {
+                        singleRequests = count;
                     }
+                    // fall through to submitting the head request on its own
                 }
+            }
+            if (singleRequests > 0) {
+                singleRequests--;
+            }
 
-                /**
-                 * 同样要检查响应的json串中是否含有{"result":"Success"}
-                 */
-                // HTTP response code was good, check response JSON contains {"result":"Success"}
-                if (success) {
-                    final JSONObject responseDict = new JSONObject(responseData.toString("UTF-8"));
-                    success = responseDict.optString("result").equalsIgnoreCase("success");
-                    if (!success && Countly.sharedInstance().isLoggingEnabled()) {
-                        Log.w(Countly.TAG, "Response from Countly server did not report success, it was: " + responseData.toString("UTF-8"));
-                    }
-                }
+            final int droppedConnections = store_.droppedConnections();
+            final int droppedEvents = store_.droppedEvents();
+            final String eventData = request.value + "&device_id=" + deviceId_.getId()
+                    + droppedParams(droppedConnections, droppedEvents);
+
+            try {
+                final Transport.Response response = transport_.send(eventData);
 
                 /**
-                 * 都成功了，就可以从持久层中删除这一个请求串
+                 * 响应码须在区间[200,300)，并且响应的json串中含有{"result":"Success"}
                  */
-                if (success) {
+                // response code has to be 2xx and the response JSON has to contain {"result":"Success"}
+                if (response.isSuccess()) {
                     if (Countly.sharedInstance().isLoggingEnabled()) {
                         Log.d(Countly.TAG, "ok ->" + eventData);
                     }
 
                     // successfully submitted event data to Count.ly server, so remove
                     // this one from the stored events collection
-                    store_.removeConnection(storedEvents[0]);
+                    store_.removeConnectionsThrough(lane, request.id);
+                    if (droppedConnections > 0 || droppedEvents > 0) {
+                        store_.clearDropped(droppedConnections, droppedEvents);
+                    }
+                    onSuccess(lane);
+                }
+                else if (isPermanentFailure(response)) {
+                    // the request itself is broken and will never be accepted, set it aside
+                    // and carry on with the rest of the lane
+                    if (Countly.sharedInstance().isLoggingEnabled()) {
+                        Log.w(Countly.TAG, "Server will never accept request, response was " + response + ", quarantining event data: " + eventData);
+                    }
+                    store_.quarantineConnection(lane, request.id);
                 }
                 else {
-                    // warning was logged above, stop processing, let next tick take care of retrying
-                    break;
+                    if (Countly.sharedInstance().isLoggingEnabled()) {
+                        Log.w(Countly.TAG, "Submitting event data failed, response was " + response + ", event data: " + eventData);
+                    }
+                    // only a rejection says something about the request itself; a server error or
+                    // a throttled request is retried for as long as it takes
+                    if (response.isRejected() && store_.recordConnectionAttempt(lane, request.id) >= MAX_ATTEMPTS) {
+                        if (Countly.sharedInstance().isLoggingEnabled()) {
+                            Log.w(Countly.TAG, "Giving up after " + MAX_ATTEMPTS + " attempts, quarantining event data: " + eventData);
+                        }
+                        store_.quarantineConnection(lane, request.id);
+                        continue;
+                    }
+                    // back the lane off but keep draining the lower priority lanes unless the
+                    // server is throttling all of them
+                    onFailure(lane, response);
+                    failedLanes.add(lane);
+                    // the rest of a rejected bulk request stays in the held back lane
+                    singleRequests = 0;
+                    if (!hasPendingLane(storedEvents, failedLanes)) {
+                        break;
+                    }
                 }
             }
             catch (Exception e) {
                 if (Countly.sharedInstance().isLoggingEnabled()) {
                     Log.w(Countly.TAG, "Got exception while trying to submit event data: " + eventData, e);
                 }
-                // if exception occurred, stop processing, let next tick take care of retrying
+                // if exception occurred the server is likely unreachable, stop processing,
+                // the retry scheduler takes care of retrying
+                onFailure(lane, null);
                 break;
             }
-            finally {
-                /**
-                 * 最后，释放资源，断开连接
-                 */
-                // free connection resources
-                if (responseStream != null) {
-                    try { responseStream.close(); } catch (IOException ignored) {}
-                }
-                if (conn != null && conn instanceof HttpURLConnection) {
-                    ((HttpURLConnection)conn).disconnect();
-                }
+        }
+    }
+
+    /**
+     * Returns true if the lane's requests must not be sent in this run: it failed earlier in
+     * the run or the retry scheduler is backing it off.
+     */
+    private boolean isHeldBack(final RequestLane lane, final EnumSet<RequestLane> failedLanes) {
+        return failedLanes.contains(lane) || (retryScheduler_ != null && !retryScheduler_.canAttempt(lane));
+    }
+
+    /**
+     * Returns true if any of the stored requests belongs to a lane that is not held back.
+     */
+    private boolean hasPendingLane(final PersistentQueue.Entry[] storedEvents, final EnumSet<RequestLane> failedLanes) {
+        for (PersistentQueue.Entry request : storedEvents) {
+            if (!isHeldBack(RequestLane.of(request.value), failedLanes)) {
+                return true;
             }
         }
+        return false;
+    }
+
+    private void onSuccess(final RequestLane lane) {
+        if (retryScheduler_ != null) {
+            retryScheduler_.onSuccess(lane);
+        }
+    }
+
+    private void onFailure(final RequestLane lane, final Transport.Response response) {
+        if (retryScheduler_ != null) {
+            retryScheduler_.onFailure(lane, response);
+        }
     }
 
     // for unit testing
-    String getServerURL() { return serverURL_; }
+    String getServerURL() { return transport_ instanceof HttpTransport ? ((HttpTransport) transport_).getServerURL() : null; }
     CountlyStore getCountlyStore() { return store_; }
     DeviceId getDeviceId() { return deviceId_; }
+    Transport getTransport() { return transport_; }
 }
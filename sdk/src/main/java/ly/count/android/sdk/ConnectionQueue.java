@@ -23,12 +23,13 @@ package ly.count.android.sdk;
 
 import android.content.Context;
 
+import java.util.Calendar;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
@@ -44,14 +45,16 @@ import javax.net.ssl.TrustManager;
  * ConnectionQueue queues session and event data and periodically sends that data to
  * a Count.ly server on a background thread.
  *
- * None of the methods in this class are synchronized because access to this class is
- * controlled by the Countly singleton, which is synchronized.
+ * Requests are recorded both from the Countly command thread and from Countly methods running
+ * on the caller's thread under the Countly monitor, so tick() and ensureExecutor(), which
+ * decide whether to start a ConnectionProcessor, are synchronized on the queue. CountlyStore
+ * does its own locking.
  *
  * NOTE: This class is only public to facilitate unit testing, because
  *       of this bug in dexmaker: https://code.google.com/p/dexmaker/issues/detail?id=34
  */
 public class ConnectionQueue {
-    private CountlyStore store_;
+    private volatile CountlyStore store_;
     private ExecutorService executor_;
     private String appKey_;
     private Context context_;
@@ -59,6 +62,25 @@ public class ConnectionQueue {
     private Future<?> connectionProcessorFuture_;
     private DeviceId deviceId_;
     private SSLContext sslContext_;//安全套接字协议
+    private final AtomicBoolean bulkRequests_ = new AtomicBoolean(false);
+    private final Runnable tickCommand_ = new Runnable() {
+        @Override
+        public void run() {
+            // does nothing if the queue was halted meanwhile
+            tick();
+        }
+    };
+    private final RetryScheduler retryScheduler_ = new RetryScheduler(new Runnable() {
+        @Override
+        public void run() {
+            // called on the retry timer thread; tick on the command thread like the other callers
+            if (store_ != null) {
+                Countly.sharedInstance().getCommandQueue().submit(tickCommand_);
+            }
+        }
+    });
+    private Transport transport_;
+    private boolean compressRequests_;
 
     // Getters are for unit testing
     String getAppKey() {
@@ -106,6 +128,30 @@ public class ConnectionQueue {
 
     DeviceId getDeviceId() { return deviceId_; }
 
+    boolean getBulkRequests() {
+        return bulkRequests_.get();
+    }
+
+    void setBulkRequests(final boolean bulkRequests) {
+        bulkRequests_.set(bulkRequests);
+    }
+
+    boolean getCompressRequests() {
+        return compressRequests_;
+    }
+
+    void setCompressRequests(final boolean compressRequests) {
+        compressRequests_ = compressRequests;
+    }
+
+    Transport getTransport() {
+        return transport_;
+    }
+
+    void setTransport(final Transport transport) {
+        transport_ = transport;
+    }
+
     public void setDeviceId(DeviceId deviceId) {
         this.deviceId_ = deviceId;
     }
@@ -151,7 +197,7 @@ public class ConnectionQueue {
                           + "&dow=" + Countly.currentDayOfWeek()
                           + "&sdk_version=" + Countly.COUNTLY_SDK_VERSION_STRING
                           + "&begin_session=1"
-                          + "&metrics=" + DeviceInfo.getMetrics(context_);
+                          + "&metrics=" + DeviceInfo.getCachedMetrics(context_);
 
         store_.addConnection(data);
 
@@ -287,13 +333,44 @@ public class ConnectionQueue {
      * @throws IllegalStateException if context, app key, store, or server URL have not been set
      */
     void sendCrashReport(String error, boolean nonfatal) {
+        sendCrashReport(error, nonfatal, null, 1);
+    }
+
+    /**
+     * Reports a crash that stands for several occurrences of the same stack trace.
+     * @param fingerprint fingerprint of the stack trace, null if not known
+     * @param occurrences number of occurrences the report stands for
+     * @throws IllegalStateException if context, app key, store, or server URL have not been set
+     */
+    void sendCrashReport(final String error, final boolean nonfatal, final String fingerprint, final int occurrences) {
         checkInternalState();
         final String data = "app_key=" + appKey_
                 + "&timestamp=" + Countly.currentTimestamp()
                 + "&hour=" + Countly.currentHour()
                 + "&dow=" + Countly.currentDayOfWeek()
                 + "&sdk_version=" + Countly.COUNTLY_SDK_VERSION_STRING
-                + "&crash=" + CrashDetails.getCrashData(context_, error, nonfatal);
+                + "&crash=" + CrashDetails.getCrashData(context_, error, nonfatal, fingerprint, occurrences);
+
+        store_.addConnection(data);
+
+        tick();
+    }
+
+    /**
+     * Reports a crash read back from the crash spool, with the time it happened at rather
+     * than the current time.
+     * @throws IllegalStateException if context, app key, store, or server URL have not been set
+     */
+    void sendSpooledCrashReport(final CrashSpool.Report report) {
+        checkInternalState();
+        final Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(report.timestamp * 1000L);
+        final String data = "app_key=" + appKey_
+                + "&timestamp=" + report.timestamp
+                + "&hour=" + calendar.get(Calendar.HOUR_OF_DAY)
+                + "&dow=" + (calendar.get(Calendar.DAY_OF_WEEK) - 1)
+                + "&sdk_version=" + Countly.COUNTLY_SDK_VERSION_STRING
+                + "&crash=" + CrashDetails.getSpooledCrashData(context_, report);
 
         store_.addConnection(data);
 
@@ -352,10 +429,9 @@ public class ConnectionQueue {
      * 【单线程模式的线程池】
      * Ensures that an executor has been created for ConnectionProcessor instances to be submitted to.
      */
-    void ensureExecutor() {
+    synchronized void ensureExecutor() {
         if (executor_ == null) {
             executor_ = Executors.newSingleThreadExecutor();
-            ThreadPoolExecutor pool = (ThreadPoolExecutor) Executors.newSingleThreadExecutor();
         }
     }
 
@@ -371,19 +447,47 @@ public class ConnectionQueue {
      * Starts ConnectionProcessor instances running in the background to
      * process the local connection queue data.
      * Does nothing if there is connection queue data or if a ConnectionProcessor
-     * is already running.
+     * is already running. Also does nothing while every lane with queued requests is
+     * backing off; the RetryScheduler ticks again once the first backoff runs out.
      */
-    void tick() {
-        if (!store_.isEmptyConnections() && (connectionProcessorFuture_ == null || connectionProcessorFuture_.isDone())) {
+    synchronized void tick() {
+        final CountlyStore store = store_;
+        if (store == null) {
+            // halted
+            return;
+        }
+        if (!store.isEmptyConnections() && (connectionProcessorFuture_ == null || connectionProcessorFuture_.isDone())
+                && hasLaneToSubmit(store)) {
             ensureExecutor();
-            connectionProcessorFuture_ = executor_.submit(new ConnectionProcessor(serverURL_, store_, deviceId_, sslContext_));
+            Transport transport = transport_;
+            if (transport == null) {
+                final HttpTransport httpTransport = new HttpTransport(serverURL_, sslContext_);
+                if (compressRequests_) {
+                    httpTransport.setCompressionThreshold(HttpTransport.DEFAULT_COMPRESSION_THRESHOLD);
+                }
+                transport = httpTransport;
+            }
+            final ConnectionProcessor processor = new ConnectionProcessor(store, deviceId_, transport);
+            processor.setBulkRequests(bulkRequests_);
+            processor.setRetryScheduler(retryScheduler_);
+            connectionProcessorFuture_ = executor_.submit(processor);
+        }
+    }
+
+    private boolean hasLaneToSubmit(final CountlyStore store) {
+        for (RequestLane lane : RequestLane.values()) {
+            if (!store.isEmptyConnections(lane) && retryScheduler_.canAttempt(lane)) {
+                return true;
+            }
         }
+        return false;
     }
 
     // for unit testing
-    ExecutorService getExecutor() { return executor_; }
-    void setExecutor(final ExecutorService executor) { executor_ = executor; }
-    Future<?> getConnectionProcessorFuture() { return connectionProcessorFuture_; }
-    void setConnectionProcessorFuture(final Future<?> connectionProcessorFuture) { connectionProcessorFuture_ = connectionProcessorFuture; }
+    synchronized ExecutorService getExecutor() { return executor_; }
+    RetryScheduler getRetryScheduler() { return retryScheduler_; }
+    synchronized void setExecutor(final ExecutorService executor) { executor_ = executor; }
+    synchronized Future<?> getConnectionProcessorFuture() { return connectionProcessorFuture_; }
+    synchronized void setConnectionProcessorFuture(final Future<?> connectionProcessorFuture) { connectionProcessorFuture_ = connectionProcessorFuture; }
 
 }
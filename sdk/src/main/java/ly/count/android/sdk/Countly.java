@@ -29,6 +29,7 @@ import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.util.Log;
 
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.MalformedURLException;
@@ -71,6 +72,10 @@ public class Countly {
      * How often onTimer() is called.
      */
     private static final long TIMER_DELAY_IN_SECONDS = 60;
+    /**
+     * How long the crash handler waits for queued commands to be persisted.
+     */
+    private static final long CRASH_DRAIN_TIMEOUT_MILLIS = 2000;
 
     protected static List<String> publicKeyPinCertificates;
 
@@ -85,6 +90,61 @@ public class Countly {
         PRODUCTION,
     }
 
+    /**
+     * Enum used in Countly.setRequestQueueLimits() and Countly.setEventQueueLimits() which
+     * controls what is dropped once a queue is full. Dropped items are counted and the
+     * counts are reported to the server with the next successful upload.
+     */
+    public static enum QueueOverflowPolicy {
+        /** Drops the oldest queued items to make room for new ones. */
+        DROP_OLDEST,
+        /** Keeps the queued items and drops new ones. */
+        DROP_NEWEST,
+        /**
+         * Events are merged into a queued event with the same key, segmentation and hour,
+         * requests replace a random queued one, so a long offline period is evenly sampled.
+         */
+        SAMPLE,
+    }
+
+    /**
+     * Enum used in Countly.setRequestQueueBackend() and Countly.setEventQueueBackend() which
+     * selects how a queue is stored on disk.
+     */
+    public static enum QueueBackend {
+        /** Append-only journal files, the default. */
+        JOURNAL,
+        /**
+         * A memory-mapped ring file per request lane, where adding and removing items only
+         * writes the record and the head or tail offset. Meant for apps that queue tens of
+         * thousands of requests while offline.
+         */
+        MAPPED_RING,
+        /**
+         * Tables of a SQLite database, indexed by lane, timestamp and attempts, where every
+         * change is an ACID transaction.
+         */
+        SQLITE,
+    }
+
+    /**
+     * Enum used in Countly.setRequestQueueDurability() and Countly.setEventQueueDurability()
+     * which controls when queued items are flushed to disk. Items always reach the OS right
+     * away, so they survive the app process being killed in every mode; the modes differ in
+     * what an OS crash or power loss can take with it.
+     */
+    public static enum DurabilityMode {
+        /** Every write is flushed to disk before the call returns, the default. */
+        SYNC,
+        /** Writes are flushed to disk in the background as soon as possible. */
+        ASYNC,
+        /**
+         * Writes are collected for the group commit window and flushed to disk together,
+         * trading the window for far fewer flushes.
+         */
+        GROUP_COMMIT,
+    }
+
     // see http://stackoverflow.com/questions/7048198/thread-safe-singletons-in-java
     private static class SingletonHolder {
         static final Countly instance = new Countly();
@@ -93,11 +153,32 @@ public class Countly {
     private ConnectionQueue connectionQueue_;
     @SuppressWarnings("FieldCanBeLocal")
     private ScheduledExecutorService timerService_;
-    private EventQueue eventQueue_;
-    private long prevSessionDurationStartTime_;
+    // runs everything that touches the event and connection queues, in submission order
+    private CommandQueue commandQueue_;
+    private volatile EventQueue eventQueue_;
     private int activityCount_;
-    private boolean disableUpdateSessionRequests_;
-    private boolean enableLogging_;
+    // session state, only touched by commands
+    private long prevSessionDurationStartTime_;
+    private boolean sessionStarted_;
+    private volatile boolean disableUpdateSessionRequests_;
+    private long eventQueueMaxLossWindowMillis_ = EventQueue.DEFAULT_MAX_LOSS_WINDOW_MILLIS;
+    private long eventAggregationWindowMillis_;
+    private int requestQueueMaxCount_ = CountlyStore.DEFAULT_MAX_CONNECTIONS;
+    private long requestQueueMaxBytes_ = CountlyStore.DEFAULT_MAX_CONNECTION_BYTES;
+    private QueueOverflowPolicy requestQueueOverflowPolicy_ = QueueOverflowPolicy.DROP_OLDEST;
+    private QueueBackend requestQueueBackend_ = QueueBackend.JOURNAL;
+    private QueueBackend eventQueueBackend_ = QueueBackend.JOURNAL;
+    private DurabilityMode requestQueueDurability_ = DurabilityMode.SYNC;
+    private DurabilityMode eventQueueDurability_ = DurabilityMode.SYNC;
+    private long groupCommitWindowMillis_ = SyncPolicy.DEFAULT_GROUP_COMMIT_WINDOW_MILLIS;
+    private int eventQueueMaxCount_ = EventQueue.DEFAULT_CAPACITY;
+    private long eventQueueMaxBytes_ = EventQueue.DEFAULT_MAX_BYTES;
+    private QueueOverflowPolicy eventQueueOverflowPolicy_ = QueueOverflowPolicy.DROP_OLDEST;
+    private volatile boolean enableLogging_;
+    private boolean crashReportingEnabled_;
+    private volatile CrashSpool crashSpool_;
+    private volatile CrashThrottle nonFatalCrashes_ = new CrashThrottle(CrashThrottle.DEFAULT_MAX_NON_FATAL_REPORTS, CrashThrottle.DEFAULT_NON_FATAL_WINDOW_MILLIS);
+    private volatile CrashThrottle fatalCrashes_;
     private Countly.CountlyMessagingMode messagingMode_;
     private Context context_;
 
@@ -128,11 +209,17 @@ public class Countly {
     Countly() {
         connectionQueue_ = new ConnectionQueue();
         Countly.userData = new UserData(connectionQueue_);
+        commandQueue_ = new CommandQueue();
         timerService_ = Executors.newSingleThreadScheduledExecutor();
         timerService_.scheduleWithFixedDelay(new Runnable() {
             @Override
             public void run() {
-                onTimer();
+                commandQueue_.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        onTimer();
+                    }
+                });
             }
         }, TIMER_DELAY_IN_SECONDS, TIMER_DELAY_IN_SECONDS, TimeUnit.SECONDS);
     }
@@ -260,6 +347,11 @@ public class Countly {
 
             /*初始化持久层对象（里面初始化并获取了 Countly_Store spf 文件）*/
             final CountlyStore countlyStore = new CountlyStore(context);
+            countlyStore.setConnectionLimits(requestQueueMaxCount_, requestQueueMaxBytes_, requestQueueOverflowPolicy_);
+            countlyStore.setConnectionBackend(requestQueueBackend_);
+            countlyStore.setEventBackend(eventQueueBackend_);
+            countlyStore.setConnectionDurability(requestQueueDurability_, groupCommitWindowMillis_);
+            countlyStore.setEventDurability(eventQueueDurability_, groupCommitWindowMillis_);
 
             /*让 deviceId对象初始化（给到持久层对象）*/
             deviceIdInstance.init(context, countlyStore, true);
@@ -274,7 +366,24 @@ public class Countly {
             connectionQueue_.setCountlyStore(countlyStore);
             connectionQueue_.setDeviceId(deviceIdInstance);
 
-            eventQueue_ = new EventQueue(countlyStore);
+            eventQueue_ = new EventQueue(countlyStore, eventQueueMaxCount_);
+            eventQueue_.setLimits(eventQueueMaxBytes_, eventQueueOverflowPolicy_);
+            eventQueue_.setMaxLossWindowMillis(eventQueueMaxLossWindowMillis_);
+            eventQueue_.setAggregationWindowMillis(eventAggregationWindowMillis_);
+
+            /*致命崩溃的指纹计数表保存在持久层中，崩溃循环跨进程也只上报一次*/
+            final CrashThrottle fatalCrashes = new CrashThrottle(1, CrashThrottle.FATAL_WINDOW_MILLIS);
+            fatalCrashes.restore(countlyStore.getPreference(CrashThrottle.FATAL_PREFERENCE));
+            fatalCrashes_ = fatalCrashes;
+
+            /*设备指标只在命令线程上计算一次，配置或语言变化时才重新计算*/
+            DeviceInfo.watchMetrics(context);
+            commandQueue_.submit(new Runnable() {
+                @Override
+                public void run() {
+                    DeviceInfo.getCachedMetrics(context);
+                }
+            });
         }
 
         context_ = context;
@@ -282,6 +391,8 @@ public class Countly {
         // context is allowed to be changed on the second init call
         connectionQueue_.setContext(context);
 
+        prepareCrashData();
+
         return this;
     }
 
@@ -289,7 +400,7 @@ public class Countly {
      * Checks whether Countly.init has been already called.
      * @return true if Countly is ready to use
      */
-    public synchronized boolean isInitialized() {
+    public boolean isInitialized() {
         return eventQueue_ != null;
     }
 
@@ -340,6 +451,9 @@ public class Countly {
      * again.
      */
     public synchronized void halt() {
+        if (eventQueue_ != null) {
+            eventQueue_.clear();
+        }
         eventQueue_ = null;
         final CountlyStore countlyStore = connectionQueue_.getCountlyStore();
         if (countlyStore != null) {
@@ -350,6 +464,7 @@ public class Countly {
         connectionQueue_.setAppKey(null);
         connectionQueue_.setCountlyStore(null);
         prevSessionDurationStartTime_ = 0;
+        sessionStarted_ = false;
         activityCount_ = 0;
     }
 
@@ -379,25 +494,31 @@ public class Countly {
 
         ++activityCount_;
         if (activityCount_ == 1) {
-            onStartHelper();
+            commandQueue_.submit(new Runnable() {
+                @Override
+                public void run() {
+                    onStartHelper();
+                }
+            });
         }
 
         /**
          * 检查这里是否有更新的上线数据，有，就给到请求队列去处理，然后从存储中删掉记录
-         * TODO：这里不太理解
+         * （在后台线程执行，避免在主线程读写 SharedPreferences）
          */
-        //check if there is an install referrer data
-        String referrer = ReferrerReceiver.getReferrer(context_);
-        if (Countly.sharedInstance().isLoggingEnabled()) {
-            Log.d(Countly.TAG, "Checking referrer: " + referrer);
-        }
-        if(referrer != null){
-            connectionQueue_.sendReferrerData(referrer);
-            ReferrerReceiver.deleteReferrer(context_);
-        }
+        //check if there is an install referrer data, off the main thread
+        final Context context = context_;
+        commandQueue_.submit(new Runnable() {
+            @Override
+            public void run() {
+                sendReferrerIfPresent(context);
+            }
+        });
 
         /*标志此时app是在前台的*/
         CrashDetails.inForeground();
+        // rebuilds the static crash fields after a configuration change restarted the activity
+        prepareCrashData();
 
         /**
          * 如果还设置了view跟踪，那么，可以记录下当前所在的界面（最终作为一个普通的事件进行提交保存）【首个view的提交，多一个细分参数“start=1”】
@@ -407,6 +528,21 @@ public class Countly {
         }
     }
 
+    /**
+     * Queues the install referrer stored by ReferrerReceiver, if any, and deletes it once the
+     * request has been persisted. Only called from commands.
+     */
+    void sendReferrerIfPresent(final Context context) {
+        String referrer = ReferrerReceiver.getReferrer(context);
+        if (Countly.sharedInstance().isLoggingEnabled()) {
+            Log.d(Countly.TAG, "Checking referrer: " + referrer);
+        }
+        if(referrer != null){
+            connectionQueue_.sendReferrerData(referrer);
+            ReferrerReceiver.deleteReferrer(context);
+        }
+    }
+
     /**
      * 当第一个Activity启动的时候调用
      * 发送一个启动会话事件给服务器，同时初始化应用会话跟踪
@@ -417,6 +553,7 @@ public class Countly {
      * and initializes application session tracking.
      */
     void onStartHelper() {
+        sessionStarted_ = true;
         prevSessionDurationStartTime_ = System.nanoTime();/*返回最准确的系统计时器的当前值，以纳秒作为单位【这个时间每次取都可以保证不一样，但是不能用于计算当前日期】*/
         connectionQueue_.beginSession();/*请求队列调用了beginSession,将“begin_session=1”的参数给到事件中，然后保存事件，最后将事件给到请求处理器到后台执行*/
     }
@@ -443,16 +580,20 @@ public class Countly {
         }
 
         --activityCount_;
-        if (activityCount_ == 0) {
-            //TODO：让请求队列发送会话终止请求 ，并处理完所有没有发送到服务器的事件集
-            onStopHelper();
-        }
-
+        final boolean stopping = activityCount_ == 0;
+        commandQueue_.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (stopping) {
+                    //TODO：让请求队列发送会话终止请求 ，并处理完所有没有发送到服务器的事件集
+                    onStopHelper();
+                }
+                //report current view duration
+                reportViewDuration();
+            }
+        });
 
         CrashDetails.inBackground();
-
-        //report current view duration
-        reportViewDuration();
     }
 
     /**
@@ -467,9 +608,17 @@ public class Countly {
     void onStopHelper() {
         connectionQueue_.endSession(roundedSecondsSinceLastSessionDurationUpdate());
         prevSessionDurationStartTime_ = 0;
+        sessionStarted_ = false;
 
-        if (eventQueue_.size() > 0) {
-            connectionQueue_.recordEvents(eventQueue_.events());
+        // the app may be killed in the background, report the handled exceptions held back so far
+        for (CrashThrottle.Aggregate aggregate : nonFatalCrashes_.drain()) {
+            connectionQueue_.sendCrashReport(aggregate.error, true, aggregate.fingerprint, aggregate.occurrences);
+        }
+
+        // read once, halt() may clear the field while this command runs
+        final EventQueue eventQueue = eventQueue_;
+        if (eventQueue != null && eventQueue.size() > 0) {
+            connectionQueue_.recordEvents(eventQueue.events());
         }
     }
 
@@ -541,10 +690,12 @@ public class Countly {
      * 记录一个自定义事件（细分：segmentation，事件发生次数：count ，总计（总金额）：sum）
      *
      * 1：逐个关键参数检查是否合法
-     * 2：保存到文件中
+     * 2：交给命令队列，在后台线程保存到文件中
      * 3：查看是否达到10个事件或以上，是，则提交请求给后台进行处理
      *
-     * Records a custom event with the specified values.
+     * Records a custom event with the specified values. The arguments are checked on the
+     * calling thread; the event is then handed to the command queue without taking any lock,
+     * so recording never waits for disk I/O or for other threads recording events.
      * @param key name of the custom event, required, must not be the empty string
      * @param segmentation segmentation dictionary to associate with the event, can be null
      * @param count count to associate with the event, should be more than zero
@@ -553,7 +704,7 @@ public class Countly {
      * @throws IllegalArgumentException if key is null or empty, count is less than 1, or if
      *                                  segmentation contains null or empty keys or values
      */
-    public synchronized void recordEvent(final String key, final Map<String, String> segmentation, final int count, final double sum) {
+    public void recordEvent(final String key, final Map<String, String> segmentation, final int count, final double sum) {
         if (!isInitialized()) {
             throw new IllegalStateException("Countly.sharedInstance().init must be called before recordEvent");
         }
@@ -574,10 +725,31 @@ public class Countly {
             }
         }
 
+        // the event is recorded later, so don't let the caller change it in the meantime
+        final Map<String, String> segmentationCopy = segmentation == null ? null : new HashMap<>(segmentation);
+        commandQueue_.submit(new Runnable() {
+            @Override
+            public void run() {
+                recordEventHelper(key, segmentationCopy, count, sum);
+            }
+        });
+    }
+
+    /**
+     * Adds a validated event to the event queue and submits the queue if it is full enough.
+     * Only called from commands.
+     */
+    void recordEventHelper(final String key, final Map<String, String> segmentation, final int count, final double sum) {
+        // read once, halt() may clear the field while this command runs
+        final EventQueue eventQueue = eventQueue_;
+        if (eventQueue == null) {
+            // halted after the event was submitted
+            return;
+        }
         /*把事件添加进本地的spf文件中*/
-        eventQueue_.recordEvent(key, segmentation, count, sum);
+        eventQueue.recordEvent(key, segmentation, count, sum);
         /*如果本地事件队列中的事件数量达到10个或以上，就提交所有的事件*/
-        sendEventsIfNeeded();
+        sendEventsIfNeeded(eventQueue);
     }
 
     /**
@@ -608,19 +780,28 @@ public class Countly {
      * like fragment, Message box or transparent Activity
      * @param viewName String - name of the view
      */
-    public synchronized Countly recordView(String viewName){
-        reportViewDuration();
-        lastView = viewName;
-        lastViewStart = Countly.currentTimestamp();
-        HashMap<String, String> segments = new HashMap<String, String>();
-        segments.put("name", viewName);
-        segments.put("visit", "1");
-        segments.put("segment", "Android");
-        if(firstView) {
-            firstView = false;
-            segments.put("start", "1");
+    public Countly recordView(final String viewName){
+        if (!isInitialized()) {
+            throw new IllegalStateException("Countly.sharedInstance().init must be called before recordView");
         }
-        recordEvent("[CLY]_view", segments, 1);
+        final int viewStart = Countly.currentTimestamp();
+        commandQueue_.submit(new Runnable() {
+            @Override
+            public void run() {
+                reportViewDuration();
+                lastView = viewName;
+                lastViewStart = viewStart;
+                HashMap<String, String> segments = new HashMap<String, String>();
+                segments.put("name", viewName);
+                segments.put("visit", "1");
+                segments.put("segment", "Android");
+                if(firstView) {
+                    firstView = false;
+                    segments.put("start", "1");
+                }
+                recordEventHelper("[CLY]_view", segments, 1, 0);
+            }
+        });
         return this;
     }
 
@@ -732,12 +913,18 @@ public class Countly {
      * @param lat Latitude
      * @param lon Longitude
      */
-    public synchronized Countly setLocation(double lat, double lon) {
-        connectionQueue_.getCountlyStore().setLocation(lat, lon);
+    public synchronized Countly setLocation(final double lat, final double lon) {
+        final boolean updateSession = disableUpdateSessionRequests_;
+        commandQueue_.submit(new Runnable() {
+            @Override
+            public void run() {
+                connectionQueue_.getCountlyStore().setLocation(lat, lon);
 
-        if (disableUpdateSessionRequests_) {
-            connectionQueue_.updateSession(roundedSecondsSinceLastSessionDurationUpdate());
-        }
+                if (updateSession) {
+                    connectionQueue_.updateSession(roundedSecondsSinceLastSessionDurationUpdate());
+                }
+            }
+        });
 
         return this;
     }
@@ -759,7 +946,7 @@ public class Countly {
      * Add crash breadcrumb like log record to the log that will be send together with crash report
      * @param record String a bread crumb for the crash report
      */
-    public synchronized Countly addCrashLog(String record) {
+    public Countly addCrashLog(String record) {
         CrashDetails.addLog(record);
         return this;
     }
@@ -771,10 +958,18 @@ public class Countly {
      * @param exception Exception to log
      */
     public synchronized Countly logException(Exception exception) {
+        /*同一堆栈的异常按指纹限流，被抑制的次数随下一次报告一起上报*/
+        final CrashThrottle nonFatalCrashes = nonFatalCrashes_;
+        final String fingerprint = CrashThrottle.fingerprint(exception);
+        final int occurrences = nonFatalCrashes.record(fingerprint, System.currentTimeMillis());
+        if (occurrences == 0) {
+            return this;
+        }
         StringWriter sw = new StringWriter();
         PrintWriter pw = new PrintWriter(sw);
         exception.printStackTrace(pw);
-        connectionQueue_.sendCrashReport(sw.toString(), true);
+        nonFatalCrashes.setError(fingerprint, sw.toString());
+        connectionQueue_.sendCrashReport(sw.toString(), true, fingerprint, occurrences);
         return this;
     }
 
@@ -792,10 +987,34 @@ public class Countly {
 
             @Override
             public void uncaughtException(Thread t, Throwable e) {
-                StringWriter sw = new StringWriter();
-                PrintWriter pw = new PrintWriter(sw);
-                e.printStackTrace(pw);
-                Countly.sharedInstance().connectionQueue_.sendCrashReport(sw.toString(), false);
+                /*先把崩溃写入预先分配好的文件，内存不足或进程被杀时下次启动再上报*/
+                final CrashSpool spool = Countly.sharedInstance().crashSpool_;
+                final boolean spooled = spool != null && spool.write(e, Countly.currentTimestamp(),
+                        CrashDetails.getRunningSeconds(), CrashDetails.isBackground(), CrashDetails.getLogBuffer());
+                try {
+                    // let queued session and event commands persist their data first, so the
+                    // session begin/end and events recorded before the crash are not lost
+                    Countly.sharedInstance().commandQueue_.awaitIdle(CRASH_DRAIN_TIMEOUT_MILLIS);
+                    final EventQueue eventQueue = Countly.sharedInstance().eventQueue_;
+                    if (eventQueue != null) {
+                        // persist events still inside the write-behind window before the process dies
+                        eventQueue.flush();
+                    }
+                    final String fingerprint = CrashThrottle.fingerprint(e);
+                    final int occurrences = Countly.sharedInstance().recordFatalCrash(fingerprint);
+                    if (occurrences > 0) {
+                        StringWriter sw = new StringWriter();
+                        PrintWriter pw = new PrintWriter(sw);
+                        e.printStackTrace(pw);
+                        Countly.sharedInstance().connectionQueue_.sendCrashReport(sw.toString(), false, fingerprint, occurrences);
+                    }
+                    if (spooled) {
+                        // the crash is in the request queue now, or counted as a repeat, so it is not sent again
+                        spool.clear();
+                    }
+                } catch (Throwable reportFailure) {
+                    // typically out of memory again; the spooled crash is sent on the next launch
+                }
 
                 //if there was another handler before
                 if(oldHandler != null){
@@ -806,9 +1025,73 @@ public class Countly {
         };
 
         Thread.setDefaultUncaughtExceptionHandler(handler);
+        crashReportingEnabled_ = true;
+        prepareCrashData();
         return this;
     }
 
+    /**
+     * Counts a fatal crash in the table kept in the store.
+     * @return number of occurrences its report should carry, or 0 if the same crash was
+     *         reported within the last FATAL_WINDOW_MILLIS already
+     */
+    private int recordFatalCrash(final String fingerprint) {
+        final CrashThrottle fatalCrashes = fatalCrashes_;
+        final CountlyStore store = connectionQueue_.getCountlyStore();
+        if (fatalCrashes == null || store == null) {
+            return 1;
+        }
+        final int occurrences = fatalCrashes.record(fingerprint, System.currentTimeMillis());
+        store.setPreference(CrashThrottle.FATAL_PREFERENCE, fatalCrashes.serialize());
+        return occurrences;
+    }
+
+    /**
+     * 在命令线程上预先计算崩溃报告中的静态字段，打开崩溃文件并上报上次未能上报的崩溃
+     *
+     * Builds the crash report fields that do not change while the process runs on the command
+     * thread, so the uncaught exception handler only has to sample the others, and opens the
+     * crash spool, queueing the report of a crash it still holds from a previous run. Does
+     * nothing until both crash reporting is enabled and a context is known, or if both are
+     * done already.
+     */
+    private void prepareCrashData() {
+        if (crashReportingEnabled_ && context_ != null && (crashSpool_ == null || !CrashDetails.hasStaticData())) {
+            final Context context = context_;
+            commandQueue_.submit(new Runnable() {
+                @Override
+                public void run() {
+                    CrashDetails.prepareStaticData(context);
+                    if (crashSpool_ == null) {
+                        openCrashSpool(context);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Opens the crash spool on the command thread and sends the crash left in it by a previous
+     * run, if any.
+     */
+    private void openCrashSpool(final Context context) {
+        final CrashSpool spool;
+        try {
+            spool = new CrashSpool(CrashSpool.file(context), CrashSpool.DEFAULT_CAPACITY);
+        } catch (IOException e) {
+            if (isLoggingEnabled()) {
+                Log.w(TAG, "Failed to open crash spool, crashes are only reported by the handler", e);
+            }
+            return;
+        }
+        final CrashSpool.Report report = spool.read();
+        if (report != null) {
+            connectionQueue_.sendSpooledCrashReport(report);
+            spool.clear();
+        }
+        crashSpool_ = spool;
+    }
+
     /**
      * Disable periodic session time updates.
      * By default, Countly will send a request to the server each 30 seconds with a small update
@@ -822,6 +1105,261 @@ public class Countly {
         return this;
     }
 
+    /**
+     * Sets how long a recorded event may be held in memory only before it is written to disk.
+     * Events are persisted in batches in the background, so this is the window of events that
+     * can be lost if the process is killed. Zero writes every event synchronously as it is
+     * recorded. Defaults to 2000 milliseconds.
+     * @param millis maximum delay in milliseconds before a recorded event is persisted
+     * @return Countly instance for easy method chaining
+     */
+    public synchronized Countly setEventQueueMaxLossWindow(final long millis) {
+        eventQueueMaxLossWindowMillis_ = Math.max(0, millis);
+        if (eventQueue_ != null) {
+            eventQueue_.setMaxLossWindowMillis(eventQueueMaxLossWindowMillis_);
+        }
+        return this;
+    }
+
+    /**
+     * Enables aggregation of high-frequency events. Events recorded with the same key and
+     * segmentation within the same hour are merged into a single event by summing their
+     * count and sum, and the aggregate is queued once the window has elapsed. This cuts
+     * storage and payload size for hot counters such as views or button taps, at the cost
+     * of per-event timestamps. Aggregated events are not persisted until the window has
+     * elapsed. Zero disables aggregation, which is the default.
+     * @param millis how long events are aggregated before being queued, in milliseconds
+     * @return Countly instance for easy method chaining
+     */
+    public synchronized Countly setEventAggregationWindow(final long millis) {
+        eventAggregationWindowMillis_ = Math.max(0, millis);
+        if (eventQueue_ != null) {
+            eventQueue_.setAggregationWindowMillis(eventAggregationWindowMillis_);
+        }
+        return this;
+    }
+
+    /**
+     * Limits the queue of requests waiting to be sent, e.g. while the device is offline.
+     * Crash reports, session requests, events and user data are queued with that priority,
+     * and requests are always dropped from the lowest priority first. Defaults to 1000
+     * requests, 4 MB and DROP_OLDEST.
+     * @param maxCount maximum number of queued requests
+     * @param maxBytes maximum size of the queued requests in bytes
+     * @param overflowPolicy which requests to drop once the queue is full
+     * @return Countly instance for easy method chaining
+     * @throws IllegalArgumentException if a limit is not greater than zero or overflowPolicy is null
+     */
+    public synchronized Countly setRequestQueueLimits(final int maxCount, final long maxBytes, final QueueOverflowPolicy overflowPolicy) {
+        if (maxCount < 1 || maxBytes < 1 || overflowPolicy == null) {
+            throw new IllegalArgumentException("limits must be greater than zero and overflowPolicy must not be null");
+        }
+        requestQueueMaxCount_ = maxCount;
+        requestQueueMaxBytes_ = maxBytes;
+        requestQueueOverflowPolicy_ = overflowPolicy;
+        if (connectionQueue_.getCountlyStore() != null) {
+            connectionQueue_.getCountlyStore().setConnectionLimits(maxCount, maxBytes, overflowPolicy);
+        }
+        return this;
+    }
+
+    /**
+     * Selects how queued requests are stored on disk. Defaults to JOURNAL. Has to be called
+     * before init. Requests queued with another backend are moved over on init, so it can be
+     * changed between app versions.
+     * @param backend storage of the request queue
+     * @return Countly instance for easy method chaining
+     * @throws IllegalArgumentException if backend is null
+     * @throws IllegalStateException if init has already been called
+     */
+    public synchronized Countly setRequestQueueBackend(final QueueBackend backend) {
+        if (backend == null) {
+            throw new IllegalArgumentException("backend must not be null");
+        }
+        if (connectionQueue_.getCountlyStore() != null) {
+            throw new IllegalStateException("request queue backend must be set before init");
+        }
+        requestQueueBackend_ = backend;
+        return this;
+    }
+
+    /**
+     * Selects how recorded events that have not been sent yet are stored on disk. Defaults to
+     * JOURNAL. Has to be called before init. Events stored with another backend are moved over
+     * on init, so it can be changed between app versions.
+     * @param backend storage of the event queue
+     * @return Countly instance for easy method chaining
+     * @throws IllegalArgumentException if backend is null
+     * @throws IllegalStateException if init has already been called
+     */
+    public synchronized Countly setEventQueueBackend(final QueueBackend backend) {
+        if (backend == null) {
+            throw new IllegalArgumentException("backend must not be null");
+        }
+        if (connectionQueue_.getCountlyStore() != null) {
+            throw new IllegalStateException("event queue backend must be set before init");
+        }
+        eventQueueBackend_ = backend;
+        return this;
+    }
+
+    /**
+     * Selects when queued requests are flushed to disk. Crash reports are always flushed
+     * synchronously, whatever the mode. Defaults to SYNC.
+     *
+     * The mode is ignored when the request queue uses QueueBackend.SQLITE: every change is
+     * committed as a SQLite transaction, which the database syncs when it is committed.
+     * @param mode durability of the request queue
+     * @return Countly instance for easy method chaining
+     * @throws IllegalArgumentException if mode is null
+     */
+    public synchronized Countly setRequestQueueDurability(final DurabilityMode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("mode must not be null");
+        }
+        requestQueueDurability_ = mode;
+        if (connectionQueue_.getCountlyStore() != null) {
+            connectionQueue_.getCountlyStore().setConnectionDurability(mode, groupCommitWindowMillis_);
+        }
+        return this;
+    }
+
+    /**
+     * Selects when recorded events that have not been sent yet are flushed to disk. Events
+     * are usually the most frequent writes, so GROUP_COMMIT saves the most here. Defaults
+     * to SYNC.
+     *
+     * The mode is ignored when the event queue uses QueueBackend.SQLITE: every change is
+     * committed as a SQLite transaction, which the database syncs when it is committed.
+     * @param mode durability of the event queue
+     * @return Countly instance for easy method chaining
+     * @throws IllegalArgumentException if mode is null
+     */
+    public synchronized Countly setEventQueueDurability(final DurabilityMode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("mode must not be null");
+        }
+        eventQueueDurability_ = mode;
+        if (connectionQueue_.getCountlyStore() != null) {
+            connectionQueue_.getCountlyStore().setEventDurability(mode, groupCommitWindowMillis_);
+        }
+        return this;
+    }
+
+    /**
+     * Sets how long queues in GROUP_COMMIT mode collect writes before flushing them to disk
+     * together. Defaults to 1000 milliseconds. Ignored for queues using QueueBackend.SQLITE.
+     * @param millis group commit window in milliseconds
+     * @return Countly instance for easy method chaining
+     * @throws IllegalArgumentException if millis is negative
+     */
+    public synchronized Countly setGroupCommitWindow(final long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("millis must not be negative");
+        }
+        groupCommitWindowMillis_ = millis;
+        if (connectionQueue_.getCountlyStore() != null) {
+            connectionQueue_.getCountlyStore().setConnectionDurability(requestQueueDurability_, millis);
+            connectionQueue_.getCountlyStore().setEventDurability(eventQueueDurability_, millis);
+        }
+        return this;
+    }
+
+    /**
+     * Limits how often logException reports handled exceptions with the same stack trace. Once
+     * maxReports of them were reported within a window, the others are only counted, and the
+     * count is sent with the next report of that stack trace, or when the app goes to the
+     * background. Defaults to 1 report per minute. Resets the counts kept so far.
+     * @param maxReports reports of the same stack trace sent per window
+     * @param windowMillis length of a window in milliseconds
+     * @return Countly instance for easy method chaining
+     * @throws IllegalArgumentException if a limit is not greater than zero
+     */
+    public synchronized Countly setNonFatalCrashRateLimit(final int maxReports, final long windowMillis) {
+        if (maxReports < 1 || windowMillis < 1) {
+            throw new IllegalArgumentException("limits must be greater than zero");
+        }
+        nonFatalCrashes_ = new CrashThrottle(maxReports, windowMillis);
+        return this;
+    }
+
+    /**
+     * Limits the crash log records kept for the next crash report. Once a limit is reached, the
+     * oldest records are dropped. Defaults to 100 records and 16 KB.
+     * @param maxCount maximum number of records
+     * @param maxBytes maximum total size of the records in bytes, longer records are cut off
+     * @return Countly instance for easy method chaining
+     * @throws IllegalArgumentException if a limit is not greater than zero
+     */
+    public synchronized Countly setCrashLogLimits(final int maxCount, final int maxBytes) {
+        if (maxCount < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("limits must be greater than zero");
+        }
+        CrashDetails.setLogLimits(maxCount, maxBytes);
+        return this;
+    }
+
+    /**
+     * Limits the queue of recorded events that have not been sent yet. Defaults to 1000
+     * events, 1 MB and DROP_OLDEST. The count limit has to be set before init.
+     * @param maxCount maximum number of queued events
+     * @param maxBytes maximum approximate size of the queued events in bytes
+     * @param overflowPolicy which events to drop once the queue is full
+     * @return Countly instance for easy method chaining
+     * @throws IllegalArgumentException if a limit is not greater than zero or overflowPolicy is null
+     */
+    public synchronized Countly setEventQueueLimits(final int maxCount, final long maxBytes, final QueueOverflowPolicy overflowPolicy) {
+        if (maxCount < 1 || maxBytes < 1 || overflowPolicy == null) {
+            throw new IllegalArgumentException("limits must be greater than zero and overflowPolicy must not be null");
+        }
+        eventQueueMaxCount_ = maxCount;
+        eventQueueMaxBytes_ = maxBytes;
+        eventQueueOverflowPolicy_ = overflowPolicy;
+        if (eventQueue_ != null) {
+            eventQueue_.setLimits(maxBytes, overflowPolicy);
+        }
+        return this;
+    }
+
+    /**
+     * Enables or disables bulk requests. When enabled, queued requests are drained in batches
+     * through a single POST to the server's /i/bulk API instead of one HTTP round trip each,
+     * which is much faster after an offline period. If the server rejects bulk requests,
+     * Countly falls back to sending requests one by one. Disabled by default.
+     * @param enable true to send queued requests in bulk
+     * @return Countly instance for easy method chaining
+     */
+    public synchronized Countly setBulkRequests(final boolean enable) {
+        connectionQueue_.setBulkRequests(enable);
+        return this;
+    }
+
+    /**
+     * Enables or disables gzip compression of request bodies. When enabled, event, crash and
+     * bulk requests larger than 1KB are POSTed with Content-Encoding: gzip, which cuts upload
+     * size considerably for event batches and crash reports. The server, or a proxy in front
+     * of it, must accept gzip encoded request bodies. Disabled by default.
+     * Has no effect when a custom Transport is set.
+     * @param enable true to compress large request bodies
+     * @return Countly instance for easy method chaining
+     */
+    public synchronized Countly setRequestCompression(final boolean enable) {
+        connectionQueue_.setCompressRequests(enable);
+        return this;
+    }
+
+    /**
+     * Replaces the HTTP client used to submit queued requests to the server. By default
+     * requests are sent with HttpURLConnection; a custom Transport can use a different
+     * client, or record requests in-process for tests and benchmarks.
+     * @param transport transport to use, or null to restore the default one
+     * @return Countly instance for easy method chaining
+     */
+    public synchronized Countly setTransport(final Transport transport) {
+        connectionQueue_.setTransport(transport);
+        return this;
+    }
+
     /**
      * 设置是否在debug时进行log的显示。默认是不显示
      *
@@ -834,7 +1372,7 @@ public class Countly {
         return this;
     }
 
-    public synchronized boolean isLoggingEnabled() {
+    public boolean isLoggingEnabled() {
         return enableLogging_;
     }
 
@@ -874,7 +1412,7 @@ public class Countly {
                     Log.d(Countly.TAG, "Data in activity created intent: " + data + " (appLaunchDeepLink " + sharedInstance().appLaunchDeepLink + ") " );
                 }
                 if (sharedInstance().appLaunchDeepLink) {
-                    DeviceInfo.deepLink = data.toString();
+                    DeviceInfo.setDeepLink(data.toString());
                 }
             }
         }
@@ -882,7 +1420,7 @@ public class Countly {
 
     /**
      * 发送最后一个view的持续时间给后台
-     * Reports duration of last view
+     * Reports duration of last view. Only called from commands.
      */
     void reportViewDuration(){
         if(lastView != null){
@@ -890,7 +1428,7 @@ public class Countly {
             segments.put("name", lastView);
             segments.put("dur", String.valueOf(Countly.currentTimestamp()-lastViewStart));
             segments.put("segment", "Android");
-            recordEvent("[CLY]_view",segments,1);
+            recordEventHelper("[CLY]_view", segments, 1, 0);
             lastView = null;
             lastViewStart = 0;
         }
@@ -899,25 +1437,27 @@ public class Countly {
     /**
      * 如果本地的事件队列已经超过了10个事件，那么就提交所有的本地事件
      * Submits all of the locally queued events to the server if there are more than 10 of them.
+     * @param eventQueue the event queue read by the caller, never null
      */
-    void sendEventsIfNeeded() {
-        if (eventQueue_.size() >= EVENT_QUEUE_SIZE_THRESHOLD) {
-            connectionQueue_.recordEvents(eventQueue_.events());
+    void sendEventsIfNeeded(final EventQueue eventQueue) {
+        if (eventQueue.size() >= EVENT_QUEUE_SIZE_THRESHOLD) {
+            connectionQueue_.recordEvents(eventQueue.events());
         }
     }
 
     /**
-     * Called every 60 seconds to send a session heartbeat to the server. Does nothing if there
-     * is not an active application session.
+     * Called every 60 seconds, through the command queue, to send a session heartbeat to the
+     * server. Does nothing if there is not an active application session.
      */
-    synchronized void onTimer() {
-        final boolean hasActiveSession = activityCount_ > 0;
-        if (hasActiveSession) {
+    void onTimer() {
+        if (sessionStarted_) {
             if (!disableUpdateSessionRequests_) {
                 connectionQueue_.updateSession(roundedSecondsSinceLastSessionDurationUpdate());
             }
-            if (eventQueue_.size() > 0) {
-                connectionQueue_.recordEvents(eventQueue_.events());
+            // read once, halt() may clear the field while this command runs
+            final EventQueue eventQueue = eventQueue_;
+            if (eventQueue != null && eventQueue.size() > 0) {
+                connectionQueue_.recordEvents(eventQueue.events());
             }
         }
     }
@@ -996,10 +1536,16 @@ public class Countly {
         return Countly.sharedInstance();
     }
 
+    /**
+     * Returns the queue of commands run on the Countly command thread.
+     */
+    CommandQueue getCommandQueue() { return commandQueue_; }
+
     // for unit testing
     ConnectionQueue getConnectionQueue() { return connectionQueue_; }
     void setConnectionQueue(final ConnectionQueue connectionQueue) { connectionQueue_ = connectionQueue; }
     ExecutorService getTimerService() { return timerService_; }
+    void setCommandQueue(final CommandQueue commandQueue) { commandQueue_ = commandQueue; }
     EventQueue getEventQueue() { return eventQueue_; }
     void setEventQueue(final EventQueue eventQueue) { eventQueue_ = eventQueue; }
     long getPrevSessionDurationStartTime() { return prevSessionDurationStartTime_; }
@@ -0,0 +1,77 @@
+/*
+Copyright (c) 2012, 2013, 2014 Countly
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package ly.count.android.sdk;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+/**
+ * SQLite database holding the CountlyStore queues that use the SQLITE backend.
+ *
+ * The requests table holds the connection queue of every lane, the events table the event
+ * queue (always lane 0). Both have the same columns, so SQLiteQueue works on either:
+ * <ul>
+ * <li>id - AUTOINCREMENT, so ids keep growing even after the newest row has been removed,
+ * which is what makes them stable queue ids,</li>
+ * <li>lane - RequestLane ordinal,</li>
+ * <li>value - the queued request or event JSON,</li>
+ * <li>attempts - failed submissions so far,</li>
+ * <li>timestamp - when the row was queued, in milliseconds.</li>
+ * </ul>
+ * Requests are indexed by lane, timestamp and attempts, events by timestamp.
+ */
+class CountlyDatabase extends SQLiteOpenHelper {
+    static final String NAME = "countly.db";
+    private static final int VERSION = 1;
+
+    static final String REQUESTS_TABLE = "requests";
+    static final String EVENTS_TABLE = "events";
+
+    CountlyDatabase(final Context context) {
+        super(context, NAME, null, VERSION);
+    }
+
+    @Override
+    public void onCreate(final SQLiteDatabase db) {
+        createQueueTable(db, REQUESTS_TABLE);
+        db.execSQL("CREATE INDEX requests_lane ON requests (lane, id)");
+        db.execSQL("CREATE INDEX requests_timestamp ON requests (timestamp)");
+        db.execSQL("CREATE INDEX requests_attempts ON requests (attempts)");
+        createQueueTable(db, EVENTS_TABLE);
+        db.execSQL("CREATE INDEX events_timestamp ON events (timestamp)");
+    }
+
+    private static void createQueueTable(final SQLiteDatabase db, final String table) {
+        db.execSQL("CREATE TABLE " + table + " ("
+                + "id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "lane INTEGER NOT NULL, "
+                + "value TEXT NOT NULL, "
+                + "attempts INTEGER NOT NULL DEFAULT 0, "
+                + "timestamp INTEGER NOT NULL)");
+    }
+
+    @Override
+    public void onUpgrade(final SQLiteDatabase db, final int oldVersion, final int newVersion) {
+        // first version of the schema, nothing to upgrade yet
+    }
+}
@@ -23,17 +23,24 @@ package ly.count.android.sdk;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 
 /**
  * 此类提供一个持久层给本地的事件队列和请求队列
@@ -53,6 +60,17 @@ import java.util.Map;
  * at a time from the public API side, the internal implementation has a background thread that
  * submits data to a Countly server, and it writes to this store as well.
  *
+ * The connection and event queues are kept in append-only journals (see QueueJournal) in the
+ * app's files directory, so adding or removing a queued item writes a single small record
+ * instead of rewriting the whole queue. Instead of journals, the queues can be kept in
+ * memory-mapped ring files (see MappedRingQueue) or in a SQLite database (see SQLiteQueue).
+ * The queues are opened lazily on first access; queues left in SharedPreferences by older
+ * SDK versions are migrated into them at that point.
+ *
+ * Stored events are parsed once into an in-memory index ordered by timestamp. The index is
+ * only changed by this class's own writes, so reading the event list never re-parses JSON
+ * and adding an event is a binary insertion rather than a full sort.
+ *
  * NOTE: This class is only public to facilitate unit testing, because
  *       of this bug in dexmaker: https://code.google.com/p/dexmaker/issues/detail?id=34
  */
@@ -62,8 +80,64 @@ public class CountlyStore {
     private static final String CONNECTIONS_PREFERENCE = "CONNECTIONS";
     private static final String EVENTS_PREFERENCE = "EVENTS";
     private static final String LOCATION_PREFERENCE = "LOCATION";
+    private static final String DROPPED_CONNECTIONS_PREFERENCE = "DROPPED_CONNECTIONS";
+    private static final String DROPPED_EVENTS_PREFERENCE = "DROPPED_EVENTS";
+    static final String JOURNAL_DIRECTORY = "countly";
+    private static final String CONNECTIONS_JOURNAL = "connections";
+    private static final String EVENTS_JOURNAL = "events";
+    private static final String DEAD_LETTERS_JOURNAL = "dead_letters";
+
+    /**
+     * Upper bound of the dead-letter queue, the oldest quarantined requests are dropped first.
+     */
+    static final int MAX_DEAD_LETTERS = 100;
+
+    /**
+     * Default limits of the connection queue, across all lanes.
+     */
+    static final int DEFAULT_MAX_CONNECTIONS = 1000;
+    static final long DEFAULT_MAX_CONNECTION_BYTES = 4 * 1024 * 1024;
 
+    private final Context context_;
     private final SharedPreferences preferences_;
+    private EnumMap<RequestLane, PersistentQueue> connections_;
+    private PersistentQueue events_;
+    private PersistentQueue deadLetters_;
+    private Countly.QueueBackend connectionBackend_ = Countly.QueueBackend.JOURNAL;
+    private Countly.QueueBackend eventBackend_ = Countly.QueueBackend.JOURNAL;
+    private CountlyDatabase database_;
+    private Countly.DurabilityMode connectionDurability_ = Countly.DurabilityMode.SYNC;
+    private Countly.DurabilityMode eventDurability_ = Countly.DurabilityMode.SYNC;
+    private long groupCommitWindowMillis_ = SyncPolicy.DEFAULT_GROUP_COMMIT_WINDOW_MILLIS;
+    private int maxConnections_ = DEFAULT_MAX_CONNECTIONS;
+    private long maxConnectionBytes_ = DEFAULT_MAX_CONNECTION_BYTES;
+    private Countly.QueueOverflowPolicy connectionOverflowPolicy_ = Countly.QueueOverflowPolicy.DROP_OLDEST;
+    private final Random random_ = new Random();
+    private final EventWriter eventWriter_ = new EventWriter();
+    // parsed stored events ordered by timestamp, built on first use
+    private List<IndexedEvent> eventIndex_;
+    // journal ids of stored events that could not be parsed, dropped on the next removal
+    private List<Long> unreadableEventIds_;
+
+    private static final Comparator<IndexedEvent> TIMESTAMP_ORDER = new Comparator<IndexedEvent>() {
+        @Override
+        public int compare(final IndexedEvent e1, final IndexedEvent e2) {
+            return e1.event.timestamp - e2.event.timestamp;
+        }
+    };
+
+    /**
+     * A stored event together with the id of its journal record.
+     */
+    private static class IndexedEvent {
+        final long id;
+        final Event event;
+
+        IndexedEvent(final long id, final Event event) {
+            this.id = id;
+            this.event = event;
+        }
+    }
 
     /**
      * Constructs a CountlyStore object.
@@ -74,16 +148,239 @@ public class CountlyStore {
         if (context == null) {
             throw new IllegalArgumentException("must provide valid context");
         }
+        context_ = context;
         preferences_ = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
     }
 
+    /**
+     * Opens the queue journals on first use and migrates queues stored in SharedPreferences
+     * by older SDK versions into them.
+     */
+    private synchronized void openJournals() {
+        if (connections_ == null) {
+            final File directory = journalDirectory();
+            connections_ = new EnumMap<>(RequestLane.class);
+            for (RequestLane lane : RequestLane.values()) {
+                connections_.put(lane, openLane(directory, lane));
+            }
+            events_ = openEvents(directory);
+            deadLetters_ = new QueueJournal(directory, DEAD_LETTERS_JOURNAL);
+            migrateConnectionsJournal(directory);
+            migrateConnectionsPreference();
+            migratePreference(EVENTS_PREFERENCE, events_);
+        }
+    }
+
+    private File journalDirectory() {
+        return new File(context_.getFilesDir(), JOURNAL_DIRECTORY);
+    }
+
+    private PersistentQueue openLane(final File directory, final RequestLane lane) {
+        final PersistentQueue queue = openQueue(connectionBackend_, directory, lane.journalName, CountlyDatabase.REQUESTS_TABLE, lane.ordinal());
+        queue.setDurability(laneDurability(lane), groupCommitWindowMillis_);
+        return queue;
+    }
+
+    private PersistentQueue openEvents(final File directory) {
+        final PersistentQueue queue = openQueue(eventBackend_, directory, EVENTS_JOURNAL, CountlyDatabase.EVENTS_TABLE, 0);
+        queue.setDurability(eventDurability_, groupCommitWindowMillis_);
+        return queue;
+    }
+
+    /**
+     * Crash reports are always written synchronously: the process is usually about to die
+     * when one is queued, and they are rare enough for the cost not to matter.
+     */
+    private Countly.DurabilityMode laneDurability(final RequestLane lane) {
+        return lane == RequestLane.CRASH ? Countly.DurabilityMode.SYNC : connectionDurability_;
+    }
+
+    /**
+     * Opens a queue with the given backend. Items left in the storage of another backend, by
+     * a run with a different configuration, are moved over. If the database cannot be opened,
+     * the queue falls back to a journal.
+     * @param name name of the queue's journal or ring files
+     * @param table CountlyDatabase table of the queue
+     * @param lane lane of the queue's rows in the table
+     */
+    private PersistentQueue openQueue(final Countly.QueueBackend backend, final File directory, final String name, final String table, final int lane) {
+        Countly.QueueBackend opened = backend;
+        PersistentQueue queue;
+        try {
+            queue = openStorage(backend, directory, name, table, lane);
+        } catch (SQLiteException e) {
+            if (Countly.sharedInstance().isLoggingEnabled()) {
+                Log.w(Countly.TAG, "Failed to open " + name + " queue in the database, using a journal instead", e);
+            }
+            opened = Countly.QueueBackend.JOURNAL;
+            queue = openStorage(opened, directory, name, table, lane);
+        }
+        for (Countly.QueueBackend other : Countly.QueueBackend.values()) {
+            if (other != opened && hasStorage(other, directory, name)) {
+                try {
+                    moveInto(openStorage(other, directory, name, table, lane), queue);
+                } catch (SQLiteException e) {
+                    if (Countly.sharedInstance().isLoggingEnabled()) {
+                        Log.w(Countly.TAG, "Failed to move " + name + " queue out of the database", e);
+                    }
+                }
+            }
+        }
+        return queue;
+    }
+
+    private PersistentQueue openStorage(final Countly.QueueBackend backend, final File directory, final String name, final String table, final int lane) {
+        switch (backend) {
+            case MAPPED_RING:
+                return new MappedRingQueue(directory, name);
+            case SQLITE:
+                if (database_ == null) {
+                    database_ = new CountlyDatabase(context_);
+                }
+                return new SQLiteQueue(database_.getWritableDatabase(), table, lane);
+            default:
+                return new QueueJournal(directory, name);
+        }
+    }
+
+    /**
+     * Returns true if the given backend may hold items of a queue. Journals are always
+     * checked, since replaying a journal without files only lists the directory.
+     */
+    private boolean hasStorage(final Countly.QueueBackend backend, final File directory, final String name) {
+        switch (backend) {
+            case MAPPED_RING:
+                return MappedRingQueue.exists(directory, name);
+            case SQLITE:
+                return database_ != null || context_.getDatabasePath(CountlyDatabase.NAME).exists();
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Moves all items of one queue into another. As with {@link #migratePreference}, nothing
+     * is copied unless the target is empty, so a move interrupted after copying does not
+     * queue the items twice.
+     */
+    private static void moveInto(final PersistentQueue from, final PersistentQueue to) {
+        if (!from.isEmpty() && to.isEmpty()) {
+            to.appendAll(Arrays.asList(from.values()));
+        }
+        from.clear();
+    }
+
+    /**
+     * Splits the single connections journal written by older SDK versions into the lanes.
+     */
+    private void migrateConnectionsJournal(final File directory) {
+        final QueueJournal legacy = new QueueJournal(directory, CONNECTIONS_JOURNAL);
+        if (!legacy.isEmpty()) {
+            addConnectionsIfEmpty(legacy.values());
+            legacy.clear();
+        }
+    }
+
+    /**
+     * Splits the delimited connections preference written by older SDK versions into the lanes.
+     */
+    private void migrateConnectionsPreference() {
+        final String joined = preferences_.getString(CONNECTIONS_PREFERENCE, null);
+        if (joined == null) {
+            return;
+        }
+        if (joined.length() > 0) {
+            addConnectionsIfEmpty(joined.split(DELIMITER));
+        }
+        preferences_.edit().remove(CONNECTIONS_PREFERENCE).commit();
+    }
+
+    /**
+     * Queues migrated requests in their lanes, keeping their order within each lane. As with
+     * {@link #migratePreference}, nothing is copied unless all lanes are empty, so a migration
+     * interrupted after copying does not queue the requests twice.
+     */
+    private void addConnectionsIfEmpty(final String[] requests) {
+        for (PersistentQueue journal : connections_.values()) {
+            if (!journal.isEmpty()) {
+                return;
+            }
+        }
+        final EnumMap<RequestLane, List<String>> byLane = new EnumMap<>(RequestLane.class);
+        for (String request : requests) {
+            final RequestLane lane = RequestLane.of(request);
+            List<String> values = byLane.get(lane);
+            if (values == null) {
+                values = new ArrayList<>();
+                byLane.put(lane, values);
+            }
+            values.add(request);
+        }
+        for (Map.Entry<RequestLane, List<String>> entry : byLane.entrySet()) {
+            connections_.get(entry.getKey()).appendAll(entry.getValue());
+        }
+    }
+
+    /**
+     * Moves a legacy delimited queue preference into a journal. Items are only copied into an
+     * empty journal: if the process died after copying but before the preference was removed,
+     * the items are already in the journal and must not be queued twice.
+     */
+    private void migratePreference(final String preference, final PersistentQueue journal) {
+        final String joined = preferences_.getString(preference, null);
+        if (joined == null) {
+            return;
+        }
+        if (joined.length() > 0 && journal.isEmpty()) {
+            journal.appendAll(Arrays.asList(joined.split(DELIMITER)));
+        }
+        preferences_.edit().remove(preference).commit();
+    }
+
+    private PersistentQueue connectionsJournal(final RequestLane lane) {
+        openJournals();
+        return connections_.get(lane);
+    }
+
+    private PersistentQueue eventsJournal() {
+        openJournals();
+        return events_;
+    }
+
     /**
      * 返回没排序的当前存储连接的列表【请求列表】（json串形式）
-     * Returns an unsorted array of the current stored connections.
+     * Returns an array of the current stored connections, highest priority lane first and
+     * in the order they were added within each lane.
      */
     public String[] connections() {
-        final String joinedConnStr = preferences_.getString(CONNECTIONS_PREFERENCE, "");
-        return joinedConnStr.length() == 0 ? new String[0] : joinedConnStr.split(DELIMITER);
+        openJournals();
+        final List<String> all = new ArrayList<>();
+        for (PersistentQueue journal : connections_.values()) {
+            all.addAll(Arrays.asList(journal.values()));
+        }
+        return all.toArray(new String[all.size()]);
+    }
+
+    /**
+     * Returns the oldest stored connections of every lane together with their stable ids,
+     * highest priority lane first. Only looks at the head of each lane, so the cost does not
+     * grow with the size of the queue.
+     * @param maxPerLane maximum number of connections returned per lane
+     */
+    public PersistentQueue.Entry[] peekConnections(final int maxPerLane) {
+        openJournals();
+        final List<PersistentQueue.Entry> head = new ArrayList<>();
+        for (PersistentQueue journal : connections_.values()) {
+            head.addAll(journal.peek(maxPerLane));
+        }
+        return head.toArray(new PersistentQueue.Entry[head.size()]);
+    }
+
+    /**
+     * Returns the current stored connections of a single lane, in the order they were added.
+     */
+    public String[] connections(final RequestLane lane) {
+        return connectionsJournal(lane).values();
     }
 
     /**
@@ -91,36 +388,91 @@ public class CountlyStore {
      * Returns an unsorted array of the current stored event JSON strings.
      */
     public String[] events() {
-        final String joinedEventsStr = preferences_.getString(EVENTS_PREFERENCE, "");
-        return joinedEventsStr.length() == 0 ? new String[0] : joinedEventsStr.split(DELIMITER);
+        return eventsJournal().values();
     }
 
     /**
      * 返回（从入队时间先后顺序升序排列的）事件列表（Object形式）
      * Returns a list of the current stored events, sorted by timestamp from oldest to newest.
      */
-    public List<Event> eventsList() {
-        final String[] array = events();/*先获取事件列表（json串形式）*/
-        final List<Event> events = new ArrayList<>(array.length);
-        for (String s : array) {
-            try {
-                final Event event = Event.fromJSON(new JSONObject(s));
+    public synchronized List<Event> eventsList() {
+        final List<IndexedEvent> index = eventIndex();
+        final List<Event> events = new ArrayList<>(index.size());
+        for (IndexedEvent indexed : index) {
+            events.add(indexed.event);
+        }
+        return events;
+    }
+
+    /**
+     * Returns the stable ids of the stored events, in the order of {@link #eventsList()}.
+     * Equal events can be stored more than once, so removing a specific one takes its id.
+     */
+    synchronized long[] eventIds() {
+        final List<IndexedEvent> index = eventIndex();
+        final long[] ids = new long[index.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = index.get(i).id;
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the event index, parsing the events journal the first time it is needed.
+     * Journal order is insertion order, so the one-off sort is nearly free; afterwards
+     * the index is kept ordered incrementally by {@link #indexEvent(long, Event)}.
+     */
+    private List<IndexedEvent> eventIndex() {
+        if (eventIndex_ == null) {
+            final List<PersistentQueue.Entry> entries = eventsJournal().entries();
+            final List<IndexedEvent> index = new ArrayList<>(entries.size());
+            final List<Long> unreadable = new ArrayList<>();
+            for (PersistentQueue.Entry entry : entries) {
+                Event event = null;
+                try {
+                    event = Event.fromJSON(new JSONObject(entry.value));
+                } catch (JSONException ignored) {
+                    // should not happen since JSONObject is being constructed from previously stringified JSONObject
+                    // events -> json objects -> json strings -> storage -> json strings -> here
+                }
                 if (event != null) {
-                    events.add(event);
+                    index.add(new IndexedEvent(entry.id, event));
+                } else {
+                    unreadable.add(entry.id);
                 }
-            } catch (JSONException ignored) {
-                // should not happen since JSONObject is being constructed from previously stringified JSONObject
-                // events -> json objects -> json strings -> storage -> json strings -> here
             }
+            // order the events from least to most recent
+            Collections.sort(index, TIMESTAMP_ORDER);
+            eventIndex_ = index;
+            unreadableEventIds_ = unreadable;
+        }
+        return eventIndex_;
+    }
+
+    /**
+     * Inserts a newly stored event into the index after all events with the same or an
+     * earlier timestamp. Events are usually recorded in order, so this is an append.
+     */
+    private void indexEvent(final long id, final Event event) {
+        if (id < 0) {
+            // dropped by the journal
+            return;
         }
-        // order the events from least to most recent
-        Collections.sort(events, new Comparator<Event>() {
-            @Override
-            public int compare(final Event e1, final Event e2) {
-                return e1.timestamp - e2.timestamp;
+        if (eventIndex_ == null) {
+            // not loaded yet, the event will be parsed from the journal with the rest
+            return;
+        }
+        int low = 0;
+        int high = eventIndex_.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (eventIndex_.get(mid).event.timestamp <= event.timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
             }
-        });
-        return events;
+        }
+        eventIndex_.add(low, new IndexedEvent(id, event));
     }
 
     /**
@@ -129,7 +481,20 @@ public class CountlyStore {
      * Returns true if no connections are current stored, false otherwise.
      */
     public boolean isEmptyConnections() {
-        return preferences_.getString(CONNECTIONS_PREFERENCE, "").length() == 0;
+        openJournals();
+        for (PersistentQueue journal : connections_.values()) {
+            if (!journal.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if no connections of the given lane are currently stored.
+     */
+    public boolean isEmptyConnections(final RequestLane lane) {
+        return connectionsJournal(lane).isEmpty();
     }
 
     /**
@@ -140,10 +505,252 @@ public class CountlyStore {
      */
     public synchronized void addConnection(final String str) {
         if (str != null && str.length() > 0) {
-            final List<String> connections = new ArrayList<>(Arrays.asList(connections()));/*String[] --> List<String>*/
-            connections.add(str);
-            preferences_.edit().putString(CONNECTIONS_PREFERENCE, join(connections, DELIMITER)).commit();
+            final RequestLane lane = RequestLane.of(str);
+            if (makeRoom(lane, connectionsJournal(lane).sizeOf(str))) {
+                connectionsJournal(lane).append(str);
+            }
+        }
+    }
+
+    /**
+     * Selects how the connection queue is stored. Connections stored with another backend are
+     * moved over when the queue is opened. The backend cannot be changed once the queue is
+     * open: the move gives every connection a new id, while a running ConnectionProcessor
+     * still removes connections by the ids it peeked.
+     * @param backend JOURNAL for append-only journal files, MAPPED_RING for a memory-mapped
+     *                ring file per lane, SQLITE for the requests table of the SDK's database
+     * @throws IllegalArgumentException if backend is null
+     * @throws IllegalStateException if the queue is already open with another backend
+     */
+    synchronized void setConnectionBackend(final Countly.QueueBackend backend) {
+        if (backend == null) {
+            throw new IllegalArgumentException("backend must not be null");
+        }
+        if (backend == connectionBackend_) {
+            return;
+        }
+        if (connections_ != null) {
+            throw new IllegalStateException("connection backend cannot be changed once the store is open");
+        }
+        connectionBackend_ = backend;
+    }
+
+    /**
+     * Selects how the event queue is stored. Events stored with another backend are moved
+     * over when the queue is opened. The backend cannot be changed once the queue is open:
+     * the move gives every event a new id, while the EventQueue still removes the events it
+     * persisted by their old ids.
+     * @param backend JOURNAL for an append-only journal, MAPPED_RING for a memory-mapped ring
+     *                file, SQLITE for the events table of the SDK's database
+     * @throws IllegalArgumentException if backend is null
+     * @throws IllegalStateException if the queue is already open with another backend
+     */
+    synchronized void setEventBackend(final Countly.QueueBackend backend) {
+        if (backend == null) {
+            throw new IllegalArgumentException("backend must not be null");
+        }
+        if (backend == eventBackend_) {
+            return;
+        }
+        if (events_ != null) {
+            throw new IllegalStateException("event backend cannot be changed once the store is open");
+        }
+        eventBackend_ = backend;
+    }
+
+    /**
+     * Selects when queued connections are flushed to disk. Crash reports stay SYNC whatever
+     * the mode.
+     * @param groupCommitWindowMillis how long GROUP_COMMIT collects writes before flushing them
+     * @throws IllegalArgumentException if mode is null
+     */
+    synchronized void setConnectionDurability(final Countly.DurabilityMode mode, final long groupCommitWindowMillis) {
+        if (mode == null) {
+            throw new IllegalArgumentException("mode must not be null");
+        }
+        connectionDurability_ = mode;
+        groupCommitWindowMillis_ = groupCommitWindowMillis;
+        if (connections_ != null) {
+            for (RequestLane lane : RequestLane.values()) {
+                connections_.get(lane).setDurability(laneDurability(lane), groupCommitWindowMillis);
+            }
+        }
+    }
+
+    /**
+     * Selects when queued events are flushed to disk.
+     * @param groupCommitWindowMillis how long GROUP_COMMIT collects writes before flushing them
+     * @throws IllegalArgumentException if mode is null
+     */
+    synchronized void setEventDurability(final Countly.DurabilityMode mode, final long groupCommitWindowMillis) {
+        if (mode == null) {
+            throw new IllegalArgumentException("mode must not be null");
+        }
+        eventDurability_ = mode;
+        groupCommitWindowMillis_ = groupCommitWindowMillis;
+        if (events_ != null) {
+            events_.setDurability(mode, groupCommitWindowMillis);
+        }
+    }
+
+    /**
+     * Sets the limits of the connection queue and what to do with connections over them.
+     * Connections of a lower priority lane are always dropped before those of a higher one,
+     * and a new connection is dropped if everything queued has a higher priority.
+     * @param maxCount maximum number of queued connections across all lanes
+     * @param maxBytes maximum size of the queued connections on disk across all lanes
+     * @param overflowPolicy which connection of a lane is dropped: DROP_OLDEST the oldest one,
+     *                       DROP_NEWEST the newest one, SAMPLE a random one, so the queue keeps
+     *                       an even sample of a long offline period
+     * @throws IllegalArgumentException if a limit is not greater than zero or overflowPolicy is null
+     */
+    synchronized void setConnectionLimits(final int maxCount, final long maxBytes, final Countly.QueueOverflowPolicy overflowPolicy) {
+        if (maxCount < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("limits must be greater than zero");
+        }
+        if (overflowPolicy == null) {
+            throw new IllegalArgumentException("overflowPolicy must not be null");
+        }
+        maxConnections_ = maxCount;
+        maxConnectionBytes_ = maxBytes;
+        connectionOverflowPolicy_ = overflowPolicy;
+    }
+
+    /**
+     * Drops queued connections according to the overflow policy until a new connection of
+     * the given lane and size fits into the limits.
+     * @return false if the new connection has to be dropped instead
+     */
+    private boolean makeRoom(final RequestLane lane, final int size) {
+        openJournals();
+        int count = 0;
+        long bytes = 0;
+        for (PersistentQueue journal : connections_.values()) {
+            count += journal.size();
+            bytes += journal.liveBytes();
+        }
+        int dropped = 0;
+        boolean accepted = size <= maxConnectionBytes_;
+        while (accepted && (count + 1 > maxConnections_ || bytes + size > maxConnectionBytes_)) {
+            RequestLane victimLane = null;
+            for (RequestLane candidate : RequestLane.values()) {
+                if (!connections_.get(candidate).isEmpty()) {
+                    victimLane = candidate;
+                }
+            }
+            if (victimLane == null || victimLane.ordinal() < lane.ordinal()) {
+                // everything queued is more important than the new connection
+                accepted = false;
+                break;
+            }
+            final PersistentQueue journal = connections_.get(victimLane);
+            final PersistentQueue.Entry victim;
+            if (connectionOverflowPolicy_ == Countly.QueueOverflowPolicy.DROP_OLDEST) {
+                victim = journal.head();
+            } else {
+                // the new connection is a candidate as well if it goes into the same lane
+                final int candidates = journal.size() + (victimLane == lane ? 1 : 0);
+                final int index = connectionOverflowPolicy_ == Countly.QueueOverflowPolicy.DROP_NEWEST
+                        ? candidates - 1 : random_.nextInt(candidates);
+                if (index == journal.size()) {
+                    accepted = false;
+                    break;
+                }
+                // look the victim up directly instead of copying the whole lane on every add
+                victim = index == journal.size() - 1 ? journal.tail() : journal.at(index);
+            }
+            journal.remove(victim.id);
+            count--;
+            bytes -= victim.size;
+            dropped++;
+        }
+        if (!accepted) {
+            dropped++;
+        }
+        if (dropped > 0) {
+            if (Countly.sharedInstance().isLoggingEnabled()) {
+                Log.w(Countly.TAG, "Connection queue is full, dropped " + dropped + " connection(s)");
+            }
+            addDropped(DROPPED_CONNECTIONS_PREFERENCE, dropped);
+        }
+        return accepted;
+    }
+
+    /**
+     * Counts events dropped because the event queue was full, to be reported to the server.
+     */
+    public synchronized void addDroppedEvents(final int count) {
+        addDropped(DROPPED_EVENTS_PREFERENCE, count);
+    }
+
+    /**
+     * Returns the number of connections dropped because the queue was full and not yet
+     * reported to the server.
+     */
+    public synchronized int droppedConnections() {
+        return preferences_.getInt(DROPPED_CONNECTIONS_PREFERENCE, 0);
+    }
+
+    /**
+     * Returns the number of events dropped because the queue was full and not yet
+     * reported to the server.
+     */
+    public synchronized int droppedEvents() {
+        return preferences_.getInt(DROPPED_EVENTS_PREFERENCE, 0);
+    }
+
+    /**
+     * Subtracts dropped items the server has been told about from the counters. Items dropped
+     * while the report was on its way stay counted for the next one.
+     */
+    public synchronized void clearDropped(final int connections, final int events) {
+        final SharedPreferences.Editor prefsEditor = preferences_.edit();
+        prefsEditor.putInt(DROPPED_CONNECTIONS_PREFERENCE, Math.max(0, droppedConnections() - connections));
+        prefsEditor.putInt(DROPPED_EVENTS_PREFERENCE, Math.max(0, droppedEvents() - events));
+        prefsEditor.commit();
+    }
+
+    private void addDropped(final String preference, final int count) {
+        preferences_.edit().putInt(preference, preferences_.getInt(preference, 0) + count).commit();
+    }
+
+    /**
+     * Counts a failed submission of a stored connection. The counter is persisted next to the
+     * connection, so it survives restarts.
+     * @param lane lane of the connection that failed
+     * @param id stable id of the connection, as returned by {@link #peekConnections(int)}
+     * @return number of failed submissions so far, or -1 if the connection is not stored
+     */
+    public synchronized int recordConnectionAttempt(final RequestLane lane, final long id) {
+        return connectionsJournal(lane).recordAttempt(id);
+    }
+
+    /**
+     * Moves a connection the server will never accept out of the queue into the dead-letter
+     * queue, which keeps the last MAX_DEAD_LETTERS of them for inspection.
+     * @param lane lane of the connection to be quarantined
+     * @param id stable id of the connection, ignored if it is not stored
+     */
+    public synchronized void quarantineConnection(final RequestLane lane, final long id) {
+        final PersistentQueue journal = connectionsJournal(lane);
+        final PersistentQueue.Entry entry = journal.get(id);
+        if (entry == null) {
+            return;
         }
+        deadLetters_.append(entry.value);
+        final int excess = deadLetters_.size() - MAX_DEAD_LETTERS;
+        if (excess > 0) {
+            deadLetters_.removeHead(excess);
+        }
+        journal.remove(id);
+    }
+
+    /**
+     * Returns the quarantined connections, oldest first.
+     */
+    public String[] deadLetters() {
+        openJournals();
+        return deadLetters_.values();
     }
 
     /**
@@ -154,23 +761,52 @@ public class CountlyStore {
      */
     public synchronized void removeConnection(final String str) {
         if (str != null && str.length() > 0) {
-            final List<String> connections = new ArrayList<>(Arrays.asList(connections()));
-            if (connections.remove(str)) {
-                preferences_.edit().putString(CONNECTIONS_PREFERENCE, join(connections, DELIMITER)).commit();
-            }
+            connectionsJournal(RequestLane.of(str)).removeFirst(str);
         }
     }
 
+    /**
+     * Removes the connections of a lane up to and including the one with the given id, which
+     * after a successful submission are the ones at the head of the lane. Costs a single small
+     * write to disk however many connections are removed.
+     * @param lane lane of the submitted connections
+     * @param id stable id of the last submitted connection, as returned by
+     *           {@link #peekConnections(int)}
+     * @return number of connections removed
+     */
+    public synchronized int removeConnectionsThrough(final RequestLane lane, final long id) {
+        return connectionsJournal(lane).removeThrough(id);
+    }
+
     /**
      * 添加一个事件到本地
      *
      * Adds a custom event to the local store.
      * @param event event to be added to the local store, must not be null
      */
-    void addEvent(final Event event) {
-        final List<Event> events = eventsList();
-        events.add(event);
-        preferences_.edit().putString(EVENTS_PREFERENCE, joinEvents(events, DELIMITER)).commit();
+    synchronized void addEvent(final Event event) {
+        indexEvent(eventsJournal().append(eventWriter_.toJSON(event)), event);
+    }
+
+    /**
+     * Adds a batch of custom events to the local store with a single journal write.
+     * @param events events to be added to the local store, ignored if null or empty
+     * @return stable ids of the stored events, in iteration order of the collection
+     */
+    synchronized long[] addEvents(final Collection<Event> events) {
+        if (events == null || events.size() == 0) {
+            return new long[0];
+        }
+        final List<String> values = new ArrayList<>(events.size());
+        for (Event event : events) {
+            values.add(eventWriter_.toJSON(event));
+        }
+        final long[] ids = eventsJournal().appendAll(values);
+        int i = 0;
+        for (Event event : events) {
+            indexEvent(ids[i++], event);
+        }
+        return ids;
     }
 
     /**
@@ -228,10 +864,58 @@ public class CountlyStore {
      */
     public synchronized void removeEvents(final Collection<Event> eventsToRemove) {
         if (eventsToRemove != null && eventsToRemove.size() > 0) {
-            final List<Event> events = eventsList();
-            if (events.removeAll(eventsToRemove)) {
-                preferences_.edit().putString(EVENTS_PREFERENCE, joinEvents(events, DELIMITER)).commit();
+            final Set<Event> toRemove = new HashSet<>(eventsToRemove);
+            final List<IndexedEvent> index = eventIndex();
+            final List<IndexedEvent> kept = new ArrayList<>(index.size());
+            final long[] ids = new long[index.size() + unreadableEventIds_.size()];
+            int count = 0;
+            for (IndexedEvent indexed : index) {
+                if (toRemove.contains(indexed.event)) {
+                    ids[count++] = indexed.id;
+                } else {
+                    kept.add(indexed);
+                }
+            }
+            // unreadable, drop them together with the submitted events
+            for (Long id : unreadableEventIds_) {
+                ids[count++] = id;
+            }
+            unreadableEventIds_.clear();
+            eventIndex_ = kept;
+            if (count > 0) {
+                eventsJournal().removeAll(Arrays.copyOf(ids, count));
+            }
+        }
+    }
+
+    /**
+     * Removes the events with the given ids from the local store, as returned by
+     * {@link #addEvents(Collection)} or {@link #eventIds()}. Unlike
+     * {@link #removeEvents(Collection)}, equal events stored under other ids are kept.
+     * @param ids ids of the events to remove, ignored if null or empty
+     */
+    synchronized void removeEvents(final long[] ids) {
+        if (ids != null && ids.length > 0) {
+            final Set<Long> toRemove = new HashSet<>(ids.length);
+            for (long id : ids) {
+                toRemove.add(id);
             }
+            final List<IndexedEvent> index = eventIndex();
+            final List<IndexedEvent> kept = new ArrayList<>(index.size());
+            for (IndexedEvent indexed : index) {
+                if (!toRemove.contains(indexed.id)) {
+                    kept.add(indexed);
+                }
+            }
+            eventIndex_ = kept;
+            // unreadable, drop them together with the submitted events
+            final long[] removed = Arrays.copyOf(ids, ids.length + unreadableEventIds_.size());
+            int count = ids.length;
+            for (Long id : unreadableEventIds_) {
+                removed[count++] = id;
+            }
+            unreadableEventIds_.clear();
+            eventsJournal().removeAll(removed);
         }
     }
 
@@ -245,9 +929,10 @@ public class CountlyStore {
      * @param delimiter delimiter to use, should not be something that can be found in URL-encoded JSON string
      */
     static String joinEvents(final Collection<Event> collection, final String delimiter) {
+        final EventWriter writer = new EventWriter();
         final List<String> strings = new ArrayList<>();
         for (Event e : collection) {
-            strings.add(e.toJSON().toString());
+            strings.add(writer.toJSON(e));
         }
         return join(strings, delimiter);
     }
@@ -294,9 +979,19 @@ public class CountlyStore {
 
     // for unit testing
     synchronized void clear() {
+        openJournals();
+        for (PersistentQueue journal : connections_.values()) {
+            journal.clear();
+        }
+        deadLetters_.clear();
+        eventsJournal().clear();
+        eventIndex_ = null;
+        unreadableEventIds_ = null;
         final SharedPreferences.Editor prefsEditor = preferences_.edit();
         prefsEditor.remove(EVENTS_PREFERENCE);
         prefsEditor.remove(CONNECTIONS_PREFERENCE);
+        prefsEditor.remove(DROPPED_CONNECTIONS_PREFERENCE);
+        prefsEditor.remove(DROPPED_EVENTS_PREFERENCE);
         prefsEditor.commit();
     }
 }
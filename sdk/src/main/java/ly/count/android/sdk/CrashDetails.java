@@ -44,7 +44,6 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.regex.Matcher;
@@ -58,11 +57,17 @@ import java.util.regex.Pattern;
  *
  */
 class CrashDetails {
-    private static ArrayList<String> logs = new ArrayList<String>();
+    private static volatile CrashLogBuffer logs = new CrashLogBuffer();
     private static int startTime = Countly.currentTimestamp();
     private static Map<String,String> customSegments = null;
     private static boolean inBackground = true;
-    private static long totalMemory = 0;
+    private static volatile long totalMemory = 0;
+    private static final Pattern NUMBER = Pattern.compile("(\\d+)");
+
+    // URL-encoded crash report fields that do not change while the process runs, built ahead of
+    // any crash by prepareStaticData(); guarded by CrashDetails.class
+    private static String staticData_;
+    private static int staticDataGeneration_;
 
     private static long getTotalRAM() {
         if(totalMemory == 0) {
@@ -73,8 +78,7 @@ class CrashDetails {
                 load = reader.readLine();
 
                 // Get the Number value from the string
-                Pattern p = Pattern.compile("(\\d+)");
-                Matcher m = p.matcher(load);
+                Matcher m = NUMBER.matcher(load);
                 String value = "";
                 while (m.find()) {
                     value = m.group(1);
@@ -85,6 +89,8 @@ class CrashDetails {
                     totalMemory = 0;
                 }
             } catch (IOException ex) {
+                ex.printStackTrace();
+            } finally {
                 try {
                     if(reader != null) {
                         reader.close();
@@ -92,7 +98,6 @@ class CrashDetails {
                 } catch (IOException exc) {
                     exc.printStackTrace();
                 }
-                ex.printStackTrace();
             }
         }
         return totalMemory;
@@ -121,7 +126,14 @@ class CrashDetails {
     }
 
     /**
-     * Adds a record in the log
+     * Returns app background state, for the crash spool.
+     */
+    static boolean isBackground() {
+        return inBackground;
+    }
+
+    /**
+     * Adds a record in the log, dropping the oldest records once the log limits are reached
      */
     static void addLog(String record) {
         logs.add(record);
@@ -130,17 +142,36 @@ class CrashDetails {
     /**
      * 返回收集的log
      *
-     * Returns the collected logs.
+     * Returns the logs collected since the previous crash report.
      */
     static String getLogs() {
-        StringBuilder allLogs = new StringBuilder();
+        return logs.snapshot();
+    }
 
-        for (String s : logs)
-        {
-            allLogs.append(s + "\n");
+    /**
+     * Returns the log buffer itself, so the crash spool can read the records without
+     * allocating.
+     */
+    static CrashLogBuffer getLogBuffer() {
+        return logs;
+    }
+
+    /**
+     * Replaces the log buffer with one with the given limits, keeping the newest records that
+     * were not sent yet.
+     * @throws IllegalArgumentException if a limit is not greater than zero
+     */
+    static synchronized void setLogLimits(final int maxCount, final int maxBytes) {
+        final CrashLogBuffer resized = new CrashLogBuffer(maxCount, maxBytes);
+        final CrashLogBuffer current = logs;
+        final long head = current.head();
+        for (long sequence = current.first(head); sequence < head; sequence++) {
+            final String record = current.get(sequence);
+            if (record != null) {
+                resized.add(record);
+            }
         }
-        logs.clear();
-        return allLogs.toString();
+        logs = resized;
     }
 
     /**
@@ -284,7 +315,14 @@ class CrashDetails {
      * Get app's running time before crashing.
      */
     static String getRunningTime() {
-        return Integer.toString(Countly.currentTimestamp() - startTime);
+        return Integer.toString(getRunningSeconds());
+    }
+
+    /**
+     * Get app's running time in seconds, for the crash spool.
+     */
+    static int getRunningSeconds() {
+        return Countly.currentTimestamp() - startTime;
     }
 
     /**
@@ -357,17 +395,50 @@ class CrashDetails {
     }
 
     /**
-     * Returns a URL-encoded JSON string containing the device crash report
-     * See the following link for more info:
-     * http://resources.count.ly/v1.0/docs/i
+     * Builds the crash report fields that do not change while the process runs and keeps them
+     * for the next crash report: reading /proc/meminfo, the OpenGL version, disk size and the
+     * root check are too slow to do inside the uncaught exception handler. Call it off the main
+     * thread.
      */
-    static String getCrashData(final Context context, String error, Boolean nonfatal) {
-        final JSONObject json = new JSONObject();
+    static void prepareStaticData(final Context context) {
+        final int generation;
+        synchronized (CrashDetails.class) {
+            if (staticData_ != null) {
+                return;
+            }
+            generation = staticDataGeneration_;
+        }
+        final String data = buildStaticData(context);
+        synchronized (CrashDetails.class) {
+            // not kept if it was invalidated while being built, it may be stale already
+            if (generation == staticDataGeneration_) {
+                staticData_ = data;
+            }
+        }
+    }
 
+    /**
+     * Returns true if the static fields are ready for the next crash report.
+     */
+    static synchronized boolean hasStaticData() {
+        return staticData_ != null;
+    }
+
+    /**
+     * Drops the static fields after a configuration change, which may change the resolution.
+     */
+    static synchronized void invalidateStaticData() {
+        staticData_ = null;
+        staticDataGeneration_++;
+    }
+
+    /**
+     * Returns the static fields as URL-encoded members of a JSON object, without the
+     * surrounding braces, so they can be spliced into a crash report as they are.
+     */
+    static String buildStaticData(final Context context) {
+        final JSONObject json = new JSONObject();
         fillJSONIfValuesNotEmpty(json,
-                "_error", error,
-                "_nonfatal", Boolean.toString(nonfatal),
-                "_logs", getLogs(),
                 "_device", DeviceInfo.getDevice(),
                 "_os", DeviceInfo.getOS(),
                 "_os_version", DeviceInfo.getOSVersion(),
@@ -376,14 +447,46 @@ class CrashDetails {
                 "_manufacture", getManufacturer(),
                 "_cpu", getCpu(),
                 "_opengl", getOpenGL(context),
-                "_ram_current", getRamCurrent(context),
                 "_ram_total", getRamTotal(context),
-                "_disk_current", getDiskCurrent(),
                 "_disk_total", getDiskTotal(),
+                "_root", isRooted()
+                );
+        final String members = json.toString();
+        return urlEncode(members.substring(1, members.length() - 1));
+    }
+
+    /**
+     * Returns a URL-encoded JSON string containing the device crash report
+     * See the following link for more info:
+     * http://resources.count.ly/v1.0/docs/i
+     *
+     * Only the fields that change while the process runs are read here, the others are
+     * taken from prepareStaticData(), or built now if they are not ready.
+     */
+    static String getCrashData(final Context context, String error, Boolean nonfatal) {
+        return getCrashData(context, error, nonfatal, null, 1);
+    }
+
+    /**
+     * Returns a URL-encoded JSON string containing the device crash report, for a crash that
+     * stands for several occurrences of the same stack trace.
+     * @param fingerprint fingerprint of the stack trace, null if not known
+     * @param occurrences number of occurrences the report stands for
+     */
+    static String getCrashData(final Context context, String error, Boolean nonfatal, final String fingerprint, final int occurrences) {
+        final JSONObject json = new JSONObject();
+
+        fillJSONIfValuesNotEmpty(json,
+                "_error", error,
+                "_nonfatal", Boolean.toString(nonfatal),
+                "_fingerprint", fingerprint,
+                "_occurrences", fingerprint == null ? null : Integer.toString(occurrences),
+                "_logs", getLogs(),
+                "_ram_current", getRamCurrent(context),
+                "_disk_current", getDiskCurrent(),
                 "_bat", getBatteryLevel(context),
                 "_run", getRunningTime(),
                 "_orientation", getOrientation(context),
-                "_root", isRooted(),
                 "_online", isOnline(context),
                 "_muted", isMuted(context),
                 "_background", isInBackground()
@@ -394,15 +497,67 @@ class CrashDetails {
         } catch (JSONException e) {
             //no custom segments
         }
-        String result = json.toString();
+
+        String staticData;
+        synchronized (CrashDetails.class) {
+            staticData = staticData_;
+        }
+        if (staticData == null) {
+            staticData = buildStaticData(context);
+        }
+
+        // "_nonfatal" is always there, so the sampled fields never leave an empty object
+        final String sampled = json.toString();
+        if (staticData.length() == 0) {
+            return urlEncode(sampled);
+        }
+        return urlEncode("{") + staticData + urlEncode(",") + urlEncode(sampled.substring(1));
+    }
+
+    /**
+     * Returns a URL-encoded JSON string containing the crash report of a crash read back from
+     * the crash spool. Only what was spooled with the crash and the static fields are sent: the
+     * other fields sampled now would describe this run rather than the one that crashed.
+     */
+    static String getSpooledCrashData(final Context context, final CrashSpool.Report report) {
+        final JSONObject json = new JSONObject();
+
+        fillJSONIfValuesNotEmpty(json,
+                "_error", report.error,
+                "_nonfatal", Boolean.toString(false),
+                "_logs", report.logs,
+                "_run", Integer.toString(report.runSeconds),
+                "_background", Boolean.toString(report.background)
+                );
 
         try {
-            result = java.net.URLEncoder.encode(result, "UTF-8");
+            json.put("_custom", getCustomSegments());
+        } catch (JSONException e) {
+            //no custom segments
+        }
+
+        String staticData;
+        synchronized (CrashDetails.class) {
+            staticData = staticData_;
+        }
+        if (staticData == null) {
+            staticData = buildStaticData(context);
+        }
+
+        final String spooled = json.toString();
+        if (staticData.length() == 0) {
+            return urlEncode(spooled);
+        }
+        return urlEncode("{") + staticData + urlEncode(",") + urlEncode(spooled.substring(1));
+    }
+
+    private static String urlEncode(final String value) {
+        try {
+            return java.net.URLEncoder.encode(value, "UTF-8");
         } catch (UnsupportedEncodingException ignored) {
             // should never happen because Android guarantees UTF-8 support
+            return value;
         }
-
-        return result;
     }
 
     /**
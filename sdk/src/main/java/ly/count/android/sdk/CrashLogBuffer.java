@@ -0,0 +1,250 @@
+/*
+Copyright (c) 2012, 2013, 2014 Countly
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package ly.count.android.sdk;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Ring of the most recent crash log records (breadcrumbs), limited both by number of records
+ * and by their total UTF-8 size, so memory use stays the same however much an app logs.
+ *
+ * Records get increasing sequence numbers and go into slot (sequence % capacity), so a new
+ * record overwrites the one a full lap older. Adding a record takes no lock: the slot is
+ * claimed with a compare-and-set, and when the records exceed the byte limit the oldest ones
+ * are evicted the same way. A record longer than the byte limit is cut off.
+ *
+ * Every crash report carries the records added since the previous report. Taking a snapshot
+ * only moves a consumed mark up to the last record it contains, so a record added while the
+ * snapshot is taken is sent with the next report instead of being cleared unseen.
+ */
+class CrashLogBuffer {
+    /**
+     * Default number of records kept.
+     */
+    static final int DEFAULT_MAX_COUNT = 100;
+
+    /**
+     * Default limit for the total UTF-8 size of the records kept.
+     */
+    static final int DEFAULT_MAX_BYTES = 16 * 1024;
+
+    private static class Record {
+        final long sequence;
+        final String text;
+        final int bytes;
+
+        Record(final long sequence, final String text, final int bytes) {
+            this.sequence = sequence;
+            this.text = text;
+            this.bytes = bytes;
+        }
+    }
+
+    private final int maxCount_;
+    private final int maxBytes_;
+    // slots of evicted records keep their sequence number with a null text
+    private final AtomicReferenceArray<Record> slots_;
+    // sequence number of the next record
+    private final AtomicLong head_ = new AtomicLong();
+    // records below this sequence number were evicted to stay within the byte limit
+    private final AtomicLong tail_ = new AtomicLong();
+    // records below this sequence number were sent with a crash report already
+    private final AtomicLong consumed_ = new AtomicLong();
+    private final AtomicLong bytes_ = new AtomicLong();
+
+    CrashLogBuffer() {
+        this(DEFAULT_MAX_COUNT, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxCount maximum number of records kept
+     * @param maxBytes maximum total UTF-8 size of the records kept
+     * @throws IllegalArgumentException if a limit is not greater than zero
+     */
+    CrashLogBuffer(final int maxCount, final int maxBytes) {
+        if (maxCount < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("limits must be greater than zero");
+        }
+        maxCount_ = maxCount;
+        maxBytes_ = maxBytes;
+        slots_ = new AtomicReferenceArray<>(maxCount);
+    }
+
+    int maxCount() {
+        return maxCount_;
+    }
+
+    int maxBytes() {
+        return maxBytes_;
+    }
+
+    /**
+     * Adds a record, evicting the oldest ones if the limits are exceeded.
+     */
+    void add(final String text) {
+        if (text == null) {
+            return;
+        }
+        final String kept = truncate(text, maxBytes_);
+        final Record record = new Record(head_.getAndIncrement(), kept, utf8Length(kept));
+        final int slot = slot(record.sequence);
+        while (true) {
+            final Record current = slots_.get(slot);
+            if (current != null && current.sequence > record.sequence) {
+                // a writer a full lap ahead got here first, this record is too old to keep
+                return;
+            }
+            if (slots_.compareAndSet(slot, current, record)) {
+                bytes_.addAndGet(record.bytes - (current == null ? 0 : current.bytes));
+                break;
+            }
+        }
+        while (bytes_.get() > maxBytes_) {
+            final long current = tail_.get();
+            // records more than a lap older than this one are overwritten already
+            final long tail = Math.max(current, record.sequence - maxCount_ + 1);
+            if (tail >= record.sequence) {
+                // nothing older than this record is left, it fits on its own
+                break;
+            }
+            if (tail_.compareAndSet(current, tail + 1)) {
+                final Record oldest = slots_.get(slot(tail));
+                // a record without text rather than null, which would look like a pending one
+                if (oldest != null && oldest.sequence == tail && oldest.text != null
+                        && slots_.compareAndSet(slot(tail), oldest, new Record(tail, null, 0))) {
+                    bytes_.addAndGet(-oldest.bytes);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the sequence number the next record will get; the records of a snapshot are
+     * those from {@link #first(long)} up to, but not including, this number.
+     */
+    long head() {
+        return head_.get();
+    }
+
+    /**
+     * Returns the sequence number of the oldest record that is kept and not yet consumed.
+     * @param head value of {@link #head()} the snapshot is taken at
+     */
+    long first(final long head) {
+        return Math.max(Math.max(tail_.get(), consumed_.get()), head - maxCount_);
+    }
+
+    /**
+     * Returns the record with the given sequence number, or null if it was evicted or overwritten.
+     */
+    String get(final long sequence) {
+        final Record record = slots_.get(slot(sequence));
+        return record != null && record.sequence == sequence ? record.text : null;
+    }
+
+    /**
+     * Returns the records not sent yet, oldest first, each followed by a newline, and marks
+     * them as sent.
+     */
+    String snapshot() {
+        final long head = head_.get();
+        final StringBuilder logs = new StringBuilder();
+        long sequence = first(head);
+        for (; sequence < head; sequence++) {
+            final Record record = slots_.get(slot(sequence));
+            if (record == null || record.sequence < sequence) {
+                // its writer has not stored it yet, leave it and what follows to the next snapshot
+                break;
+            }
+            if (record.sequence == sequence && record.text != null) {
+                logs.append(record.text).append('\n');
+            }
+        }
+        while (true) {
+            final long consumed = consumed_.get();
+            if (consumed >= sequence || consumed_.compareAndSet(consumed, sequence)) {
+                break;
+            }
+        }
+        return logs.toString();
+    }
+
+    private int slot(final long sequence) {
+        return (int) (sequence % maxCount_);
+    }
+
+    /**
+     * Returns the number of bytes the string takes up in UTF-8.
+     */
+    static int utf8Length(final String s) {
+        int bytes = 0;
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Cuts the string off so it takes up at most maxBytes in UTF-8, without splitting a
+     * surrogate pair.
+     */
+    static String truncate(final String s, final int maxBytes) {
+        if (s.length() * 3 <= maxBytes) {
+            return s;
+        }
+        int bytes = 0;
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            final int size;
+            if (c < 0x80) {
+                size = 1;
+            } else if (c < 0x800) {
+                size = 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                size = 4;
+            } else {
+                size = 3;
+            }
+            if (bytes + size > maxBytes) {
+                return s.substring(0, i);
+            }
+            bytes += size;
+            if (size == 4) {
+                i++;
+            }
+        }
+        return s;
+    }
+}
@@ -0,0 +1,398 @@
+/*
+Copyright (c) 2012, 2013, 2014 Countly
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package ly.count.android.sdk;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * Crash spool: a file with room for one crash report, written by the uncaught exception
+ * handler before anything else and read back on the next launch.
+ *
+ * Building and queueing a full crash report inside the handler can fail when the crash is an
+ * OutOfMemoryError or the process is killed before it is done, and the crash is then lost. The
+ * spool file is created and sized, and its buffer allocated, when crash reporting is enabled;
+ * the handler encodes the stack trace and breadcrumbs straight into that buffer, without
+ * building strings, and writes it with a single write and sync. Once the full report has been
+ * queued the spool is cleared again, so the next launch only finds a crash whose report did
+ * not make it into the request queue.
+ *
+ * The file holds a header and one record:
+ * <pre>
+ * magic(4) length(4) crc(4) timestamp(4) run(4) background(1) errorLength(4) error logs
+ * </pre>
+ * where length and the CRC cover everything after the CRC, and error and logs are UTF-8.
+ * The stack trace goes first so that breadcrumbs can never crowd it out; they are guaranteed
+ * a quarter of the record and otherwise get whatever space the trace leaves, newest first.
+ */
+class CrashSpool {
+    static final int DEFAULT_CAPACITY = 64 * 1024;
+    static final String FILE_NAME = "crash.spool";
+
+    private static final int MAGIC = 0x434c5943; // "CLYC"
+    private static final int HEADER_SIZE = 12;
+    private static final int FIXED_SIZE = 4 + 4 + 1 + 4; // timestamp, run, background, errorLength
+    private static final int MAX_CAUSES = 8;
+    // breadcrumbs can claim up to 1/LOGS_SHARE of the record before the trace is written
+    private static final int LOGS_SHARE = 4;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * A crash read back from the spool.
+     */
+    static class Report {
+        final int timestamp;
+        final int runSeconds;
+        final boolean background;
+        final String logs;
+        final String error;
+
+        Report(final int timestamp, final int runSeconds, final boolean background, final String logs, final String error) {
+            this.timestamp = timestamp;
+            this.runSeconds = runSeconds;
+            this.background = background;
+            this.logs = logs;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Returns the spool file of the app, next to the queue journals.
+     */
+    static File file(final Context context) {
+        return new File(new File(context.getFilesDir(), CountlyStore.JOURNAL_DIRECTORY), FILE_NAME);
+    }
+
+    private final File file_;
+    private final RandomAccessFile raf_;
+    private final byte[] buffer_;
+    private final CRC32 crc_ = new CRC32();
+    private final Throwable[] causes_ = new Throwable[MAX_CAUSES];
+    private int position_;
+    // end of the buffer region putChars() may write to
+    private int limit_;
+
+    /**
+     * Opens the spool file, creating it with room for a record of the given size. A record
+     * left by a previous run is kept until {@link #read()} and {@link #clear()}.
+     * @param capacity maximum size of a record, longer traces are cut off
+     * @throws IOException if the file cannot be created
+     */
+    CrashSpool(final File file, final int capacity) throws IOException {
+        final File directory = file.getParentFile();
+        if (directory != null && !directory.exists() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+        file_ = file;
+        buffer_ = new byte[HEADER_SIZE + capacity];
+        raf_ = new RandomAccessFile(file, "rw");
+        if (raf_.length() < buffer_.length) {
+            raf_.setLength(buffer_.length);
+        }
+    }
+
+    /**
+     * Writes a crash to the spool, replacing any previous one, and syncs it to disk. Meant to be
+     * called from the uncaught exception handler: nothing but the stack trace arrays of the
+     * throwable is allocated, and a trace that does not fit is cut off.
+     * @param logs breadcrumbs to store along with the crash, read without being marked as sent;
+     *             the oldest ones are left out if they do not fit
+     * @return true if the crash is on disk
+     */
+    synchronized boolean write(final Throwable throwable, final int timestamp, final int runSeconds, final boolean background, final CrashLogBuffer logs) {
+        try {
+            position_ = HEADER_SIZE;
+            putInt(timestamp);
+            putInt(runSeconds);
+            buffer_[position_++] = (byte) (background ? 1 : 0);
+            final int errorLengthAt = position_;
+            position_ += 4;
+            final int reserved = Math.min(logsSize(logs), (buffer_.length - HEADER_SIZE) / LOGS_SHARE);
+            limit_ = buffer_.length - reserved;
+            writeTrace(throwable);
+            putIntAt(errorLengthAt, position_ - errorLengthAt - 4);
+            limit_ = buffer_.length;
+            writeLogs(logs);
+
+            final int length = position_ - HEADER_SIZE;
+            crc_.reset();
+            crc_.update(buffer_, HEADER_SIZE, length);
+            putIntAt(0, MAGIC);
+            putIntAt(4, length);
+            putIntAt(8, (int) crc_.getValue());
+            raf_.seek(0);
+            raf_.write(buffer_, 0, position_);
+            raf_.getFD().sync();
+            return true;
+        } catch (Throwable t) {
+            // the handler must go on to the regular report whatever happens here
+            return false;
+        }
+    }
+
+    /**
+     * Reads the crash left in the spool by a previous run.
+     * @return the crash, or null if there is none or it was not written completely
+     */
+    synchronized Report read() {
+        try {
+            raf_.seek(0);
+            if (raf_.readInt() != MAGIC) {
+                return null;
+            }
+            final int length = raf_.readInt();
+            final int crc = raf_.readInt();
+            if (length < FIXED_SIZE || length > buffer_.length - HEADER_SIZE) {
+                return null;
+            }
+            final byte[] record = new byte[length];
+            raf_.readFully(record);
+            crc_.reset();
+            crc_.update(record, 0, length);
+            if ((int) crc_.getValue() != crc) {
+                return null;
+            }
+            final ByteBuffer in = ByteBuffer.wrap(record);
+            final int timestamp = in.getInt();
+            final int runSeconds = in.getInt();
+            final boolean background = in.get() != 0;
+            final int errorLength = in.getInt();
+            if (errorLength < 0 || errorLength > in.remaining()) {
+                return null;
+            }
+            final String error = new String(record, in.position(), errorLength, UTF8);
+            final int logsAt = in.position() + errorLength;
+            final String logs = new String(record, logsAt, length - logsAt, UTF8);
+            return new Report(timestamp, runSeconds, background, logs, error);
+        } catch (IOException e) {
+            if (Countly.sharedInstance().isLoggingEnabled()) {
+                Log.w(Countly.TAG, "Failed to read crash spool " + file_, e);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Marks the spool empty, once the crash in it has been queued as a report.
+     */
+    synchronized void clear() {
+        try {
+            raf_.seek(0);
+            raf_.writeInt(0);
+            raf_.getFD().sync();
+        } catch (IOException e) {
+            if (Countly.sharedInstance().isLoggingEnabled()) {
+                Log.w(Countly.TAG, "Failed to clear crash spool " + file_, e);
+            }
+        }
+    }
+
+    /**
+     * Writes the newest breadcrumbs that fit into the rest of the buffer, leaving out the
+     * older ones rather than cutting a line.
+     */
+    private void writeLogs(final CrashLogBuffer logs) {
+        final long head = logs.head();
+        final long first = logs.first(head);
+        final int space = limit_ - position_;
+        int bytes = 0;
+        long start = head;
+        while (start > first) {
+            final String log = logs.get(start - 1);
+            if (log != null) {
+                final int size = utf8Length(log) + 1;
+                if (bytes + size > space) {
+                    break;
+                }
+                bytes += size;
+            }
+            start--;
+        }
+        for (long sequence = start; sequence < head; sequence++) {
+            final String log = logs.get(sequence);
+            if (log != null) {
+                putChars(log);
+                putChars("\n");
+            }
+        }
+    }
+
+    /**
+     * Returns the encoded size of all breadcrumbs, one line each.
+     */
+    private static int logsSize(final CrashLogBuffer logs) {
+        final long head = logs.head();
+        int bytes = 0;
+        for (long sequence = logs.first(head); sequence < head; sequence++) {
+            final String log = logs.get(sequence);
+            if (log != null) {
+                bytes += utf8Length(log) + 1;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the number of bytes putChars() encodes the characters to.
+     */
+    private static int utf8Length(final String s) {
+        final int length = s.length();
+        int bytes = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                bytes += 1;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the trace in the format of Throwable.printStackTrace(), without leaving out the
+     * frames a cause shares with the throwable it caused.
+     */
+    private void writeTrace(final Throwable throwable) {
+        int causes = 0;
+        Throwable current = throwable;
+        while (current != null && causes < MAX_CAUSES && !seen(current, causes)) {
+            causes_[causes++] = current;
+            if (current != throwable) {
+                putChars("Caused by: ");
+            }
+            putChars(current.getClass().getName());
+            final String message = current.getLocalizedMessage();
+            if (message != null) {
+                putChars(": ");
+                putChars(message);
+            }
+            putChars("\n");
+            for (StackTraceElement element : current.getStackTrace()) {
+                putChars("\tat ");
+                putChars(element.getClassName());
+                putChars(".");
+                putChars(element.getMethodName());
+                putChars("(");
+                if (element.isNativeMethod()) {
+                    putChars("Native Method");
+                } else if (element.getFileName() == null) {
+                    putChars("Unknown Source");
+                } else {
+                    putChars(element.getFileName());
+                    if (element.getLineNumber() >= 0) {
+                        putChars(":");
+                        putDecimal(element.getLineNumber());
+                    }
+                }
+                putChars(")\n");
+            }
+            current = current.getCause();
+        }
+        for (int i = 0; i < causes; i++) {
+            causes_[i] = null;
+        }
+    }
+
+    private boolean seen(final Throwable throwable, final int count) {
+        for (int i = 0; i < count; i++) {
+            if (causes_[i] == throwable) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Encodes the characters as UTF-8 into the buffer, stopping at the first one that does
+     * not fit before limit_.
+     */
+    private void putChars(final String s) {
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                if (position_ + 1 > limit_) {
+                    return;
+                }
+                buffer_[position_++] = (byte) c;
+            } else if (c < 0x800) {
+                if (position_ + 2 > limit_) {
+                    return;
+                }
+                buffer_[position_++] = (byte) (0xc0 | (c >> 6));
+                buffer_[position_++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                if (position_ + 4 > limit_) {
+                    return;
+                }
+                final int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                buffer_[position_++] = (byte) (0xf0 | (codePoint >> 18));
+                buffer_[position_++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buffer_[position_++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buffer_[position_++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else {
+                if (position_ + 3 > limit_) {
+                    return;
+                }
+                // an unpaired surrogate is written as is, the decoder replaces it
+                buffer_[position_++] = (byte) (0xe0 | (c >> 12));
+                buffer_[position_++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer_[position_++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    private void putDecimal(final int value) {
+        int divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0 && position_ < limit_; divisor /= 10) {
+            buffer_[position_++] = (byte) ('0' + value / divisor % 10);
+        }
+    }
+
+    private void putInt(final int value) {
+        putIntAt(position_, value);
+        position_ += 4;
+    }
+
+    private void putIntAt(final int at, final int value) {
+        buffer_[at] = (byte) (value >>> 24);
+        buffer_[at + 1] = (byte) (value >>> 16);
+        buffer_[at + 2] = (byte) (value >>> 8);
+        buffer_[at + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,250 @@
+/*
+Copyright (c) 2012, 2013, 2014 Countly
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package ly.count.android.sdk;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-fingerprint rate limit for crash reports.
+ *
+ * Crashes with the same {@link #fingerprint(Throwable)} are counted per window: the first
+ * maxReports of a window are reported, the others are only counted, and the count is carried
+ * by the next report of that fingerprint as its number of occurrences. The table keeps the
+ * most recently seen fingerprints only, so a flood of distinct crashes cannot grow it.
+ */
+class CrashThrottle {
+    /**
+     * Default number of reports of one handled exception sent per window.
+     */
+    static final int DEFAULT_MAX_NON_FATAL_REPORTS = 1;
+
+    /**
+     * Default rate limit window for handled exceptions.
+     */
+    static final long DEFAULT_NON_FATAL_WINDOW_MILLIS = 60 * 1000;
+
+    /**
+     * Window for fatal crashes, one report per fingerprint is sent per window. Their table is
+     * kept in the store, so a crash loop is reported once per window across processes.
+     */
+    static final long FATAL_WINDOW_MILLIS = 10 * 60 * 1000;
+
+    static final String FATAL_PREFERENCE = "ly.count.android.api.CrashThrottle.fatal";
+
+    /**
+     * Number of fingerprints kept, the least recently seen one is dropped beyond that.
+     */
+    static final int MAX_FINGERPRINTS = 64;
+
+    // frames and causes hashed per crash, a stack overflow repeats the same frames thousands of times
+    private static final int MAX_FRAMES = 64;
+    private static final int MAX_CAUSES = 8;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * Occurrences of one fingerprint that were counted but not reported yet.
+     */
+    static class Aggregate {
+        final String fingerprint;
+        final String error;
+        final int occurrences;
+
+        Aggregate(final String fingerprint, final String error, final int occurrences) {
+            this.fingerprint = fingerprint;
+            this.error = error;
+            this.occurrences = occurrences;
+        }
+    }
+
+    private static class Entry {
+        long windowStart;
+        int reports;
+        int suppressed;
+        // stack trace of the last report, for reporting the suppressed occurrences on their own
+        String error;
+    }
+
+    private final int maxReports_;
+    private final long windowMillis_;
+    private final Map<String, Entry> entries_ = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+            return size() > MAX_FINGERPRINTS;
+        }
+    };
+
+    /**
+     * @param maxReports reports of one fingerprint sent per window
+     * @param windowMillis length of a window in milliseconds
+     * @throws IllegalArgumentException if a limit is not greater than zero
+     */
+    CrashThrottle(final int maxReports, final long windowMillis) {
+        if (maxReports < 1 || windowMillis < 1) {
+            throw new IllegalArgumentException("limits must be greater than zero");
+        }
+        maxReports_ = maxReports;
+        windowMillis_ = windowMillis;
+    }
+
+    /**
+     * Returns a fingerprint of the stack trace: a hash of the class names of the throwable and
+     * its causes, and of the class, method and line of their frames. Messages are left out, as
+     * they often hold ids or values that differ between occurrences of the same crash.
+     */
+    static String fingerprint(final Throwable throwable) {
+        long hash = FNV_OFFSET_BASIS;
+        final List<Throwable> seen = new ArrayList<>(MAX_CAUSES);
+        for (Throwable t = throwable; t != null && seen.size() < MAX_CAUSES && !seen.contains(t); t = t.getCause()) {
+            seen.add(t);
+            hash = hash(hash, t.getClass().getName());
+            final StackTraceElement[] frames = t.getStackTrace();
+            for (int i = 0; i < frames.length && i < MAX_FRAMES; i++) {
+                hash = hash(hash, frames[i].getClassName());
+                hash = hash(hash, frames[i].getMethodName());
+                hash = hash(hash, frames[i].getLineNumber());
+            }
+        }
+        final String hex = Long.toHexString(hash);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+
+    private static long hash(long hash, final String s) {
+        for (int i = 0; i < s.length(); i++) {
+            hash = (hash ^ s.charAt(i)) * FNV_PRIME;
+        }
+        // separator, so "ab" + "c" and "a" + "bc" differ
+        return (hash ^ 0xffff) * FNV_PRIME;
+    }
+
+    private static long hash(long hash, final int value) {
+        for (int shift = 0; shift < 32; shift += 8) {
+            hash = (hash ^ ((value >>> shift) & 0xff)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Counts an occurrence of the fingerprint.
+     * @param nowMillis current time in milliseconds
+     * @return number of occurrences the report of this one should carry, including the ones
+     *         suppressed before it, or 0 if it is not to be reported
+     */
+    synchronized int record(final String fingerprint, final long nowMillis) {
+        Entry entry = entries_.get(fingerprint);
+        if (entry == null) {
+            entry = new Entry();
+            entry.windowStart = nowMillis;
+            entries_.put(fingerprint, entry);
+        } else if (nowMillis - entry.windowStart >= windowMillis_ || nowMillis < entry.windowStart) {
+            // a new window, or the clock was set back
+            entry.windowStart = nowMillis;
+            entry.reports = 0;
+        }
+        if (entry.reports >= maxReports_) {
+            entry.suppressed++;
+            return 0;
+        }
+        entry.reports++;
+        final int occurrences = 1 + entry.suppressed;
+        entry.suppressed = 0;
+        return occurrences;
+    }
+
+    /**
+     * Keeps the stack trace of a reported occurrence, so occurrences suppressed after it can
+     * be reported by {@link #drain()}.
+     */
+    synchronized void setError(final String fingerprint, final String error) {
+        final Entry entry = entries_.get(fingerprint);
+        if (entry != null) {
+            entry.error = error;
+        }
+    }
+
+    /**
+     * Returns the occurrences that were suppressed and not reported yet, for fingerprints
+     * whose stack trace is known, and counts them as reported.
+     */
+    synchronized List<Aggregate> drain() {
+        final List<Aggregate> aggregates = new ArrayList<>();
+        for (Map.Entry<String, Entry> mapEntry : entries_.entrySet()) {
+            final Entry entry = mapEntry.getValue();
+            if (entry.suppressed > 0 && entry.error != null) {
+                aggregates.add(new Aggregate(mapEntry.getKey(), entry.error, entry.suppressed));
+                entry.suppressed = 0;
+            }
+        }
+        return aggregates;
+    }
+
+    /**
+     * Returns the table as a string for {@link #restore(String)}, without the stack traces.
+     */
+    synchronized String serialize() {
+        final StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Entry> mapEntry : entries_.entrySet()) {
+            final Entry entry = mapEntry.getValue();
+            if (builder.length() > 0) {
+                builder.append(';');
+            }
+            builder.append(mapEntry.getKey()).append(',').append(entry.windowStart)
+                    .append(',').append(entry.reports).append(',').append(entry.suppressed);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Replaces the table with one returned by {@link #serialize()}, skipping malformed entries.
+     * @param serialized serialized table, or null for an empty one
+     */
+    synchronized void restore(final String serialized) {
+        entries_.clear();
+        if (serialized == null || serialized.length() == 0) {
+            return;
+        }
+        for (String item : serialized.split(";")) {
+            final String[] fields = item.split(",");
+            if (fields.length != 4) {
+                continue;
+            }
+            try {
+                final Entry entry = new Entry();
+                entry.windowStart = Long.parseLong(fields[1]);
+                entry.reports = Integer.parseInt(fields[2]);
+                entry.suppressed = Integer.parseInt(fields[3]);
+                entries_.put(fields[0], entry);
+            } catch (NumberFormatException ignored) {
+                // skip the entry
+            }
+        }
+    }
+
+    // for unit testing
+    synchronized int size() {
+        return entries_.size();
+    }
+}
@@ -21,8 +21,13 @@ THE SOFTWARE.
 */
 package ly.count.android.sdk;
 
+import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
+import android.content.res.Configuration;
 import android.telephony.TelephonyManager;
 import android.util.DisplayMetrics;
 import android.util.Log;
@@ -66,7 +71,21 @@ class DeviceInfo {
         return android.os.Build.MODEL;
     }
 
-    static String deepLink;
+    private static volatile String deepLink_;
+
+    // URL-encoded metrics, computed once and dropped when something they include changes;
+    // guarded by DeviceInfo.class
+    private static String cachedMetrics_;
+    private static int metricsGeneration_;
+    private static boolean watchingMetrics_;
+
+    /**
+     * Sets the deep link the app was launched with, sent along with the metrics.
+     */
+    static void setDeepLink(final String deepLink) {
+        deepLink_ = deepLink;
+        invalidateMetrics();
+    }
 
     /**
      * Returns the non-scaled pixel resolution of the current default display being used by the
@@ -222,7 +241,7 @@ class DeviceInfo {
                 "_locale", getLocale(),
                 "_app_version", getAppVersion(context),
                 "_store", getStore(context),
-                "_deep_link", deepLink);
+                "_deep_link", deepLink_);
 
         String result = json.toString();
 
@@ -235,6 +254,71 @@ class DeviceInfo {
         return result;
     }
 
+    /**
+     * Returns the same string as {@link #getMetrics(Context)}, but only builds it on the first
+     * call and after the cached one has been invalidated. Apart from the resolution, carrier
+     * and locale, which only change along with the configuration or the locale, the metrics
+     * are fixed for the lifetime of the process.
+     */
+    static String getCachedMetrics(final Context context) {
+        final int generation;
+        synchronized (DeviceInfo.class) {
+            if (cachedMetrics_ != null) {
+                return cachedMetrics_;
+            }
+            generation = metricsGeneration_;
+        }
+        final String metrics = getMetrics(context);
+        synchronized (DeviceInfo.class) {
+            // not cached if it was invalidated while being built, it may be stale already
+            if (generation == metricsGeneration_) {
+                cachedMetrics_ = metrics;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Drops the cached metrics, so they are built again by the next session start.
+     */
+    static synchronized void invalidateMetrics() {
+        cachedMetrics_ = null;
+        metricsGeneration_++;
+    }
+
+    /**
+     * Invalidates the cached metrics whenever the configuration (orientation, screen size,
+     * carrier MCC and MNC) or the locale changes, and the static crash report fields whenever
+     * the configuration changes. Registered once per process, on the application context;
+     * configuration changes are only reported from API level 14.
+     */
+    static synchronized void watchMetrics(final Context context) {
+        if (watchingMetrics_) {
+            return;
+        }
+        watchingMetrics_ = true;
+        final Context appContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        if (android.os.Build.VERSION.SDK_INT >= 14) {
+            appContext.registerComponentCallbacks(new ComponentCallbacks() {
+                @Override
+                public void onConfigurationChanged(final Configuration newConfig) {
+                    invalidateMetrics();
+                    CrashDetails.invalidateStaticData();
+                }
+
+                @Override
+                public void onLowMemory() {
+                }
+            });
+        }
+        appContext.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(final Context context, final Intent intent) {
+                invalidateMetrics();
+            }
+        }, new IntentFilter(Intent.ACTION_LOCALE_CHANGED));
+    }
+
     /**
      * Utility method to fill JSONObject with supplied objects for supplied keys.
      * Fills json only with non-null and non-empty key/value pairs.
@@ -21,69 +21,244 @@ THE SOFTWARE.
 */
 package ly.count.android.sdk;
 
-import org.json.JSONArray;
+import android.util.Log;
 
-import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
  * local management 数据queue <---> JSON 转换类
- * 注意：这里面所有的方法都没有用同步块synchroized进行标识，这是由于它都是受同一个Countly所操作，这就已经是同步了！！
+ *
+ * Events are held in a bounded in-memory ring buffer, so recording one is O(1) and never
+ * touches the disk on the caller's thread. A background write-behind flusher persists
+ * new events to the CountlyStore in batches, at most maxLossWindowMillis after they were
+ * recorded, which bounds how many events can be lost if the process dies. The oldest
+ * events in the ring are always the persisted ones.
+ *
+ * The ring is bounded by count and by the approximate encoded size of its events. What
+ * happens to an event that doesn't fit is up to the overflow policy; every event lost
+ * that way is counted in the CountlyStore and reported with the next upload.
+ *
+ * Aggregation is opt-in: with an aggregation window set, events that share a key,
+ * segmentation and hour are merged into one by summing count and sum, and only enter
+ * the ring once the window has elapsed. Hot counters then cost one event per window
+ * instead of one per call, in the store as well as in the request payload.
  *
  * NOTE: This class is only public to facilitate unit testing, because
  *       of this bug in dexmaker: https://code.google.com/p/dexmaker/issues/detail?id=34
  */
 public class EventQueue {
+    /**
+     * Maximum number of events held in memory. When the ring is full,
+     * the oldest event is dropped to make room for the new one.
+     */
+    static final int DEFAULT_CAPACITY = 1000;
+
+    /**
+     * Default delay between recording an event and persisting it.
+     */
+    static final long DEFAULT_MAX_LOSS_WINDOW_MILLIS = 2000;
+
+    /**
+     * Default upper bound for the approximate encoded size of all events held in memory.
+     */
+    static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+
+    private static ScheduledExecutorService flushExecutor_;
+
     private final CountlyStore countlyStore_;
+    // guards the ring; held only for O(1) bookkeeping, never across disk writes
+    private final Object lock_ = new Object();
+    // serializes store writes: flushes, drains and evictions of persisted events
+    private final Object flushLock_ = new Object();
+    private final Event[] ring_;
+    // store ids of the persisted events, at the same positions as in ring_
+    private final long[] storeIds_;
+    private final EventWriter writer_ = new EventWriter();
+    private int head_;
+    private volatile int size_;
+    private int persisted_;
+    // approximate encoded size of the events in the ring
+    private long bytes_;
+    private long maxBytes_ = DEFAULT_MAX_BYTES;
+    private Countly.QueueOverflowPolicy overflowPolicy_ = Countly.QueueOverflowPolicy.DROP_OLDEST;
+    private long maxLossWindowMillis_ = DEFAULT_MAX_LOSS_WINDOW_MILLIS;
+    private ScheduledFuture<?> pendingFlush_;
+    // events being aggregated, in order of their first occurrence; guarded by lock_
+    private final Map<AggregationKey, Event> aggregates_ = new LinkedHashMap<>();
+    private long aggregationWindowMillis_;
+    private ScheduledFuture<?> pendingSeal_;
+
+    private final Runnable flushTask_ = new Runnable() {
+        @Override
+        public void run() {
+            persist();
+        }
+    };
+
+    private final Runnable sealTask_ = new Runnable() {
+        @Override
+        public void run() {
+            sealAggregates();
+        }
+    };
 
     /**
      * Constructs an EventQueue.
      * @param countlyStore backing store to be used for local event queue persistence
      */
     EventQueue(final CountlyStore countlyStore) {
+        this(countlyStore, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructs an EventQueue and loads any events persisted by a previous process.
+     * @param countlyStore backing store to be used for local event queue persistence
+     * @param capacity maximum number of events held in memory, must be greater than zero
+     * @throws IllegalArgumentException if capacity is not greater than zero
+     */
+    EventQueue(final CountlyStore countlyStore, final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be greater than zero");
+        }
         countlyStore_ = countlyStore;
+        ring_ = new Event[capacity];
+        storeIds_ = new long[capacity];
+
+        final List<Event> stored = countlyStore_.eventsList();
+        if (stored != null && stored.size() > 0) {
+            final long[] ids = countlyStore_.eventIds();
+            final int overflow = Math.max(0, stored.size() - capacity);
+            if (overflow > 0) {
+                if (Countly.sharedInstance().isLoggingEnabled()) {
+                    Log.w(Countly.TAG, "Dropping " + overflow + " oldest stored events over the event queue capacity");
+                }
+                countlyStore_.addDroppedEvents(overflow);
+                countlyStore_.removeEvents(Arrays.copyOf(ids, overflow));
+            }
+            for (int i = overflow; i < stored.size(); i++) {
+                final Event event = stored.get(i);
+                storeIds_[size_] = ids[i];
+                ring_[size_++] = event;
+                bytes_ += estimateSize(event);
+            }
+            persisted_ = size_;
+        }
+    }
+
+    /**
+     * Sets the size limit of the queue and what to do with an event that doesn't fit.
+     * The count limit is the capacity given to the constructor.
+     * @param maxBytes upper bound for the approximate encoded size of all events in the ring
+     * @param overflowPolicy DROP_OLDEST evicts the oldest events, DROP_NEWEST drops the new
+     *                       event, SAMPLE merges the new event into a queued one with the same
+     *                       key, segmentation and hour and evicts the oldest if there is none
+     * @throws IllegalArgumentException if maxBytes is not greater than zero or overflowPolicy is null
+     */
+    void setLimits(final long maxBytes, final Countly.QueueOverflowPolicy overflowPolicy) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("maxBytes must be greater than zero");
+        }
+        if (overflowPolicy == null) {
+            throw new IllegalArgumentException("overflowPolicy must not be null");
+        }
+        synchronized (lock_) {
+            maxBytes_ = maxBytes;
+            overflowPolicy_ = overflowPolicy;
+        }
+    }
+
+    /**
+     * Sets how long a recorded event may stay in memory only before it is persisted.
+     * Zero persists every event synchronously as it is recorded.
+     * @param maxLossWindowMillis delay in milliseconds, negative values are treated as zero
+     */
+    void setMaxLossWindowMillis(final long maxLossWindowMillis) {
+        synchronized (lock_) {
+            maxLossWindowMillis_ = Math.max(0, maxLossWindowMillis);
+        }
+    }
+
+    long getMaxLossWindowMillis() {
+        synchronized (lock_) {
+            return maxLossWindowMillis_;
+        }
     }
 
     /**
-     * 返回事件（json串形式）的数量
-     * Returns the number of events in the local event queue.
+     * Sets how long events with the same key, segmentation and hour are merged before the
+     * aggregate is queued. Aggregates are not persisted until the window has elapsed, so this
+     * adds to the max loss window. Zero disables aggregation, which is the default.
+     * @param aggregationWindowMillis window in milliseconds, negative values are treated as zero
+     */
+    void setAggregationWindowMillis(final long aggregationWindowMillis) {
+        synchronized (lock_) {
+            aggregationWindowMillis_ = Math.max(0, aggregationWindowMillis);
+        }
+        if (aggregationWindowMillis <= 0) {
+            // don't hold on to what was aggregated so far
+            sealAggregates();
+        }
+    }
+
+    long getAggregationWindowMillis() {
+        synchronized (lock_) {
+            return aggregationWindowMillis_;
+        }
+    }
+
+    /**
+     * 返回事件的数量
+     * Returns the number of events in the local event queue, counting each aggregate as one.
      * @return the number of events in the local event queue
      */
     int size() {
-        return countlyStore_.events().length;
-   }
+        synchronized (lock_) {
+            return size_ + aggregates_.size();
+        }
+    }
 
     /**
-     * 将本地列表中的所有当前事件（json串形式）转出来变成 List<Event>的数组形式，然后再 Object数组 -->jsonArray，最后，返回jsonArray串
-     * ，并删除所有本地事件
+     * 将本地列表中的所有当前事件转成jsonArray串，并删除所有本地事件
      * Removes all current events from the local queue and returns them as a
      * URL-encoded JSON string that can be submitted to a ConnectionQueue.
      * @return URL-encoded JSON string of event data from the local event queue
      */
     String events() {
-        String result;
-
-        final List<Event> events = countlyStore_.eventsList();
-
-        final JSONArray eventArray = new JSONArray();
-        for (Event e : events) {
-            eventArray.put(e.toJSON());
+        sealAggregates();
+        final List<Event> events;
+        synchronized (flushLock_) {
+            final long[] persistedIds;
+            synchronized (lock_) {
+                events = new ArrayList<>(size_);
+                for (int i = 0; i < size_; i++) {
+                    events.add(ring_[index(i)]);
+                }
+                persistedIds = new long[persisted_];
+                for (int i = 0; i < persisted_; i++) {
+                    persistedIds[i] = storeIds_[index(i)];
+                }
+                reset();
+            }
+            if (persistedIds.length > 0) {
+                countlyStore_.removeEvents(persistedIds);
+            }
         }
 
-        result = eventArray.toString();
-
-        countlyStore_.removeEvents(events);
-
-        /*转格式为 UTF-8*/
-        try {
-            result = java.net.URLEncoder.encode(result, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            // should never happen because Android guarantees UTF-8 support
+        /*转成json串，同时转格式为 UTF-8 URL编码*/
+        synchronized (writer_) {
+            return writer_.toURLEncodedJSON(events);
         }
-
-        return result;
     }
 
     /**
@@ -96,14 +271,311 @@ public class EventQueue {
      * @throws IllegalArgumentException if key is null or empty
      */
     void recordEvent(final String key, final Map<String, String> segmentation, final int count, final double sum) {
-        final int timestamp = Countly.currentTimestamp();
-        final int hour = Countly.currentHour();
-        final int dow = Countly.currentDayOfWeek();
-        countlyStore_.addEvent(key, segmentation, timestamp, hour, dow, count, sum);
+        final Event event = new Event();
+        event.key = key;
+        event.segmentation = segmentation;
+        event.timestamp = Countly.currentTimestamp();
+        event.hour = Countly.currentHour();
+        event.dow = Countly.currentDayOfWeek();
+        event.count = count;
+        event.sum = sum;
+
+        synchronized (lock_) {
+            if (aggregationWindowMillis_ > 0) {
+                aggregate(event);
+                return;
+            }
+        }
+        enqueue(event);
+        if (getMaxLossWindowMillis() == 0) {
+            persist();
+        }
+    }
+
+    /**
+     * Adds an event to the ring, applying the overflow policy if it doesn't fit.
+     */
+    private void enqueue(final Event event) {
+        final int eventBytes = estimateSize(event);
+        final boolean added;
+        synchronized (lock_) {
+            added = fits(eventBytes);
+            if (added) {
+                append(event, eventBytes);
+            }
+        }
+        if (!added) {
+            overflow(event, eventBytes);
+        }
+    }
+
+    private void overflow(final Event event, final int eventBytes) {
+        // evicting may have to remove persisted events from the store, and merging must not
+        // change an event while the flusher is writing it
+        synchronized (flushLock_) {
+            // store ids rather than events, equal events may be queued more than once
+            final List<Long> evicted = new ArrayList<>();
+            int dropped = 0;
+            synchronized (lock_) {
+                if (fits(eventBytes)) {
+                    append(event, eventBytes);
+                } else if (eventBytes > maxBytes_ || overflowPolicy_ == Countly.QueueOverflowPolicy.DROP_NEWEST) {
+                    dropped = 1;
+                } else if (overflowPolicy_ != Countly.QueueOverflowPolicy.SAMPLE || !mergeIntoUnpersisted(event)) {
+                    while (size_ > 0 && !fits(eventBytes)) {
+                        final Event oldest = ring_[head_];
+                        if (persisted_ > 0) {
+                            persisted_--;
+                            evicted.add(storeIds_[head_]);
+                        }
+                        ring_[head_] = null;
+                        head_ = (head_ + 1) % ring_.length;
+                        size_--;
+                        bytes_ -= estimateSize(oldest);
+                        dropped++;
+                    }
+                    append(event, eventBytes);
+                }
+            }
+            if (dropped > 0) {
+                if (Countly.sharedInstance().isLoggingEnabled()) {
+                    Log.w(Countly.TAG, "Event queue is full, dropped " + dropped + " event(s)");
+                }
+                countlyStore_.addDroppedEvents(dropped);
+            }
+            if (!evicted.isEmpty()) {
+                final long[] ids = new long[evicted.size()];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = evicted.get(i);
+                }
+                countlyStore_.removeEvents(ids);
+            }
+        }
+    }
+
+    // must be called with lock_ held
+    private boolean fits(final int eventBytes) {
+        return size_ < ring_.length && bytes_ + eventBytes <= maxBytes_;
+    }
+
+    /**
+     * Adds the count and sum of the event to the newest queued event with the same key,
+     * segmentation and hour that has not been persisted yet. Must be called with lock_ and
+     * flushLock_ held.
+     * @return true if a matching event was found
+     */
+    private boolean mergeIntoUnpersisted(final Event event) {
+        for (int i = size_ - 1; i >= persisted_; i--) {
+            final Event queued = ring_[index(i)];
+            if (queued.key.equals(event.key) && queued.hour == event.hour
+                    && queued.timestamp / 3600 == event.timestamp / 3600
+                    && (queued.segmentation == null ? event.segmentation == null : queued.segmentation.equals(event.segmentation))) {
+                queued.count += event.count;
+                queued.sum += event.sum;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the approximate size of the event once encoded, without encoding it.
+     */
+    static int estimateSize(final Event event) {
+        int size = 80 + event.key.length();
+        if (event.segmentation != null) {
+            for (Map.Entry<String, String> entry : event.segmentation.entrySet()) {
+                size += 6 + entry.getKey().length() + (entry.getValue() == null ? 4 : entry.getValue().length());
+            }
+        }
+        return size;
+    }
+
+    // must be called with lock_ held
+    private void aggregate(final Event event) {
+        final AggregationKey aggregationKey = new AggregationKey(event);
+        final Event aggregate = aggregates_.get(aggregationKey);
+        if (aggregate == null) {
+            // aggregates outlive the call, so don't keep the caller's segmentation map
+            event.segmentation = aggregationKey.segmentation;
+            aggregates_.put(aggregationKey, event);
+        } else {
+            aggregate.count += event.count;
+            aggregate.sum += event.sum;
+        }
+        if (pendingSeal_ == null) {
+            pendingSeal_ = flushExecutor().schedule(sealTask_, aggregationWindowMillis_, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Moves all aggregates into the ring, where they are persisted like any other event.
+     */
+    void sealAggregates() {
+        final List<Event> sealed;
+        synchronized (lock_) {
+            if (pendingSeal_ != null) {
+                pendingSeal_.cancel(false);
+                pendingSeal_ = null;
+            }
+            if (aggregates_.isEmpty()) {
+                return;
+            }
+            sealed = new ArrayList<>(aggregates_.values());
+            aggregates_.clear();
+        }
+        for (Event event : sealed) {
+            enqueue(event);
+        }
+        if (getMaxLossWindowMillis() == 0) {
+            persist();
+        }
+    }
+
+    /**
+     * Persists all events that are only held in memory, including pending aggregates.
+     * Can be called directly to make sure nothing is lost, e.g. on a crash.
+     */
+    void flush() {
+        sealAggregates();
+        persist();
+    }
+
+    /**
+     * Persists the events in the ring that are only held in memory. Called by the
+     * write-behind flusher.
+     */
+    private void persist() {
+        synchronized (flushLock_) {
+            final List<Event> batch;
+            synchronized (lock_) {
+                if (pendingFlush_ != null) {
+                    pendingFlush_.cancel(false);
+                    pendingFlush_ = null;
+                }
+                batch = new ArrayList<>(size_ - persisted_);
+                for (int i = persisted_; i < size_; i++) {
+                    batch.add(ring_[index(i)]);
+                }
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            final long[] ids = countlyStore_.addEvents(batch);
+            synchronized (lock_) {
+                // only appends can happen while we were writing, so the batch is still in place
+                for (int i = 0; i < ids.length; i++) {
+                    storeIds_[index(persisted_ + i)] = ids[i];
+                }
+                persisted_ += batch.size();
+            }
+        }
+    }
+
+    /**
+     * Discards all events held in memory without persisting them, e.g. when tracking is halted.
+     */
+    void clear() {
+        synchronized (flushLock_) {
+            synchronized (lock_) {
+                reset();
+                aggregates_.clear();
+                if (pendingSeal_ != null) {
+                    pendingSeal_.cancel(false);
+                    pendingSeal_ = null;
+                }
+            }
+        }
     }
 
     // for unit tests
     CountlyStore getCountlyStore() {
         return countlyStore_;
     }
+
+    // for unit tests
+    int persistedCount() {
+        synchronized (lock_) {
+            return persisted_;
+        }
+    }
+
+    // must be called with lock_ held
+    private void append(final Event event, final int eventBytes) {
+        ring_[index(size_)] = event;
+        size_++;
+        bytes_ += eventBytes;
+        if (maxLossWindowMillis_ > 0 && pendingFlush_ == null) {
+            pendingFlush_ = flushExecutor().schedule(flushTask_, maxLossWindowMillis_, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // must be called with lock_ held
+    private void reset() {
+        for (int i = 0; i < size_; i++) {
+            ring_[index(i)] = null;
+        }
+        head_ = 0;
+        size_ = 0;
+        persisted_ = 0;
+        bytes_ = 0;
+        if (pendingFlush_ != null) {
+            pendingFlush_.cancel(false);
+            pendingFlush_ = null;
+        }
+    }
+
+    private int index(final int i) {
+        return (head_ + i) % ring_.length;
+    }
+
+    private static synchronized ScheduledExecutorService flushExecutor() {
+        if (flushExecutor_ == null) {
+            flushExecutor_ = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(r, "Countly-EventQueue");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return flushExecutor_;
+    }
+
+    /**
+     * Identifies the events that can be merged into one aggregate: same key, same
+     * segmentation and recorded within the same hour. The local hour is compared as well,
+     * as a UTC hour spans two local hours in time zones with a half-hour offset.
+     */
+    private static final class AggregationKey {
+        private final String key;
+        private final Map<String, String> segmentation;
+        private final int hourBucket;
+        private final int hour;
+
+        AggregationKey(final Event event) {
+            key = event.key;
+            segmentation = event.segmentation == null ? null : new HashMap<>(event.segmentation);
+            hourBucket = event.timestamp / 3600;
+            hour = event.hour;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof AggregationKey)) {
+                return false;
+            }
+            final AggregationKey k = (AggregationKey) o;
+            return key.equals(k.key) &&
+                   hourBucket == k.hourBucket &&
+                   hour == k.hour &&
+                   (segmentation == null ? k.segmentation == null : segmentation.equals(k.segmentation));
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() ^ (segmentation != null ? segmentation.hashCode() : 1) ^ hourBucket;
+        }
+    }
 }
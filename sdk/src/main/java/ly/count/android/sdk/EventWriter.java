@@ -0,0 +1,260 @@
+/*
+Copyright (c) 2012, 2013, 2014 Countly
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package ly.count.android.sdk;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Serializes events to JSON straight into a reusable character buffer, optionally
+ * form-encoding (as URLEncoder does with UTF-8) each character as it is written.
+ * A batch of events is thus converted to its request parameter value in a single
+ * pass, without building org.json trees, an intermediate JSON string and then
+ * a URL-encoded copy of it.
+ *
+ * The output is identical to Event.toJSON().toString() on Android: keys in the
+ * same order, integral doubles written as longs, '/' escaped, and the sum left
+ * out when it is NaN or infinite.
+ *
+ * Instances are not thread-safe; each one should be used by a single thread or
+ * under its owner's lock.
+ */
+class EventWriter {
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    private static final char[] JSON_HEX = "0123456789abcdef".toCharArray();
+    // buffers that grew past this are dropped after use instead of being kept around
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private StringBuilder buffer_ = new StringBuilder(1024);
+    private boolean urlEncode_;
+
+    /**
+     * Returns the JSON object for a single event.
+     */
+    String toJSON(final Event event) {
+        urlEncode_ = false;
+        writeEvent(event);
+        return result();
+    }
+
+    /**
+     * Returns the JSON array for the given events.
+     */
+    String toJSON(final Collection<Event> events) {
+        urlEncode_ = false;
+        writeEvents(events);
+        return result();
+    }
+
+    /**
+     * Returns the URL-encoded JSON array for the given events, equal to
+     * URLEncoder.encode(toJSON(events), "UTF-8").
+     */
+    String toURLEncodedJSON(final Collection<Event> events) {
+        urlEncode_ = true;
+        writeEvents(events);
+        return result();
+    }
+
+    private String result() {
+        final String result = buffer_.toString();
+        if (buffer_.capacity() > MAX_RETAINED_CAPACITY) {
+            buffer_ = new StringBuilder(1024);
+        } else {
+            buffer_.setLength(0);
+        }
+        return result;
+    }
+
+    private void writeEvents(final Collection<Event> events) {
+        ascii('[');
+        boolean first = true;
+        for (Event event : events) {
+            if (!first) {
+                ascii(',');
+            }
+            first = false;
+            writeEvent(event);
+        }
+        ascii(']');
+    }
+
+    private void writeEvent(final Event event) {
+        ascii('{');
+        // a null key is left out, like JSONObject.put does
+        boolean first = true;
+        if (event.key != null) {
+            string("key");
+            ascii(':');
+            string(event.key);
+            first = false;
+        }
+        if (!first) {
+            ascii(',');
+        }
+        string("count");
+        ascii(':');
+        ascii(Integer.toString(event.count));
+        ascii(',');
+        string("timestamp");
+        ascii(':');
+        ascii(Integer.toString(event.timestamp));
+        ascii(',');
+        string("hour");
+        ascii(':');
+        ascii(Integer.toString(event.hour));
+        ascii(',');
+        string("dow");
+        ascii(':');
+        ascii(Integer.toString(event.dow));
+        if (event.segmentation != null) {
+            ascii(',');
+            string("segmentation");
+            ascii(':');
+            writeSegmentation(event.segmentation);
+        }
+        if (!Double.isNaN(event.sum) && !Double.isInfinite(event.sum)) {
+            ascii(',');
+            string("sum");
+            ascii(':');
+            ascii(numberToString(event.sum));
+        }
+        ascii('}');
+    }
+
+    private void writeSegmentation(final Map<String, String> segmentation) {
+        ascii('{');
+        boolean first = true;
+        for (Map.Entry<String, String> entry : segmentation.entrySet()) {
+            if (entry.getKey() == null) {
+                continue;
+            }
+            if (!first) {
+                ascii(',');
+            }
+            first = false;
+            string(entry.getKey());
+            ascii(':');
+            if (entry.getValue() == null) {
+                ascii("null");
+            } else {
+                string(entry.getValue());
+            }
+        }
+        ascii('}');
+    }
+
+    /**
+     * Same formatting as org.json's JSONObject.numberToString.
+     */
+    static String numberToString(final double value) {
+        if (value == 0 && Double.doubleToRawLongBits(value) != 0) {
+            return "-0";
+        }
+        final long longValue = (long) value;
+        if (value == (double) longValue) {
+            return Long.toString(longValue);
+        }
+        return Double.toString(value);
+    }
+
+    private void string(final String value) {
+        ascii('"');
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    ascii('\\');
+                    ascii(c);
+                    break;
+                case '\t':
+                    ascii("\\t");
+                    break;
+                case '\b':
+                    ascii("\\b");
+                    break;
+                case '\n':
+                    ascii("\\n");
+                    break;
+                case '\r':
+                    ascii("\\r");
+                    break;
+                case '\f':
+                    ascii("\\f");
+                    break;
+                default:
+                    if (c <= 0x1F) {
+                        ascii("\\u00");
+                        ascii(JSON_HEX[c >> 4]);
+                        ascii(JSON_HEX[c & 0xF]);
+                    } else if (!urlEncode_ || c < 0x80) {
+                        ascii(c);
+                    } else if (c < 0x800) {
+                        percent(0xC0 | (c >> 6));
+                        percent(0x80 | (c & 0x3F));
+                    } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                        final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                        percent(0xF0 | (codePoint >> 18));
+                        percent(0x80 | ((codePoint >> 12) & 0x3F));
+                        percent(0x80 | ((codePoint >> 6) & 0x3F));
+                        percent(0x80 | (codePoint & 0x3F));
+                    } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                        // unpaired surrogates can't be encoded, URLEncoder writes '?' instead
+                        percent('?');
+                    } else {
+                        percent(0xE0 | (c >> 12));
+                        percent(0x80 | ((c >> 6) & 0x3F));
+                        percent(0x80 | (c & 0x3F));
+                    }
+            }
+        }
+        ascii('"');
+    }
+
+    private void ascii(final String value) {
+        for (int i = 0; i < value.length(); i++) {
+            ascii(value.charAt(i));
+        }
+    }
+
+    /**
+     * Writes a character, form-encoding it if needed. Non-ASCII characters are only passed
+     * here when no encoding is done.
+     */
+    private void ascii(final char c) {
+        if (!urlEncode_ || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == '.' || c == '-' || c == '*' || c == '_') {
+            buffer_.append(c);
+        } else if (c == ' ') {
+            buffer_.append('+');
+        } else {
+            percent(c);
+        }
+    }
+
+    private void percent(final int b) {
+        buffer_.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+    }
+}
@@ -0,0 +1,396 @@
+/*
+Copyright (c) 2012, 2013, 2014 Countly
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package ly.count.android.sdk;
+
+import android.os.Build;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+
+/**
+ * HTTP 传输层默认实现
+ *
+ * HttpTransport is the default Transport. It submits requests with HttpURLConnection:
+ * GET with the parameters in the query string, POST for crash reports, multipart POST
+ * for profile picture uploads and a form POST to /i/bulk for batches.
+ *
+ * Connections whose response was read to the end are not disconnected, so they go back
+ * to the keep-alive pool and the next request reuses them instead of paying for DNS, TCP
+ * and TLS setup again. Only connections left in an unknown state are disconnected.
+ *
+ * When compression is enabled, POST bodies at or over the compression threshold are sent
+ * with Content-Encoding: gzip. Event requests that would normally be sent as a GET are then
+ * POSTed to /i instead, so that they can be compressed too.
+ *
+ * NOTE: This class is only public to facilitate unit testing, because
+ *       of this bug in dexmaker: https://code.google.com/p/dexmaker/issues/detail?id=34
+ */
+public class HttpTransport implements Transport {
+    /**
+     * 连接超时：30s
+     * 读取超时：30s
+     */
+    private static final int CONNECT_TIMEOUT_IN_MILLISECONDS = 30000;
+    private static final int READ_TIMEOUT_IN_MILLISECONDS = 30000;
+
+    /**
+     * Smallest request body that is worth compressing; below it the gzip header and
+     * the CPU time cost more than the bytes saved.
+     */
+    static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
+    private final String serverURL_;
+    private final SSLContext sslContext_;
+    private int compressionThreshold_ = -1;
+
+    HttpTransport(final String serverURL, final SSLContext sslContext) {
+        serverURL_ = serverURL;
+        sslContext_ = sslContext;
+
+        // HTTP connection reuse which was buggy pre-froyo
+        /**
+         * 在Android 2.2.x以前，需要配置系统属性
+         */
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO) {
+            System.setProperty("http.keepAlive", "false");
+        }
+    }
+
+    /**
+     * Sets the size, in characters, from which request bodies are gzipped.
+     * @param compressionThreshold threshold, negative disables compression
+     */
+    void setCompressionThreshold(final int compressionThreshold) {
+        compressionThreshold_ = compressionThreshold;
+    }
+
+    int getCompressionThreshold() {
+        return compressionThreshold_;
+    }
+
+    private boolean shouldCompress(final String body) {
+        return compressionThreshold_ >= 0 && body.length() >= compressionThreshold_;
+    }
+
+    @Override
+    public Response send(final String requestData) throws IOException {
+        return execute(urlConnectionForEventData(requestData));
+    }
+
+    @Override
+    public Response sendBatch(final List<String> requestsData) throws IOException {
+        final String bulkData = bulkDataForRequests(requestsData);
+        if (bulkData == null) {
+            return null;
+        }
+        return execute(urlConnectionForBulkData(bulkData));
+    }
+
+    /**
+     * 将string形式的参数串，转换为 URLConnection
+     *
+     * 1.构造完整URL串（参数中没有“&crash=”时，加上参数串）
+     * 2.String --> URL
+     * 3.构造HttpURLConnection
+     * 4.如果公钥数字证书为null，直接打开连接，开始发送请求；证书不为null，还可以在connection对象上加上安全套接字协议
+     * 5.设置HttpURLConnection的配置（setDoInput(true)等）
+     * 6.有用户图片提交，就得将图片文件内容写入URLConnection内部
+     * 7.否则，如果有“crash”属性，或者请求需要压缩，那么，需要Post方式请求，同样写在内容中
+     * 8.返回URLConnection对象
+     *
+     * @param eventData
+     * @return
+     * @throws IOException
+     */
+    URLConnection urlConnectionForEventData(final String eventData) throws IOException {
+        // crash reports are too long for a query string, and compressed requests need a body
+        final boolean post = eventData.contains("&crash=")
+                || (shouldCompress(eventData) && !eventData.contains(UserData.PICTURE_PATH_KEY + "="));
+        String urlStr = serverURL_ + "/i?";
+        if(!post)
+            urlStr += eventData;
+        final URL url = new URL(urlStr);
+        final HttpURLConnection conn;
+        if (Countly.publicKeyPinCertificates == null) {
+            conn = (HttpURLConnection)url.openConnection();
+        } else {
+            HttpsURLConnection c = (HttpsURLConnection)url.openConnection();
+            c.setSSLSocketFactory(sslContext_.getSocketFactory());
+            conn = c;
+        }
+        conn.setConnectTimeout(CONNECT_TIMEOUT_IN_MILLISECONDS);
+        conn.setReadTimeout(READ_TIMEOUT_IN_MILLISECONDS);
+        conn.setUseCaches(false);
+        conn.setDoInput(true);/*可以在里面读取数据出来*/
+
+        /*获取图片路径(根据picturePath参数)*/
+        String picturePath = UserData.getPicturePathFromQuery(url);
+
+        if (Countly.sharedInstance().isLoggingEnabled()) {
+            Log.d(Countly.TAG, "Got picturePath: " + picturePath);
+        }
+
+        /*如果图片路径存在*/
+        if(!picturePath.equals("")){
+        	//Uploading files:
+        	//http://stackoverflow.com/questions/2793150/how-to-use-java-net-urlconnection-to-fire-and-handle-http-requests
+        	
+        	File binaryFile = new File(picturePath);
+        	conn.setDoOutput(true);/*可以添加数据到conn中*/
+        	// Just generate some unique random value.
+        	String boundary = Long.toHexString(System.currentTimeMillis());
+
+            /**
+             * 设置了可以向conn对象写入数据后，
+             * 行分隔符分隔开各个数据:
+             * 以当前时刻（long转 HexString）作为内容的上下边界，然后，内容区逐行添加数据（包括获取图片文件内容并转化为二进制串形式写入）
+             *
+             */
+
+            // Line separator required by multipart/form-data.
+        	String CRLF = "\r\n";
+        	String charset = "UTF-8";
+        	conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+        	OutputStream output = conn.getOutputStream();
+        	PrintWriter writer = new PrintWriter(new OutputStreamWriter(output, charset), true);
+        	// Send binary file.
+            writer.append("--" + boundary).append(CRLF);
+            writer.append("Content-Disposition: form-data; name=\"binaryFile\"; filename=\"" + binaryFile.getName() + "\"").append(CRLF);
+            writer.append("Content-Type: " + URLConnection.guessContentTypeFromName(binaryFile.getName())).append(CRLF);
+            writer.append("Content-Transfer-Encoding: binary").append(CRLF);
+            writer.append(CRLF).flush();
+            FileInputStream fileInputStream = new FileInputStream(binaryFile);
+            byte[] buffer = new byte[1024];
+            int len;
+            try {
+                while ((len = fileInputStream.read(buffer)) != -1) {
+                    output.write(buffer, 0, len);
+                }
+            }catch(IOException ex){
+                ex.printStackTrace();
+            }
+            output.flush(); // Important before continuing with writer!
+            writer.append(CRLF).flush(); // CRLF is important! It indicates end of boundary.
+            fileInputStream.close();
+
+            // End of multipart/form-data.
+            writer.append("--" + boundary + "--").append(CRLF).flush();
+        }
+        else if(post){/*如果存在crash这个参数项，就需要用到post的方式，而不是get方式（直接在URL后面补上参数串）*/
+            if (Countly.sharedInstance().isLoggingEnabled()) {
+                Log.d(Countly.TAG, "Using post because of crash or compression");
+            }
+            writeBody(conn, eventData);
+        }
+        else{
+        	conn.setDoOutput(false);
+        }
+        return conn;
+    }
+
+    /**
+     * Opens a POST connection to the /i/bulk endpoint and writes the given
+     * form-encoded body into it.
+     * @param bulkData form-encoded POST body, see {@link #bulkDataForRequests(List)}
+     */
+    URLConnection urlConnectionForBulkData(final String bulkData) throws IOException {
+        final URL url = new URL(serverURL_ + "/i/bulk");
+        final HttpURLConnection conn;
+        if (Countly.publicKeyPinCertificates == null) {
+            conn = (HttpURLConnection)url.openConnection();
+        } else {
+            HttpsURLConnection c = (HttpsURLConnection)url.openConnection();
+            c.setSSLSocketFactory(sslContext_.getSocketFactory());
+            conn = c;
+        }
+        conn.setConnectTimeout(CONNECT_TIMEOUT_IN_MILLISECONDS);
+        conn.setReadTimeout(READ_TIMEOUT_IN_MILLISECONDS);
+        conn.setUseCaches(false);
+        conn.setDoInput(true);
+        writeBody(conn, bulkData);
+        return conn;
+    }
+
+    /**
+     * Writes a form-encoded POST body. A body at or over the compression threshold is gzipped
+     * while it is written into a chunked request, so the compressed payload is never held in
+     * memory next to the original; smaller bodies are sent with a fixed length.
+     */
+    private void writeBody(final HttpURLConnection conn, final String body) throws IOException {
+        conn.setDoOutput(true);
+        conn.setRequestMethod("POST");
+        conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+        if (shouldCompress(body)) {
+            conn.setRequestProperty("Content-Encoding", "gzip");
+            conn.setChunkedStreamingMode(0);
+            final Writer writer = new OutputStreamWriter(new GZIPOutputStream(conn.getOutputStream()), "UTF-8");
+            try {
+                writer.write(body);
+            } finally {
+                writer.close();
+            }
+        } else {
+            final byte[] bytes = body.getBytes("UTF-8");
+            conn.setFixedLengthStreamingMode(bytes.length);
+            final OutputStream os = conn.getOutputStream();
+            try {
+                os.write(bytes);
+            } finally {
+                os.close();
+            }
+        }
+    }
+
+    /**
+     * Builds the form-encoded POST body for a bulk request. Each query string is turned into
+     * the JSON object of its decoded parameters, which is what the server expects as a bulk
+     * request item.
+     * @return POST body or null if any of the requests cannot be represented in a bulk request
+     */
+    static String bulkDataForRequests(final List<String> requestsData) {
+        final JSONArray requests = new JSONArray();
+        try {
+            for (String requestData : requestsData) {
+                final JSONObject request = new JSONObject();
+                for (String pair : requestData.split("&")) {
+                    if (pair.length() == 0) {
+                        continue;
+                    }
+                    final int idx = pair.indexOf('=');
+                    final String key = URLDecoder.decode(idx < 0 ? pair : pair.substring(0, idx), "UTF-8");
+                    final String value = idx < 0 ? "" : URLDecoder.decode(pair.substring(idx + 1), "UTF-8");
+                    request.put(key, value);
+                }
+                requests.put(request);
+            }
+            return "requests=" + URLEncoder.encode(requests.toString(), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // should never happen because Android guarantees UTF-8 support
+            return null;
+        } catch (IllegalArgumentException e) {
+            // malformed percent-encoding in a stored request, leave it to per-request submission
+            return null;
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Converts a Retry-After header value, either a number of seconds or an HTTP date, into
+     * milliseconds from now.
+     * @return the delay, 0 for a date in the past, -1 if the header is missing or malformed
+     */
+    static long parseRetryAfter(final String value, final long now) {
+        if (value == null || value.trim().length() == 0) {
+            return -1;
+        }
+        final String trimmed = value.trim();
+        try {
+            final long seconds = Long.parseLong(trimmed);
+            return seconds < 0 ? -1 : Math.min(seconds, Long.MAX_VALUE / 1000) * 1000;
+        } catch (NumberFormatException ignored) {
+            // not delta-seconds, try the date form
+        }
+        try {
+            final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            return Math.max(0, format.parse(trimmed).getTime() - now);
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 启动连接，读取响应码和完整的响应数据
+     *
+     * Connects, then reads the response code and the whole response body.
+     */
+    Response execute(final URLConnection conn) throws IOException {
+        InputStream responseStream = null;
+        boolean responseConsumed = false;
+        try {
+            conn.connect();
+
+            int responseCode = 200;
+            if (conn instanceof HttpURLConnection) {
+                responseCode = ((HttpURLConnection) conn).getResponseCode();
+            }
+            final long retryAfterMillis = parseRetryAfter(conn.getHeaderField("Retry-After"), System.currentTimeMillis());
+
+            // error responses have their body in the error stream
+            final InputStream stream = responseCode >= 400 && conn instanceof HttpURLConnection
+                    ? ((HttpURLConnection) conn).getErrorStream() : conn.getInputStream();
+            final ByteArrayOutputStream responseData = new ByteArrayOutputStream(256); // big enough to handle success response without reallocating
+            if (stream != null) {
+                responseStream = new BufferedInputStream(stream);
+                int c;
+                while ((c = responseStream.read()) != -1) {
+                    responseData.write(c);
+                }
+            }
+            responseConsumed = true;
+            return new Response(responseCode, responseData.toString("UTF-8"), retryAfterMillis);
+        }
+        finally {
+            /**
+             * 最后，释放资源；响应已读完时不断开连接，以便下一个请求复用
+             */
+            // free connection resources, keeping consumed connections in the keep-alive pool
+            if (responseStream != null) {
+                try { responseStream.close(); } catch (IOException ignored) {}
+            }
+            if (!responseConsumed && conn instanceof HttpURLConnection) {
+                ((HttpURLConnection)conn).disconnect();
+            }
+        }
+    }
+
+    // for unit testing
+    String getServerURL() { return serverURL_; }
+    SSLContext getSSLContext() { return sslContext_; }
+}
@@ -0,0 +1,634 @@
+/*
+Copyright (c) 2012, 2013, 2014 Countly
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package ly.count.android.sdk;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Memory-mapped ring file backing a CountlyStore queue, for apps that queue tens of thousands
+ * of requests while offline.
+ *
+ * The file starts with a header holding the head and tail offsets and the next id, followed
+ * by a ring of length-prefixed records:
+ * <pre>
+ * length(4) flags(1) id(8) attempts(4) crc(4) payload(length)
+ * </pre>
+ * The CRC covers the id and the payload. Offsets are logical and only ever grow; the record
+ * at logical offset p lives at HEADER_SIZE + p % dataCapacity. A record never wraps: if it
+ * does not fit before the end of the ring, the remainder is skipped (marked with a PADDING
+ * length if there is room for one) and the record starts over at the beginning.
+ *
+ * Appending writes the record and then the new tail offset, removing from the head writes
+ * the new head offset, removing any other item sets its removed flag and counting an attempt
+ * rewrites its attempts field. Nothing is serialized as a whole, and only ids and offsets are
+ * kept in memory: values are decoded from the mapping when they are read. A record past the
+ * tail offset, from a crash before the tail was written, is simply not part of the queue; a
+ * record whose CRC does not match ends the queue on replay.
+ *
+ * The ring starts at INITIAL_CAPACITY bytes and is copied into a ring twice the size whenever
+ * an append does not fit. The file is only created by the first append. Changes to the mapping
+ * are flushed to disk after every mutation in SYNC mode, and by a SyncPolicy otherwise.
+ */
+class MappedRingQueue implements PersistentQueue {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int MAGIC = 0x434c5952; // "CLYR"
+    private static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    private static final int HEAD_OFFSET = 8;
+    private static final int TAIL_OFFSET = 16;
+    private static final int NEXT_ID_OFFSET = 24;
+
+    private static final int PADDING = -1;
+    private static final byte FLAG_REMOVED = 1;
+    private static final int FLAGS_OFFSET = 4;
+    private static final int ATTEMPTS_OFFSET = FLAGS_OFFSET + 1 + 8;
+    static final int RECORD_OVERHEAD = 4 + 1 + 8 + 4 + 4;
+    // larger records are taken for corruption on replay, so they are never written
+    static final int MAX_PAYLOAD_BYTES = 16 * 1024 * 1024;
+
+    static final int INITIAL_CAPACITY = 64 * 1024;
+
+    private static final String RING_SUFFIX = ".ring";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Position of a live record in the ring.
+     */
+    private static class Slot {
+        final long id;
+        long offset;
+        final int size;
+        int attempts;
+
+        Slot(final long id, final long offset, final int size) {
+            this.id = id;
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    private final File directory_;
+    private final File file_;
+    private final String name_;
+    private final LinkedHashMap<Long, Slot> slots_ = new LinkedHashMap<>();
+    private final CRC32 crc_ = new CRC32();
+    private final SyncPolicy syncPolicy_ = new SyncPolicy(new Runnable() {
+        @Override
+        public void run() {
+            sync();
+        }
+    });
+
+    private MappedByteBuffer buffer_;
+    private long dataCapacity_;
+    private long head_;
+    private long tail_;
+    private long nextId_ = 1;
+    // no live record has a higher id, lowered by tail() as the newest records are removed
+    private long tailId_;
+    private long liveBytes_;
+
+    /**
+     * Opens the ring with the given name in the given directory, replaying the file left there
+     * by a previous process if there is one.
+     * @param directory directory holding the ring file, created on the first append if missing
+     * @param name name of the ring file without suffix, must be unique within the directory
+     */
+    MappedRingQueue(final File directory, final String name) {
+        directory_ = directory;
+        name_ = name;
+        file_ = ringFile(directory, name);
+        if (file_.exists()) {
+            replay();
+        }
+    }
+
+    /**
+     * Returns true if a ring with the given name exists in the given directory.
+     */
+    static boolean exists(final File directory, final String name) {
+        return ringFile(directory, name).exists();
+    }
+
+    private static File ringFile(final File directory, final String name) {
+        return new File(directory, name + RING_SUFFIX);
+    }
+
+    @Override
+    public synchronized int size() {
+        return slots_.size();
+    }
+
+    @Override
+    public synchronized long liveBytes() {
+        return liveBytes_;
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return slots_.isEmpty();
+    }
+
+    @Override
+    public synchronized String[] values() {
+        final String[] values = new String[slots_.size()];
+        int i = 0;
+        for (Slot slot : slots_.values()) {
+            values[i++] = readValue(slot);
+        }
+        return values;
+    }
+
+    @Override
+    public synchronized List<Entry> entries() {
+        return peek(slots_.size());
+    }
+
+    @Override
+    public synchronized List<Entry> peek(final int max) {
+        final List<Entry> found = new ArrayList<>(Math.min(max, slots_.size()));
+        final Iterator<Slot> it = slots_.values().iterator();
+        while (found.size() < max && it.hasNext()) {
+            found.add(toEntry(it.next()));
+        }
+        return found;
+    }
+
+    @Override
+    public synchronized Entry get(final long id) {
+        final Slot slot = slots_.get(id);
+        return slot == null ? null : toEntry(slot);
+    }
+
+    @Override
+    public synchronized Entry head() {
+        return slots_.isEmpty() ? null : toEntry(slots_.values().iterator().next());
+    }
+
+    @Override
+    public synchronized Entry tail() {
+        if (slots_.isEmpty()) {
+            return null;
+        }
+        // ids only increase, so every id skipped here belongs to a removed record and is
+        // never looked at again
+        while (!slots_.containsKey(tailId_)) {
+            tailId_--;
+        }
+        return toEntry(slots_.get(tailId_));
+    }
+
+    @Override
+    public synchronized Entry at(final int index) {
+        if (index < 0 || index >= slots_.size()) {
+            return null;
+        }
+        final Iterator<Slot> it = slots_.values().iterator();
+        for (int i = 0; i < index; i++) {
+            it.next();
+        }
+        return toEntry(it.next());
+    }
+
+    @Override
+    public int sizeOf(final String value) {
+        return RECORD_OVERHEAD + value.getBytes(UTF8).length;
+    }
+
+    /**
+     * Appends an item to the tail of the ring, growing the ring if it is full.
+     * @return the stable id assigned to the item, or -1 if the item is larger than
+     *         MAX_PAYLOAD_BYTES or the ring file could not be written, and the item was dropped
+     */
+    @Override
+    public synchronized long append(final String value) {
+        final long id = write(value);
+        if (id >= 0) {
+            writeTail();
+        }
+        return id;
+    }
+
+    @Override
+    public synchronized long[] appendAll(final Collection<String> values) {
+        final long[] ids = new long[values.size()];
+        int i = 0;
+        for (String value : values) {
+            ids[i++] = write(value);
+        }
+        writeTail();
+        return ids;
+    }
+
+    @Override
+    public synchronized boolean remove(final long id) {
+        return removeAll(new long[]{id}) > 0;
+    }
+
+    @Override
+    public synchronized int removeAll(final long[] ids) {
+        int removed = 0;
+        for (long id : ids) {
+            final Slot slot = slots_.remove(id);
+            if (slot != null) {
+                liveBytes_ -= slot.size;
+                buffer_.put(position(slot.offset) + FLAGS_OFFSET, FLAG_REMOVED);
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            writeHead();
+        }
+        return removed;
+    }
+
+    @Override
+    public synchronized int removeHead(final int count) {
+        int removed = 0;
+        final Iterator<Slot> it = slots_.values().iterator();
+        while (removed < count && it.hasNext()) {
+            liveBytes_ -= it.next().size;
+            it.remove();
+            removed++;
+        }
+        if (removed > 0) {
+            writeHead();
+        }
+        return removed;
+    }
+
+    @Override
+    public synchronized int removeThrough(final long id) {
+        int removed = 0;
+        final Iterator<Slot> it = slots_.values().iterator();
+        while (it.hasNext()) {
+            final Slot slot = it.next();
+            if (slot.id > id) {
+                break;
+            }
+            liveBytes_ -= slot.size;
+            it.remove();
+            removed++;
+        }
+        if (removed > 0) {
+            writeHead();
+        }
+        return removed;
+    }
+
+    @Override
+    public synchronized boolean removeFirst(final String value) {
+        final long id = idOf(value);
+        return id >= 0 && remove(id);
+    }
+
+    @Override
+    public synchronized long idOf(final String value) {
+        for (Slot slot : slots_.values()) {
+            if (readValue(slot).equals(value)) {
+                return slot.id;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public synchronized int recordAttempt(final long id) {
+        final Slot slot = slots_.get(id);
+        if (slot == null) {
+            return -1;
+        }
+        slot.attempts++;
+        buffer_.putInt(position(slot.offset) + ATTEMPTS_OFFSET, slot.attempts);
+        force();
+        return slot.attempts;
+    }
+
+    @Override
+    public synchronized void clear() {
+        syncPolicy_.takePending(); // the file is deleted, nothing left to sync
+        buffer_ = null;
+        dataCapacity_ = 0;
+        slots_.clear();
+        liveBytes_ = 0;
+        head_ = 0;
+        tail_ = 0;
+        if (file_.exists() && !file_.delete() && Countly.sharedInstance().isLoggingEnabled()) {
+            Log.w(Countly.TAG, "Failed to delete " + file_);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        // the mapping stays valid without the file being open, see map()
+    }
+
+    @Override
+    public synchronized void setDurability(final Countly.DurabilityMode mode, final long groupCommitWindowMillis) {
+        sync();
+        syncPolicy_.setMode(mode, groupCommitWindowMillis);
+    }
+
+    @Override
+    public synchronized void sync() {
+        if (syncPolicy_.takePending() && buffer_ != null) {
+            buffer_.force();
+        }
+    }
+
+    // for unit testing
+    synchronized long capacity() {
+        return buffer_ == null ? 0 : HEADER_SIZE + dataCapacity_;
+    }
+
+    /**
+     * Writes a record at the tail of the ring without publishing the new tail offset.
+     * @return id of the record, -1 if it could not be written
+     */
+    private long write(final String value) {
+        final byte[] bytes = value.getBytes(UTF8);
+        if (bytes.length > MAX_PAYLOAD_BYTES) {
+            if (Countly.sharedInstance().isLoggingEnabled()) {
+                Log.w(Countly.TAG, "Dropping " + bytes.length + " byte item, larger than the " + name_ + " ring accepts");
+            }
+            return -1;
+        }
+        final int size = RECORD_OVERHEAD + bytes.length;
+        try {
+            if (buffer_ == null || tail_ - head_ + size + skipBefore(tail_, size) > dataCapacity_) {
+                grow(size);
+            }
+        } catch (IOException e) {
+            if (Countly.sharedInstance().isLoggingEnabled()) {
+                Log.w(Countly.TAG, "Failed to grow " + name_ + " ring, dropping item", e);
+            }
+            return -1;
+        }
+
+        final long skip = skipBefore(tail_, size);
+        if (skip >= 4) {
+            buffer_.putInt(position(tail_), PADDING);
+        }
+        tail_ += skip;
+
+        final long id = nextId_++;
+        crc_.reset();
+        crc_.update(longBytes(id));
+        crc_.update(bytes);
+        final int position = position(tail_);
+        buffer_.position(position);
+        buffer_.putInt(bytes.length);
+        buffer_.put((byte) 0);
+        buffer_.putLong(id);
+        buffer_.putInt(0);
+        buffer_.putInt((int) crc_.getValue());
+        buffer_.put(bytes);
+
+        slots_.put(id, new Slot(id, tail_, size));
+        liveBytes_ += size;
+        tailId_ = id;
+        tail_ += size;
+        return id;
+    }
+
+    /**
+     * Returns how many bytes have to be skipped at the given offset so that a record of the
+     * given size does not wrap around the end of the ring.
+     */
+    private long skipBefore(final long offset, final int size) {
+        final long left = dataCapacity_ - offset % dataCapacity_;
+        return left < size ? left : 0;
+    }
+
+    /**
+     * Publishes the tail offset after records have been written, then flushes the mapping.
+     */
+    private void writeTail() {
+        if (buffer_ != null) {
+            buffer_.putLong(NEXT_ID_OFFSET, nextId_);
+            buffer_.putLong(TAIL_OFFSET, tail_);
+            force();
+        }
+    }
+
+    /**
+     * Moves the head offset to the oldest live record, then flushes the mapping.
+     */
+    private void writeHead() {
+        head_ = slots_.isEmpty() ? tail_ : slots_.values().iterator().next().offset;
+        buffer_.putLong(HEAD_OFFSET, head_);
+        force();
+    }
+
+    /**
+     * Flushes the mapping to disk now in SYNC mode, later in the other modes. Until then the
+     * changes live in the page cache, which the process dying does not lose.
+     */
+    private void force() {
+        if (syncPolicy_.written()) {
+            buffer_.force();
+        }
+    }
+
+    private int position(final long offset) {
+        return (int) (HEADER_SIZE + offset % dataCapacity_);
+    }
+
+    /**
+     * Copies the live records into a new ring with room for at least another record of the
+     * given size. The new ring is written to a temporary file and renamed into place, so a
+     * crash leaves either the old or the new ring intact.
+     */
+    private void grow(final int size) throws IOException {
+        long used = 0;
+        for (Slot slot : slots_.values()) {
+            used += slot.size;
+        }
+        long capacity = dataCapacity_ == 0 ? INITIAL_CAPACITY - HEADER_SIZE : dataCapacity_;
+        while (capacity < used + size) {
+            capacity *= 2;
+        }
+        if (capacity + HEADER_SIZE > Integer.MAX_VALUE) {
+            throw new IOException("ring would exceed " + Integer.MAX_VALUE + " bytes");
+        }
+        if (buffer_ != null && capacity == dataCapacity_) {
+            capacity *= 2;
+        }
+
+        if (!directory_.exists() && !directory_.mkdirs()) {
+            throw new IOException("cannot create " + directory_);
+        }
+        final File temp = new File(directory_, name_ + RING_SUFFIX + TEMP_SUFFIX);
+        final MappedByteBuffer target = map(temp, HEADER_SIZE + capacity);
+        long offset = 0;
+        for (Slot slot : slots_.values()) {
+            final ByteBuffer record = buffer_.duplicate();
+            record.position(position(slot.offset));
+            record.limit(record.position() + slot.size);
+            target.position(HEADER_SIZE + (int) offset);
+            target.put(record);
+            slot.offset = offset;
+            offset += slot.size;
+        }
+        target.putInt(0, MAGIC);
+        target.putInt(4, VERSION);
+        target.putLong(HEAD_OFFSET, 0);
+        target.putLong(TAIL_OFFSET, offset);
+        target.putLong(NEXT_ID_OFFSET, nextId_);
+        target.force();
+        if (!temp.renameTo(file_)) {
+            throw new IOException("cannot rename " + temp + " to " + file_);
+        }
+
+        buffer_ = target;
+        dataCapacity_ = capacity;
+        head_ = 0;
+        tail_ = offset;
+    }
+
+    /**
+     * Maps the given file read-write, creating or resizing it to the given length. The file is
+     * closed right away; the mapping stays valid until it is garbage collected.
+     */
+    private static MappedByteBuffer map(final File file, final long length) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() != length) {
+                raf.setLength(length);
+            }
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Maps the ring file and rebuilds the index of live records between the head and tail
+     * offsets. A file that is not a valid ring is deleted.
+     */
+    private void replay() {
+        try {
+            final long length = file_.length();
+            if (length <= HEADER_SIZE || length > Integer.MAX_VALUE) {
+                throw new IOException("bad ring size " + length);
+            }
+            buffer_ = map(file_, length);
+            dataCapacity_ = length - HEADER_SIZE;
+            if (buffer_.getInt(0) != MAGIC || buffer_.getInt(4) != VERSION) {
+                throw new IOException("bad ring header");
+            }
+            head_ = buffer_.getLong(HEAD_OFFSET);
+            tail_ = buffer_.getLong(TAIL_OFFSET);
+            nextId_ = buffer_.getLong(NEXT_ID_OFFSET);
+            if (head_ < 0 || tail_ < head_ || tail_ - head_ > dataCapacity_ || nextId_ < 1) {
+                throw new IOException("bad ring offsets");
+            }
+        } catch (IOException e) {
+            if (Countly.sharedInstance().isLoggingEnabled()) {
+                Log.w(Countly.TAG, "Discarding unreadable " + name_ + " ring", e);
+            }
+            clear();
+            return;
+        }
+
+        long offset = head_;
+        while (offset < tail_) {
+            final long left = dataCapacity_ - offset % dataCapacity_;
+            final int position = position(offset);
+            if (left < 4 || buffer_.getInt(position) == PADDING) {
+                offset += left;
+                continue;
+            }
+            final int length = buffer_.getInt(position);
+            final int size = RECORD_OVERHEAD + length;
+            if (length < 0 || length > MAX_PAYLOAD_BYTES || size > left || offset + size > tail_) {
+                break;
+            }
+            final byte flags = buffer_.get(position + FLAGS_OFFSET);
+            final long id = buffer_.getLong(position + FLAGS_OFFSET + 1);
+            final int attempts = buffer_.getInt(position + ATTEMPTS_OFFSET);
+            final int crc = buffer_.getInt(position + ATTEMPTS_OFFSET + 4);
+            final byte[] bytes = new byte[length];
+            buffer_.position(position + RECORD_OVERHEAD);
+            buffer_.get(bytes);
+            crc_.reset();
+            crc_.update(longBytes(id));
+            crc_.update(bytes);
+            if ((int) crc_.getValue() != crc || id >= nextId_) {
+                break;
+            }
+            if ((flags & FLAG_REMOVED) == 0) {
+                final Slot slot = new Slot(id, offset, size);
+                slot.attempts = attempts;
+                slots_.put(id, slot);
+                liveBytes_ += size;
+            }
+            offset += size;
+        }
+        tailId_ = nextId_ - 1;
+
+        if (offset < tail_) {
+            if (Countly.sharedInstance().isLoggingEnabled()) {
+                Log.w(Countly.TAG, "Dropping corrupt tail of " + name_ + " ring at offset " + offset);
+            }
+            tail_ = offset;
+            writeTail();
+        }
+        writeHead();
+    }
+
+    private String readValue(final Slot slot) {
+        final byte[] bytes = new byte[slot.size - RECORD_OVERHEAD];
+        buffer_.position(position(slot.offset) + RECORD_OVERHEAD);
+        buffer_.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private Entry toEntry(final Slot slot) {
+        final Entry entry = new Entry(slot.id, readValue(slot), slot.size);
+        entry.attempts = slot.attempts;
+        return entry;
+    }
+
+    private static byte[] longBytes(final long value) {
+        final byte[] bytes = new byte[8];
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (value >>> (56 - 8 * i));
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+Copyright (c) 2012, 2013, 2014 Countly
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package ly.count.android.sdk;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Durable FIFO queue of strings backing one of the CountlyStore queues. Every item gets a
+ * stable id when it is appended; ids only ever increase, so removing "everything up to an id"
+ * removes exactly the items at the head of the queue that were there when the id was read.
+ *
+ * Implementations keep an in-memory index of the live items, so reads never scan the whole
+ * storage, and apply every mutation with a small write rather than rewriting the queue.
+ * All methods are thread-safe.
+ */
+interface PersistentQueue {
+
+    /**
+     * A live item of the queue together with its stable id and the number of attempts
+     * recorded for it.
+     */
+    class Entry {
+        final long id;
+        final String value;
+        final int size;
+        int attempts;
+
+        Entry(final long id, final String value, final int size) {
+            this.id = id;
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Returns the number of live items.
+     */
+    int size();
+
+    /**
+     * Returns the bytes taken up in storage by the live items.
+     */
+    long liveBytes();
+
+    /**
+     * Returns true if there are no live items.
+     */
+    boolean isEmpty();
+
+    /**
+     * Returns the values of all live items, oldest first.
+     */
+    String[] values();
+
+    /**
+     * Returns all live items with their ids, oldest first.
+     */
+    List<Entry> entries();
+
+    /**
+     * Returns up to max live items with their ids, oldest first, without copying the rest
+     * of the queue.
+     */
+    List<Entry> peek(int max);
+
+    /**
+     * Returns the live item with the given id, null if there is none.
+     */
+    Entry get(long id);
+
+    /**
+     * Returns the oldest live item, null if there is none.
+     */
+    Entry head();
+
+    /**
+     * Returns the newest live item, null if there is none.
+     */
+    Entry tail();
+
+    /**
+     * Returns the live item at the given position, 0 being the oldest, without copying the
+     * items before it. Returns null if index is out of range.
+     */
+    Entry at(int index);
+
+    /**
+     * Returns the bytes an item with the given value would add to {@link #liveBytes()}.
+     */
+    int sizeOf(String value);
+
+    /**
+     * Appends an item to the tail of the queue.
+     * @return the stable id assigned to the item, or -1 if the queue could not store it and
+     *         dropped it
+     */
+    long append(String value);
+
+    /**
+     * Appends several items with a single write.
+     * @return ids assigned to the items, in iteration order of the collection, -1 for items
+     *         that were dropped
+     */
+    long[] appendAll(Collection<String> values);
+
+    /**
+     * Removes the item with the given id, ignored if no such item is live.
+     * @return true if an item was removed
+     */
+    boolean remove(long id);
+
+    /**
+     * Removes the items with the given ids with a single write.
+     * @return number of items removed
+     */
+    int removeAll(long[] ids);
+
+    /**
+     * Removes up to count items from the head of the queue.
+     * @return number of items removed
+     */
+    int removeHead(int count);
+
+    /**
+     * Removes every live item with an id up to and including the given one. Items appended
+     * after the id was read are left alone.
+     * @return number of items removed
+     */
+    int removeThrough(long id);
+
+    /**
+     * Removes the first live item whose value equals the given one.
+     * @return true if an item was removed
+     */
+    boolean removeFirst(String value);
+
+    /**
+     * Returns the id of the first live item whose value equals the given one, -1 if there is none.
+     */
+    long idOf(String value);
+
+    /**
+     * Increments the attempt counter of the item with the given id and persists it.
+     * @return the new number of attempts, or -1 if no such item is live
+     */
+    int recordAttempt(long id);
+
+    /**
+     * Selects when writes are flushed to disk. Queues start out in SYNC mode.
+     * @param groupCommitWindowMillis how long GROUP_COMMIT collects writes before flushing them
+     */
+    void setDurability(Countly.DurabilityMode mode, long groupCommitWindowMillis);
+
+    /**
+     * Flushes writes deferred by the durability mode to disk.
+     */
+    void sync();
+
+    /**
+     * Removes every item and deletes the underlying files.
+     */
+    void clear();
+
+    /**
+     * Releases open files. The queue can still be used afterwards, files are reopened on the
+     * next write.
+     */
+    void close();
+}
@@ -0,0 +1,939 @@
+/*
+Copyright (c) 2012, 2013, 2014 Countly
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package ly.count.android.sdk;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, segmented on-disk journal backing one of the CountlyStore queues.
+ *
+ * Every mutation is a single record appended to the active segment file, so adding or
+ * removing an item costs O(1) I/O no matter how many items are queued:
+ * <ul>
+ * <li>APPEND(id, payload) adds an item to the tail of the queue,</li>
+ * <li>TOMBSTONE(id) removes a single item,</li>
+ * <li>HEAD(id) removes every item with an id up to and including the given one,</li>
+ * <li>ATTEMPTS(id, count) records how often the item has been tried, for queues whose items
+ * are submitted and may fail.</li>
+ * </ul>
+ * Live items are also kept in memory in insertion order, so once the journal has been
+ * replayed, reads never touch the disk.
+ *
+ * Segments roll over after SEGMENT_SIZE_BYTES and are deleted from the oldest end as soon as
+ * every item they hold has been removed. When removed items take up most of the journal,
+ * it is compacted into a snapshot segment that supersedes all older segments; snapshots are
+ * written to a temporary file and renamed into place, so a crash at any point leaves either the
+ * old or the new set of segments intact. A torn record at the tail of a segment (from a crash
+ * mid-write) is detected by its length and CRC and truncated away on replay.
+ *
+ * Records are written to the active segment as soon as they are made. In SYNC mode the segment
+ * is also synced to disk before the call returns; the other modes leave that to a SyncPolicy.
+ */
+class QueueJournal implements PersistentQueue {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int MAGIC = 0x434c594a; // "CLYJ"
+    private static final byte FLAG_SNAPSHOT = 1;
+    private static final int HEADER_SIZE = 5;
+
+    private static final byte RECORD_APPEND = 1;
+    private static final byte RECORD_TOMBSTONE = 2;
+    private static final byte RECORD_HEAD = 3;
+    private static final byte RECORD_ATTEMPTS = 4;
+    private static final int RECORD_OVERHEAD = 1 + 8;          // type + id
+    private static final int ATTEMPTS_OVERHEAD = RECORD_OVERHEAD + 4; // + count
+    private static final int APPEND_OVERHEAD = RECORD_OVERHEAD + 4 + 4; // + length + crc
+    // larger records are taken for corruption on replay, so they are never written
+    static final int MAX_PAYLOAD_BYTES = 16 * 1024 * 1024;
+
+    static final long SEGMENT_SIZE_BYTES = 256 * 1024;
+    static final long COMPACTION_MIN_BYTES = 512 * 1024;
+
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static class Segment {
+        final long seq;
+        final File file;
+        long bytes;
+        long lastId; // highest id appended to this or any older segment
+
+        Segment(final long seq, final File file) {
+            this.seq = seq;
+            this.file = file;
+        }
+    }
+
+    private final File directory_;
+    private final String name_;
+    private final LinkedHashMap<Long, Entry> entries_ = new LinkedHashMap<>();
+    private final List<Segment> segments_ = new ArrayList<>();
+    private final ByteArrayOutputStream recordBuffer_ = new ByteArrayOutputStream(256);
+    private final DataOutputStream recordOut_ = new DataOutputStream(recordBuffer_);
+    private final CRC32 crc_ = new CRC32();
+
+    private FileOutputStream activeOut_;
+    private final SyncPolicy syncPolicy_ = new SyncPolicy(new Runnable() {
+        @Override
+        public void run() {
+            sync();
+        }
+    });
+    private long nextId_ = 1;
+    // no live item has a higher id, lowered by tail() as the newest items are removed
+    private long tailId_;
+    private long nextSeq_;
+    private long liveBytes_;
+    private long totalBytes_;
+    // set after a failed write: the records are only in memory until a compaction writes them out
+    private boolean compactionPending_;
+    // set if a torn record could not be cut off the active segment, later records go to a new one
+    private boolean rollPending_;
+
+    /**
+     * Opens the journal with the given name in the given directory, replaying any
+     * segments left there by a previous process.
+     * @param directory directory holding the segment files, created if missing
+     * @param name prefix of the segment files, must be unique within the directory
+     */
+    QueueJournal(final File directory, final String name) {
+        directory_ = directory;
+        name_ = name;
+        replay();
+    }
+
+    /**
+     * Returns the number of live items.
+     */
+    @Override
+    public synchronized int size() {
+        return entries_.size();
+    }
+
+    /**
+     * Returns the bytes taken up on disk by the live items, excluding removed ones that
+     * have not been compacted away yet.
+     */
+    @Override
+    public synchronized long liveBytes() {
+        return liveBytes_;
+    }
+
+    /**
+     * Returns the bytes an item with the given value takes up in the journal.
+     */
+    static int entrySize(final String value) {
+        return APPEND_OVERHEAD + value.getBytes(UTF8).length;
+    }
+
+    @Override
+    public int sizeOf(final String value) {
+        return entrySize(value);
+    }
+
+    /**
+     * Returns true if there are no live items.
+     */
+    @Override
+    public synchronized boolean isEmpty() {
+        return entries_.isEmpty();
+    }
+
+    /**
+     * Returns the values of all live items, oldest first.
+     */
+    @Override
+    public synchronized String[] values() {
+        final String[] values = new String[entries_.size()];
+        int i = 0;
+        for (Entry e : entries_.values()) {
+            values[i++] = e.value;
+        }
+        return values;
+    }
+
+    /**
+     * Returns all live items with their ids, oldest first.
+     */
+    @Override
+    public synchronized List<Entry> entries() {
+        return new ArrayList<>(entries_.values());
+    }
+
+    /**
+     * Returns up to max live items with their ids, oldest first, without copying the rest
+     * of the queue.
+     */
+    @Override
+    public synchronized List<Entry> peek(final int max) {
+        final List<Entry> found = new ArrayList<>(Math.min(max, entries_.size()));
+        final Iterator<Entry> it = entries_.values().iterator();
+        while (found.size() < max && it.hasNext()) {
+            found.add(it.next());
+        }
+        return found;
+    }
+
+    /**
+     * Returns the live item with the given id, null if there is none.
+     */
+    @Override
+    public synchronized Entry get(final long id) {
+        return entries_.get(id);
+    }
+
+    /**
+     * Returns the oldest live item, null if there is none.
+     */
+    @Override
+    public synchronized Entry head() {
+        return entries_.isEmpty() ? null : entries_.values().iterator().next();
+    }
+
+    /**
+     * Returns the newest live item, null if there is none.
+     */
+    @Override
+    public synchronized Entry tail() {
+        if (entries_.isEmpty()) {
+            return null;
+        }
+        // ids only increase, so every id skipped here belongs to a removed item and is
+        // never looked at again
+        while (!entries_.containsKey(tailId_)) {
+            tailId_--;
+        }
+        return entries_.get(tailId_);
+    }
+
+    /**
+     * Returns the live item at the given position, 0 being the oldest, null if index is out
+     * of range.
+     */
+    @Override
+    public synchronized Entry at(final int index) {
+        if (index < 0 || index >= entries_.size()) {
+            return null;
+        }
+        final Iterator<Entry> it = entries_.values().iterator();
+        for (int i = 0; i < index; i++) {
+            it.next();
+        }
+        return it.next();
+    }
+
+    /**
+     * Appends an item to the tail of the journal.
+     * @return the stable id assigned to the item, or -1 if the item is larger than
+     *         MAX_PAYLOAD_BYTES and was dropped
+     */
+    @Override
+    public synchronized long append(final String value) {
+        final byte[] bytes = value.getBytes(UTF8);
+        if (isOversized(bytes)) {
+            return -1;
+        }
+        final long id = nextId_++;
+        final Entry entry = new Entry(id, value, APPEND_OVERHEAD + bytes.length);
+        entries_.put(id, entry);
+        liveBytes_ += entry.size;
+        tailId_ = id;
+
+        recordBuffer_.reset();
+        writeAppend(id, bytes);
+        writeRecords(id);
+        return id;
+    }
+
+    /**
+     * Appends several items with a single write to disk.
+     * @return ids assigned to the items, in iteration order of the collection, -1 for items
+     *         larger than MAX_PAYLOAD_BYTES that were dropped
+     */
+    @Override
+    public synchronized long[] appendAll(final Collection<String> values) {
+        final long[] ids = new long[values.size()];
+        recordBuffer_.reset();
+        long lastId = -1;
+        int i = 0;
+        for (String value : values) {
+            final byte[] bytes = value.getBytes(UTF8);
+            if (isOversized(bytes)) {
+                ids[i++] = -1;
+                continue;
+            }
+            final long id = nextId_++;
+            final Entry entry = new Entry(id, value, APPEND_OVERHEAD + bytes.length);
+            entries_.put(id, entry);
+            liveBytes_ += entry.size;
+            tailId_ = id;
+            writeAppend(id, bytes);
+            ids[i++] = id;
+            lastId = id;
+        }
+        if (lastId >= 0) {
+            writeRecords(lastId);
+        }
+        return ids;
+    }
+
+    /**
+     * Returns true if an item is too large to be read back when the journal is replayed, in
+     * which case it is dropped rather than written.
+     */
+    private boolean isOversized(final byte[] bytes) {
+        if (bytes.length <= MAX_PAYLOAD_BYTES) {
+            return false;
+        }
+        if (Countly.sharedInstance().isLoggingEnabled()) {
+            Log.w(Countly.TAG, "Dropping " + bytes.length + " byte item, larger than the " + name_ + " journal accepts");
+        }
+        return true;
+    }
+
+    /**
+     * Removes the item with the given id, ignored if no such item is live.
+     * @return true if an item was removed
+     */
+    @Override
+    public synchronized boolean remove(final long id) {
+        return removeAll(new long[]{id}) > 0;
+    }
+
+    /**
+     * Removes the items with the given ids with a single write to disk. Removing a run of items
+     * starting at the head of the queue is recorded as a head advance, everything else as
+     * tombstones.
+     * @return number of items removed
+     */
+    @Override
+    public synchronized int removeAll(final long[] ids) {
+        final long[] sorted = Arrays.copyOf(ids, ids.length);
+        Arrays.sort(sorted);
+
+        recordBuffer_.reset();
+        int removed = 0;
+        int i = 0;
+
+        // a run of ids matching the current head of the queue becomes one HEAD record
+        long headTo = -1;
+        final Iterator<Long> it = entries_.keySet().iterator();
+        while (i < sorted.length && it.hasNext()) {
+            final long head = it.next();
+            while (i < sorted.length && sorted[i] < head) {
+                i++; // not live
+            }
+            if (i == sorted.length || sorted[i] != head) {
+                break;
+            }
+            liveBytes_ -= entries_.get(head).size;
+            it.remove();
+            headTo = head;
+            removed++;
+            while (i < sorted.length && sorted[i] == head) {
+                i++;
+            }
+        }
+        if (headTo >= 0) {
+            writeRecord(RECORD_HEAD, headTo);
+        }
+
+        for (; i < sorted.length; i++) {
+            final Entry entry = entries_.remove(sorted[i]);
+            if (entry != null) {
+                liveBytes_ -= entry.size;
+                writeRecord(RECORD_TOMBSTONE, entry.id);
+                removed++;
+            }
+        }
+
+        if (removed > 0) {
+            writeRecords(-1);
+            pruneSegments();
+        }
+        return removed;
+    }
+
+    /**
+     * Removes up to count items from the head of the queue with a single head advance record.
+     * @return number of items removed
+     */
+    @Override
+    public synchronized int removeHead(final int count) {
+        int removed = 0;
+        long headTo = -1;
+        final Iterator<Entry> it = entries_.values().iterator();
+        while (removed < count && it.hasNext()) {
+            final Entry entry = it.next();
+            liveBytes_ -= entry.size;
+            headTo = entry.id;
+            it.remove();
+            removed++;
+        }
+        if (removed > 0) {
+            recordBuffer_.reset();
+            writeRecord(RECORD_HEAD, headTo);
+            writeRecords(-1);
+            pruneSegments();
+        }
+        return removed;
+    }
+
+    /**
+     * Removes every live item with an id up to and including the given one with a single head
+     * advance record. Items are only ever appended with increasing ids, so these are exactly
+     * the items at the head of the queue, and items appended since are left alone.
+     * @return number of items removed
+     */
+    @Override
+    public synchronized int removeThrough(final long id) {
+        int removed = 0;
+        final Iterator<Entry> it = entries_.values().iterator();
+        while (it.hasNext()) {
+            final Entry entry = it.next();
+            if (entry.id > id) {
+                break;
+            }
+            liveBytes_ -= entry.size;
+            it.remove();
+            removed++;
+        }
+        if (removed > 0) {
+            recordBuffer_.reset();
+            writeRecord(RECORD_HEAD, id);
+            writeRecords(-1);
+            pruneSegments();
+        }
+        return removed;
+    }
+
+    /**
+     * Removes the first live item whose value equals the given one.
+     * @return true if an item was removed
+     */
+    @Override
+    public synchronized boolean removeFirst(final String value) {
+        final long id = idOf(value);
+        return id >= 0 && remove(id);
+    }
+
+    /**
+     * Returns the id of the first live item whose value equals the given one, -1 if there is none.
+     */
+    @Override
+    public synchronized long idOf(final String value) {
+        for (Entry e : entries_.values()) {
+            if (e.value.equals(value)) {
+                return e.id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Increments the attempt counter of the item with the given id and persists it.
+     * @return the new number of attempts, or -1 if no such item is live
+     */
+    @Override
+    public synchronized int recordAttempt(final long id) {
+        final Entry entry = entries_.get(id);
+        if (entry == null) {
+            return -1;
+        }
+        entry.attempts++;
+        recordBuffer_.reset();
+        writeAttempts(id, entry.attempts);
+        writeRecords(-1);
+        return entry.attempts;
+    }
+
+    /**
+     * Removes every item and deletes all segment files.
+     */
+    @Override
+    public synchronized void clear() {
+        syncPolicy_.takePending(); // the segments are deleted, nothing left to sync
+        closeActive();
+        for (Segment segment : segments_) {
+            deleteFile(segment.file);
+        }
+        segments_.clear();
+        entries_.clear();
+        liveBytes_ = 0;
+        totalBytes_ = 0;
+        compactionPending_ = false;
+        rollPending_ = false;
+    }
+
+    /**
+     * Closes the active segment, syncing any deferred writes first. The journal can still be
+     * used afterwards, the segment is reopened on the next write.
+     */
+    @Override
+    public synchronized void close() {
+        closeActive();
+    }
+
+    @Override
+    public synchronized void setDurability(final Countly.DurabilityMode mode, final long groupCommitWindowMillis) {
+        sync();
+        syncPolicy_.setMode(mode, groupCommitWindowMillis);
+    }
+
+    /**
+     * Syncs the active segment if records were written to it without being synced. Older
+     * segments are synced when the journal rolls over to a new one.
+     */
+    @Override
+    public synchronized void sync() {
+        if (syncPolicy_.takePending() && activeOut_ != null) {
+            try {
+                activeOut_.getFD().sync();
+            } catch (IOException e) {
+                if (Countly.sharedInstance().isLoggingEnabled()) {
+                    Log.w(Countly.TAG, "Failed to sync " + name_ + " journal", e);
+                }
+            }
+        }
+    }
+
+    // for unit testing
+    synchronized int segmentCount() {
+        return segments_.size();
+    }
+
+    synchronized long totalBytes() {
+        return totalBytes_;
+    }
+
+    private void writeAppend(final long id, final byte[] bytes) {
+        try {
+            crc_.reset();
+            crc_.update(bytes, 0, bytes.length);
+            recordOut_.writeByte(RECORD_APPEND);
+            recordOut_.writeLong(id);
+            recordOut_.writeInt(bytes.length);
+            recordOut_.write(bytes);
+            recordOut_.writeInt((int) crc_.getValue());
+        } catch (IOException ignored) {
+            // cannot happen when writing to a ByteArrayOutputStream
+        }
+    }
+
+    private void writeAttempts(final long id, final int attempts) {
+        try {
+            recordOut_.writeByte(RECORD_ATTEMPTS);
+            recordOut_.writeLong(id);
+            recordOut_.writeInt(attempts);
+        } catch (IOException ignored) {
+            // cannot happen when writing to a ByteArrayOutputStream
+        }
+    }
+
+    private void writeRecord(final byte type, final long id) {
+        try {
+            recordOut_.writeByte(type);
+            recordOut_.writeLong(id);
+        } catch (IOException ignored) {
+            // cannot happen when writing to a ByteArrayOutputStream
+        }
+    }
+
+    /**
+     * Writes the buffered records to the active segment, rolling over to a new
+     * segment first if the active one is full.
+     * @param lastAppendedId highest id appended by these records, or -1 if none
+     */
+    private void writeRecords(final long lastAppendedId) {
+        Segment active = null;
+        try {
+            active = segments_.isEmpty() ? null : segments_.get(segments_.size() - 1);
+            if (active == null || active.bytes >= SEGMENT_SIZE_BYTES || rollPending_) {
+                active = openSegment();
+                rollPending_ = false;
+            } else if (activeOut_ == null) {
+                activeOut_ = openStream(active.file, true);
+            }
+            recordBuffer_.writeTo(activeOut_);
+            activeOut_.flush();
+            if (syncPolicy_.written()) {
+                activeOut_.getFD().sync();
+            }
+
+            active.bytes += recordBuffer_.size();
+            totalBytes_ += recordBuffer_.size();
+            if (lastAppendedId > active.lastId) {
+                active.lastId = lastAppendedId;
+            }
+        } catch (IOException e) {
+            // part of the records may have reached the file; replay stops at a torn record, so
+            // cut the segment back to its last complete record, or write to a new segment if that
+            // fails. The items stay in memory and are written out by a compaction, which is
+            // retried on every write until it succeeds.
+            closeActive();
+            if (active != null && !truncate(active.file, active.bytes)) {
+                rollPending_ = true;
+            }
+            compactionPending_ = true;
+            if (Countly.sharedInstance().isLoggingEnabled()) {
+                Log.w(Countly.TAG, "Failed to write to " + name_ + " journal", e);
+            }
+        }
+        recordBuffer_.reset();
+        compactIfNeeded();
+    }
+
+    private Segment openSegment() throws IOException {
+        closeActive();
+        if (!directory_.exists() && !directory_.mkdirs()) {
+            throw new IOException("cannot create " + directory_);
+        }
+        final long seq = nextSeq_++;
+        final Segment segment = new Segment(seq, segmentFile(seq));
+        segment.lastId = segments_.isEmpty() ? 0 : segments_.get(segments_.size() - 1).lastId;
+        activeOut_ = openStream(segment.file, false);
+        final DataOutputStream out = new DataOutputStream(activeOut_);
+        out.writeInt(MAGIC);
+        out.writeByte(0);
+        segment.bytes = HEADER_SIZE;
+        totalBytes_ += HEADER_SIZE;
+        segments_.add(segment);
+        return segment;
+    }
+
+    /**
+     * Deletes segments from the oldest end while every item appended to them has been removed.
+     * Segments are only ever deleted oldest first: tombstones in a segment refer to items in the
+     * same or older segments, so deleting a prefix can never bring a removed item back.
+     */
+    private void pruneSegments() {
+        if (entries_.isEmpty()) {
+            // nothing is live, start over with a fresh segment on the next write
+            syncPolicy_.takePending();
+            closeActive();
+            for (Segment segment : segments_) {
+                deleteFile(segment.file);
+            }
+            segments_.clear();
+            totalBytes_ = 0;
+            compactionPending_ = false;
+            rollPending_ = false;
+            return;
+        }
+        final long head = entries_.keySet().iterator().next();
+        while (segments_.size() > 1 && segments_.get(0).lastId < head) {
+            final Segment segment = segments_.remove(0);
+            totalBytes_ -= segment.bytes;
+            deleteFile(segment.file);
+        }
+    }
+
+    /**
+     * Rewrites all live items into a single snapshot segment once removed items take
+     * up most of the journal, or after a failed write.
+     */
+    private void compactIfNeeded() {
+        if (!compactionPending_ && (segments_.isEmpty() || totalBytes_ < COMPACTION_MIN_BYTES || totalBytes_ < liveBytes_ * 2)) {
+            return;
+        }
+        final long seq = nextSeq_++;
+        final File temp = new File(directory_, name_ + "-" + seq + TEMP_SUFFIX);
+        FileOutputStream out = null;
+        try {
+            closeActive();
+            out = openStream(temp, false);
+            recordBuffer_.reset();
+            recordOut_.writeInt(MAGIC);
+            recordOut_.writeByte(FLAG_SNAPSHOT);
+            for (Entry e : entries_.values()) {
+                writeAppend(e.id, e.value.getBytes(UTF8));
+                if (e.attempts > 0) {
+                    writeAttempts(e.id, e.attempts);
+                }
+                if (recordBuffer_.size() >= 64 * 1024) {
+                    recordBuffer_.writeTo(out);
+                    recordBuffer_.reset();
+                }
+            }
+            recordBuffer_.writeTo(out);
+            out.flush();
+            out.getFD().sync();
+            out.close();
+            out = null;
+
+            final Segment snapshot = new Segment(seq, segmentFile(seq));
+            if (!temp.renameTo(snapshot.file)) {
+                throw new IOException("cannot rename " + temp);
+            }
+            snapshot.bytes = snapshot.file.length();
+            snapshot.lastId = nextId_ - 1;
+
+            for (Segment segment : segments_) {
+                deleteFile(segment.file);
+            }
+            segments_.clear();
+            segments_.add(snapshot);
+            totalBytes_ = snapshot.bytes;
+            compactionPending_ = false;
+            rollPending_ = false;
+        } catch (IOException e) {
+            if (Countly.sharedInstance().isLoggingEnabled()) {
+                Log.w(Countly.TAG, "Failed to compact " + name_ + " journal", e);
+            }
+            deleteFile(temp);
+        } finally {
+            recordBuffer_.reset();
+            if (out != null) {
+                try { out.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the in-memory queue from the segment files found on disk. Segments older than
+     * the newest snapshot and leftovers of an interrupted compaction are deleted, torn or
+     * corrupt records at the end of a segment are truncated away.
+     */
+    private void replay() {
+        final File[] files = directory_.listFiles();
+        if (files == null) {
+            return;
+        }
+        final String prefix = name_ + "-";
+        final List<Segment> found = new ArrayList<>();
+        for (File file : files) {
+            final String fileName = file.getName();
+            if (!fileName.startsWith(prefix)) {
+                continue;
+            }
+            if (fileName.endsWith(TEMP_SUFFIX)) {
+                deleteFile(file);
+            } else if (fileName.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    final long seq = Long.parseLong(fileName.substring(prefix.length(), fileName.length() - SEGMENT_SUFFIX.length()));
+                    found.add(new Segment(seq, file));
+                } catch (NumberFormatException ignored) {
+                    // not one of ours
+                }
+            }
+        }
+        Collections.sort(found, new Comparator<Segment>() {
+            @Override
+            public int compare(final Segment s1, final Segment s2) {
+                return s1.seq < s2.seq ? -1 : (s1.seq == s2.seq ? 0 : 1);
+            }
+        });
+        if (found.isEmpty()) {
+            return;
+        }
+        nextSeq_ = found.get(found.size() - 1).seq + 1;
+
+        int start = 0;
+        for (int i = found.size() - 1; i > 0; i--) {
+            if (isSnapshot(found.get(i).file)) {
+                start = i;
+                break;
+            }
+        }
+        for (int i = 0; i < start; i++) {
+            deleteFile(found.get(i).file);
+        }
+
+        for (int i = start; i < found.size(); i++) {
+            final Segment segment = found.get(i);
+            segment.lastId = segments_.isEmpty() ? 0 : segments_.get(segments_.size() - 1).lastId;
+            replaySegment(segment);
+            if (segment.bytes == 0) {
+                deleteFile(segment.file);
+            } else {
+                segments_.add(segment);
+                totalBytes_ += segment.bytes;
+            }
+        }
+        tailId_ = nextId_ - 1;
+        pruneSegments();
+    }
+
+    private void replaySegment(final Segment segment) {
+        long valid = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)));
+            if (in.readInt() != MAGIC) {
+                throw new IOException("bad segment header");
+            }
+            in.readByte();
+            valid = HEADER_SIZE;
+
+            while (true) {
+                final byte type = in.readByte();
+                final long id = in.readLong();
+                if (type == RECORD_APPEND) {
+                    final int length = in.readInt();
+                    if (length < 0 || length > MAX_PAYLOAD_BYTES) {
+                        throw new IOException("bad record length");
+                    }
+                    final byte[] bytes = new byte[length];
+                    in.readFully(bytes);
+                    final int crc = in.readInt();
+                    crc_.reset();
+                    crc_.update(bytes, 0, length);
+                    if (crc != (int) crc_.getValue()) {
+                        throw new IOException("bad record checksum");
+                    }
+                    final Entry entry = new Entry(id, new String(bytes, UTF8), APPEND_OVERHEAD + length);
+                    entries_.put(id, entry);
+                    liveBytes_ += entry.size;
+                    if (id >= nextId_) {
+                        nextId_ = id + 1;
+                    }
+                    if (id > segment.lastId) {
+                        segment.lastId = id;
+                    }
+                    valid += entry.size;
+                } else if (type == RECORD_TOMBSTONE) {
+                    final Entry entry = entries_.remove(id);
+                    if (entry != null) {
+                        liveBytes_ -= entry.size;
+                    }
+                    valid += RECORD_OVERHEAD;
+                } else if (type == RECORD_HEAD) {
+                    final Iterator<Entry> it = entries_.values().iterator();
+                    while (it.hasNext()) {
+                        final Entry entry = it.next();
+                        if (entry.id > id) {
+                            break;
+                        }
+                        liveBytes_ -= entry.size;
+                        it.remove();
+                    }
+                    valid += RECORD_OVERHEAD;
+                } else if (type == RECORD_ATTEMPTS) {
+                    final int attempts = in.readInt();
+                    final Entry entry = entries_.get(id);
+                    if (entry != null) {
+                        entry.attempts = attempts;
+                    }
+                    valid += ATTEMPTS_OVERHEAD;
+                } else {
+                    throw new IOException("bad record type " + type);
+                }
+            }
+        } catch (EOFException ignored) {
+            // end of segment, possibly in the middle of a record torn by a crash
+        } catch (IOException e) {
+            if (Countly.sharedInstance().isLoggingEnabled()) {
+                Log.w(Countly.TAG, "Corrupt data in " + segment.file + ", truncating", e);
+            }
+        } finally {
+            if (in != null) {
+                try { in.close(); } catch (IOException ignored) {}
+            }
+        }
+
+        segment.bytes = valid;
+        if (valid > 0 && valid < segment.file.length()) {
+            truncate(segment.file, valid);
+        }
+    }
+
+    private static boolean isSnapshot(final File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            return in.readInt() == MAGIC && in.readByte() == FLAG_SNAPSHOT;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (in != null) {
+                try { in.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    /**
+     * @return true if the file was truncated
+     */
+    private static boolean truncate(final File file, final long length) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(length);
+            return true;
+        } catch (IOException e) {
+            if (Countly.sharedInstance().isLoggingEnabled()) {
+                Log.w(Countly.TAG, "Failed to truncate " + file, e);
+            }
+            return false;
+        } finally {
+            if (raf != null) {
+                try { raf.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    private File segmentFile(final long seq) {
+        return new File(directory_, name_ + "-" + seq + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Opens a segment or snapshot file for writing; tests override it to inject write failures.
+     */
+    FileOutputStream openStream(final File file, final boolean append) throws IOException {
+        return new FileOutputStream(file, append);
+    }
+
+    private void closeActive() {
+        if (activeOut_ != null) {
+            sync();
+            try { activeOut_.close(); } catch (IOException ignored) {}
+            activeOut_ = null;
+        }
+    }
+
+    private static void deleteFile(final File file) {
+        if (file.exists() && !file.delete() && Countly.sharedInstance().isLoggingEnabled()) {
+            Log.w(Countly.TAG, "Failed to delete " + file);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+Copyright (c) 2012, 2013, 2014 Countly
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package ly.count.android.sdk;
+
+/**
+ * Priority lanes of the request queue, highest priority first. Each lane is persisted
+ * separately and drained in order, so a backlog of events or a request the server keeps
+ * rejecting cannot hold back crash reports or session requests.
+ */
+enum RequestLane {
+    CRASH("crash"),
+    SESSION("session"),
+    EVENTS("events"),
+    USER("user");
+
+    /**
+     * Name of the lane's journal, unique within the store's directory. It must not start
+     * with "connections-": that prefix belongs to the single journal of older SDK versions.
+     */
+    final String journalName;
+
+    RequestLane(final String name) {
+        journalName = "connections_" + name;
+    }
+
+    /**
+     * Returns the lane a request belongs to, judged by the API parameters it carries.
+     * Parameter values are URL-encoded, so they cannot be mistaken for parameter names.
+     * @param request stored request, without the device_id parameter
+     */
+    static RequestLane of(final String request) {
+        if (request.contains("&crash=")) {
+            return CRASH;
+        }
+        if (request.contains("&begin_session=") || request.contains("&session_duration=")
+                || request.contains("&end_session=") || request.contains("&token_session=")) {
+            return SESSION;
+        }
+        if (request.contains("&events=")) {
+            return EVENTS;
+        }
+        return USER;
+    }
+}
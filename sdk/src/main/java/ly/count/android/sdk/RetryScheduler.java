@@ -0,0 +1,144 @@
+/*
+Copyright (c) 2012, 2013, 2014 Countly
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package ly.count.android.sdk;
+
+import android.util.Log;
+
+import java.util.EnumMap;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when each request lane may be submitted again after a failure and wakes the
+ * connection queue up once the earliest backoff has run out, so a lane is retried on time
+ * instead of whenever the next event happens to be recorded.
+ *
+ * A 429 or 503 response means the server as a whole is overloaded, so it holds back every
+ * lane, not just the one whose request got the response.
+ */
+class RetryScheduler {
+    private static ScheduledExecutorService timer_;
+
+    private final EnumMap<RequestLane, RetryState> states_ = new EnumMap<>(RequestLane.class);
+    private final Runnable retry_;
+    private final Random random_ = new Random();
+    private ScheduledFuture<?> scheduled_;
+    private long scheduledAt_;
+
+    /**
+     * @param retry run once a lane's backoff has run out, typically ConnectionQueue.tick()
+     */
+    RetryScheduler(final Runnable retry) {
+        retry_ = retry;
+        for (RequestLane lane : RequestLane.values()) {
+            states_.put(lane, new RetryState());
+        }
+    }
+
+    RetryState state(final RequestLane lane) {
+        return states_.get(lane);
+    }
+
+    /**
+     * Returns true if requests of the lane may be submitted now.
+     */
+    boolean canAttempt(final RequestLane lane) {
+        return states_.get(lane).canAttempt(System.currentTimeMillis());
+    }
+
+    /**
+     * Returns true if the lane's next request is a circuit breaker probe and must be sent on its own.
+     */
+    boolean isProbing(final RequestLane lane) {
+        return states_.get(lane).isCircuitOpen();
+    }
+
+    void onSuccess(final RequestLane lane) {
+        states_.get(lane).onSuccess();
+    }
+
+    /**
+     * Records a failed submission of the lane's head request and backs the lane off.
+     * @param response the server's response, null if the request could not be submitted at all
+     */
+    void onFailure(final RequestLane lane, final Transport.Response response) {
+        final RetryState state = states_.get(lane);
+        final int failures = state.onFailure(System.currentTimeMillis(), response == null ? -1 : response.retryAfterMillis, random_);
+        if (response != null && response.isThrottled()) {
+            for (RetryState other : states_.values()) {
+                other.deferUntil(state.getNextAttemptAt());
+            }
+        }
+        if (Countly.sharedInstance().isLoggingEnabled()) {
+            Log.i(Countly.TAG, "Lane " + lane + " failed " + failures + " time(s) in a row, next attempt in "
+                    + (state.getNextAttemptAt() - System.currentTimeMillis()) + " ms"
+                    + (state.isCircuitOpen() ? " (circuit open)" : ""));
+        }
+    }
+
+    /**
+     * Makes sure the retry action runs when the earliest lane backoff runs out. Does nothing
+     * if no lane is backing off or an early enough retry is already scheduled.
+     */
+    synchronized void scheduleRetry() {
+        final long now = System.currentTimeMillis();
+        long earliest = Long.MAX_VALUE;
+        for (RetryState state : states_.values()) {
+            final long at = state.getNextAttemptAt();
+            if (at > now && at < earliest) {
+                earliest = at;
+            }
+        }
+        if (earliest == Long.MAX_VALUE) {
+            return;
+        }
+        if (scheduled_ != null && !scheduled_.isDone()) {
+            if (scheduledAt_ <= earliest) {
+                return;
+            }
+            scheduled_.cancel(false);
+        }
+        scheduledAt_ = earliest;
+        scheduled_ = timer().schedule(retry_, earliest - now, TimeUnit.MILLISECONDS);
+    }
+
+    // for unit testing
+    synchronized long getScheduledAt() { return scheduled_ == null || scheduled_.isDone() ? 0 : scheduledAt_; }
+
+    private static synchronized ScheduledExecutorService timer() {
+        if (timer_ == null) {
+            timer_ = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(r, "Countly-Retry");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return timer_;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+Copyright (c) 2012, 2013, 2014 Countly
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package ly.count.android.sdk;
+
+import java.util.Random;
+
+/**
+ * Retry bookkeeping of a single request lane: exponential backoff with jitter after each
+ * failed submission, and a circuit breaker that stops sending for a long while once a lane
+ * keeps failing. After the breaker's open period a single request is sent as a probe; the
+ * first success closes the breaker and resets the backoff.
+ *
+ * Delays use "equal jitter": half of the computed delay plus a random share of the other
+ * half, so devices that failed together don't all retry in the same second.
+ */
+class RetryState {
+    static final long BASE_DELAY_MILLIS = 2 * 1000;
+    static final long MAX_DELAY_MILLIS = 5 * 60 * 1000;
+    static final int CIRCUIT_THRESHOLD = 6;
+    static final long CIRCUIT_OPEN_MILLIS = 15 * 60 * 1000;
+    // upper bound for a server supplied Retry-After, guards against nonsense values
+    static final long MAX_RETRY_AFTER_MILLIS = 60 * 60 * 1000;
+
+    private int failures_;
+    private long nextAttemptAt_;
+
+    /**
+     * Called after the lane's head request was accepted by the server.
+     */
+    synchronized void onSuccess() {
+        failures_ = 0;
+        nextAttemptAt_ = 0;
+    }
+
+    /**
+     * Called after submitting the lane's head request failed, schedules the next attempt.
+     * @param now current time in milliseconds
+     * @param retryAfterMillis delay requested by the server, -1 if none; it is honoured if it
+     *                         is longer than the backoff
+     * @param random source of the jitter
+     * @return number of consecutive failures, including this one
+     */
+    synchronized int onFailure(final long now, final long retryAfterMillis, final Random random) {
+        failures_++;
+        final long delay;
+        if (failures_ >= CIRCUIT_THRESHOLD) {
+            delay = CIRCUIT_OPEN_MILLIS;
+        } else {
+            delay = Math.min(MAX_DELAY_MILLIS, BASE_DELAY_MILLIS << (failures_ - 1));
+        }
+        long wait = delay / 2 + (long) (random.nextDouble() * (delay / 2));
+        if (retryAfterMillis > wait) {
+            wait = Math.min(retryAfterMillis, MAX_RETRY_AFTER_MILLIS);
+        }
+        nextAttemptAt_ = now + wait;
+        return failures_;
+    }
+
+    /**
+     * Holds the lane back until the given time without counting a failure, used when the
+     * server throttles all requests because of another lane's request.
+     */
+    synchronized void deferUntil(final long time) {
+        if (time > nextAttemptAt_) {
+            nextAttemptAt_ = time;
+        }
+    }
+
+    /**
+     * Returns true if the lane's backoff or open circuit has run out at time now.
+     */
+    synchronized boolean canAttempt(final long now) {
+        return now >= nextAttemptAt_;
+    }
+
+    /**
+     * Returns true while the circuit breaker is open. Attempts made in this state are probes
+     * and must send a single request rather than a bulk.
+     */
+    synchronized boolean isCircuitOpen() {
+        return failures_ >= CIRCUIT_THRESHOLD;
+    }
+
+    /**
+     * Returns the time of the next allowed attempt in milliseconds, 0 if there is no backoff.
+     */
+    synchronized long getNextAttemptAt() {
+        return nextAttemptAt_;
+    }
+
+    /**
+     * Returns the number of consecutive failed submissions since the last success.
+     */
+    synchronized int getFailures() {
+        return failures_;
+    }
+}
@@ -0,0 +1,387 @@
+/*
+Copyright (c) 2012, 2013, 2014 Countly
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package ly.count.android.sdk;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * One lane of a CountlyDatabase queue table.
+ *
+ * Rows are read in id order through the (lane, id) index, inserts go through a prepared
+ * statement and batches run in a single transaction, so every operation is durable and atomic
+ * and removal is O(log n) per row. The number and size of the live rows are counted once
+ * when the queue is opened and then kept up to date in memory.
+ */
+class SQLiteQueue implements PersistentQueue {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Approximate bytes a row takes up besides its value: the other columns and the index
+     * entries.
+     */
+    static final int ROW_OVERHEAD = 32;
+
+    // keeps the statements of a large removeAll() at a reasonable size
+    private static final int MAX_IDS_PER_STATEMENT = 500;
+
+    private final SQLiteDatabase db_;
+    private final String table_;
+    private final int lane_;
+    private final String laneArg_;
+    private final SQLiteStatement insert_;
+    private int size_;
+    private long liveBytes_;
+
+    /**
+     * Opens the rows of the given lane in the given table.
+     * @param db open CountlyDatabase
+     * @param table CountlyDatabase.REQUESTS_TABLE or CountlyDatabase.EVENTS_TABLE
+     * @param lane lane of the rows making up this queue
+     */
+    SQLiteQueue(final SQLiteDatabase db, final String table, final int lane) {
+        db_ = db;
+        table_ = table;
+        lane_ = lane;
+        laneArg_ = String.valueOf(lane);
+        insert_ = db.compileStatement("INSERT INTO " + table + " (lane, value, timestamp) VALUES (?, ?, ?)");
+        count();
+    }
+
+    /**
+     * Reads the number and size of the live rows from the database.
+     */
+    private void count() {
+        final Cursor cursor = db_.rawQuery("SELECT COUNT(*), TOTAL(LENGTH(CAST(value AS BLOB))) FROM " + table_ + " WHERE lane = ?", new String[]{laneArg_});
+        try {
+            cursor.moveToFirst();
+            size_ = cursor.getInt(0);
+            liveBytes_ = (long) size_ * ROW_OVERHEAD + cursor.getLong(1);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public synchronized int size() {
+        return size_;
+    }
+
+    @Override
+    public synchronized long liveBytes() {
+        return liveBytes_;
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return size_ == 0;
+    }
+
+    @Override
+    public synchronized String[] values() {
+        final Cursor cursor = db_.rawQuery("SELECT value FROM " + table_ + " WHERE lane = ? ORDER BY id", new String[]{laneArg_});
+        try {
+            final String[] values = new String[cursor.getCount()];
+            int i = 0;
+            while (cursor.moveToNext()) {
+                values[i++] = cursor.getString(0);
+            }
+            return values;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public synchronized List<Entry> entries() {
+        return query("", "");
+    }
+
+    @Override
+    public synchronized List<Entry> peek(final int max) {
+        return query("", " LIMIT " + max);
+    }
+
+    @Override
+    public synchronized Entry get(final long id) {
+        final List<Entry> found = query(" AND id = " + id, "");
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    @Override
+    public synchronized Entry head() {
+        final List<Entry> found = peek(1);
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    @Override
+    public synchronized Entry tail() {
+        final List<Entry> found = query("", " DESC LIMIT 1");
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    @Override
+    public synchronized Entry at(final int index) {
+        if (index < 0 || index >= size_) {
+            return null;
+        }
+        final List<Entry> found = query("", " LIMIT 1 OFFSET " + index);
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    @Override
+    public int sizeOf(final String value) {
+        return entrySize(value);
+    }
+
+    /**
+     * Returns the entries of the lane in id order.
+     * @param condition appended to the WHERE clause selecting the lane
+     * @param limit appended after the ORDER BY clause
+     */
+    private List<Entry> query(final String condition, final String limit) {
+        final Cursor cursor = db_.rawQuery("SELECT id, value, attempts FROM " + table_ + " WHERE lane = ?"
+                + condition + " ORDER BY id" + limit, new String[]{laneArg_});
+        try {
+            final List<Entry> entries = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                final String value = cursor.getString(1);
+                final Entry entry = new Entry(cursor.getLong(0), value, entrySize(value));
+                entry.attempts = cursor.getInt(2);
+                entries.add(entry);
+            }
+            return entries;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static int entrySize(final String value) {
+        return ROW_OVERHEAD + value.getBytes(UTF8).length;
+    }
+
+    /**
+     * Inserts an item into the lane.
+     * @return the stable id assigned to the item, or -1 if it could not be inserted and was
+     *         dropped
+     */
+    @Override
+    public synchronized long append(final String value) {
+        try {
+            final long id = insert(value);
+            size_++;
+            liveBytes_ += entrySize(value);
+            return id;
+        } catch (SQLiteException e) {
+            logFailure("insert into", e);
+            return -1;
+        }
+    }
+
+    /**
+     * Inserts several items in a single transaction.
+     * @return ids assigned to the items, in iteration order of the collection, all -1 if the
+     *         transaction failed and nothing was inserted
+     */
+    @Override
+    public synchronized long[] appendAll(final Collection<String> values) {
+        final long[] ids = new long[values.size()];
+        long bytes = 0;
+        db_.beginTransaction();
+        try {
+            int i = 0;
+            for (String value : values) {
+                ids[i++] = insert(value);
+                bytes += entrySize(value);
+            }
+            db_.setTransactionSuccessful();
+        } catch (SQLiteException e) {
+            logFailure("insert into", e);
+            Arrays.fill(ids, -1);
+            return ids;
+        } finally {
+            db_.endTransaction();
+        }
+        size_ += ids.length;
+        liveBytes_ += bytes;
+        return ids;
+    }
+
+    private long insert(final String value) {
+        insert_.bindLong(1, lane_);
+        insert_.bindString(2, value);
+        insert_.bindLong(3, System.currentTimeMillis());
+        return insert_.executeInsert();
+    }
+
+    @Override
+    public synchronized boolean remove(final long id) {
+        return removeWhere("id = ?", String.valueOf(id)) > 0;
+    }
+
+    /**
+     * Removes the items with the given ids, with one transaction per MAX_IDS_PER_STATEMENT ids.
+     * @return number of items removed
+     */
+    @Override
+    public synchronized int removeAll(final long[] ids) {
+        int removed = 0;
+        for (int from = 0; from < ids.length; from += MAX_IDS_PER_STATEMENT) {
+            final int to = Math.min(ids.length, from + MAX_IDS_PER_STATEMENT);
+            final StringBuilder in = new StringBuilder("id IN (");
+            for (int i = from; i < to; i++) {
+                in.append(i == from ? "" : ", ").append(ids[i]);
+            }
+            removed += removeWhere(in.append(')').toString());
+        }
+        return removed;
+    }
+
+    @Override
+    public synchronized int removeHead(final int count) {
+        return removeWhere("id IN (SELECT id FROM " + table_ + " WHERE lane = " + lane_ + " ORDER BY id LIMIT " + count + ")");
+    }
+
+    @Override
+    public synchronized int removeThrough(final long id) {
+        return removeWhere("id <= ?", String.valueOf(id));
+    }
+
+    /**
+     * Deletes the rows of the lane matching the given condition and updates the counters.
+     * @return number of rows deleted, 0 if the delete failed
+     */
+    private int removeWhere(final String condition, final String... args) {
+        final String where = "lane = ? AND " + condition;
+        final String[] whereArgs = new String[args.length + 1];
+        whereArgs[0] = laneArg_;
+        System.arraycopy(args, 0, whereArgs, 1, args.length);
+
+        int removed = 0;
+        long bytes = 0;
+        db_.beginTransaction();
+        try {
+            final Cursor cursor = db_.rawQuery("SELECT TOTAL(LENGTH(CAST(value AS BLOB))) FROM " + table_ + " WHERE " + where, whereArgs);
+            try {
+                cursor.moveToFirst();
+                bytes = cursor.getLong(0);
+            } finally {
+                cursor.close();
+            }
+            removed = db_.delete(table_, where, whereArgs);
+            db_.setTransactionSuccessful();
+        } catch (SQLiteException e) {
+            logFailure("delete from", e);
+            return 0;
+        } finally {
+            db_.endTransaction();
+        }
+        size_ -= removed;
+        liveBytes_ -= (long) removed * ROW_OVERHEAD + bytes;
+        return removed;
+    }
+
+    @Override
+    public synchronized boolean removeFirst(final String value) {
+        final long id = idOf(value);
+        return id >= 0 && remove(id);
+    }
+
+    @Override
+    public synchronized long idOf(final String value) {
+        final Cursor cursor = db_.rawQuery("SELECT id FROM " + table_ + " WHERE lane = ? AND value = ? ORDER BY id LIMIT 1", new String[]{laneArg_, value});
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public synchronized int recordAttempt(final long id) {
+        final String[] args = new String[]{laneArg_, String.valueOf(id)};
+        db_.beginTransaction();
+        try {
+            db_.execSQL("UPDATE " + table_ + " SET attempts = attempts + 1 WHERE lane = ? AND id = ?", args);
+            final Cursor cursor = db_.rawQuery("SELECT attempts FROM " + table_ + " WHERE lane = ? AND id = ?", args);
+            try {
+                final int attempts = cursor.moveToFirst() ? cursor.getInt(0) : -1;
+                db_.setTransactionSuccessful();
+                return attempts;
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLiteException e) {
+            logFailure("update", e);
+            return -1;
+        } finally {
+            db_.endTransaction();
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        try {
+            db_.delete(table_, "lane = ?", new String[]{laneArg_});
+            size_ = 0;
+            liveBytes_ = 0;
+        } catch (SQLiteException e) {
+            logFailure("delete from", e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        // the database is shared by all queues and owned by the CountlyStore
+    }
+
+    /**
+     * Ignored: every change is committed as a transaction, and how SQLite syncs transactions
+     * is a setting of the whole database rather than of one queue. The request and event
+     * tables share that database, so mapping a queue's mode to PRAGMA synchronous would let
+     * one queue change the durability of the other. Countly.setRequestQueueDurability() and
+     * setEventQueueDurability() document that the mode does not apply to this backend.
+     */
+    @Override
+    public void setDurability(final Countly.DurabilityMode mode, final long groupCommitWindowMillis) {
+    }
+
+    @Override
+    public void sync() {
+        // transactions are synced when they are committed
+    }
+
+    private void logFailure(final String operation, final SQLiteException e) {
+        if (Countly.sharedInstance().isLoggingEnabled()) {
+            Log.w(Countly.TAG, "Failed to " + operation + " " + table_ + " table", e);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+Copyright (c) 2012, 2013, 2014 Countly
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package ly.count.android.sdk;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when the writes of a PersistentQueue are flushed to disk, according to its
+ * Countly.DurabilityMode. Queues hand every write to the OS right away, so a write survives
+ * the process being killed either way; the mode only decides how much an OS crash or a power
+ * loss can take with it, and how often the queue pays for a flush.
+ *
+ * Deferred flushes run on a background thread shared by all queues, which calls the queue's
+ * sync task. Not thread-safe: the owning queue calls it with its own lock held.
+ */
+class SyncPolicy {
+    /**
+     * Default time writes are collected before a GROUP_COMMIT queue flushes them together.
+     */
+    static final long DEFAULT_GROUP_COMMIT_WINDOW_MILLIS = 1000;
+
+    private static ScheduledExecutorService syncExecutor_;
+
+    private final Runnable syncTask_;
+    private Countly.DurabilityMode mode_ = Countly.DurabilityMode.SYNC;
+    private long groupCommitWindowMillis_ = DEFAULT_GROUP_COMMIT_WINDOW_MILLIS;
+    private boolean pending_;
+    private ScheduledFuture<?> scheduledSync_;
+
+    /**
+     * @param syncTask flushes the owner's deferred writes, run on the shared background thread
+     */
+    SyncPolicy(final Runnable syncTask) {
+        syncTask_ = syncTask;
+    }
+
+    /**
+     * Sets the durability mode. The owner has to flush deferred writes first when switching
+     * to SYNC.
+     * @param groupCommitWindowMillis how long GROUP_COMMIT collects writes before flushing them
+     */
+    void setMode(final Countly.DurabilityMode mode, final long groupCommitWindowMillis) {
+        mode_ = mode;
+        groupCommitWindowMillis_ = Math.max(0, groupCommitWindowMillis);
+    }
+
+    /**
+     * Called by the owner after handing writes to the OS.
+     * @return true if the owner has to flush them to disk before returning, false if a flush
+     *         has been scheduled instead
+     */
+    boolean written() {
+        if (mode_ == Countly.DurabilityMode.SYNC) {
+            return true;
+        }
+        pending_ = true;
+        if (scheduledSync_ == null) {
+            final long delay = mode_ == Countly.DurabilityMode.GROUP_COMMIT ? groupCommitWindowMillis_ : 0;
+            scheduledSync_ = syncExecutor().schedule(syncTask_, delay, TimeUnit.MILLISECONDS);
+        }
+        return false;
+    }
+
+    /**
+     * Called by the owner before it flushes deferred writes, or when it deletes the file they
+     * went to. Cancels the scheduled flush.
+     * @return true if there are deferred writes
+     */
+    boolean takePending() {
+        if (scheduledSync_ != null) {
+            scheduledSync_.cancel(false);
+            scheduledSync_ = null;
+        }
+        final boolean pending = pending_;
+        pending_ = false;
+        return pending;
+    }
+
+    private static synchronized ScheduledExecutorService syncExecutor() {
+        if (syncExecutor_ == null) {
+            syncExecutor_ = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(r, "Countly-Sync");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return syncExecutor_;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+Copyright (c) 2012, 2013, 2014 Countly
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+package ly.count.android.sdk;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Transport is the interface ConnectionProcessor uses to submit queued requests to a
+ * Count.ly server. The default implementation, HttpTransport, uses HttpURLConnection;
+ * a custom implementation (a different HTTP client, or an in-process fake for tests and
+ * benchmarks) can be plugged in with Countly.setTransport().
+ *
+ * Implementations are called from the connection queue's single background thread,
+ * one request or batch at a time, in queue order.
+ */
+public interface Transport {
+
+    /**
+     * Submits a single queued request.
+     * @param requestData URL-encoded request parameters, including device_id
+     * @return the server's response
+     * @throws IOException if the request could not be submitted or the response could not be read
+     */
+    Response send(String requestData) throws IOException;
+
+    /**
+     * Submits several queued requests in a single round trip.
+     * @param requestsData URL-encoded request parameters of each request, including device_id,
+     *                     in queue order
+     * @return the server's response for the whole batch, or null if this transport can't send
+     *         these requests as one batch, in which case they are sent one by one
+     * @throws IOException if the batch could not be submitted or the response could not be read
+     */
+    Response sendBatch(List<String> requestsData) throws IOException;
+
+    /**
+     * A server response: HTTP status code, response body and the delay the server asked
+     * for in a Retry-After header.
+     */
+    final class Response {
+        public final int code;
+        public final String body;
+        /**
+         * Milliseconds to wait before the next request according to the server, -1 if it
+         * didn't say.
+         */
+        public final long retryAfterMillis;
+
+        public Response(final int code, final String body) {
+            this(code, body, -1);
+        }
+
+        public Response(final int code, final String body, final long retryAfterMillis) {
+            this.code = code;
+            this.body = body;
+            this.retryAfterMillis = retryAfterMillis;
+        }
+
+        /**
+         * Returns true if the response code is 2xx and the body is {"result":"Success"}.
+         */
+        public boolean isSuccess() {
+            if (code < 200 || code >= 300 || body == null) {
+                return false;
+            }
+            try {
+                return new JSONObject(body).optString("result").equalsIgnoreCase("success");
+            } catch (JSONException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Returns true if the server refused the request itself (4xx), as opposed to
+         * failing to process it. 429 is not a rejection of the request, see {@link #isThrottled()}.
+         */
+        public boolean isRejected() {
+            return code >= 400 && code < 500 && code != 429;
+        }
+
+        /**
+         * Returns true if the server is overloaded or rate limiting this client (429 or 503),
+         * in which case no request should be sent until it has recovered.
+         */
+        public boolean isThrottled() {
+            return code == 429 || code == 503;
+        }
+
+        @Override
+        public String toString() {
+            return "HTTP " + code + ": " + body;
+        }
+    }
+}